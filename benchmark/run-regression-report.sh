@@ -0,0 +1,21 @@
+#!/bin/bash
+
+# Runs the benchmarks and compares them against an earlier run, e.g. one from before
+# your change:
+#   sbt "benchmark/jmh:run -rf csv -rff $(pwd)/baseline.csv"
+#   (make your change)
+#   benchmark/run-regression-report.sh baseline.csv
+# Any further arguments go to JMH, e.g. a regex to only run some benchmarks or
+# "-p conllPath=/path/to/conll" to benchmark on real documents (pass the same ones to
+# both runs). Exits with status 1 if any benchmark regressed.
+
+if [ -z "$1" ]; then
+  echo "Usage: $0 baseline.csv [JMH arguments]"
+  exit 2
+fi
+baseline=$(cd $(dirname $1) && pwd)/$(basename $1)
+shift
+current=$(pwd)/benchmark-current.csv
+
+sbt "benchmark/jmh:run -rf csv -rff $current $*" || exit 2
+sbt "benchmark/runMain edu.berkeley.nlp.entity.bench.BenchmarkReport -baselinePath $baseline -currentPath $current"
@@ -0,0 +1,88 @@
+package edu.berkeley.nlp.entity.bench
+
+import scala.collection.mutable.ArrayBuffer
+import edu.berkeley.nlp.entity.ConllDoc
+import edu.berkeley.nlp.entity.ConllDocReader
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.SyntheticConll
+import edu.berkeley.nlp.entity.coref.AuxiliaryFeaturizer
+import edu.berkeley.nlp.entity.coref.CorefDoc
+import edu.berkeley.nlp.entity.coref.CorefDocAssembler
+import edu.berkeley.nlp.entity.coref.CorefPruner
+import edu.berkeley.nlp.entity.coref.DocumentGraph
+import edu.berkeley.nlp.entity.coref.FeatureSetSpecification
+import edu.berkeley.nlp.entity.coref.LexicalCountsBundle
+import edu.berkeley.nlp.entity.coref.MentionPropertyComputer
+import edu.berkeley.nlp.entity.coref.NumberGenderComputer
+import edu.berkeley.nlp.entity.coref.PairwiseIndexingFeaturizerJoint
+import edu.berkeley.nlp.entity.coref.PairwiseScorer
+import edu.berkeley.nlp.entity.lang.Language
+import edu.berkeley.nlp.entity.sem.BasicWordNetSemClasser
+import edu.berkeley.nlp.entity.sem.QueryCountsBundle
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * Shared setup for the benchmarks. Documents come from conllPath if it's set (a CoNLL
+ * file or a directory of them, e.g. a slice of the OntoNotes dev set) and are otherwise
+ * generated by SyntheticConll, so every benchmark runs without any data checked out.
+ */
+object BenchmarkFixtures {
+  val SyntheticSentsPerDoc = 30;
+  val Seed = 0;
+
+  /**
+   * A CoNLL file to read: conllPath itself if it's a file, the first file in it if it's a
+   * directory, or a temp file of synthetic documents if it's empty.
+   */
+  def conllFile(conllPath: String, numDocs: Int): String = {
+    if (conllPath.isEmpty) {
+      SyntheticConll.writeTempFile(numDocs, SyntheticSentsPerDoc, Seed);
+    } else {
+      val file = new java.io.File(conllPath);
+      if (file.isDirectory) ConllDocReader.getFiles(conllPath, "").head.getAbsolutePath else conllPath;
+    }
+  }
+
+  def loadConllDocs(conllPath: String, numDocs: Int): Seq[ConllDoc] = {
+    if (conllPath.isEmpty) {
+      new ConllDocReader(Language.ENGLISH).readConllDocs(conllFile(conllPath, numDocs));
+    } else {
+      ConllDocReader.loadRawConllDocsWithSuffix(conllPath, numDocs, "");
+    }
+  }
+
+  def loadCorefDocs(conllPath: String, numDocs: Int, numberGenderPath: String): Seq[CorefDoc] = {
+    val maybeNumberGenderComputer = if (numberGenderPath.isEmpty) None else Some(NumberGenderComputer.readBergsmaLinData(numberGenderPath));
+    val assembler = CorefDocAssembler(Language.ENGLISH, false);
+    val mentionPropertyComputer = new MentionPropertyComputer(maybeNumberGenderComputer);
+    loadConllDocs(conllPath, numDocs).map(doc => assembler.createCorefDoc(doc, mentionPropertyComputer));
+  }
+
+  /**
+   * The coref model pieces as CorefSystem.runTrain builds them from the Driver defaults
+   * (feature set, conjunctions, pruning), with the feature indexer already filled in by
+   * featurizing every document once so that benchmarks see the steady state. The weights
+   * are random since only the cost of scoring matters.
+   */
+  class CorefSetup(val docGraphs: Seq[DocumentGraph],
+                   val featurizer: PairwiseIndexingFeaturizerJoint,
+                   val scorer: PairwiseScorer);
+
+  def buildCorefSetup(conllPath: String, numDocs: Int, numberGenderPath: String): CorefSetup = {
+    val corefDocs = loadCorefDocs(conllPath, numDocs, numberGenderPath);
+    val lexicalCounts = LexicalCountsBundle.countLexicalItems(corefDocs, Driver.lexicalFeatCutoff);
+    val docGraphs = corefDocs.map(new DocumentGraph(_, true));
+    CorefPruner.buildPruner(Driver.pruningStrategy).pruneAll(docGraphs);
+    val featureIndexer = new Indexer[String]();
+    featureIndexer.getIndex(PairwiseIndexingFeaturizerJoint.UnkFeatName);
+    val featureSetSpec = FeatureSetSpecification(Driver.pairwiseFeats, Driver.conjScheme, Driver.conjFeats, Driver.conjMentionTypes, Driver.conjTemplates);
+    val queryCounts: Option[QueryCountsBundle] = None;
+    val featurizer = new PairwiseIndexingFeaturizerJoint(featureIndexer, featureSetSpec, lexicalCounts, queryCounts, Some(new BasicWordNetSemClasser), new ArrayBuffer[AuxiliaryFeaturizer]);
+    docGraphs.foreach(_.featurizeIndexNonPrunedUseCache(featurizer));
+    Logger.logss(docGraphs.size + " documents, " + docGraphs.map(_.size).foldLeft(0)(_ + _) + " mentions, " + featureIndexer.size + " features");
+    val rng = new scala.util.Random(Seed);
+    val weights = Array.fill(featureIndexer.size)(rng.nextFloat - 0.5F);
+    new CorefSetup(docGraphs, featurizer, new PairwiseScorer(featurizer, weights));
+  }
+}
@@ -0,0 +1,132 @@
+package edu.berkeley.nlp.entity.bench
+
+import scala.collection.mutable.ArrayBuffer
+import edu.berkeley.nlp.futile.LightRunner
+import edu.berkeley.nlp.futile.fig.basic.IOUtils
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * Regression report between two runs of the benchmarks saved as JMH CSV results
+ * (-rf csv -rff results.csv): for each benchmark and parameter setting in both, prints
+ * the baseline and current scores and flags it as a regression or an improvement if the
+ * score moved by more than threshold (relative) and the two 99.9% confidence intervals
+ * don't overlap, so noise alone doesn't trip it. Whether higher is better depends on the
+ * benchmark mode: it is for throughput and isn't for the time modes.
+ *
+ * Exits with status 1 if anything regressed and failOnRegression is set, so it can gate a
+ * script; see run-regression-report.sh.
+ */
+object BenchmarkReport {
+
+  val baselinePath = "";
+  val currentPath = "";
+  val threshold = 0.05;
+  val failOnRegression = true;
+
+  case class BenchmarkResult(val name: String, val params: String, val mode: String, val score: Double, val error: Double, val unit: String) {
+    def key = name + (if (params.isEmpty) "" else " " + params);
+    def higherIsBetter = mode == "thrpt";
+  }
+
+  def main(args: Array[String]) {
+    LightRunner.populateScala(BenchmarkReport.getClass(), args);
+    require(!baselinePath.isEmpty && !currentPath.isEmpty, "Need both baselinePath and currentPath");
+    val baseline = readResults(baselinePath);
+    val current = readResults(currentPath);
+    val baselineByKey = baseline.map(result => result.key -> result).toMap;
+    var numRegressions = 0;
+    var numImprovements = 0;
+    val lines = new ArrayBuffer[String];
+    for (curr <- current) {
+      baselineByKey.get(curr.key) match {
+        case None => lines += curr.key + ": new, " + render(curr);
+        case Some(base) => {
+          require(base.unit == curr.unit && base.mode == curr.mode, "Baseline and current results for " + curr.key + " aren't comparable: " + base + " vs. " + curr);
+          val change = (curr.score - base.score) / base.score;
+          val overlaps = Math.abs(curr.score - base.score) <= base.error + curr.error;
+          val better = if (curr.higherIsBetter) change > 0 else change < 0;
+          val status = if (overlaps || Math.abs(change) <= threshold) {
+            "same";
+          } else if (better) {
+            numImprovements += 1;
+            "IMPROVED";
+          } else {
+            numRegressions += 1;
+            "REGRESSED";
+          }
+          lines += curr.key + ": " + status + " " + "%+.1f%%".format(change * 100) + ", " + render(base) + " -> " + render(curr);
+        }
+      }
+    }
+    for (base <- baseline; if !current.exists(_.key == base.key)) {
+      lines += base.key + ": missing from current, was " + render(base);
+    }
+    Logger.logss(lines.mkString("\n"));
+    Logger.logss(numRegressions + " regressions, " + numImprovements + " improvements out of " + current.size + " benchmarks (threshold " + threshold + ")");
+    if (failOnRegression && numRegressions > 0) {
+      System.exit(1);
+    }
+  }
+
+  def render(result: BenchmarkResult) = "%.3f +/- %.3f %s".format(result.score, result.error, result.unit);
+
+  /**
+   * Reads a JMH CSV results file. Columns are Benchmark, Mode, Threads, Samples, Score,
+   * Score Error (99.9%), Unit, and then one "Param: name" column per parameter.
+   */
+  def readResults(path: String): Seq[BenchmarkResult] = {
+    val lines = IOUtils.readLinesHard(path).toArray(new Array[String](0)).filter(!_.trim.isEmpty);
+    require(!lines.isEmpty, "No results in " + path);
+    val header = parseCsvLine(lines(0));
+    def column(name: String) = {
+      val idx = header.indexOf(name);
+      require(idx != -1, path + " doesn't look like JMH CSV output; no " + name + " column");
+      idx;
+    }
+    val nameIdx = column("Benchmark");
+    val modeIdx = column("Mode");
+    val scoreIdx = column("Score");
+    val errorIdx = header.indexWhere(_.startsWith("Score Error"));
+    val unitIdx = column("Unit");
+    val paramIdxs = header.indices.filter(header(_).startsWith("Param: "));
+    lines.drop(1).map(line => {
+      val fields = parseCsvLine(line);
+      // Benchmarks without a parameter leave its column empty
+      val params = paramIdxs.filter(i => !fields(i).isEmpty).map(i => header(i).substring("Param: ".size) + "=" + fields(i)).mkString(",");
+      // Single-sample modes report no error
+      val error = if (errorIdx == -1 || fields(errorIdx) == "NaN") 0.0 else fields(errorIdx).toDouble;
+      new BenchmarkResult(fields(nameIdx), params, fields(modeIdx), fields(scoreIdx).toDouble, error, fields(unitIdx));
+    });
+  }
+
+  // Fields are separated by commas and may be quoted, with "" for a literal quote
+  def parseCsvLine(line: String): IndexedSeq[String] = {
+    val fields = new ArrayBuffer[String];
+    val field = new StringBuilder;
+    var inQuotes = false;
+    var i = 0;
+    while (i < line.size) {
+      val c = line(i);
+      if (inQuotes) {
+        if (c == '"' && i + 1 < line.size && line(i + 1) == '"') {
+          field += '"';
+          i += 1;
+        } else if (c == '"') {
+          inQuotes = false;
+        } else {
+          field += c;
+        }
+      } else if (c == '"') {
+        inQuotes = true;
+      } else if (c == ',') {
+        fields += field.toString;
+        field.clear();
+      } else {
+        field += c;
+      }
+      i += 1;
+    }
+    fields += field.toString;
+    fields;
+  }
+}
@@ -0,0 +1,66 @@
+package edu.berkeley.nlp.entity.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import edu.berkeley.nlp.entity.bp.ConstantUnaryFactor
+import edu.berkeley.nlp.entity.bp.Domain
+import edu.berkeley.nlp.entity.bp.MessageStore
+import edu.berkeley.nlp.entity.bp.Node
+
+/**
+ * Node.sendMessages on a single node whose received messages are random: antecedent
+ * nodes in the joint model have domains as big as the number of candidate antecedents
+ * and a factor per property and mention after them, NER nodes have small domains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class BpBenchmarks {
+  @Param(Array("5", "50"))
+  var domainSize: Int = _;
+  @Param(Array("3", "20"))
+  var numFactors: Int = _;
+
+  var node: Node[Int] = null;
+
+  @Setup(Level.Trial)
+  def makeNode() {
+    node = new Node[Int](new Domain(Array.tabulate(domainSize)(i => i)));
+    for (i <- 0 until numFactors) {
+      new ConstantUnaryFactor[Int](node, Array.fill(domainSize)(1.0));
+    }
+    new MessageStore(Seq(node));
+    val rng = new scala.util.Random(BenchmarkFixtures.Seed);
+    for (i <- 0 until numFactors; j <- 0 until domainSize) {
+      node.messages(node.receivedMessageOffset(i) + j) = rng.nextDouble + 1e-3;
+    }
+  }
+
+  @Benchmark
+  def sendMessages(): Array[Double] = {
+    node.sendMessages(1.0);
+    node.messages;
+  }
+
+  // Messages raised to a power, which goes through log space like the old
+  // sendMessagesUseLogSpace did for every message
+  @Benchmark
+  def sendMessagesExponentiated(): Array[Double] = {
+    node.sendMessages(0.5);
+    node.messages;
+  }
+}
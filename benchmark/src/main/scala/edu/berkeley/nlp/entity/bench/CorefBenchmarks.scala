@@ -0,0 +1,118 @@
+package edu.berkeley.nlp.entity.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import edu.berkeley.nlp.entity.GUtil
+
+/**
+ * Pairwise coref featurization and scoring over a set of documents: one invocation
+ * handles every unpruned mention pair in every document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgsAppend = Array("-Xmx4g"))
+class CorefBenchmarks {
+  // CoNLL file or directory to read; empty means synthetic documents
+  @Param(Array(""))
+  var conllPath: String = _;
+  @Param(Array("20"))
+  var numDocs: Int = _;
+  // Bergsma and Lin number/gender data, which some features use; empty means none
+  @Param(Array(""))
+  var numberGenderPath: String = _;
+
+  var setup: BenchmarkFixtures.CorefSetup = null;
+
+  @Setup(Level.Trial)
+  def loadDocs() {
+    setup = BenchmarkFixtures.buildCorefSetup(conllPath, numDocs, numberGenderPath);
+  }
+
+  @Benchmark
+  def featurizeIndexStandard(bh: Blackhole) {
+    for (docGraph <- setup.docGraphs) {
+      var i = 0;
+      while (i < docGraph.size) {
+        var j = 0;
+        while (j <= i) {
+          if (!docGraph.prunedEdges(i)(j)) {
+            bh.consume(setup.featurizer.featurizeIndexStandard(docGraph, i, j, false));
+          }
+          j += 1;
+        }
+        i += 1;
+      }
+    }
+  }
+
+  // Featurizes from scratch as the first pass over a document does
+  @Benchmark
+  def featurizeIndexAndScoreNonPrunedUseCache(bh: Blackhole) {
+    for (docGraph <- setup.docGraphs) {
+      docGraph.clearFeatureCache();
+      bh.consume(docGraph.featurizeIndexAndScoreNonPrunedUseCache(setup.scorer));
+    }
+  }
+
+  // Hits the feature cache and only rescores, as every later training pass does
+  @Benchmark
+  def featurizeIndexAndScoreNonPrunedUseCacheWarm(bh: Blackhole) {
+    for (docGraph <- setup.docGraphs) {
+      bh.consume(docGraph.featurizeIndexAndScoreNonPrunedUseCache(setup.scorer));
+    }
+  }
+}
+
+/**
+ * Dot products of sparse feature vectors with the weights, on random features spread
+ * over a weight vector the size of a trained coref model's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class ScoreIndexedFeatsBenchmark {
+  @Param(Array("40"))
+  var featsPerVector: Int = _;
+  @Param(Array("1000000"))
+  var numWeights: Int = _;
+
+  val NumVectors = 1000;
+  var featureVectors: Array[Array[Int]] = null;
+  var weights: Array[Float] = null;
+
+  @Setup(Level.Trial)
+  def makeVectors() {
+    val rng = new scala.util.Random(BenchmarkFixtures.Seed);
+    featureVectors = Array.fill(NumVectors, featsPerVector)(rng.nextInt(numWeights));
+    weights = Array.fill(numWeights)(rng.nextFloat);
+  }
+
+  @Benchmark
+  def scoreIndexedFeats(): Float = {
+    var total = 0.0F;
+    var i = 0;
+    while (i < featureVectors.size) {
+      total += GUtil.scoreIndexedFeats(featureVectors(i), weights);
+      i += 1;
+    }
+    total;
+  }
+}
@@ -0,0 +1,62 @@
+package edu.berkeley.nlp.entity.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import edu.berkeley.nlp.entity.ner.NerExample
+import edu.berkeley.nlp.entity.ner.NerFeaturizer
+import edu.berkeley.nlp.entity.ner.NerSystemLabeled
+import edu.berkeley.nlp.entity.sem.BrownClusterInterface
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+/**
+ * NER featurization of every sentence in a set of documents, with the feature indexer
+ * already filled in by a first pass as it is at test time and in later training epochs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgsAppend = Array("-Xmx4g"))
+class NerBenchmarks {
+  // CoNLL file or directory to read; empty means synthetic documents
+  @Param(Array(""))
+  var conllPath: String = _;
+  @Param(Array("20"))
+  var numDocs: Int = _;
+  // Same format as NerDriver's featureSet; "brown" features are only on with brownPath set
+  @Param(Array("bigrams+brown"))
+  var featureSet: String = _;
+  @Param(Array(""))
+  var brownPath: String = _;
+
+  var examples: Seq[NerExample] = null;
+  var featurizer: NerFeaturizer = null;
+
+  @Setup(Level.Trial)
+  def loadExamples() {
+    examples = NerSystemLabeled.extractNerChunksFromConll(BenchmarkFixtures.loadConllDocs(conllPath, numDocs));
+    val maybeBrownClusters = if (brownPath.isEmpty) None else Some(BrownClusterInterface.loadBrownClusters(brownPath, 0));
+    featurizer = NerFeaturizer(featureSet.split("\\+").toSet, new Indexer[String], NerSystemLabeled.StdLabelIndexer, examples.map(_.words), None, maybeBrownClusters);
+    examples.foreach(featurizer.featurize(_, true));
+  }
+
+  @Benchmark
+  def featurize(bh: Blackhole) {
+    for (ex <- examples) {
+      bh.consume(featurizer.featurize(ex, false));
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package edu.berkeley.nlp.entity.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import edu.berkeley.nlp.entity.ConllDoc
+import edu.berkeley.nlp.entity.ConllDocReader
+import edu.berkeley.nlp.entity.lang.Language
+
+/**
+ * Reading and assembling one CoNLL file (parse trees, dependencies, NER and coref
+ * chunks). After the first iteration the file comes from the page cache, so this
+ * measures parsing rather than disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+class ReaderBenchmarks {
+  // CoNLL file or directory (whose first file is read); empty means synthetic documents
+  @Param(Array(""))
+  var conllPath: String = _;
+  @Param(Array("20"))
+  var numDocs: Int = _;
+
+  var file: String = null;
+  var reader: ConllDocReader = null;
+
+  @Setup(Level.Trial)
+  def writeFile() {
+    file = BenchmarkFixtures.conllFile(conllPath, numDocs);
+    reader = new ConllDocReader(Language.ENGLISH);
+  }
+
+  @Benchmark
+  def readConllDocs(): Seq[ConllDoc] = {
+    reader.readConllDocs(file);
+  }
+}
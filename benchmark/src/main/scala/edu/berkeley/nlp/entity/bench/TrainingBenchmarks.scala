@@ -0,0 +1,60 @@
+package edu.berkeley.nlp.entity.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import edu.berkeley.nlp.entity.AdagradWeightVector
+import edu.berkeley.nlp.entity.SparseGradient
+
+/**
+ * One Adagrad step from a minibatch gradient touching gradientSize random features.
+ * The weights keep changing across invocations, which is what training looks like.
+ * With concurrent set, updates go through the striped locks that Hogwild-style
+ * training turns on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class TrainingBenchmarks {
+  @Param(Array("1000000"))
+  var numWeights: Int = _;
+  @Param(Array("100", "10000"))
+  var gradientSize: Int = _;
+  @Param(Array("false", "true"))
+  var concurrent: Boolean = _;
+
+  var weights: AdagradWeightVector = null;
+  var gradient: SparseGradient = null;
+
+  @Setup(Level.Trial)
+  def makeGradient() {
+    weights = new AdagradWeightVector(new Array[Double](numWeights), 0.001, 1.0);
+    if (concurrent) {
+      weights.enableConcurrentAccess();
+    }
+    gradient = new SparseGradient();
+    val rng = new scala.util.Random(BenchmarkFixtures.Seed);
+    while (gradient.size < gradientSize) {
+      gradient.incrementCount(rng.nextInt(numWeights), rng.nextGaussian);
+    }
+  }
+
+  @Benchmark
+  def applyGradientUpdate(): AdagradWeightVector = {
+    weights.applyGradientUpdate(gradient, 1);
+    weights;
+  }
+}
@@ -0,0 +1,282 @@
+package edu.berkeley.nlp.entity
+
+import java.io.ByteArrayOutputStream
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URLDecoder
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+import edu.berkeley.nlp.entity.coref.MentionPropertyComputer
+import edu.berkeley.nlp.entity.coref.NumberGenderComputer
+import edu.berkeley.nlp.entity.joint.JointPredictor
+import edu.berkeley.nlp.entity.preprocess.RawTextPreprocessor
+import edu.berkeley.nlp.entity.wiki.WikipediaInterface
+import edu.berkeley.nlp.futile.fig.basic.IOUtils
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * Keeps a joint model (plus number/gender data, the Wikipedia database and WordNet)
+ * loaded and annotates documents sent to it over HTTP on localhost, so that many small
+ * jobs don't each pay for loading everything. This is Driver's SERVE mode.
+ *
+ * POST /annotate with the document(s) as the UTF-8 request body. Query parameters:
+ *   input=conll (default): any number of CoNLL documents, as PREDICT reads them
+ *   input=raw: one document of raw text, preprocessed as PreprocessingDriver would;
+ *     needs -rawTextSentenceSplitterPath and -rawTextGrammarPath. Name it with docName.
+ *   output=conll (default): the annotated CoNLL documents, as in output.conll
+ *   output=wiki: the Wikipedia standoff annotations, as in output-wiki.conll
+ *   output=both: the CoNLL documents, then a line "#wiki standoff", then the standoff
+ * The response has the documents in the order they came in. A malformed request gets a
+ * 400, and one with more documents than could ever be in flight at once (serverMaxQueuedDocs
+ * plus numDecodeThreads) gets a 413. One that arrives when too many documents are already
+ * waiting to be decoded gets a 503 without any of its documents being decoded.
+ * GET /health answers OK once the models are loaded, and GET /metrics gives the Metrics in
+ * the Prometheus text format if they're on.
+ *
+ * Requests are read and answered on numServerThreads threads; their documents all go into
+ * one queue served by numDecodeThreads decoding threads, so the documents of a large
+ * request are spread over all of them and several requests are decoded at once.
+ */
+class AnnotationServer(val jointPredictor: JointPredictor,
+                       val mentionPropertyComputer: MentionPropertyComputer,
+                       val maybeWikipediaInterface: Option[WikipediaInterface],
+                       val maybeRawTextPreprocessor: Option[RawTextPreprocessor],
+                       val port: Int,
+                       val numServerThreads: Int,
+                       val numDecodeThreads: Int,
+                       val maxQueuedDocs: Int) {
+  private val decoder = jointPredictor.makeDocDecoder(maybeWikipediaInterface);
+  private val decodePool = new ThreadPoolExecutor(numDecodeThreads, numDecodeThreads, 0L, TimeUnit.MILLISECONDS,
+                                                  new ArrayBlockingQueue[Runnable](maxQueuedDocs));
+  private val requestPool = Executors.newFixedThreadPool(numServerThreads);
+  private val server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress, port), 0);
+  server.setExecutor(requestPool);
+  server.createContext("/annotate", new HttpHandler {
+    def handle(exchange: HttpExchange) = handleAnnotate(exchange);
+  });
+  server.createContext("/health", new HttpHandler {
+    def handle(exchange: HttpExchange) = respond(exchange, 200, "OK\n");
+  });
+  if (Metrics.enabled) {
+    server.createContext("/metrics", Metrics.PrometheusHandler);
+  }
+  private val stopped = new CountDownLatch(1);
+
+  def start() {
+    server.start();
+    Logger.logss("Annotation server listening on http://" + server.getAddress.getHostString + ":" + server.getAddress.getPort + "/annotate" +
+                 " with " + numDecodeThreads + " decoding threads");
+  }
+
+  /**
+   * Blocks until stop() is called (e.g. by the shutdown hook on Ctrl-C).
+   */
+  def awaitStop() {
+    stopped.await();
+  }
+
+  def stop() {
+    server.stop(0);
+    requestPool.shutdownNow();
+    decodePool.shutdownNow();
+    stopped.countDown();
+  }
+
+  /**
+   * Runs one document through preprocessDocForDecode and the decoder and renders the
+   * prediction; returns the CoNLL output and the wiki standoff output.
+   */
+  def annotateDoc(rawDoc: ConllDoc): (String, String) = {
+    Metrics.beginDoc("decode", rawDoc);
+    try {
+      val jointDoc = EntitySystem.preprocessDocForDecode(rawDoc, mentionPropertyComputer, jointPredictor.nerPruner, jointPredictor.corefPruner);
+      val conllOut = new StringWriter;
+      val wikiOut = new StringWriter;
+      val conllWriter = new PrintWriter(conllOut);
+      val wikiWriter = new PrintWriter(wikiOut);
+      jointPredictor.writePrediction(conllWriter, wikiWriter, jointDoc, decoder(jointDoc), Driver.doConllPostprocessing);
+      conllWriter.flush();
+      wikiWriter.flush();
+      conllOut.toString -> wikiOut.toString;
+    } finally {
+      Metrics.endDoc();
+    }
+  }
+
+  private def handleAnnotate(exchange: HttpExchange) {
+    try {
+      if (exchange.getRequestMethod != "POST") {
+        respond(exchange, 405, "Use POST\n");
+      } else {
+        val params = AnnotationServer.parseQuery(exchange.getRequestURI.getRawQuery);
+        val output = params.getOrElse("output", "conll");
+        if (output != "conll" && output != "wiki" && output != "both") {
+          throw new AnnotationServer.BadRequestException("Unknown output " + output + "; use conll, wiki or both");
+        }
+        val body = new String(AnnotationServer.readFully(exchange), StandardCharsets.UTF_8);
+        if (body.trim.isEmpty) {
+          throw new AnnotationServer.BadRequestException("Empty request body");
+        }
+        val tasks = makeTasks(params, body);
+        if (tasks.size > maxQueuedDocs + numDecodeThreads) {
+          throw new AnnotationServer.BadRequestException("Too many documents in one request (" + tasks.size + "); at most " +
+                                                         (maxQueuedDocs + numDecodeThreads) + " can be decoded at once, so split it up", 413);
+        }
+        val results = annotateAll(tasks);
+        val response = new StringBuilder;
+        if (output != "wiki") {
+          results.foreach(response ++= _._1);
+        }
+        if (output == "both") {
+          response ++= "#wiki standoff\n";
+        }
+        if (output != "conll") {
+          results.foreach(response ++= _._2);
+        }
+        respond(exchange, 200, response.toString);
+      }
+    } catch {
+      case e: AnnotationServer.BadRequestException => respond(exchange, e.status, e.getMessage + "\n");
+      case e: RejectedExecutionException => respond(exchange, 503, "Too many documents waiting to be decoded; try again later\n");
+      case e: Exception => {
+        val trace = new StringWriter;
+        e.printStackTrace(new PrintWriter(trace));
+        Logger.logss("ERROR: request failed: " + trace);
+        respond(exchange, 500, "Annotation failed: " + e + "\n");
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private def makeTasks(params: HashMap[String,String], body: String): Seq[Callable[(String, String)]] = {
+    params.getOrElse("input", "conll") match {
+      case "conll" => {
+        val rawDocs = try {
+          new ConllDocReader(Driver.lang).readConllDocsFromString(body, "request");
+        } catch {
+          case e: RuntimeException => throw new AnnotationServer.BadRequestException("Couldn't read CoNLL input: " + e.getMessage);
+        }
+        rawDocs.map(rawDoc => new Callable[(String, String)] {
+          def call() = annotateDoc(rawDoc);
+        });
+      }
+      case "raw" => {
+        if (!maybeRawTextPreprocessor.isDefined) {
+          throw new AnnotationServer.BadRequestException("Raw text input isn't enabled; start the server with -rawTextSentenceSplitterPath and -rawTextGrammarPath");
+        }
+        // The name ends up in "#begin document (name); part 000" and in whitespace-separated columns
+        val docName = params.getOrElse("docName", "doc").replaceAll("[\\s()]", "_");
+        Seq(new Callable[(String, String)] {
+          def call() = annotateDoc(maybeRawTextPreprocessor.get.preprocess(docName, body));
+        });
+      }
+      case other => throw new AnnotationServer.BadRequestException("Unknown input " + other + "; use conll or raw");
+    }
+  }
+
+  /**
+   * Queues every document for decoding and waits for all of them. If the queue fills up
+   * partway through, the documents already queued are cancelled so the request fails as a
+   * whole.
+   */
+  private def annotateAll(tasks: Seq[Callable[(String, String)]]): Seq[(String, String)] = {
+    val futures = new ArrayBuffer[Future[(String, String)]];
+    try {
+      tasks.foreach(futures += decodePool.submit(_));
+      futures.map(future => {
+        try {
+          future.get;
+        } catch {
+          case e: ExecutionException => throw new RuntimeException(e.getCause);
+        }
+      });
+    } catch {
+      case e: Throwable => {
+        futures.foreach(_.cancel(true));
+        throw e;
+      }
+    }
+  }
+
+  private def respond(exchange: HttpExchange, status: Int, text: String) {
+    val bytes = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders.set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    val out = exchange.getResponseBody;
+    out.write(bytes);
+    out.close();
+  }
+}
+
+object AnnotationServer {
+
+  class BadRequestException(message: String, val status: Int = 400) extends RuntimeException(message);
+
+  /**
+   * Loads everything the same way runOntoPredict does, then serves until the process is
+   * killed.
+   */
+  def run(modelPath: String) {
+    val jointPredictor = GUtil.load(modelPath).asInstanceOf[JointPredictor];
+    val numberGenderComputer = NumberGenderComputer.readBergsmaLinData(Driver.numberGenderDataPath);
+    val mentionPropertyComputer = new MentionPropertyComputer(Some(numberGenderComputer));
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
+    if (Driver.wordNetPath != "") {
+      // Load it now rather than on the first request
+      WordNetInterfacer.getCachedInstance;
+    }
+    val maybeRawTextPreprocessor = if (Driver.rawTextSentenceSplitterPath != "" && Driver.rawTextGrammarPath != "") {
+      Some(RawTextPreprocessor.load(Driver.rawTextSentenceSplitterPath, Driver.rawTextGrammarPath, Driver.rawTextBackoffGrammarPath));
+    } else {
+      Logger.logss("No -rawTextSentenceSplitterPath or -rawTextGrammarPath, so only CoNLL input will be accepted");
+      None;
+    }
+    val server = new AnnotationServer(jointPredictor, mentionPropertyComputer, maybeWikipediaInterface, maybeRawTextPreprocessor,
+                                      Driver.serverPort, Driver.numServerThreads, Driver.numDecodeThreads, Driver.serverMaxQueuedDocs);
+    Runtime.getRuntime.addShutdownHook(new Thread {
+      override def run() = server.stop();
+    });
+    server.start();
+    server.awaitStop();
+  }
+
+  def parseQuery(rawQuery: String): HashMap[String,String] = {
+    val params = new HashMap[String,String];
+    if (rawQuery != null) {
+      for (param <- rawQuery.split("&"); if !param.isEmpty) {
+        val eqIdx = param.indexOf("=");
+        val key = if (eqIdx == -1) param else param.substring(0, eqIdx);
+        val value = if (eqIdx == -1) "" else param.substring(eqIdx + 1);
+        params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+    }
+    params;
+  }
+
+  def readFully(exchange: HttpExchange): Array[Byte] = {
+    val in = exchange.getRequestBody;
+    try {
+      val bytes = new ByteArrayOutputStream;
+      IOUtils.copy(in, bytes);
+      bytes.toByteArray;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,415 @@
+package edu.berkeley.nlp.entity
+
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.FileInputStream
+import java.io.InputStream
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.util.IdentityHashMap
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import edu.berkeley.nlp.entity.coref.PairwiseScorer
+import edu.berkeley.nlp.entity.joint.JointPredictor
+import edu.berkeley.nlp.entity.joint.JointPredictorACE
+import edu.berkeley.nlp.entity.ner.NerSystemLabeled
+import edu.berkeley.nlp.futile.LightRunner
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * Versioned binary format for trained models (JointPredictor, JointPredictorACE,
+ * PairwiseScorer, NerSystemLabeled, or anything else serializable). Java serialization of
+ * a whole model spends most of its time on the feature Indexer (millions of small String
+ * objects) and the weight vector, so those are pulled out of the object graph into their
+ * own sections:
+ * - every Indexer of Strings becomes a packed string table (count, n+1 byte offsets, UTF-8
+ *   bytes) that is decoded in bulk and re-indexed in order on load, so indices don't move;
+ * - every float or double array of at least MinArraySectionSize entries (i.e., weights)
+ *   becomes a raw little-endian block that is memory-mapped and bulk-copied on load;
+ * - the pruners of a JointPredictor/JointPredictorACE get their own object graph sections
+ *   ("pruner.coref" and "pruner.ner").
+ * What's left (featurizer configuration, lexical counts, ...) is ordinary Java
+ * serialization in which the extracted objects are replaced by references to their
+ * sections. Objects shared between the model and a pruner are only shared in the loaded
+ * model if they're indexers or extracted arrays.
+ *
+ * Layout: magic, version, offset of the section directory; the sections (8-byte aligned);
+ * then the directory, a count followed by (name, offset, length) entries.
+ *
+ * GUtil.save writes this format for paths ending in Extension and GUtil.load recognizes it,
+ * so -modelPath can point at either kind of model. To migrate an existing model, run
+ * java -cp /path/to/jar edu.berkeley.nlp.entity.BinaryModel \
+ *  -inputPath models/joint-onto.ser.gz -outputPath models/joint-onto.bmodel
+ */
+object BinaryModel {
+
+  // "BERKMDL1"
+  val Magic = 0x4245524b4d444c31L;
+  val Version = 1;
+  val Extension = ".bmodel";
+  val MinArraySectionSize = 1024;
+
+  val MainSection = "model";
+
+  val inputPath = "";
+  val outputPath = "";
+  // Reload the converted model and check its weights and indexers against the original
+  val verify = true;
+
+  def isBinaryModel(path: String) = {
+    val in = new DataInputStream(new FileInputStream(path));
+    try {
+      in.readLong() == Magic;
+    } catch {
+      case e: java.io.EOFException => false;
+    } finally {
+      in.close();
+    }
+  }
+
+  def save(obj: Serializable, path: String) {
+    val writer = new BinaryModelWriter(path);
+    try {
+      writer.writeModel(obj);
+    } finally {
+      writer.close();
+    }
+    Logger.logss("Wrote binary model to " + path);
+  }
+
+  def load(path: String): Object = {
+    val obj = new BinaryModelReader(path).readModel();
+    Logger.logss("Binary model read from " + path);
+    obj;
+  }
+
+  // Pruners that get sections of their own, by section name
+  def getPruners(obj: Serializable): Seq[(String,AnyRef)] = {
+    obj match {
+      case model: JointPredictor => Seq("pruner.coref" -> model.corefPruner, "pruner.ner" -> model.nerPruner).filter(_._2 != null);
+      case model: JointPredictorACE => Seq("pruner.coref" -> model.corefPruner).filter(_._2 != null);
+      case _ => Seq();
+    }
+  }
+
+  /**
+   * Indexers and weights of the model types we know about, for verifying a conversion.
+   */
+  def getIndexersAndWeights(obj: Object): Seq[(Indexer[String],Seq[Double])] = {
+    obj match {
+      case model: JointPredictor => Seq(model.jointFeaturizer.indexer -> model.weights.map(_.toDouble).toSeq);
+      case model: JointPredictorACE => Seq(model.jointFeaturizer.indexer -> model.weights.map(_.toDouble).toSeq);
+      case model: PairwiseScorer => Seq(model.featurizer.getIndexer -> model.weights.map(_.toDouble).toSeq);
+      case model: NerSystemLabeled => Seq(model.featurizer.featureIndexer -> model.weights.toSeq, model.labelIndexer -> Seq[Double]());
+      case _ => Seq();
+    }
+  }
+
+  def main(args: Array[String]) {
+    LightRunner.initializeOutput(BinaryModel.getClass);
+    LightRunner.populateScala(BinaryModel.getClass, args);
+    if (inputPath == "" || outputPath == "") {
+      throw new RuntimeException("Need both -inputPath and -outputPath");
+    }
+    val model = GUtil.load(inputPath);
+    save(model.asInstanceOf[Serializable], outputPath);
+    if (verify) {
+      val original = getIndexersAndWeights(model);
+      val converted = getIndexersAndWeights(load(outputPath));
+      if (original.isEmpty) {
+        Logger.logss("Don't know how to verify a " + model.getClass.getName + "; skipping verification");
+      }
+      for (((originalIndexer, originalWeights), (convertedIndexer, convertedWeights)) <- original.zip(converted)) {
+        if (originalIndexer.getObjects.asScala != convertedIndexer.getObjects.asScala || originalWeights != convertedWeights) {
+          throw new RuntimeException("Converted model disagrees with the original");
+        }
+      }
+      Logger.logss("Verified " + original.size + " indexers/weight vectors against the original model");
+    }
+    LightRunner.finalizeOutput();
+  }
+}
+
+// Stand-ins for the objects moved into their own sections
+
+@SerialVersionUID(1L)
+case class BinaryModelIndexerRef(section: String, locked: Boolean, sync: Boolean) extends Serializable
+
+@SerialVersionUID(1L)
+case class BinaryModelArrayRef(section: String, isDouble: Boolean) extends Serializable
+
+@SerialVersionUID(1L)
+case class BinaryModelGraphRef(section: String) extends Serializable
+
+class BinaryModelWriter(path: String) {
+  private val file = new RandomAccessFile(path, "rw");
+  file.setLength(0);
+  private val channel = file.getChannel();
+  private val directory = new ArrayBuffer[(String,Long,Long)];
+  // Extracted objects by identity so that shared ones are only written once
+  private val sectionsByObject = new IdentityHashMap[AnyRef,AnyRef];
+
+  {
+    val header = ByteBuffer.allocate(8 + 4 + 8);
+    header.putLong(BinaryModel.Magic).putInt(BinaryModel.Version).putLong(0L);
+    header.flip();
+    writeFully(header);
+  }
+
+  def writeModel(obj: Serializable) {
+    val pruners = BinaryModel.getPruners(obj);
+    for ((section, pruner) <- pruners) {
+      sectionsByObject.put(pruner, BinaryModelGraphRef(section));
+    }
+    for ((section, pruner) <- pruners) {
+      writeGraph(section, pruner);
+    }
+    writeGraph(BinaryModel.MainSection, obj.asInstanceOf[AnyRef]);
+    // Directory, then point the header at it
+    val directoryOffset = alignedPosition();
+    val directoryBytes = new ByteArrayOutputStream();
+    val out = new java.io.DataOutputStream(directoryBytes);
+    out.writeInt(directory.size);
+    for ((name, offset, length) <- directory) {
+      out.writeUTF(name);
+      out.writeLong(offset);
+      out.writeLong(length);
+    }
+    out.close();
+    channel.position(directoryOffset);
+    writeFully(ByteBuffer.wrap(directoryBytes.toByteArray));
+    val directoryPointer = ByteBuffer.allocate(8);
+    directoryPointer.putLong(directoryOffset).flip();
+    channel.position(12);
+    writeFully(directoryPointer);
+  }
+
+  def close() {
+    channel.close();
+    file.close();
+  }
+
+  private def writeGraph(section: String, root: AnyRef) {
+    val bytes = new ByteArrayOutputStream();
+    val out = new ObjectOutputStream(bytes) {
+      enableReplaceObject(true);
+      override def replaceObject(obj: AnyRef): AnyRef = {
+        // The root of this graph is written here even if it's referenced from elsewhere
+        if (obj eq root) obj else extract(obj);
+      }
+    };
+    out.writeObject(root);
+    out.close();
+    writeSection(section, ByteBuffer.wrap(bytes.toByteArray));
+  }
+
+  // Writes obj to its own section (or finds the one it's already in) and returns a reference
+  // to it, or returns obj itself if it stays in the object graph
+  private def extract(obj: AnyRef): AnyRef = {
+    if (sectionsByObject.containsKey(obj)) {
+      return sectionsByObject.get(obj);
+    }
+    val ref = obj match {
+      case indexer: Indexer[_] if indexer.getClass == classOf[Indexer[_]] && indexer.getObjects.asScala.forall(_.isInstanceOf[String]) => {
+        val section = "strings." + directory.size;
+        writeSection(section, BinaryModelWriter.packStrings(indexer.getObjects.asScala.map(_.asInstanceOf[String])));
+        BinaryModelIndexerRef(section, BinaryModelWriter.isLocked(indexer), BinaryModelWriter.isSync(indexer));
+      }
+      case arr: Array[Float] if arr.size >= BinaryModel.MinArraySectionSize => {
+        val section = "floats." + directory.size;
+        val buf = ByteBuffer.allocate(4 * arr.size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asFloatBuffer().put(arr);
+        writeSection(section, buf);
+        BinaryModelArrayRef(section, false);
+      }
+      case arr: Array[Double] if arr.size >= BinaryModel.MinArraySectionSize => {
+        val section = "doubles." + directory.size;
+        val buf = ByteBuffer.allocate(8 * arr.size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asDoubleBuffer().put(arr);
+        writeSection(section, buf);
+        BinaryModelArrayRef(section, true);
+      }
+      case _ => obj;
+    }
+    if (ref ne obj) {
+      sectionsByObject.put(obj, ref);
+    }
+    ref;
+  }
+
+  private def writeSection(name: String, buf: ByteBuffer) {
+    val offset = alignedPosition();
+    channel.position(offset);
+    writeFully(buf);
+    directory += ((name, offset, channel.position() - offset));
+  }
+
+  private def alignedPosition() = (channel.size() + 7) & ~7L;
+
+  private def writeFully(buf: ByteBuffer) {
+    while (buf.hasRemaining) {
+      channel.write(buf);
+    }
+  }
+}
+
+object BinaryModelWriter {
+
+  def packStrings(strs: Seq[String]): ByteBuffer = {
+    val bytes = strs.map(_.getBytes(StandardCharsets.UTF_8));
+    val size = 4L + 4L * (strs.size + 1) + bytes.foldLeft(0L)(_ + _.size);
+    require(size <= Integer.MAX_VALUE, "String table too big: " + size + " bytes");
+    val buf = ByteBuffer.allocate(size.toInt).order(ByteOrder.LITTLE_ENDIAN);
+    buf.putInt(strs.size);
+    var offset = 0;
+    buf.putInt(offset);
+    for (str <- bytes) {
+      offset += str.size;
+      buf.putInt(offset);
+    }
+    bytes.foreach(buf.put(_));
+    buf.flip();
+    buf;
+  }
+
+  // Indexer doesn't expose whether it's locked or synchronized
+  def isLocked(indexer: Indexer[_]) = {
+    val field = classOf[Indexer[_]].getDeclaredField("locked");
+    field.setAccessible(true);
+    field.getBoolean(indexer);
+  }
+
+  def isSync(indexer: Indexer[_]) = {
+    val field = classOf[Indexer[_]].getDeclaredField("sem");
+    field.setAccessible(true);
+    field.get(indexer) != null;
+  }
+}
+
+class BinaryModelReader(path: String) {
+  private val sections = new HashMap[String,ByteBuffer];
+  // Resolved sections, so objects that were shared when saved are shared again
+  private val resolved = new HashMap[String,AnyRef];
+
+  {
+    val file = new RandomAccessFile(path, "r");
+    try {
+      if (file.readLong() != BinaryModel.Magic) {
+        throw new RuntimeException(path + " isn't a binary model");
+      }
+      val version = file.readInt();
+      if (version != BinaryModel.Version) {
+        throw new RuntimeException("Unsupported binary model version " + version + " in " + path);
+      }
+      file.seek(file.readLong());
+      val numSections = file.readInt();
+      val directory = Array.fill(numSections)((file.readUTF(), file.readLong(), file.readLong()));
+      // Mappings stay valid after the file is closed
+      for ((name, offset, length) <- directory) {
+        sections.put(name, file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN));
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  def readModel(): Object = resolveSection(BinaryModel.MainSection, readGraph(_));
+
+  private def section(name: String) = {
+    if (!sections.contains(name)) {
+      throw new RuntimeException("No section " + name + " in " + path);
+    }
+    sections(name).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private def resolveSection(name: String, read: String => AnyRef): AnyRef = {
+    if (!resolved.contains(name)) {
+      resolved.put(name, read(name));
+    }
+    resolved(name);
+  }
+
+  private def readGraph(name: String): AnyRef = {
+    val in = new ObjectInputStream(new BinaryModelReader.ByteBufferInputStream(section(name))) {
+      enableResolveObject(true);
+      override def resolveObject(obj: AnyRef): AnyRef = resolve(obj);
+    };
+    try {
+      in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  private def resolve(obj: AnyRef): AnyRef = {
+    obj match {
+      case BinaryModelIndexerRef(name, locked, sync) => resolveSection(name, readIndexer(_, locked, sync));
+      case BinaryModelArrayRef(name, isDouble) => resolveSection(name, readArray(_, isDouble));
+      case BinaryModelGraphRef(name) => resolveSection(name, readGraph(_));
+      case _ => obj;
+    }
+  }
+
+  private def readIndexer(name: String, locked: Boolean, sync: Boolean): AnyRef = {
+    val buf = section(name);
+    val size = buf.getInt(0);
+    val dataStart = 4 + 4 * (size + 1);
+    val data = new Array[Byte](buf.capacity - dataStart);
+    buf.position(dataStart);
+    buf.get(data);
+    val indexer = new Indexer[String](sync);
+    var i = 0;
+    while (i < size) {
+      val start = buf.getInt(4 + 4 * i);
+      val end = buf.getInt(4 + 4 * (i + 1));
+      indexer.getIndex(new String(data, start, end - start, StandardCharsets.UTF_8));
+      i += 1;
+    }
+    require(indexer.size == size, "Duplicate strings in indexer section " + name);
+    if (locked) {
+      indexer.lock();
+    }
+    indexer;
+  }
+
+  private def readArray(name: String, isDouble: Boolean): AnyRef = {
+    val buf = section(name);
+    if (isDouble) {
+      val arr = new Array[Double](buf.capacity / 8);
+      buf.asDoubleBuffer().get(arr);
+      arr;
+    } else {
+      val arr = new Array[Float](buf.capacity / 4);
+      buf.asFloatBuffer().get(arr);
+      arr;
+    }
+  }
+}
+
+object BinaryModelReader {
+
+  class ByteBufferInputStream(buf: ByteBuffer) extends InputStream {
+    override def read(): Int = if (buf.hasRemaining) buf.get() & 0xFF else -1;
+
+    override def read(bytes: Array[Byte], offset: Int, len: Int): Int = {
+      if (len == 0) {
+        0;
+      } else if (!buf.hasRemaining) {
+        -1;
+      } else {
+        val numRead = Math.min(len, buf.remaining);
+        buf.get(bytes, offset, numRead);
+        numRead;
+      }
+    }
+
+    override def available() = buf.remaining;
+  }
+}
@@ -0,0 +1,224 @@
+package edu.berkeley.nlp.entity
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+/**
+ * Indexer that many threads can add to at once, so that training-time featurization
+ * (which grows the feature indexer) can run in parallel. Lookups of objects that are
+ * already indexed are a ConcurrentHashMap get and never lock; a new object is inserted
+ * with computeIfAbsent, which only locks its hash bin, and takes the next index from an
+ * atomic counter. Objects are stored in fixed-size chunks allocated by CAS, so growing
+ * never copies or blocks readers. Behaves like Indexer otherwise (including lock()) and
+ * can be passed anywhere one is expected.
+ *
+ * Which index a new object gets depends on thread timing, so after a parallel pass call
+ * renumberByFirstOccurrence to put the indices back in the order a serial pass would
+ * have assigned them. size and getObjects only cover a prefix of indices whose inserts
+ * have all finished, so they never see an empty slot; an index handed out by getIndex can
+ * be past size for a moment while earlier inserts on other threads complete, but getObject
+ * works on it right away.
+ *
+ * Serializes as a plain Indexer, so saved models don't depend on this class.
+ */
+class ConcurrentIndexer[E] extends Indexer[E] {
+  private var indexMap = new ConcurrentHashMap[E,Integer];
+  private var chunks = new AtomicReferenceArray[AtomicReferenceArray[AnyRef]](ConcurrentIndexer.MaxChunks);
+  private val nextIndex = new AtomicInteger(0);
+  // Every index below this has its object stored
+  private val numPublished = new AtomicInteger(0);
+  private val newIndexFcn = new java.util.function.Function[E,Integer] {
+    def apply(obj: E): Integer = {
+      val idx = nextIndex.getAndIncrement();
+      require(idx >= 0, "ConcurrentIndexer is full");
+      chunkFor(idx, true).set(idx & ConcurrentIndexer.ChunkMask, obj.asInstanceOf[AnyRef]);
+      advancePublished();
+      idx;
+    }
+  }
+
+  /**
+   * Moves numPublished past every stored slot after it. Each insert stores its object before
+   * calling this, so of two racing inserts at least one sees the other's slot filled and
+   * the count never gets stuck behind a finished insert.
+   */
+  private def advancePublished() {
+    var published = numPublished.get;
+    while (published < nextIndex.get && isStored(published)) {
+      numPublished.compareAndSet(published, published + 1);
+      published = numPublished.get;
+    }
+  }
+
+  private def isStored(idx: Int) = {
+    val chunk = chunkFor(idx, false);
+    chunk != null && chunk.get(idx & ConcurrentIndexer.ChunkMask) != null;
+  }
+
+  private def chunkFor(idx: Int, allocate: Boolean): AtomicReferenceArray[AnyRef] = {
+    val chunkIdx = idx >>> ConcurrentIndexer.ChunkBits;
+    val chunk = chunks.get(chunkIdx);
+    if (chunk != null || !allocate) {
+      chunk;
+    } else {
+      chunks.compareAndSet(chunkIdx, null, new AtomicReferenceArray[AnyRef](ConcurrentIndexer.ChunkSize));
+      chunks.get(chunkIdx);
+    }
+  }
+
+  override def getIndex(obj: E): Int = {
+    if (obj == null) {
+      -1;
+    } else {
+      val idx = indexMap.get(obj);
+      if (idx != null) {
+        idx.intValue;
+      } else if (locked) {
+        -1;
+      } else {
+        indexMap.computeIfAbsent(obj, newIndexFcn).intValue;
+      }
+    }
+  }
+
+  override def indexOf(obj: Any): Int = {
+    if (obj == null) {
+      -1;
+    } else {
+      val idx = indexMap.get(obj.asInstanceOf[AnyRef]);
+      if (idx == null) -1 else idx.intValue;
+    }
+  }
+
+  override def contains(obj: Any): Boolean = obj != null && indexMap.containsKey(obj.asInstanceOf[AnyRef]);
+
+  override def add(obj: E): Boolean = {
+    if (locked) {
+      throw new IllegalStateException("Tried to add to locked indexer");
+    }
+    val sizeBefore = nextIndex.get;
+    val idx = getIndex(obj);
+    idx >= sizeBefore;
+  }
+
+  override def get(idx: Int): E = getObject(idx);
+
+  override def getObject(idx: Int): E = {
+    if (idx < 0 || idx >= nextIndex.get) {
+      throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + size);
+    }
+    val chunk = chunkFor(idx, false);
+    (if (chunk == null) null else chunk.get(idx & ConcurrentIndexer.ChunkMask)).asInstanceOf[E];
+  }
+
+  override def size(): Int = numPublished.get;
+
+  override def getObjects(): java.util.List[E] = {
+    val objs = new java.util.ArrayList[E](size);
+    for (i <- 0 until size) {
+      objs.add(getObject(i));
+    }
+    objs;
+  }
+
+  // Indexer's version reads its own object list, which this never fills in
+  override def getObjects(idxs: Array[Int]): Array[E with AnyRef] = {
+    if (size == 0) {
+      throw new IllegalStateException("Can't instantiate array");
+    }
+    val objs = java.lang.reflect.Array.newInstance(getObject(0).getClass, idxs.size).asInstanceOf[Array[E with AnyRef]];
+    for (i <- 0 until idxs.size) {
+      objs(i) = (if (idxs(i) == -1) null else getObject(idxs(i))).asInstanceOf[E with AnyRef];
+    }
+    objs;
+  }
+
+  override def getMap(): java.util.Map[E,Integer] = indexMap;
+
+  override def clear() {
+    indexMap = new ConcurrentHashMap[E,Integer];
+    chunks = new AtomicReferenceArray[AtomicReferenceArray[AnyRef]](ConcurrentIndexer.MaxChunks);
+    nextIndex.set(0);
+    numPublished.set(0);
+  }
+
+  override def remove(idx: Int): E = {
+    val obj = getObject(idx);
+    chunkFor(idx, false).set(idx & ConcurrentIndexer.ChunkMask, null);
+    if (obj != null) {
+      indexMap.remove(obj);
+    }
+    obj;
+  }
+
+  /**
+   * Renumbers the indices to the order in which they first appear in indexedArrays, the
+   * way a serial pass that indexed those arrays' features in that order would have
+   * numbered them. Indices below numFixed (assigned before the parallel pass) stay as they
+   * are, and any object that doesn't appear in the arrays goes at the end, ordered by its
+   * string. Returns the map from old indices to new ones, which the caller should apply
+   * to everything holding indices from this indexer. Must not run concurrently with inserts.
+   */
+  def renumberByFirstOccurrence(numFixed: Int, indexedArrays: Iterable[Array[Int]]): Array[Int] = {
+    val oldSize = size;
+    val oldToNew = Array.tabulate(oldSize)(i => if (i < numFixed) i else -1);
+    var numAssigned = Math.min(numFixed, oldSize);
+    for (arr <- indexedArrays) {
+      var i = 0;
+      while (i < arr.size) {
+        if (oldToNew(arr(i)) == -1) {
+          oldToNew(arr(i)) = numAssigned;
+          numAssigned += 1;
+        }
+        i += 1;
+      }
+    }
+    if (numAssigned < oldSize) {
+      val unseen = (numFixed until oldSize).filter(oldToNew(_) == -1).sortBy(idx => String.valueOf(getObject(idx)));
+      for (oldIdx <- unseen) {
+        oldToNew(oldIdx) = numAssigned;
+        numAssigned += 1;
+      }
+    }
+    val oldObjs = getObjects();
+    val wasLocked = locked;
+    clear();
+    locked = false;
+    val newToOld = new Array[Int](oldSize);
+    for (oldIdx <- 0 until oldSize) {
+      newToOld(oldToNew(oldIdx)) = oldIdx;
+    }
+    for (newIdx <- 0 until oldSize) {
+      val obj = oldObjs.get(newToOld(newIdx));
+      if (obj == null) {
+        // Removed; keep the slot so later indices don't shift
+        nextIndex.getAndIncrement();
+        numPublished.set(nextIndex.get);
+      } else {
+        require(getIndex(obj) == newIdx);
+      }
+    }
+    locked = wasLocked;
+    oldToNew;
+  }
+
+  protected def writeReplace(): AnyRef = {
+    val indexer = new Indexer[E];
+    for (i <- 0 until size) {
+      indexer.add(getObject(i));
+    }
+    if (locked) {
+      indexer.lock();
+    }
+    indexer;
+  }
+}
+
+object ConcurrentIndexer {
+  val ChunkBits = 16;
+  val ChunkSize = 1 << ChunkBits;
+  val ChunkMask = ChunkSize - 1;
+  val MaxChunks = 1 << (31 - ChunkBits);
+}
@@ -13,7 +13,9 @@ import edu.berkeley.nlp.futile.syntax.Trees.PennTreeRenderer
 import edu.berkeley.nlp.futile.syntax.Tree
 import edu.berkeley.nlp.futile.util.Logger
 import edu.berkeley.nlp.futile.fig.basic.IOUtils
+import java.io.BufferedReader
 import java.io.File
+import java.io.StringReader
 import edu.berkeley.nlp.futile.ling.AbstractCollinsHeadFinder
 import edu.berkeley.nlp.futile.syntax.Trees.PennTreeReader
 
@@ -43,9 +45,19 @@ class ConllDocReader(val lang: Language,
     ConllDocReader.readConllDocsGeneral(fileName, fcn, numDocsToStopAfter);
   }
   
+  /**
+   * Same as readConllDocs but on the contents of a CoNLL file already in memory;
+   * sourceName is only used in error messages.
+   */
+  def readConllDocsFromString(text: String, sourceName: String): Seq[ConllDoc] = {
+    val fcn = (docID: String, docPartNo: Int, docBySentencesByLines: ArrayBuffer[ArrayBuffer[String]]) => assembleConllDoc(docBySentencesByLines, docID, docPartNo);
+    ConllDocReader.readConllDocsGeneral(IOUtils.lineIterator(new BufferedReader(new StringReader(text))), sourceName, fcn, -1);
+  }
+  
   def assembleConllDoc(docBySentencesByLines: ArrayBuffer[ArrayBuffer[String]],
                        docID: String,
                        docPartNo: Int) = {
+    val startNanos = Metrics.DocRead.start();
     // Filter any empty sentences that snuck in there
     var docBySentencesByLinesFixed = docBySentencesByLines.filter(!_.isEmpty);
     // Filter out any sentences that are too short
@@ -98,14 +110,16 @@ class ConllDocReader(val lang: Language,
       new DepConstTree(constTree, poss(i), wordss(i), childParentMap)
     }
     
-    new ConllDoc(docID,
-                 docPartNo,
-                 wordss,
-                 poss,
-                 trees,
-                 nerBitss.map(ConllDocReader.assembleNerChunks(_)),
-                 corefBitss.map(ConllDocReader.assembleCorefChunks(_)),
-                 speakerss)
+    val doc = new ConllDoc(docID,
+                           docPartNo,
+                           wordss,
+                           poss,
+                           trees,
+                           nerBitss.map(ConllDocReader.assembleNerChunks(_)),
+                           corefBitss.map(ConllDocReader.assembleCorefChunks(_)),
+                           speakerss)
+    Metrics.DocRead.stop(startNanos);
+    doc;
   }
   
   /**
@@ -146,8 +160,13 @@ class ConllDocReader(val lang: Language,
         docBySentencesByLines.last += line;
       }
     }
-    fcn(assembleConllDoc(docBySentencesByLines, docID, docPartNo));
-    docsProcessed + 1
+    // Flush the last document unless the file was empty or we stopped at the limit (in which
+    // case the buffer only holds the start of a document we weren't asked for)
+    if (docID != "" && (numDocsToStopAfter == -1 || docsProcessed < numDocsToStopAfter)) {
+      fcn(assembleConllDoc(docBySentencesByLines, docID, docPartNo));
+      docsProcessed += 1
+    }
+    docsProcessed
   }
 }
 
@@ -173,8 +192,11 @@ object ConllDocReader {
   }
   
   def readConllDocsGeneral[T](fileName: String, fcn: (String, Int, ArrayBuffer[ArrayBuffer[String]]) => T, numDocsToStopAfter: Int = -1): Seq[T] = {
+    readConllDocsGeneral(IOUtils.lineIterator(IOUtils.openInHard(fileName)), fileName, fcn, numDocsToStopAfter);
+  }
+  
+  def readConllDocsGeneral[T](lineItr: java.util.Iterator[String], fileName: String, fcn: (String, Int, ArrayBuffer[ArrayBuffer[String]]) => T, numDocsToStopAfter: Int): Seq[T] = {
     val results = new ArrayBuffer[T];
-    val lineItr = IOUtils.lineIterator(IOUtils.openInHard(fileName));
     var docsProcessed = 0
     var docBySentencesByLines = new ArrayBuffer[ArrayBuffer[String]];
     var docID = "";
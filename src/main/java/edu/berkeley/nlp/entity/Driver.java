@@ -94,6 +94,13 @@ import edu.berkeley.nlp.futile.util.Logger;
  * that can be applied to any document that comes in.
  * Required arguments: -trainPath
  * 
+ * ================
+ * SERVE: loads a joint model once and annotates documents posted to
+ * http://localhost:serverPort/annotate as PREDICT would, until killed. Takes CoNLL
+ * documents, or raw text if -rawTextSentenceSplitterPath and -rawTextGrammarPath are
+ * given. See edu.berkeley.nlp.entity.AnnotationServer for the request format.
+ * Required arguments: -modelPath, -wikipediaPath (for linking)
+ * 
  * @author gdurrett
  *
  */
@@ -130,8 +137,11 @@ public class Driver implements Runnable {
   public static String brownPath = "data/bllip-clusters";
   @Option(gloss = "Path to CoNLL evaluation script")
   public static String conllEvalScriptPath = "scorer/v7/scorer.pl";
+  @Option(gloss = "Score by running the CoNLL evaluation script (needs perl); false uses the in-process reimplementation of it, " +
+      "which hasn't yet been checked against the script's output")
+  public static boolean useConllScorerScript = true;
 
-  @Option(gloss = "Path to read/write the model")
+  @Option(gloss = "Path to read/write the model; models written to a path ending in .bmodel use the binary format (see BinaryModel)")
   public static String modelPath = "";
   @Option(gloss = "Path to write system output to")
   public static String outputPath = "";
@@ -152,6 +162,36 @@ public class Driver implements Runnable {
   public static boolean filterNonMaximalNPs = true;
   @Option(gloss = "Extract coordinated mentions and track multiple heads (necessary for computing some optional features)")
   public static boolean useCoordination = false;
+  @Option(gloss = "Number of threads for preprocessing documents (mention detection, coref and NER pruning); 1 processes them serially")
+  public static int numPreprocessingThreads = 1;
+  @Option(gloss = "Number of threads for joint decoding at test time; documents are still written out in input order")
+  public static int numDecodeThreads = 1;
+  @Option(gloss = "Number of threads for the coref featurization pass in training; features are renumbered afterwards so " +
+      "the model is the same as with 1")
+  public static int numFeaturizationThreads = 1;
+  @Option(gloss = "Number of coref pruner folds to train at once (build: pruning strategy and MAKE_MASK_MODELS); each " +
+      "holds its own featurized copy of the training set, and the models are the same as with 1. With more than 1, " +
+      "the folds' training iterations aren't reported to the metrics, since they overlap")
+  public static int numPrunerFoldThreads = 1;
+
+  // SERVE MODE
+  @Option(gloss = "Port to serve annotation requests on (localhost only)")
+  public static int serverPort = 8080;
+  @Option(gloss = "Number of threads reading requests and writing responses; decoding uses numDecodeThreads")
+  public static int numServerThreads = 8;
+  @Option(gloss = "Most documents that can wait to be decoded; requests beyond that are turned away with a 503, and requests with more documents than this plus numDecodeThreads with a 413")
+  public static int serverMaxQueuedDocs = 256;
+  @Option(gloss = "Sentence splitter model for raw text requests; raw text is only accepted with this and rawTextGrammarPath")
+  public static String rawTextSentenceSplitterPath = "";
+  @Option(gloss = "Parser grammar for raw text requests")
+  public static String rawTextGrammarPath = "";
+  @Option(gloss = "Backoff parser grammar for raw text requests, for sentences the main grammar can't parse")
+  public static String rawTextBackoffGrammarPath = "";
+
+  @Option(gloss = "File to write metrics to as JSON lines (per document, per training iteration and a final summary); see Metrics")
+  public static String metricsPath = "";
+  @Option(gloss = "Port to serve metrics on in the Prometheus text format (localhost only); -1 for none")
+  public static int metricsPort = -1;
 
   @Option(gloss = "Print per-document scores for bootstrap significance testing")
   public static boolean printSigSuffStats = false;
@@ -171,6 +211,11 @@ public class Driver implements Runnable {
   public static double reg = 0.001;
   @Option(gloss = "Batch size; right now batchSize > 1 works badly for some reason")
   public static int batchSize = 1;
+  @Option(gloss = "Number of threads for computing gradients in sparse Adagrad training (coref); 1 trains serially")
+  public static int numTrainThreads = 1;
+  @Option(gloss = "With numTrainThreads > 1, have each thread apply its own minibatch updates to the shared weights (Hogwild) " +
+      "instead of splitting each minibatch across threads; the only way to get a speedup when batchSize is small")
+  public static boolean hogwildTraining = false;
   
   // COREFERENCE OPTIONS
   @Option(gloss = "Loss fcn to use")
@@ -197,6 +242,11 @@ public class Driver implements Runnable {
   
   @Option(gloss = "Cutoff below which lexical features fire POS tags instead")
   public static int lexicalFeatCutoff = 20;
+  @Option(gloss = "Index conjoined coref features through packed primitive keys instead of concatenated strings; gives identical feature indices")
+  public static boolean primitiveFeatureIndexing = false;
+  @Option(gloss = "Directory to cache featurized training documents in (coref features for the coref modes, all of the factor " +
+      "graph features for the joint modes), so that later runs on the same data and features skip featurization; empty for none")
+  public static String featurizationCacheDir = "";
   
   @Option(gloss = "Path to lexical inference outputs (DB of nom/prop<->nom/prop synonymy)")
   public static String lexInfPath = "";
@@ -235,6 +285,14 @@ public class Driver implements Runnable {
   public static boolean includeExtraNodePasses = false;
   @Option(gloss = "Number of iterations to run BP for")
   public static int numBPItrs = 5;
+  @Option(gloss = "Check every BP message for NaNs, infinities, and zeroes as it's passed; slow, for debugging")
+  public static boolean checkBpMessages = false;
+  @Option(gloss = "Budget for the gold (and for the guess) factor graphs kept cached during joint training, in mention pairs: " +
+      "a document with n mentions costs n^2. -1 for unbounded. Once the budget is used up further graphs aren't cached " +
+      "and are rebuilt each time they're needed, which caps memory use on large corpora.")
+  public static int factorGraphCacheMentionPairs = -1;
+  @Option(gloss = "Rebuild factor graphs that weren't admitted to the cache rather than failing")
+  public static boolean rebuildUncachedFactorGraphs = true;
   
   
   // JOINT NER OPTIONS
@@ -307,7 +365,7 @@ public class Driver implements Runnable {
     PREDICT_ACE, PREDICT_EVALUATE_ACE, TRAIN_EVALUATE_ACE,
     TRAIN_EVALUATE_ACE_JOINT_INF,
     COREF_TRAIN, COREF_PREDICT, COREF_TRAIN_EVALUATE, COREF_TRAIN_PREDICT, COREF_EVALUATE,
-    MAKE_MASK_MODELS;
+    MAKE_MASK_MODELS, SERVE;
   }
   
   public static enum WikifierType {
@@ -321,6 +379,15 @@ public class Driver implements Runnable {
   
   public void run() {
     Logger.setFig();
+    Metrics.configure(metricsPath, metricsPort);
+    try {
+      runMode();
+    } finally {
+      Metrics.close();
+    }
+  }
+  
+  private void runMode() {
     if (mode == Mode.PREDICT) {
       EntitySystem.runOntoPredict(testPath, testSize, modelPath);
     } else if (mode == Mode.PREDICT_EVALUATE) {
@@ -345,6 +412,8 @@ public class Driver implements Runnable {
       CorefSystem.runEvaluate(testPath, testSize, modelPath);
     } else if (mode == Mode.MAKE_MASK_MODELS) {
       CorefPrunerJavaHack.trainAndSaveKFoldModels(trainPath, trainSize, maskNumFolds, maskOutPath);
+    } else if (mode == Mode.SERVE) {
+      AnnotationServer.run(modelPath);
     } else {
       throw new RuntimeException("Unknown mode: " + mode);
     }
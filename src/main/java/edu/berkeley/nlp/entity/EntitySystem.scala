@@ -24,6 +24,7 @@ import edu.berkeley.nlp.entity.coref.CorefDoc
 import edu.berkeley.nlp.entity.coref.CorefDocAssemblerACE
 import edu.berkeley.nlp.entity.lang.Language
 import edu.berkeley.nlp.entity.joint.JointFeaturizerShared
+import edu.berkeley.nlp.entity.joint.JointFeaturizationCache
 import edu.berkeley.nlp.entity.sem.SemClasser
 import edu.berkeley.nlp.entity.wiki.ACEMunger
 import edu.berkeley.nlp.entity.wiki.DocWikiAnnots
@@ -53,12 +54,20 @@ import edu.berkeley.nlp.entity.wiki._
 import edu.berkeley.nlp.entity.joint.JointPredictorACE
 import edu.berkeley.nlp.entity.coref.CorefSystem
 import edu.berkeley.nlp.entity.coref.AuxiliaryFeaturizer
+import edu.berkeley.nlp.entity.coref.PruningStats
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 object EntitySystem {
   
   def preprocessDocsCacheResources(allDocGraphs: Seq[DocumentGraph]) {
     if (Driver.wordNetPath != "") {
-      val wni = new WordNetInterfacer(Driver.wordNetPath);
+      // Shared so that we only load WordNet once even when preprocessing one document at a time
+      val wni = WordNetInterfacer.getCachedInstance;
       allDocGraphs.foreach(_.cacheWordNetInterfacer(wni));
     }
   }
@@ -165,6 +174,28 @@ object EntitySystem {
                      nerPruner: NerPruner,
                      corefPruner: CorefPruner,
                      train: Boolean) = {
+    val jointDocsOrigOrder = if (Driver.numPreprocessingThreads > 1) {
+      preprocessDocsParallel(path, suffix, goldPath, goldSuffix, size, mentionPropertyComputer, nerPruner, corefPruner, train, Driver.numPreprocessingThreads);
+    } else {
+      preprocessDocsSerial(path, suffix, goldPath, goldSuffix, size, mentionPropertyComputer, nerPruner, corefPruner, train);
+    }
+    if (train) {
+      // Randomize
+      new scala.util.Random(0).shuffle(jointDocsOrigOrder)
+    } else {
+      jointDocsOrigOrder;
+    }
+  }
+  
+  private def preprocessDocsSerial(path: String,
+                                   suffix: String,
+                                   goldPath: String,
+                                   goldSuffix: String,
+                                   size: Int,
+                                   mentionPropertyComputer: MentionPropertyComputer,
+                                   nerPruner: NerPruner,
+                                   corefPruner: CorefPruner,
+                                   train: Boolean): Seq[JointDoc] = {
     // Read in raw data
     val (rawDocs, goldConllDocs) = if (goldPath != "") {
       (ConllDocReader.loadRawConllDocsWithSuffix(path, size, suffix),
@@ -187,29 +218,109 @@ object EntitySystem {
     val jointDocsOrigOrder = JointDoc.assembleJointDocs(docGraphs, goldConllDocs, goldWikification);
     // Store NER marginals
     jointDocsOrigOrder.foreach(_.cacheNerPruner(Some(nerPruner)));
-    if (train) {
-      // Randomize
-      new scala.util.Random(0).shuffle(jointDocsOrigOrder)
-    } else {
-      jointDocsOrigOrder;
+    jointDocsOrigOrder;
+  }
+  
+  /**
+   * Same result as preprocessDocsSerial, but documents are handed off one at a time as they're
+   * read to a pool of numThreads workers, each of which takes its document through mention
+   * detection, coref pruning, and NER pruning. The work queue is bounded so the reader blocks
+   * (by doing the work itself) rather than running ahead of the workers. Output order matches
+   * input order.
+   */
+  private def preprocessDocsParallel(path: String,
+                                     suffix: String,
+                                     goldPath: String,
+                                     goldSuffix: String,
+                                     size: Int,
+                                     mentionPropertyComputer: MentionPropertyComputer,
+                                     nerPruner: NerPruner,
+                                     corefPruner: CorefPruner,
+                                     train: Boolean,
+                                     numThreads: Int): Seq[JointDoc] = {
+    // Gold documents are only needed for their NER chunks, which we match up by UID
+    val goldConllDocsByUid = new HashMap[UID,ConllDoc];
+    if (goldPath != "") {
+      for (goldDoc <- ConllDocReader.loadRawConllDocsWithSuffix(goldPath, size, goldSuffix)) {
+        if (!goldConllDocsByUid.contains(goldDoc.uid)) {
+          goldConllDocsByUid.put(goldDoc.uid, goldDoc);
+        }
+      }
+    }
+    Logger.logss("Preprocessing documents with " + numThreads + " threads");
+    val assembler = CorefDocAssembler(Driver.lang, Driver.useGoldMentions);
+    val pool = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue[Runnable](numThreads * 4), new ThreadPoolExecutor.CallerRunsPolicy);
+    val futures = new ArrayBuffer[Future[JointDoc]];
+    try {
+      ConllDocReader.loadRawConllDocsWithSuffixProcessStreaming(path, size, suffix, (rawDoc: ConllDoc) => {
+        futures += pool.submit(new Callable[JointDoc] {
+          def call() = {
+            Metrics.beginDoc("preprocess", rawDoc);
+            try {
+              val docGraph = new DocumentGraph(assembler.createCorefDoc(rawDoc, mentionPropertyComputer), train);
+              preprocessDocsCacheResources(Seq(docGraph));
+              corefPruner.prune(docGraph);
+              val jointDoc = JointDoc.assembleJointDoc(docGraph, goldConllDocsByUid.get(rawDoc.uid));
+              jointDoc.cacheNerPruner(Some(nerPruner));
+              jointDoc;
+            } finally {
+              Metrics.endDoc();
+            }
+          }
+        });
+      });
+      val jointDocs = futures.map(future => {
+        try {
+          future.get;
+        } catch {
+          case e: ExecutionException => throw new RuntimeException(e.getCause);
+        }
+      });
+      Logger.logss(jointDocs.size + " documents preprocessed");
+      if (train) {
+        CorefDocAssembler.checkGoldMentionRecall(jointDocs.map(_.docGraph.corefDoc));
+      }
+      Logger.logss("Pruning result: " + jointDocs.foldLeft(new PruningStats(0, 0, 0, 0, 0, 0, 0, 0))((stats, jointDoc) => stats.add(jointDoc.docGraph.computePruningStats())));
+      jointDocs;
+    } finally {
+      pool.shutdownNow();
     }
   }
   
+  /**
+   * Reads, preprocesses, decodes, and writes one document at a time, so memory use is
+   * bounded by the largest document rather than by the size of the corpus (times the
+   * number of documents in flight with numDecodeThreads > 1).
+   */
   def runOntoPredict(path: String, size: Int, modelPath: String) {
     val jointPredictor = GUtil.load(modelPath).asInstanceOf[JointPredictor];
     val numberGenderComputer = NumberGenderComputer.readBergsmaLinData(Driver.numberGenderDataPath);
     val mentionPropertyComputer = new MentionPropertyComputer(Some(numberGenderComputer));
-    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(GUtil.load(Driver.wikipediaPath).asInstanceOf[WikipediaInterface]) else None;
-//    val jointDocs = preprocessDocsForDecode(path, size, Driver.docSuffix, mentionPropertyComputer, jointPredictor.nerPruner, jointPredictor.corefPruner);
-//    jointPredictor.decodeWriteOutput(jointDocs, maybeWikipediaInterface, Driver.doConllPostprocessing);
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
     val outWriter = IOUtils.openOutHard(Execution.getFile("output.conll"))
     val outWikiWriter = IOUtils.openOutHard(Execution.getFile("output-wiki.conll"))
-    val predictor = jointPredictor.makeIndividualDocPredictionWriter(maybeWikipediaInterface, outWriter, outWikiWriter)
-    val predictionWriter = (doc: ConllDoc) => {
-      val jointDoc = preprocessDocForDecode(doc, mentionPropertyComputer, jointPredictor.nerPruner, jointPredictor.corefPruner)
-      predictor(jointDoc)
+    val decoder = jointPredictor.makeDocDecoder(maybeWikipediaInterface);
+    Logger.startTrack("Decoding");
+    // Workers preprocess and decode; documents are written in order and then dropped
+    val executor = new OrderedParallelExecutor[(JointDoc,JointPredictor.DocPrediction)](Driver.numDecodeThreads);
+    try {
+      ConllDocReader.loadRawConllDocsWithSuffixProcessStreaming(path, size, Driver.docSuffix, (doc: ConllDoc) => {
+        executor.submit({
+          Metrics.beginDoc("decode", doc);
+          try {
+            val jointDoc = preprocessDocForDecode(doc, mentionPropertyComputer, jointPredictor.nerPruner, jointPredictor.corefPruner);
+            jointDoc -> decoder(jointDoc);
+          } finally {
+            Metrics.endDoc();
+          }
+        }, (result: (JointDoc,JointPredictor.DocPrediction)) => jointPredictor.writePrediction(outWriter, outWikiWriter, result._1, result._2, Driver.doConllPostprocessing));
+      });
+      executor.finish();
+    } finally {
+      executor.shutdown();
     }
-    ConllDocReader.loadRawConllDocsWithSuffixProcessStreaming(path, size, Driver.docSuffix, predictionWriter)
+    Logger.endTrack();
     outWriter.close
     outWikiWriter.close
   }
@@ -218,7 +329,7 @@ object EntitySystem {
     val jointPredictor = GUtil.load(modelPath).asInstanceOf[JointPredictor];
     val numberGenderComputer = NumberGenderComputer.readBergsmaLinData(Driver.numberGenderDataPath);
     val mentionPropertyComputer = new MentionPropertyComputer(Some(numberGenderComputer));
-    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(GUtil.load(Driver.wikipediaPath).asInstanceOf[WikipediaInterface]) else None;
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
     val jointDocs = preprocessDocsForEval(path, size, mentionPropertyComputer, jointPredictor.nerPruner, jointPredictor.corefPruner);
     jointPredictor.decodeWriteOutputEvaluate(jointDocs, maybeWikipediaInterface, Driver.doConllPostprocessing);
   }
@@ -241,20 +352,18 @@ object EntitySystem {
     val maybeBrownClusters = if (Driver.brownPath != "") Some(BrownClusterInterface.loadBrownClusters(Driver.brownPath, 0)) else None
     val nerFeaturizer = NerFeaturizer(Driver.nerFeatureSet.split("\\+").toSet, featureIndexer, NerSystemLabeled.StdLabelIndexer, jointDocs.flatMap(_.rawDoc.words), None, maybeBrownClusters);
     val jointFeaturizer = buildFeaturizerShared(jointDocs.map(_.docGraph.corefDoc), featureIndexer, Driver.pairwiseFeats, nerFeaturizer, maybeBrownClusters, Driver.corefNerFeatures, Driver.corefWikiFeatures, Driver.wikiNerFeatures);
-    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(GUtil.load(Driver.wikipediaPath).asInstanceOf[WikipediaInterface]) else None;
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
     
     
     ///////////////////////
     val fgfOnto = new FactorGraphFactoryOnto(jointFeaturizer, maybeWikipediaInterface);
     val computer = new JointComputerShared(fgfOnto);
-    jointDocs.foreach(jointDoc => {
-      fgfOnto.getDocFactorGraph(jointDoc, true, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-      fgfOnto.getDocFactorGraph(jointDoc, false, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-    });
+    JointFeaturizationCache.buildTrainingGraphs(jointDocs, fgfOnto, Driver.featurizationCacheDir);
     PairwiseIndexingFeaturizer.printFeatureTemplateCounts(featureIndexer)
     Logger.logss(featureIndexer.size + " total features");
     
     val finalWeights = new GeneralTrainer[JointDoc].trainAdagrad(jointDocs, computer, featureIndexer.size, Driver.eta.toFloat, Driver.reg.toFloat, Driver.batchSize, Driver.numItrs);
+    Logger.logss(fgfOnto.renderCacheStats);
     val model = new JointPredictor(jointFeaturizer, finalWeights, corefPruner, nerPruner).pack;
     if (Driver.modelPath != "") GUtil.save(model, Driver.modelPath);
     
@@ -321,32 +430,57 @@ object EntitySystem {
     }
   }
   
-  def preprocessACEDocsForDecode(path: String, size: Int, suffix: String, mentionPropertyComputer: MentionPropertyComputer, corefPruner: CorefPruner) = {
-    val rawDocs = ConllDocReader.loadRawConllDocsWithSuffix(path, size, suffix, Language.ENGLISH);
+  def preprocessACEDocForDecode(conllDoc: ConllDoc, mentionPropertyComputer: MentionPropertyComputer, corefPruner: CorefPruner) = {
     val assembler = CorefDocAssembler(Driver.lang, Driver.useGoldMentions);
-    val corefDocs = rawDocs.map(doc => assembler.createCorefDoc(doc, mentionPropertyComputer));
-    val docGraphs = corefDocs.map(new DocumentGraph(_, false));
-    CorefSystem.preprocessDocsCacheResources(docGraphs);
+    val docGraph = new DocumentGraph(assembler.createCorefDoc(conllDoc, mentionPropertyComputer), false);
+    CorefSystem.preprocessDocsCacheResources(Seq(docGraph));
     // Prune coref now that we have mentions
-    corefPruner.pruneAll(docGraphs);
+    corefPruner.prune(docGraph);
     // No NER pruning
-    JointDocACE.assembleJointDocs(docGraphs, new CorpusWikiAnnots);
+    JointDocACE.assembleJointDocs(Seq(docGraph), new CorpusWikiAnnots).head;
   }
   
+  def preprocessACEDocsForDecode(path: String, size: Int, suffix: String, mentionPropertyComputer: MentionPropertyComputer, corefPruner: CorefPruner) = {
+    val rawDocs = ConllDocReader.loadRawConllDocsWithSuffix(path, size, suffix, Language.ENGLISH);
+    val jointDocs = rawDocs.map(doc => preprocessACEDocForDecode(doc, mentionPropertyComputer, corefPruner));
+    Logger.logss("Pruning result: " + jointDocs.foldLeft(new PruningStats(0, 0, 0, 0, 0, 0, 0, 0))((stats, jointDoc) => stats.add(jointDoc.docGraph.computePruningStats())));
+    jointDocs;
+  }
+  
+  /**
+   * Streaming like runOntoPredict: each document is dropped once its output is written.
+   */
   def runACEPredict(path: String, size: Int, modelPath: String) {
     val jointPredictor = GUtil.load(modelPath).asInstanceOf[JointPredictorACE];
     val numberGenderComputer = NumberGenderComputer.readBergsmaLinData(Driver.numberGenderDataPath);
     val mentionPropertyComputer = new MentionPropertyComputer(Some(numberGenderComputer));
-    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(GUtil.load(Driver.wikipediaPath).asInstanceOf[WikipediaInterface]) else None;
-    val jointDocs = preprocessACEDocsForDecode(path, size, Driver.docSuffix, mentionPropertyComputer, jointPredictor.corefPruner);
-    jointPredictor.decodeWriteOutput(jointDocs, maybeWikipediaInterface, Driver.doConllPostprocessing);
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
+    val outWriter = IOUtils.openOutHard(Execution.getFile("output.conll"))
+    val outWikiWriter = IOUtils.openOutHard(Execution.getFile("output-wiki.conll"))
+    val decoder = jointPredictor.makeDocDecoder(maybeWikipediaInterface);
+    Logger.startTrack("Decoding");
+    val executor = new OrderedParallelExecutor[(JointDocACE,JointPredictor.DocPrediction)](Driver.numDecodeThreads);
+    try {
+      ConllDocReader.loadRawConllDocsWithSuffixProcessStreaming(path, size, Driver.docSuffix, (doc: ConllDoc) => {
+        executor.submit({
+          val jointDoc = preprocessACEDocForDecode(doc, mentionPropertyComputer, jointPredictor.corefPruner);
+          jointDoc -> decoder(jointDoc);
+        }, (result: (JointDocACE,JointPredictor.DocPrediction)) => jointPredictor.writePrediction(outWriter, outWikiWriter, result._1, result._2, Driver.doConllPostprocessing));
+      });
+      executor.finish();
+    } finally {
+      executor.shutdown();
+    }
+    Logger.endTrack();
+    outWriter.close
+    outWikiWriter.close
   }
   
   def runACEPredictEvaluate(path: String, size: Int, modelPath: String) {
     val jointPredictor = GUtil.load(modelPath).asInstanceOf[JointPredictorACE];
     val numberGenderComputer = NumberGenderComputer.readBergsmaLinData(Driver.numberGenderDataPath);
     val mentionPropertyComputer = new MentionPropertyComputer(Some(numberGenderComputer));
-    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(GUtil.load(Driver.wikipediaPath).asInstanceOf[WikipediaInterface]) else None;
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
     val jointDocs = preprocessACEDocsForTrainEval(path, size, mentionPropertyComputer, jointPredictor.corefPruner, Driver.wikiGoldPath, false);
     jointPredictor.decodeWriteOutputEvaluate(jointDocs, maybeWikipediaInterface, Driver.doConllPostprocessing);
   }
@@ -367,20 +501,18 @@ object EntitySystem {
     val maybeBrownClusters = if (Driver.brownPath != "") Some(BrownClusterInterface.loadBrownClusters(Driver.brownPath, 0)) else None
     val nerFeaturizer = MCNerFeaturizer(Driver.nerFeatureSet.split("\\+").toSet, featureIndexer, MCNerFeaturizer.StdLabelIndexer, jointDocs.flatMap(_.rawDoc.words), None, maybeBrownClusters)
     val jointFeaturizer = buildFeaturizerShared(jointDocs.map(_.docGraph.corefDoc), featureIndexer, Driver.pairwiseFeats, nerFeaturizer, maybeBrownClusters, Driver.corefNerFeatures, Driver.corefWikiFeatures, Driver.wikiNerFeatures);
-    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(GUtil.load(Driver.wikipediaPath).asInstanceOf[WikipediaInterface]) else None;
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
     
     ///////////////////////
     // Cache features
     val fgfAce = new FactorGraphFactoryACE(jointFeaturizer, maybeWikipediaInterface);
     val computer = new JointComputerShared(fgfAce);
-    jointDocs.foreach(jointDoc => {
-      fgfAce.getDocFactorGraph(jointDoc, true, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-      fgfAce.getDocFactorGraph(jointDoc, false, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-    });
+    JointFeaturizationCache.buildTrainingGraphs(jointDocs, fgfAce, Driver.featurizationCacheDir);
     PairwiseIndexingFeaturizer.printFeatureTemplateCounts(featureIndexer)
     Logger.logss(featureIndexer.size + " total features");
     
     val finalWeights = new GeneralTrainer[JointDocACE].trainAdagrad(jointDocs, computer, featureIndexer.size, Driver.eta.toFloat, Driver.reg.toFloat, Driver.batchSize, Driver.numItrs);
+    Logger.logss(fgfAce.renderCacheStats);
     val model = new JointPredictorACE(jointFeaturizer, finalWeights, corefPruner).pack;
     if (Driver.modelPath != "") GUtil.save(model, Driver.modelPath);
     
@@ -435,20 +567,18 @@ object EntitySystem {
     val maybeBrownClusters = if (Driver.brownPath != "") Some(BrownClusterInterface.loadBrownClusters(Driver.brownPath, 0)) else None
     val indepNerFeaturizer = MCNerFeaturizer(Driver.nerFeatureSet.split("\\+").toSet, indepFeatureIndexer, MCNerFeaturizer.StdLabelIndexer, jointDocs.flatMap(_.rawDoc.words), None, maybeBrownClusters)
     val indepFeaturizer = buildFeaturizerShared(jointDocs.map(_.docGraph.corefDoc), indepFeatureIndexer, Driver.pairwiseFeats, indepNerFeaturizer, maybeBrownClusters, "", "", "");
-    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(GUtil.load(Driver.wikipediaPath).asInstanceOf[WikipediaInterface]) else None;
+    val maybeWikipediaInterface: Option[WikipediaInterface] = if (Driver.wikipediaPath != "") Some(WikipediaInterface.load(Driver.wikipediaPath)) else None;
     
     ///////////////////////
     // Cache features
     val indepFgfAce = new FactorGraphFactoryACE(indepFeaturizer, maybeWikipediaInterface);
     val indepComputer = new JointComputerShared(indepFgfAce);
-    jointDocs.foreach(jointDoc => {
-      indepFgfAce.getDocFactorGraph(jointDoc, true, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-      indepFgfAce.getDocFactorGraph(jointDoc, false, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-    });
+    JointFeaturizationCache.buildTrainingGraphs(jointDocs, indepFgfAce, Driver.featurizationCacheDir);
     PairwiseIndexingFeaturizer.printFeatureTemplateCounts(indepFeatureIndexer)
     Logger.logss(indepFeatureIndexer.size + " total features");
     
     val indepWeights = new GeneralTrainer[JointDocACE].trainAdagrad(jointDocs, indepComputer, indepFeatureIndexer.size, Driver.eta.toFloat, Driver.reg.toFloat, Driver.batchSize, Driver.numItrs);
+    Logger.logss(indepFgfAce.renderCacheStats);
     
     ///////////////////////
     // JOINT MODEL
@@ -462,10 +592,7 @@ object EntitySystem {
     
     val fgfAce = new FactorGraphFactoryACE(jointFeaturizer, maybeWikipediaInterface);
     val computer = new JointComputerShared(fgfAce);
-    jointDocs.foreach(jointDoc => {
-      fgfAce.getDocFactorGraph(jointDoc, true, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-      fgfAce.getDocFactorGraph(jointDoc, false, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn);
-    });
+    JointFeaturizationCache.buildTrainingGraphs(jointDocs, fgfAce, Driver.featurizationCacheDir);
     PairwiseIndexingFeaturizer.printFeatureTemplateCounts(jointFeatureIndexer)
     Logger.logss(jointFeatureIndexer.size + " total features");
     
@@ -484,6 +611,7 @@ object EntitySystem {
     }
     
     val finalWeights = new GeneralTrainer[JointDocACE].trainAdagrad(jointDocs, computer, jointFeatureIndexer.size, Driver.eta.toFloat, Driver.reg.toFloat, Driver.batchSize, Driver.numItrs, projector);
+    Logger.logss(fgfAce.renderCacheStats);
     val model = new JointPredictorACE(jointFeaturizer, finalWeights, corefPruner).pack;
     if (Driver.modelPath != "") GUtil.save(model, Driver.modelPath);
     
@@ -27,14 +27,26 @@ object GUtil {
     if (new File(path).getParentFile() != null && !(new File(path).getParentFile().canWrite())) {
       throw new RuntimeException("Can't write to " + path); 
     }
-    if (path.endsWith(".gz")) saveGz(obj, path) else saveNonGz(obj, path);
+    if (path.endsWith(BinaryModel.Extension)) {
+      BinaryModel.save(obj, path);
+    } else if (path.endsWith(".gz")) {
+      saveGz(obj, path);
+    } else {
+      saveNonGz(obj, path);
+    }
   }
   
   def load(path: String): Object = {
     if (!new File(path).canRead()) {
       throw new RuntimeException("Can't read from " + path); 
     }
-    if (path.endsWith(".gz")) loadGz(path) else loadNonGz(path);
+    if (BinaryModel.isBinaryModel(path)) {
+      BinaryModel.load(path);
+    } else if (path.endsWith(".gz")) {
+      loadGz(path);
+    } else {
+      loadNonGz(path);
+    }
   }
   
   def saveNonGz[T <: Serializable](obj: T, path: String) {
@@ -6,8 +6,12 @@ import java.util.Arrays
 import scala.util.Random
 import edu.berkeley.nlp.futile.math.CachingDifferentiableFunction
 import edu.berkeley.nlp.futile.math.LBFGSMinimizer
-import edu.berkeley.nlp.futile.util.IntCounter
 import scala.collection.JavaConverters._
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 
 trait LikelihoodAndGradientComputer[T] {
   
@@ -44,7 +48,7 @@ trait LikelihoodAndGradientComputerSparse[T] {
    * Accumulates the gradient on this example into gradient and returns the log likelihood
    * of this example
    */
-  def accumulateGradientAndComputeObjective(ex: T, weights: AdagradWeightVector, gradient: IntCounter): Double
+  def accumulateGradientAndComputeObjective(ex: T, weights: AdagradWeightVector, gradient: SparseGradient): Double
   
   /**
    * Just computes the objective; lighter-weight method that clients may want to implement
@@ -72,47 +76,97 @@ class AdagradWeightVector(val weights: Array[Double],
   var currIter = 0
   val diagGt = Array.tabulate(weights.size)(i => 0.0)
   
-  def applyGradientUpdate(gradient: IntCounter, batchSize: Int) {
+  // Striped locks guarding each weight's lazy update when several threads read and update
+  // the weights at once; null means single-threaded use, which doesn't lock at all
+  @transient private var locks: Array[Object] = null
+  
+  def enableConcurrentAccess() {
+    if (locks == null) {
+      locks = Array.tabulate(AdagradWeightVector.NumLockStripes)(i => new Object)
+    }
+  }
+  
+  def disableConcurrentAccess() {
+    locks = null
+  }
+  
+  def applyGradientUpdate(gradient: SparseGradient, batchSize: Int) {
 //    Logger.logss(gradient.toString)
     // Precompute this so dividing by batch size is a multiply and not a divide
     val batchSizeMultiplier = 1.0/batchSize;
-    currIter += 1
-    // TODO: Potentially optimizable
-    for (key <- gradient.keySet.asScala) {
-      val i = key.intValue
-      val xti = weights(i);
-      // N.B. We negate the gradient here because the Adagrad formulas are all for minimizing
-      // and we're trying to maximize, so think of it as minimizing the negative of the objective
-      // which has the opposite gradient
-      // Equation (25) in http://www.cs.berkeley.edu/~jduchi/projects/DuchiHaSi10.pdf
-      // eta is the step size, lambda is the regularization
-      val gti = -gradient.get(i) * batchSizeMultiplier;
-      // Update diagGt
-      val oldEtaOverHtii = eta / (1 + Math.sqrt(diagGt(i)).toDouble)
-      diagGt(i) += gti * gti;
-      val Htii = 1 + Math.sqrt(diagGt(i)).toDouble;
-      // Avoid divisions at all costs...
-      val etaOverHtii = eta / Htii;
-      val newXti = xti - etaOverHtii * gti;
-      // Apply the regularizer for every iteration since touched
-      val itersSinceTouched = currIter - lastIterTouched(i)
-      lastIterTouched(i) = currIter
+    val iter = if (locks == null) {
+      currIter += 1
+      currIter
+    } else {
+      this.synchronized {
+        currIter += 1
+        currIter
+      }
+    }
+    val currLocks = locks
+    gradient.foreachEntry((i, count) => {
+      if (currLocks == null) {
+        updateWeight(i, -count * batchSizeMultiplier, iter)
+      } else {
+        currLocks(i & (currLocks.size - 1)).synchronized {
+          updateWeight(i, -count * batchSizeMultiplier, iter)
+        }
+      }
+    })
+  }
+  
+  private def updateWeight(i: Int, gti: Double, iter: Int) {
+    val xti = weights(i);
+    // N.B. We negate the gradient (gti is the negated gradient) because the Adagrad formulas
+    // are all for minimizing and we're trying to maximize, so think of it as minimizing the
+    // negative of the objective which has the opposite gradient
+    // Equation (25) in http://www.cs.berkeley.edu/~jduchi/projects/DuchiHaSi10.pdf
+    // eta is the step size, lambda is the regularization
+    // Update diagGt
+    val oldEtaOverHtii = eta / (1 + Math.sqrt(diagGt(i)).toDouble)
+    diagGt(i) += gti * gti;
+    val Htii = 1 + Math.sqrt(diagGt(i)).toDouble;
+    // Avoid divisions at all costs...
+    val etaOverHtii = eta / Htii;
+    val newXti = xti - etaOverHtii * gti;
+    // Apply the regularizer for every iteration since touched
+    val itersSinceTouched = iter - lastIterTouched(i)
+    if (itersSinceTouched > 0) {
+      lastIterTouched(i) = iter
       weights(i) = Math.signum(newXti) * Math.max(0, Math.abs(newXti) - lambda * etaOverHtii - (itersSinceTouched - 1) * lambda * oldEtaOverHtii);
+    } else {
+      // Hogwild: another thread caught this weight up to a later iteration between our
+      // taking iter and the stripe lock, so the regularizer through iter is already applied
+      weights(i) = newXti
     }
   }
   
   def access(i: Int) = {
     if (lastIterTouched(i) != currIter) {
-      val xti = weights(i)
-      val Htii = 1 + Math.sqrt(diagGt(i)).toDouble;
-      val etaOverHtii = eta / Htii;
-      val itersSinceTouched = currIter - lastIterTouched(i)
-      lastIterTouched(i) = currIter
-      weights(i) = Math.signum(xti) * Math.max(0, Math.abs(xti) - itersSinceTouched * lambda * eta * etaOverHtii);
+      val currLocks = locks
+      if (currLocks == null) {
+        catchUp(i)
+      } else {
+        // Recheck under the lock so that two threads can't both apply the same catch-up
+        currLocks(i & (currLocks.size - 1)).synchronized {
+          if (lastIterTouched(i) != currIter) {
+            catchUp(i)
+          }
+        }
+      }
     }
     weights(i)
   }
   
+  private def catchUp(i: Int) {
+    val xti = weights(i)
+    val Htii = 1 + Math.sqrt(diagGt(i)).toDouble;
+    val etaOverHtii = eta / Htii;
+    val itersSinceTouched = currIter - lastIterTouched(i)
+    lastIterTouched(i) = currIter
+    weights(i) = Math.signum(xti) * Math.max(0, Math.abs(xti) - itersSinceTouched * lambda * eta * etaOverHtii);
+  }
+  
   def score(feats: Array[Int]) = {
     var i = 0
     var score = 0.0
@@ -126,7 +180,21 @@ class AdagradWeightVector(val weights: Array[Double],
   def finalizeWeights: Array[Double] = Array.tabulate(weights.size)(i => access(i))
 }
 
-class GeneralTrainer2[T](val parallel: Boolean = false) {
+object AdagradWeightVector {
+  // Must be a power of two
+  val NumLockStripes = 1024
+}
+
+/**
+ * parallel controls whether gradients are computed in parallel. The sparse (Adagrad) path
+ * uses numThreads worker threads, each accumulating into its own SparseGradient: by default
+ * each minibatch is split across the threads and their gradients are merged before a single
+ * update, while with hogwild each thread processes whole minibatches and applies its own
+ * updates to the shared weights concurrently (useful when batchSize is small).
+ */
+class GeneralTrainer2[T](val parallel: Boolean = false,
+                         val numThreads: Int = Runtime.getRuntime().availableProcessors(),
+                         val hogwild: Boolean = false) {
   
   var inferenceNanos = 0L;
   var adagradNanos = 0L;
@@ -142,6 +210,18 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
     Logger.logss("MILLIS FOR ITER " + iter + ": " + (System.nanoTime() - startTime) / 1000000.0 +
               " (" + inferenceNanos / 1000000.0 + " for inference and " + adagradNanos / 1000000.0 + " for Adagrad)");
     Logger.logss("MEMORY AFTER ITER " + iter + ": " + SysInfoUtils.getUsedMemoryStr());
+    Metrics.endIteration(iter);
+  }
+  
+  // Both go to the per-iteration totals that displayTime logs as well as to Metrics
+  private def addInferenceTime(nanos: Long) {
+    inferenceNanos += nanos;
+    Metrics.Gradient.record(nanos);
+  }
+  
+  private def addAdagradTime(nanos: Long) {
+    adagradNanos += nanos;
+    Metrics.WeightUpdate.record(nanos);
   }
   
   def computeObjectiveL1R(trainExs: Seq[T],
@@ -179,14 +259,16 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
     } else {
       serialGetMinibatchObjectiveAndGradient(exs, computer, weights, gradientArray)
     }
-    inferenceNanos += (System.nanoTime() - nanoTime);
+    addInferenceTime(System.nanoTime() - nanoTime);
     objective
   }
   
   private def serialGetMinibatchObjectiveAndGradient(exs: Seq[T], computer: LikelihoodAndGradientComputer[T], weights: Array[Double], gradientArray: Array[Double]) = {
     var objective = 0.0
     for (ex <- exs) {
+      Metrics.beginDoc("train", ex);
       objective += computer.accumulateGradientAndComputeObjective(ex, weights, gradientArray);
+      Metrics.endDoc();
     }
     objective
   }
@@ -221,47 +303,75 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
   //////////////////////////////////
   
   
-  def getMinibatchObjectiveAndGradientSparse(exs: Seq[T], computer: LikelihoodAndGradientComputerSparse[T], weights: AdagradWeightVector, gradientCounter: IntCounter) = {
+  def getMinibatchObjectiveAndGradientSparse(exs: Seq[T], computer: LikelihoodAndGradientComputerSparse[T], weights: AdagradWeightVector, gradient: SparseGradient) = {
     var nanoTime = System.nanoTime();
-    val objective = if (parallel) {
-      parallelGetMinibatchObjectiveAndGradientSparse(exs, computer, weights, gradientCounter)
+    val objective = if (parallel && threadPool != null) {
+      parallelGetMinibatchObjectiveAndGradientSparse(exs, computer, weights, gradient)
     } else {
-      serialGetMinibatchObjectiveAndGradientSparse(exs, computer, weights, gradientCounter)
+      serialGetMinibatchObjectiveAndGradientSparse(exs, computer, weights, gradient)
     }
-    inferenceNanos += (System.nanoTime() - nanoTime);
+    addInferenceTime(System.nanoTime() - nanoTime);
     objective
   }
   
-  private def serialGetMinibatchObjectiveAndGradientSparse(exs: Seq[T], computer: LikelihoodAndGradientComputerSparse[T], weights: AdagradWeightVector, gradientCounter: IntCounter) = {
+  private def serialGetMinibatchObjectiveAndGradientSparse(exs: Seq[T], computer: LikelihoodAndGradientComputerSparse[T], weights: AdagradWeightVector, gradient: SparseGradient) = {
     var objective = 0.0
     for (ex <- exs) {
-      objective += computer.accumulateGradientAndComputeObjective(ex, weights, gradientCounter);
+      Metrics.beginDoc("train", ex);
+      objective += computer.accumulateGradientAndComputeObjective(ex, weights, gradient);
+      Metrics.endDoc();
     }
     objective
   }
   
-  case class SuffStatsSparse(var ll: Double, val gradient: IntCounter) {
-    def incrementLL(increment: Double) { ll += increment }
-    def +=(other: SuffStatsSparse) = {
-      ll += other.ll
-      var i = 0
-      while (i < gradient.size) {
-        gradient.incrementAll(other.gradient)
-        i += 1
-      }
-      this
+  // Worker threads and their gradient buffers for the sparse path; these persist across
+  // minibatches so the buffers keep their capacity. Only non-null during trainAdagradSparse.
+  private var threadPool: ExecutorService = null;
+  private var threadGradients: Array[SparseGradient] = null;
+  
+  private def startThreads() {
+    threadPool = Executors.newFixedThreadPool(numThreads);
+    threadGradients = Array.tabulate(numThreads)(i => new SparseGradient);
+  }
+  
+  private def stopThreads() {
+    threadPool.shutdown();
+    threadPool = null;
+    threadGradients = null;
+  }
+  
+  /**
+   * Runs fcn(threadIdx) on every worker thread and returns the results in thread order,
+   * rethrowing the first exception any of them hit.
+   */
+  private def runOnAllThreads[A](fcn: Int => A): IndexedSeq[A] = {
+    val tasks = (0 until numThreads).map(threadIdx => new Callable[A] { def call() = fcn(threadIdx) });
+    val futures = threadPool.invokeAll(tasks.asJava).asScala;
+    try {
+      futures.map(_.get).toIndexedSeq
+    } catch {
+      case e: ExecutionException => throw new RuntimeException(e.getCause);
     }
   }
   
-  def parallelGetMinibatchObjectiveAndGradientSparse(exs: Seq[T], computer: LikelihoodAndGradientComputerSparse[T], weights: AdagradWeightVector, gradientCounter: IntCounter) = {
-    val finalSS = exs.par.aggregate(null: SuffStatsSparse)((currSS, ex) => {
-      val ss = if (currSS ne null) currSS else new SuffStatsSparse(0.0, new IntCounter)
-      val ll = computer.accumulateGradientAndComputeObjective(ex, weights, ss.gradient);
-      ss.incrementLL(ll)
-      ss
-    }, { (a, b) => if (a eq null) b else if (b eq null) a else b += a })
-    gradientCounter.incrementAll(finalSS.gradient)
-    finalSS.ll
+  def parallelGetMinibatchObjectiveAndGradientSparse(exs: Seq[T], computer: LikelihoodAndGradientComputerSparse[T], weights: AdagradWeightVector, gradient: SparseGradient) = {
+    // Contiguous chunks, merged in order, so the result only depends on the number of threads
+    val chunkSize = (exs.size + numThreads - 1) / numThreads;
+    val lls = runOnAllThreads(threadIdx => {
+      val threadGradient = threadGradients(threadIdx);
+      threadGradient.clear();
+      var ll = 0.0;
+      for (ex <- exs.slice(threadIdx * chunkSize, Math.min(exs.size, (threadIdx + 1) * chunkSize))) {
+        Metrics.beginDoc("train", ex);
+        ll += computer.accumulateGradientAndComputeObjective(ex, weights, threadGradient);
+        Metrics.endDoc();
+      }
+      ll
+    });
+    for (threadGradient <- threadGradients) {
+      gradient.incrementAll(threadGradient);
+    }
+    lls.foldLeft(0.0)(_ + _)
   }
   
   /////////////
@@ -285,6 +395,7 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
       val startTime = System.nanoTime();
       inferenceNanos = 0;
       adagradNanos = 0;
+      Metrics.beginIteration(i);
       if (verbose) Logger.startTrack("Computing gradient");
       var cumulativeObjective = 0.0
       var currIdx = 0;
@@ -353,7 +464,7 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
       weights(i) = Math.signum(newXti) * Math.max(0, Math.abs(newXti) - lambda * etaOverHtii);
       i += 1;
     }
-    adagradNanos += (System.nanoTime() - nanoTime);
+    addAdagradTime(System.nanoTime() - nanoTime);
     objective
   }
   
@@ -372,24 +483,55 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
                          initialWeights: Array[Double],
                          verbose: Boolean = true): Array[Double] = {
     val weights = new AdagradWeightVector(initialWeights, lambda, eta);
+    if (parallel && numThreads > 1) {
+      Logger.logss("Training with " + numThreads + " threads" + (if (hogwild) " (Hogwild)" else ""));
+      weights.enableConcurrentAccess();
+      startThreads();
+    }
+    try {
+      trainAdagradSparseHelper(trainExs, computer, weights, lambda, batchSize, numItrs, verbose);
+      if (verbose) Logger.logss("FINAL TRAIN OBJECTIVE: " + computeObjectiveL1RSparse(trainExs, computer, weights, lambda));
+    } finally {
+      if (threadPool != null) stopThreads();
+      weights.disableConcurrentAccess();
+    }
+    val finalWeights = weights.finalizeWeights
+    displayWeights(finalWeights)
+    finalWeights
+  }
+  
+  private def trainAdagradSparseHelper(trainExs: Seq[T],
+                                       computer: LikelihoodAndGradientComputerSparse[T],
+                                       weights: AdagradWeightVector,
+                                       lambda: Double,
+                                       batchSize: Int,
+                                       numItrs: Int,
+                                       verbose: Boolean) {
+    val gradient = new SparseGradient;
     for (i <- 0 until numItrs) {
       Logger.logss("ITERATION " + i);
       val startTime = System.nanoTime();
       inferenceNanos = 0;
       adagradNanos = 0;
+      Metrics.beginIteration(i);
       if (verbose) Logger.startTrack("Computing gradient");
       var cumulativeObjective = 0.0
       var currIdx = 0;
       var currBatchIdx = 0;
       val printFreq = (trainExs.size / batchSize) / 10 // Print progress 10 times per pass through the data
-      while (currIdx < trainExs.size) {
-        if (verbose && (printFreq == 0 || currBatchIdx % printFreq == 0)) {
-          Logger.logs("Computing gradient on " + currIdx + " (batch " + currBatchIdx + " / " + (trainExs.size / batchSize) + ")");
+      if (hogwild && threadPool != null) {
+        cumulativeObjective += hogwildPassSparse(trainExs, computer, weights, batchSize, verbose);
+      } else {
+        while (currIdx < trainExs.size) {
+          if (verbose && (printFreq == 0 || currBatchIdx % printFreq == 0)) {
+            Logger.logs("Computing gradient on " + currIdx + " (batch " + currBatchIdx + " / " + (trainExs.size / batchSize) + ")");
+          }
+          gradient.clear();
+          cumulativeObjective += takeAdagradStepL1RSparse(trainExs.slice(currIdx, Math.min(trainExs.size, currIdx + batchSize)), computer, weights, gradient);
+          computer.weightsUpdateCallback(weights)
+          currIdx += batchSize;
+          currBatchIdx += 1;
         }
-        cumulativeObjective += takeAdagradStepL1RSparse(trainExs.slice(currIdx, Math.min(trainExs.size, currIdx + batchSize)), computer, weights);
-        computer.weightsUpdateCallback(weights)
-        currIdx += batchSize;
-        currBatchIdx += 1;
       }
       cumulativeObjective += computeRegularizationTermL1R(weights.weights, lambda)
       Logger.logss("APPROXIMATE OBJECTIVE: " + cumulativeObjective + " (avg = " + cumulativeObjective/trainExs.size + ")")
@@ -400,24 +542,59 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
       }
       computer.iterationEndCallback(weights)
     }
-    if (verbose) Logger.logss("FINAL TRAIN OBJECTIVE: " + computeObjectiveL1RSparse(trainExs, computer, weights, lambda));
-    val finalWeights = weights.finalizeWeights
-    displayWeights(finalWeights)
-    finalWeights
   }
   
   def takeAdagradStepL1RSparse(exs: Seq[T],
                                computer: LikelihoodAndGradientComputerSparse[T],
-                               weights: AdagradWeightVector): Double = {
-    val gradientCounter = new IntCounter
-    val objective = getMinibatchObjectiveAndGradientSparse(exs, computer, weights, gradientCounter)
+                               weights: AdagradWeightVector,
+                               gradient: SparseGradient): Double = {
+    val objective = getMinibatchObjectiveAndGradientSparse(exs, computer, weights, gradient)
     val nanoTime = System.nanoTime();
-    // Precompute this so dividing by batch size is a multiply and not a divide
-    weights.applyGradientUpdate(gradientCounter, exs.size)
-    adagradNanos += (System.nanoTime() - nanoTime);
+    weights.applyGradientUpdate(gradient, exs.size)
+    addAdagradTime(System.nanoTime() - nanoTime);
     objective
   }
   
+  /**
+   * One pass over the data where each thread repeatedly claims the next minibatch, computes
+   * its gradient against the current (shared) weights, and applies the update itself.
+   * Updates from different threads interleave, so results aren't deterministic.
+   */
+  private def hogwildPassSparse(trainExs: Seq[T],
+                                computer: LikelihoodAndGradientComputerSparse[T],
+                                weights: AdagradWeightVector,
+                                batchSize: Int,
+                                verbose: Boolean): Double = {
+    val numBatches = (trainExs.size + batchSize - 1) / batchSize;
+    val printFreq = numBatches / 10 // Print progress 10 times per pass through the data
+    val nextBatchIdx = new AtomicInteger(0);
+    val nanoTime = System.nanoTime();
+    val lls = runOnAllThreads(threadIdx => {
+      val threadGradient = threadGradients(threadIdx);
+      var ll = 0.0;
+      var batchIdx = nextBatchIdx.getAndIncrement();
+      while (batchIdx < numBatches) {
+        if (verbose && (printFreq == 0 || batchIdx % printFreq == 0)) {
+          Logger.logs("Computing gradient on " + (batchIdx * batchSize) + " (batch " + batchIdx + " / " + numBatches + ")");
+        }
+        val exs = trainExs.slice(batchIdx * batchSize, Math.min(trainExs.size, (batchIdx + 1) * batchSize));
+        threadGradient.clear();
+        for (ex <- exs) {
+          Metrics.beginDoc("train", ex);
+          ll += computer.accumulateGradientAndComputeObjective(ex, weights, threadGradient);
+          Metrics.endDoc();
+        }
+        weights.applyGradientUpdate(threadGradient, exs.size);
+        computer.weightsUpdateCallback(weights);
+        batchIdx = nextBatchIdx.getAndIncrement();
+      }
+      ll
+    });
+    // Inference and updates are interleaved across threads, so just count it all as inference
+    addInferenceTime(System.nanoTime() - nanoTime);
+    lls.foldLeft(0.0)(_ + _)
+  }
+  
   //////////////
   // ADADELTA //
   //////////////
@@ -439,6 +616,7 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
       val startTime = System.nanoTime();
       inferenceNanos = 0;
       adagradNanos = 0;
+      Metrics.beginIteration(i);
       if (verbose) Logger.startTrack("Computing gradient");
       var cumulativeObjective = 0.0
       var currIdx = 0;
@@ -496,7 +674,7 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
       weights(i) += step
       i += 1
     }
-    adagradNanos += (System.nanoTime() - nanoTime);
+    addAdagradTime(System.nanoTime() - nanoTime);
     objective
   }
   
@@ -523,6 +701,7 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
       val startTime = System.nanoTime();
       inferenceNanos = 0;
       adagradNanos = 0;
+      Metrics.beginIteration(i);
       if (verbose) Logger.startTrack("Computing gradient");
       var cumulativeObjective = 0.0
       var currIdx = 0;
@@ -570,9 +749,11 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
     var nanoTime = System.nanoTime();
     var objective = 0.0
     for (ex <- exs) {
+      Metrics.beginDoc("train", ex);
       objective += computer.accumulateGradientAndComputeObjective(ex, weights, reusableGradientArray);
+      Metrics.endDoc();
     }
-    inferenceNanos += (System.nanoTime() - nanoTime);
+    addInferenceTime(System.nanoTime() - nanoTime);
     nanoTime = System.nanoTime();
     // Precompute this so dividing by batch size is a multiply and not a divide
     var i = 0;
@@ -581,7 +762,7 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
       weights(i) += pastStep(i)
       i += 1
     }
-    adagradNanos += (System.nanoTime() - nanoTime);
+    addAdagradTime(System.nanoTime() - nanoTime);
     objective
   }
   
@@ -634,7 +815,7 @@ class GeneralTrainer2[T](val parallel: Boolean = false) {
 
 object GeneralTrainer2 {
   
-  def addToGradient(arr: Array[Int], scale: Double, gradient: IntCounter) {
+  def addToGradient(arr: Array[Int], scale: Double, gradient: SparseGradient) {
     var i = 0
     while (i < arr.size) {
       gradient.incrementCount(arr(i), scale)
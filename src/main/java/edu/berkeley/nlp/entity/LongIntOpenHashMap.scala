@@ -0,0 +1,94 @@
+package edu.berkeley.nlp.entity
+
+/**
+ * Open-addressing (linear probing) hash map from primitive longs to primitive ints,
+ * so that lookups in hot loops don't box keys or allocate entries. Long.MinValue is
+ * reserved to mark empty slots and can't be used as a key. Not thread-safe.
+ */
+class LongIntOpenHashMap(initialCapacity: Int = 1024) {
+  private var keys = new Array[Long](LongIntOpenHashMap.roundUpToPowerOfTwo(initialCapacity));
+  private var values = new Array[Int](keys.size);
+  java.util.Arrays.fill(keys, LongIntOpenHashMap.EmptyKey);
+  private var numEntries = 0;
+
+  def size = numEntries;
+
+  private def slotFor(key: Long, keyArr: Array[Long]) = {
+    val mask = keyArr.size - 1;
+    var slot = LongIntOpenHashMap.hash(key) & mask;
+    while (keyArr(slot) != LongIntOpenHashMap.EmptyKey && keyArr(slot) != key) {
+      slot = (slot + 1) & mask;
+    }
+    slot;
+  }
+
+  /**
+   * Returns the value stored for key, or defaultValue if there is none.
+   */
+  def get(key: Long, defaultValue: Int): Int = {
+    val slot = slotFor(key, keys);
+    if (keys(slot) == key) values(slot) else defaultValue;
+  }
+
+  def contains(key: Long) = keys(slotFor(key, keys)) == key;
+
+  def put(key: Long, value: Int) {
+    require(key != LongIntOpenHashMap.EmptyKey, "Can't use " + key + " as a key");
+    val slot = slotFor(key, keys);
+    if (keys(slot) != key) {
+      keys(slot) = key;
+      numEntries += 1;
+    }
+    values(slot) = value;
+    // Keep the load factor at or below 1/2 so probe sequences stay short
+    if (numEntries * 2 > keys.size) {
+      rehash(keys.size * 2);
+    }
+  }
+
+  private def rehash(newCapacity: Int) {
+    val oldKeys = keys;
+    val oldValues = values;
+    keys = new Array[Long](newCapacity);
+    java.util.Arrays.fill(keys, LongIntOpenHashMap.EmptyKey);
+    values = new Array[Int](newCapacity);
+    var i = 0;
+    while (i < oldKeys.size) {
+      if (oldKeys(i) != LongIntOpenHashMap.EmptyKey) {
+        val slot = slotFor(oldKeys(i), keys);
+        keys(slot) = oldKeys(i);
+        values(slot) = oldValues(i);
+      }
+      i += 1;
+    }
+  }
+
+  def clear() {
+    java.util.Arrays.fill(keys, LongIntOpenHashMap.EmptyKey);
+    numEntries = 0;
+  }
+}
+
+object LongIntOpenHashMap {
+  val EmptyKey = Long.MinValue;
+
+  def roundUpToPowerOfTwo(n: Int) = {
+    var capacity = 2;
+    while (capacity < n) {
+      capacity *= 2;
+    }
+    capacity;
+  }
+
+  // Mixes the bits of the key (the finalizer from MurmurHash3) so that keys packed
+  // from small integers don't all collide in the low bits
+  def hash(key: Long): Int = {
+    var h = key;
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+    h.toInt;
+  }
+}
@@ -0,0 +1,383 @@
+package edu.berkeley.nlp.entity
+
+import java.io.PrintWriter
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.DoubleAdder
+import java.util.concurrent.atomic.LongAdder
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+import edu.berkeley.nlp.entity.coref.DocumentGraph
+import edu.berkeley.nlp.entity.joint.JointDoc
+import edu.berkeley.nlp.entity.joint.JointDocACE
+import edu.berkeley.nlp.futile.fig.basic.IOUtils
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * Counters, timers and histograms for the hot paths of training and decoding:
+ * featurization, coref pruning, factor graph construction, the phases of BP, gradient
+ * computation, weight updates and document reading and writing.
+ *
+ * Everything is off unless configure() is given somewhere to export to (Driver's
+ * -metricsPath and -metricsPort); until then a timer costs one check of a boolean and
+ * never reads the clock. When on:
+ * - metricsPath gets JSON lines: one per document each time it's preprocessed, trained on
+ *   or decoded (with the time it spent in each timer), one per training iteration (with
+ *   what each timer and counter accumulated during it), and a summary at the end.
+ * - metricsPort serves the running totals in the Prometheus text format at
+ *   http://localhost:metricsPort/metrics; AnnotationServer serves them on its own port too.
+ *
+ * Metrics are safe to update from any number of threads. Per-document numbers come from a
+ * trace on the current thread, started by beginDoc and written out by endDoc.
+ */
+object Metrics {
+
+  // Set once by configure, before any work starts
+  var enabled = false;
+
+  private val TimerBucketsSeconds = Array(0.0001, 0.001, 0.01, 0.1, 1.0, 10.0, 100.0);
+
+  abstract class Metric(val name: String, val help: String) {
+    def renderPrometheus(out: StringBuilder);
+  }
+
+  class Counter(name: String, help: String) extends Metric(name, help) {
+    private val total = new LongAdder;
+
+    def inc(n: Long = 1) {
+      if (enabled) {
+        total.add(n);
+        val trace = traces.get;
+        if (trace != null) {
+          trace.counts.put(name, trace.counts.getOrElse(name, 0L) + n);
+        }
+      }
+    }
+
+    def get = total.sum;
+
+    def renderPrometheus(out: StringBuilder) {
+      val fullName = "berkeley_entity_" + name + "_total";
+      out ++= "# HELP " + fullName + " " + help + "\n";
+      out ++= "# TYPE " + fullName + " counter\n";
+      out ++= fullName + " " + get + "\n";
+    }
+  }
+
+  /**
+   * Distribution of some quantity per event (e.g. mentions per document), kept as counts
+   * in fixed buckets as Prometheus expects.
+   */
+  class Histogram(name: String, help: String, val bucketBounds: Array[Double]) extends Metric(name, help) {
+    // The last bucket is everything above the largest bound
+    private val bucketCounts = Array.fill(bucketBounds.size + 1)(new LongAdder);
+    private val sum = new DoubleAdder;
+
+    def observe(value: Double) {
+      if (enabled) {
+        var bucketIdx = 0;
+        while (bucketIdx < bucketBounds.size && value > bucketBounds(bucketIdx)) {
+          bucketIdx += 1;
+        }
+        bucketCounts(bucketIdx).increment();
+        sum.add(value);
+      }
+    }
+
+    def count = bucketCounts.foldLeft(0L)(_ + _.sum);
+
+    def getSum = sum.sum;
+
+    def renderPrometheus(out: StringBuilder) {
+      val fullName = "berkeley_entity_" + name;
+      out ++= "# HELP " + fullName + " " + help + "\n";
+      out ++= "# TYPE " + fullName + " histogram\n";
+      var cumulativeCount = 0L;
+      for (i <- 0 until bucketCounts.size) {
+        cumulativeCount += bucketCounts(i).sum;
+        val bound = if (i < bucketBounds.size) bucketBounds(i).toString else "+Inf";
+        out ++= fullName + "_bucket{le=\"" + bound + "\"} " + cumulativeCount + "\n";
+      }
+      out ++= fullName + "_sum " + getSum + "\n";
+      out ++= fullName + "_count " + cumulativeCount + "\n";
+    }
+  }
+
+  /**
+   * Histogram of durations in seconds. In hot loops, use start() and stop() rather than
+   * time(), which allocates a closure even when metrics are off.
+   */
+  class Timer(name: String, help: String) extends Histogram(name + "_seconds", help, TimerBucketsSeconds) {
+    val shortName = name;
+    private val totalNanos = new LongAdder;
+
+    // 0 means not timing, so stop() does nothing
+    def start(): Long = if (enabled) System.nanoTime() else 0L;
+
+    def stop(startNanos: Long) {
+      if (startNanos != 0L) {
+        record(System.nanoTime() - startNanos);
+      }
+    }
+
+    def record(nanos: Long) {
+      if (enabled) {
+        totalNanos.add(nanos);
+        observe(nanos / 1000000000.0);
+        val trace = traces.get;
+        if (trace != null) {
+          trace.addTime(shortName, nanos);
+        }
+      }
+    }
+
+    def time[T](block: => T): T = {
+      val startNanos = start();
+      val result = block;
+      stop(startNanos);
+      result;
+    }
+
+    def getTotalNanos = totalNanos.sum;
+  }
+
+  private val metrics = new ArrayBuffer[Metric];
+
+  private def register[M <: Metric](metric: M): M = {
+    metrics.synchronized {
+      metrics += metric;
+    }
+    metric;
+  }
+
+  def timer(name: String, help: String) = register(new Timer(name, help));
+  def counter(name: String, help: String) = register(new Counter(name, help));
+  def histogram(name: String, help: String, bucketBounds: Array[Double]) = register(new Histogram(name, help, bucketBounds));
+
+  val DocRead = timer("doc_read", "Assembling a document read from CoNLL");
+  val DocWrite = timer("doc_write", "Writing out a document's predictions");
+  val FeaturizeCoref = timer("featurize_coref", "Featurizing a document's unpruned coref arcs");
+  val CorefPrune = timer("coref_prune", "Pruning a document's coref arcs with a coarse model");
+  val FactorGraphBuild = timer("factor_graph_build", "Building a document's joint factor graph (including its NER and linking features)");
+  val BpSetWeights = timer("bp_set_weights", "Setting factor weights and resetting messages before BP");
+  val BpPassMessages = timer("bp_pass_messages", "Passing BP messages on a document");
+  val BpNerBackbone = timer("bp_ner_backbone", "Forward-backward passes over the NER chains (fancy message passing)");
+  val BpAgreement = timer("bp_agreement", "Agreement factor passes (fancy message passing)");
+  val BpDecode = timer("bp_decode", "Decoding a document from its BP marginals");
+  val Gradient = timer("gradient", "Computing one minibatch's gradient");
+  val WeightUpdate = timer("weight_update", "Adagrad weight updates for a minibatch");
+  val DocsDecoded = counter("docs_decoded", "Documents decoded");
+  val DocMentions = histogram("doc_mentions", "Mentions per document factor graph", Array(10.0, 20.0, 50.0, 100.0, 200.0, 500.0, 1000.0));
+
+  /////////////////////
+  // DOCUMENT TRACES //
+  /////////////////////
+
+  private class DocTrace(val stage: String, val docName: String, val iteration: Int, val startNanos: Long) {
+    val nanos = new HashMap[String,Long];
+    val numTimed = new HashMap[String,Int];
+    val counts = new HashMap[String,Long];
+
+    def addTime(timerName: String, timeNanos: Long) {
+      nanos.put(timerName, nanos.getOrElse(timerName, 0L) + timeNanos);
+      numTimed.put(timerName, numTimed.getOrElse(timerName, 0) + 1);
+    }
+  }
+
+  private val traces = new ThreadLocal[DocTrace];
+  @volatile private var currentIteration = -1;
+
+  /**
+   * Starts collecting the time this thread spends on doc until endDoc. stage is e.g.
+   * "train" or "decode"; doc is anything docName can name (other examples aren't traced).
+   */
+  def beginDoc(stage: String, doc: Any) {
+    if (enabled) {
+      val name = docName(doc);
+      if (name != null) {
+        traces.set(new DocTrace(stage, name, currentIteration, System.nanoTime()));
+      }
+    }
+  }
+
+  def endDoc() {
+    if (enabled) {
+      val trace = traces.get;
+      if (trace != null) {
+        traces.remove();
+        val timersJson = trace.nanos.keys.toSeq.sorted.map(timerName => {
+          jsonString(timerName) + ":{\"count\":" + trace.numTimed(timerName) + ",\"millis\":" + (trace.nanos(timerName) / 1000000.0) + "}";
+        });
+        val countsJson = trace.counts.keys.toSeq.sorted.map(counterName => jsonString(counterName) + ":" + trace.counts(counterName));
+        writeJson("{\"event\":\"doc\",\"stage\":" + jsonString(trace.stage) + ",\"doc\":" + jsonString(trace.docName) + ",\"iteration\":" + trace.iteration +
+                  ",\"millis\":" + ((System.nanoTime() - trace.startNanos) / 1000000.0) +
+                  ",\"timers\":{" + timersJson.mkString(",") + "},\"counters\":{" + countsJson.mkString(",") + "}}");
+      }
+    }
+  }
+
+  private def docName(doc: Any): String = doc match {
+    case doc: ConllDoc => doc.printableDocName;
+    case doc: JointDoc => doc.rawDoc.printableDocName;
+    case doc: JointDocACE => doc.rawDoc.printableDocName;
+    case doc: DocumentGraph => doc.corefDoc.rawDoc.printableDocName;
+    case name: String => name;
+    case _ => null;
+  }
+
+  ////////////////
+  // ITERATIONS //
+  ////////////////
+
+  // Totals as of the start of the current iteration, by metric name
+  private val iterationStartTotals = new HashMap[String,(Long,Double)];
+  private var iterationStartNanos = 0L;
+  // Above 0 while several trainers run at once (e.g. parallel coref pruner folds). The totals
+  // are shared, so their iterations would overlap and mix; none are reported then
+  private val numIterationSuspensions = new AtomicInteger(0);
+
+  def suspendIterations() {
+    numIterationSuspensions.incrementAndGet();
+  }
+
+  def resumeIterations() {
+    numIterationSuspensions.decrementAndGet();
+  }
+
+  def beginIteration(iteration: Int) = synchronized {
+    if (enabled && numIterationSuspensions.get == 0) {
+      currentIteration = iteration;
+      iterationStartNanos = System.nanoTime();
+      iterationStartTotals.clear();
+      for (metric <- allMetrics) {
+        iterationStartTotals.put(metric.name, totals(metric));
+      }
+    }
+  }
+
+  /**
+   * Writes what every metric accumulated since beginIteration.
+   */
+  def endIteration(iteration: Int) = synchronized {
+    if (enabled && numIterationSuspensions.get == 0 && currentIteration != -1) {
+      writeJson("{\"event\":\"iteration\",\"iteration\":" + iteration + ",\"millis\":" + ((System.nanoTime() - iterationStartNanos) / 1000000.0) + "," +
+                renderTotalsJson(iterationStartTotals) + "}");
+      currentIteration = -1;
+    }
+  }
+
+  // (count, sum) for histograms and timers (whose sum is in nanoseconds), (total, 0) for counters
+  private def totals(metric: Metric): (Long,Double) = metric match {
+    case timer: Timer => (timer.count, timer.getTotalNanos.toDouble);
+    case histogram: Histogram => (histogram.count, histogram.getSum);
+    case counter: Counter => (counter.get, 0.0);
+  }
+
+  private def renderTotalsJson(since: HashMap[String,(Long,Double)]) = {
+    val timersJson = new ArrayBuffer[String];
+    val histogramsJson = new ArrayBuffer[String];
+    val countersJson = new ArrayBuffer[String];
+    for (metric <- allMetrics) {
+      val (count, sum) = totals(metric);
+      val (startCount, startSum) = since.getOrElse(metric.name, (0L, 0.0));
+      if (count > startCount) {
+        metric match {
+          case timer: Timer => timersJson += jsonString(timer.shortName) + ":{\"count\":" + (count - startCount) + ",\"millis\":" + ((sum - startSum) / 1000000.0) + "}";
+          case histogram: Histogram => histogramsJson += jsonString(histogram.name) + ":{\"count\":" + (count - startCount) + ",\"sum\":" + (sum - startSum) + "}";
+          case counter: Counter => countersJson += jsonString(counter.name) + ":" + (count - startCount);
+        }
+      }
+    }
+    "\"timers\":{" + timersJson.mkString(",") + "},\"histograms\":{" + histogramsJson.mkString(",") + "},\"counters\":{" + countersJson.mkString(",") + "}";
+  }
+
+  ////////////
+  // EXPORT //
+  ////////////
+
+  private var jsonWriter: PrintWriter = null;
+  private var prometheusServer: HttpServer = null;
+
+  private def allMetrics = metrics.synchronized { metrics.toList };
+
+  /**
+   * Turns metrics on if jsonPath is nonempty or prometheusPort isn't -1.
+   */
+  def configure(jsonPath: String, prometheusPort: Int) {
+    if (jsonPath != "") {
+      jsonWriter = IOUtils.openOutHard(jsonPath);
+    }
+    if (prometheusPort != -1) {
+      prometheusServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress, prometheusPort), 0);
+      prometheusServer.createContext("/metrics", PrometheusHandler);
+      prometheusServer.start();
+      Logger.logss("Serving metrics on http://localhost:" + prometheusPort + "/metrics");
+    }
+    enabled = jsonWriter != null || prometheusServer != null;
+  }
+
+  /**
+   * Writes the summary line and stops exporting.
+   */
+  def close() {
+    if (enabled) {
+      writeJson("{\"event\":\"summary\"," + renderTotalsJson(new HashMap[String,(Long,Double)]) + "}");
+      enabled = false;
+    }
+    if (jsonWriter != null) {
+      jsonWriter.close();
+      jsonWriter = null;
+    }
+    if (prometheusServer != null) {
+      prometheusServer.stop(0);
+      prometheusServer = null;
+    }
+  }
+
+  private def writeJson(line: String) {
+    if (jsonWriter != null) {
+      jsonWriter.synchronized {
+        jsonWriter.println(line);
+        jsonWriter.flush();
+      }
+    }
+  }
+
+  def renderPrometheus: String = {
+    val out = new StringBuilder;
+    allMetrics.foreach(_.renderPrometheus(out));
+    out.toString;
+  }
+
+  object PrometheusHandler extends HttpHandler {
+    def handle(exchange: HttpExchange) {
+      val bytes = renderPrometheus.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders.set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, bytes.length);
+      val out = exchange.getResponseBody;
+      out.write(bytes);
+      out.close();
+    }
+  }
+
+  def jsonString(str: String) = {
+    val result = new StringBuilder("\"");
+    for (c <- str) {
+      c match {
+        case '"' => result ++= "\\\"";
+        case '\\' => result ++= "\\\\";
+        case '\n' => result ++= "\\n";
+        case '\t' => result ++= "\\t";
+        case c if c < ' ' => result ++= "\\u%04x".format(c.toInt);
+        case c => result += c;
+      }
+    }
+    result += '"';
+    result.toString;
+  }
+}
@@ -0,0 +1,80 @@
+package edu.berkeley.nlp.entity
+
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+
+/**
+ * Runs tasks on a fixed pool of worker threads but hands each result to its consumer on
+ * the submitting thread, in submission order: finished results wait in a reorder buffer
+ * until everything submitted before them has been consumed. At most maxPending tasks are
+ * outstanding, beyond which submit blocks on the oldest one, so a streaming producer
+ * can't run ahead of the workers and buffer its whole input. With one thread, tasks just
+ * run inline. Consumers therefore never run concurrently and needn't be thread-safe.
+ */
+class OrderedParallelExecutor[T](val numThreads: Int, val maxPending: Int) {
+  require(numThreads >= 1 && maxPending >= 1);
+
+  private val pool = if (numThreads > 1) {
+    Executors.newFixedThreadPool(numThreads, new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val thread = new Thread(r);
+        // Don't keep the JVM alive if the caller dies without shutting us down
+        thread.setDaemon(true);
+        thread;
+      }
+    });
+  } else {
+    null;
+  }
+  private val pending = new ArrayDeque[(Future[T], T => Unit)];
+
+  def this(numThreads: Int) = this(numThreads, numThreads * 4);
+
+  def submit(task: => T, consumer: T => Unit) {
+    if (pool == null) {
+      consumer(task);
+    } else {
+      pending.addLast(pool.submit(new Callable[T] { def call() = task }) -> consumer);
+      while (!pending.isEmpty && (pending.size > maxPending || pending.peekFirst._1.isDone)) {
+        consumeOldest();
+      }
+    }
+  }
+
+  private def consumeOldest() {
+    val (future, consumer) = pending.removeFirst();
+    val result = try {
+      future.get;
+    } catch {
+      case e: ExecutionException => throw new RuntimeException(e.getCause);
+    }
+    consumer(result);
+  }
+
+  /**
+   * Waits for every outstanding task, consumes the results, and stops the workers.
+   */
+  def finish() {
+    try {
+      while (!pending.isEmpty) {
+        consumeOldest();
+      }
+    } finally {
+      shutdown();
+    }
+  }
+
+  /**
+   * Stops the workers, abandoning any outstanding tasks; safe to call more than once.
+   */
+  def shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+    pending.clear();
+  }
+}
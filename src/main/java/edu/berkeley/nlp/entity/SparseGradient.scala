@@ -0,0 +1,104 @@
+package edu.berkeley.nlp.entity
+
+/**
+ * Sparse gradient accumulator: an open-addressing (linear probing) map from feature
+ * indices to primitive doubles. Replaces IntCounter for minibatch gradients so that
+ * incrementing, merging, and applying them doesn't box or allocate per entry. Feature
+ * indices must be nonnegative. Not thread-safe; parallel training keeps one per thread.
+ */
+class SparseGradient(initialCapacity: Int = 64) {
+  private var keys = new Array[Int](LongIntOpenHashMap.roundUpToPowerOfTwo(initialCapacity));
+  private var values = new Array[Double](keys.size);
+  java.util.Arrays.fill(keys, SparseGradient.EmptyKey);
+  private var numEntries = 0;
+
+  def size = numEntries;
+
+  private def slotFor(key: Int, keyArr: Array[Int]) = {
+    val mask = keyArr.size - 1;
+    var slot = LongIntOpenHashMap.hash(key) & mask;
+    while (keyArr(slot) != SparseGradient.EmptyKey && keyArr(slot) != key) {
+      slot = (slot + 1) & mask;
+    }
+    slot;
+  }
+
+  def getCount(key: Int): Double = {
+    val slot = slotFor(key, keys);
+    if (keys(slot) == key) values(slot) else 0.0;
+  }
+
+  def incrementCount(key: Int, increment: Double) {
+    require(key >= 0, "Bad feature index: " + key);
+    val slot = slotFor(key, keys);
+    if (keys(slot) != key) {
+      keys(slot) = key;
+      values(slot) = increment;
+      numEntries += 1;
+      // Keep the load factor at or below 1/2 so probe sequences stay short
+      if (numEntries * 2 > keys.size) {
+        rehash(keys.size * 2);
+      }
+    } else {
+      values(slot) += increment;
+    }
+  }
+
+  def incrementAll(other: SparseGradient) {
+    var slot = 0;
+    while (slot < other.keys.size) {
+      if (other.keys(slot) != SparseGradient.EmptyKey) {
+        incrementCount(other.keys(slot), other.values(slot));
+      }
+      slot += 1;
+    }
+  }
+
+  /**
+   * Calls fcn(feature index, value) on every entry, in no particular order.
+   */
+  def foreachEntry(fcn: (Int, Double) => Unit) {
+    var slot = 0;
+    while (slot < keys.size) {
+      if (keys(slot) != SparseGradient.EmptyKey) {
+        fcn(keys(slot), values(slot));
+      }
+      slot += 1;
+    }
+  }
+
+  private def rehash(newCapacity: Int) {
+    val oldKeys = keys;
+    val oldValues = values;
+    keys = new Array[Int](newCapacity);
+    java.util.Arrays.fill(keys, SparseGradient.EmptyKey);
+    values = new Array[Double](newCapacity);
+    var i = 0;
+    while (i < oldKeys.size) {
+      if (oldKeys(i) != SparseGradient.EmptyKey) {
+        val slot = slotFor(oldKeys(i), keys);
+        keys(slot) = oldKeys(i);
+        values(slot) = oldValues(i);
+      }
+      i += 1;
+    }
+  }
+
+  /**
+   * Empties the gradient but keeps its capacity so that it can be reused across minibatches.
+   */
+  def clear() {
+    java.util.Arrays.fill(keys, SparseGradient.EmptyKey);
+    numEntries = 0;
+  }
+
+  override def toString = {
+    val sb = new StringBuilder("[");
+    foreachEntry((key, value) => sb.append((if (sb.size > 1) ", " else "") + key + " : " + value));
+    sb.append("]").toString;
+  }
+}
+
+object SparseGradient {
+  val EmptyKey = -1;
+}
@@ -234,7 +234,7 @@ object WordNetInterfacer {
   
   var wniCached: Option[WordNetInterfacer] = None;
   
-  def getCachedInstance = {
+  def getCachedInstance = synchronized {
     if (!wniCached.isDefined) {
       wniCached = Some(new WordNetInterfacer(Driver.wordNetPath));
     }
@@ -1,6 +1,6 @@
 package edu.berkeley.nlp.entity.bp
 
-import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.entity.Driver
 import edu.berkeley.nlp.math.SloppyMath
 
 trait ConstantFactor[T] extends Factor {
@@ -11,59 +11,45 @@ trait ConstantFactor[T] extends Factor {
   def getNodes: Seq[Node[T]];
   def factorValue(variableSetting: Array[Int]): Double;
   
-  // Also receiveMessage, sendMessages, clearAllMessages, computeFactorNormalizer
+  // Also sendMessages, clearAllMessages, computeFactorNormalizer
   
   // Don't need any of these methods since it's constant
   
   def setWeights(newWeights: Array[Float]) {}
   def getAllAssociatedFeatures(): Array[String] = new Array[String](0);
+  def getIndexedFeatures(): Array[Int] = new Array[Int](0);
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {}
 }
 
 class ConstantUnaryFactor[T](val node: Node[T],
                              val factorValues: Array[Double]) extends ConstantFactor[T] {
-  node.registerFactor(this);
-  var receivedNodeMessage: Array[Double] = null;
-  var sentNodeMessage: Array[Double] = new Array[Double](node.domain.size);
+  private val nodeSlot = node.registerFactor(this);
   
   def getNodes = Seq(node);
   
   def factorValue(variableSetting: Array[Int]): Double = factorValues(variableSetting(0));
   
   def computeFactorNormalizer = {
+    val messages = node.messages;
+    val nodeIn = node.sentMessageOffset(nodeSlot);
     var normalizer = 0.0;
     for (i <- 0 until node.domain.size) {
-      normalizer += factorValues(i) * receivedNodeMessage(i);
+      normalizer += factorValues(i) * messages(nodeIn + i);
     }
     normalizer;
   }
   
   def clearAllMessages() {
-    receivedNodeMessage = null;
-    sentNodeMessage = null;
-  }
-  
-  def receiveMessage(incNode: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message));
-    require(message.size == incNode.domain.size);
-    if (incNode == node) {
-      receivedNodeMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
   }
   
   def sendMessages() {
-    if (sentNodeMessage == null) {
-      sentNodeMessage = new Array[Double](node.domain.size);
-    }
-    for (i <- 0 until node.domain.size) {
-      sentNodeMessage(i) = factorValues(i);
-    }
+    val messages = node.messages;
+    val nodeOut = node.receivedMessageOffset(nodeSlot);
+    System.arraycopy(factorValues, 0, messages, nodeOut, node.domain.size);
     if (normalize) {
-      GUtil.normalizeiHard(sentNodeMessage);
+      MessageStore.normalizeiHard(messages, nodeOut, node.domain.size);
     }
-    node.receiveMessage(this, sentNodeMessage);
+    node.receiveMessage(nodeSlot);
   }
 }
 
@@ -71,25 +57,23 @@ class ConstantBinaryFactor[T](val nodeOne: Node[T],
                               val nodeTwo: Node[T],
                               val factorValues: Array[Array[Double]]) extends ConstantFactor[T] {
   
-  nodeOne.registerFactor(this);
-  nodeTwo.registerFactor(this);
-  
-  var receivedNodeOneMessage: Array[Double] = null;
-  var receivedNodeTwoMessage: Array[Double] = null;
-  var sentNodeOneMessage: Array[Double] = null;
-  var sentNodeTwoMessage: Array[Double] = null;
+  private val nodeOneSlot = nodeOne.registerFactor(this);
+  private val nodeTwoSlot = nodeTwo.registerFactor(this);
   
   def getNodes = Seq(nodeOne, nodeTwo);
   
   def factorValue(variableSetting: Array[Int]): Double = factorValues(variableSetting(0))(variableSetting(1));
   
   def computeFactorNormalizer = {
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
     var normalizer = 0.0;
     for (i <- 0 until nodeOne.domain.size) {
       // While loop for the inner loop here
       var j = 0;
       while (j < nodeTwo.domain.size) {
-        normalizer += factorValues(i)(j) * receivedNodeOneMessage(i) * receivedNodeTwoMessage(j);
+        normalizer += factorValues(i)(j) * messages(nodeOneIn + i) * messages(nodeTwoIn + j);
         j += 1;
       }
     }
@@ -97,54 +81,33 @@ class ConstantBinaryFactor[T](val nodeOne: Node[T],
   }
   
   def clearAllMessages() {
-    receivedNodeOneMessage = null;
-    receivedNodeTwoMessage = null;
-    sentNodeOneMessage = null;
-    sentNodeTwoMessage = null;
-  }
-  
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message));
-    require(message.size == node.domain.size);
-    if (node == nodeOne) {
-      receivedNodeOneMessage = message;
-    } else if (node == nodeTwo) {
-      receivedNodeTwoMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
   }
   
   def sendMessages() {
-    if (sentNodeOneMessage == null) {
-      sentNodeOneMessage = new Array[Double](nodeOne.domain.size);
-    }
-    if (sentNodeTwoMessage == null) {
-      sentNodeTwoMessage = new Array[Double](nodeTwo.domain.size);
-    }
-    for (i <- 0 until sentNodeOneMessage.length) {
-      sentNodeOneMessage(i) = 0;
-    }
-    for (i <- 0 until sentNodeTwoMessage.length) {
-      sentNodeTwoMessage(i) = 0;
-    }
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeOneOut = nodeOne.receivedMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
+    val nodeTwoOut = nodeTwo.receivedMessageOffset(nodeTwoSlot);
+    java.util.Arrays.fill(messages, nodeOneOut, nodeOneOut + nodeOne.domain.size, 0.0);
+    java.util.Arrays.fill(messages, nodeTwoOut, nodeTwoOut + nodeTwo.domain.size, 0.0);
     
     for (i <- 0 until nodeOne.domain.size) {
       // While loop for the inner loop here
       var j = 0;
       while (j < nodeTwo.domain.size) {
         val currFactorValue = factorValues(i)(j);
-        sentNodeOneMessage(i) += currFactorValue * receivedNodeTwoMessage(j);
-        sentNodeTwoMessage(j) += currFactorValue * receivedNodeOneMessage(i);
+        messages(nodeOneOut + i) += currFactorValue * messages(nodeTwoIn + j);
+        messages(nodeTwoOut + j) += currFactorValue * messages(nodeOneIn + i);
         j += 1;
       }
     }
     if (normalize) {
-      GUtil.normalizeiHard(sentNodeOneMessage);
-      GUtil.normalizeiHard(sentNodeTwoMessage);
+      MessageStore.normalizeiHard(messages, nodeOneOut, nodeOne.domain.size);
+      MessageStore.normalizeiHard(messages, nodeTwoOut, nodeTwo.domain.size);
     }
-    nodeOne.receiveMessage(this, sentNodeOneMessage);
-    nodeTwo.receiveMessage(this, sentNodeTwoMessage);
+    nodeOne.receiveMessage(nodeOneSlot);
+    nodeTwo.receiveMessage(nodeTwoSlot);
   }
 }
 
@@ -152,26 +115,31 @@ class ConstantBinaryFactor[T](val nodeOne: Node[T],
 class ConstantTernaryFactor[T](val nodes: Seq[Node[T]],
                                val factorValues: Array[Array[Array[Double]]]) extends ConstantFactor[T] {
   
-  val receivedNodeMessages = new Array[Array[Double]](nodes.size);
-  val sentNodeMessages = new Array[Array[Double]](nodes.size);
+  private val nodeSlots = new Array[Int](nodes.size);
   for (i <- 0 until nodes.size) {
-    nodes(i).registerFactor(this);
-    receivedNodeMessages(i) = null;
-    sentNodeMessages(i) = new Array[Double](nodes(i).domain.size);
+    nodeSlots(i) = nodes(i).registerFactor(this);
   }
   
   def getNodes = nodes;
   
   def factorValue(variableSetting: Array[Int]): Double = factorValues(variableSetting(0))(variableSetting(1))(variableSetting(2));
   
+  // Where the message from nodes(i) to this factor lives
+  private def nodeIn(i: Int) = nodes(i).sentMessageOffset(nodeSlots(i));
+  
+  // Where the message from this factor to nodes(i) lives
+  private def nodeOut(i: Int) = nodes(i).receivedMessageOffset(nodeSlots(i));
+  
   def computeFactorNormalizer = {
+    val messages = nodes(0).messages;
+    val nodeIns = Array.tabulate(nodes.size)(nodeIn(_));
     var normalizer = 0.0;
     val combIterator = new CombinatorialIterator(nodes.map(_.domain.size).toArray);
     while (combIterator.hasNext) {
       val combination = combIterator.next;
       var currVal = factorValue(combination);
       for (i <- 0 until combination.size) {
-        currVal *= receivedNodeMessages(i)(combination(i));
+        currVal *= messages(nodeIns(i) + combination(i));
       }
       normalizer += currVal;
     }
@@ -182,26 +150,28 @@ class ConstantTernaryFactor[T](val nodes: Seq[Node[T]],
     throw new RuntimeException("Unimplemented");
   }
   
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message))
-    require(!message.contains(0.0));
-    require(message.size == node.domain.size);
-    if (nodes.contains(node)) {
-      receivedNodeMessages(nodes.indexOf(node)) = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
-  }
-  
   def sendMessages() {
     sendMessagesLogSpace();
   }
   
+  private def checkReceivedMessages() {
+    val messages = nodes(0).messages;
+    for (i <- 0 until nodes.size) {
+      require(!MessageStore.contains(messages, nodeIn(i), nodes(i).domain.size, 0.0));
+    }
+  }
+  
   def sendMessagesLogSpace() {
-    for (i <- 0 until sentNodeMessages.size) {
-      for (j <- 0 until sentNodeMessages(i).size) {
-        sentNodeMessages(i)(j) = Double.NegativeInfinity;
-      }
+    if (Driver.checkBpMessages) checkReceivedMessages();
+    val messages = nodes(0).messages;
+    val in0 = nodeIn(0);
+    val in1 = nodeIn(1);
+    val in2 = nodeIn(2);
+    val out0 = nodeOut(0);
+    val out1 = nodeOut(1);
+    val out2 = nodeOut(2);
+    for (i <- 0 until nodes.size) {
+      java.util.Arrays.fill(messages, nodeOut(i), nodeOut(i) + nodes(i).domain.size, Double.NegativeInfinity);
     }
     for (i <- 0 until nodes(0).domain.size) {
       for (j <- 0 until nodes(1).domain.size) {
@@ -210,27 +180,39 @@ class ConstantTernaryFactor[T](val nodes: Seq[Node[T]],
         while (k < nodes(2).domain.size) {
           val currFactorValue = factorValues(i)(j)(k);
           require(currFactorValue != 0.0, factorValues.map(_.map(_.toSeq).toSeq).toSeq);
-          sentNodeMessages(0)(i) = SloppyMath.logAdd(sentNodeMessages(0)(i), Math.log(currFactorValue) + Math.log(receivedNodeMessages(1)(j)) + Math.log(receivedNodeMessages(2)(k)));
-          sentNodeMessages(1)(j) = SloppyMath.logAdd(sentNodeMessages(1)(j), Math.log(currFactorValue) + Math.log(receivedNodeMessages(0)(i)) + Math.log(receivedNodeMessages(2)(k)));
-          sentNodeMessages(2)(k) = SloppyMath.logAdd(sentNodeMessages(2)(k), Math.log(currFactorValue) + Math.log(receivedNodeMessages(0)(i)) + Math.log(receivedNodeMessages(1)(j)));
+          messages(out0 + i) = SloppyMath.logAdd(messages(out0 + i), Math.log(currFactorValue) + Math.log(messages(in1 + j)) + Math.log(messages(in2 + k)));
+          messages(out1 + j) = SloppyMath.logAdd(messages(out1 + j), Math.log(currFactorValue) + Math.log(messages(in0 + i)) + Math.log(messages(in2 + k)));
+          messages(out2 + k) = SloppyMath.logAdd(messages(out2 + k), Math.log(currFactorValue) + Math.log(messages(in0 + i)) + Math.log(messages(in1 + j)));
           k += 1;
         }
       }
     }
-    for (i <- 0 until sentNodeMessages.size) {
+    for (i <- 0 until nodes.size) {
+      val out = nodeOut(i);
+      val size = nodes(i).domain.size;
       if (normalize) {
-        GUtil.logNormalizei(sentNodeMessages(i));
+        MessageStore.logNormalizei(messages, out, size);
       }
-      sentNodeMessages(i) = sentNodeMessages(i).map(Math.exp(_));
-      nodes(i).receiveMessage(this, sentNodeMessages(i));
+      var j = out;
+      while (j < out + size) {
+        messages(j) = Math.exp(messages(j));
+        j += 1;
+      }
+      nodes(i).receiveMessage(nodeSlots(i));
     }
   }
   
   def sendMessagesRealSpace() {
-    for (i <- 0 until sentNodeMessages.size) {
-      for (j <- 0 until sentNodeMessages(i).size) {
-        sentNodeMessages(i)(j) = 0;
-      }
+    if (Driver.checkBpMessages) checkReceivedMessages();
+    val messages = nodes(0).messages;
+    val in0 = nodeIn(0);
+    val in1 = nodeIn(1);
+    val in2 = nodeIn(2);
+    val out0 = nodeOut(0);
+    val out1 = nodeOut(1);
+    val out2 = nodeOut(2);
+    for (i <- 0 until nodes.size) {
+      java.util.Arrays.fill(messages, nodeOut(i), nodeOut(i) + nodes(i).domain.size, 0.0);
     }
     for (i <- 0 until nodes(0).domain.size) {
       for (j <- 0 until nodes(1).domain.size) {
@@ -238,19 +220,19 @@ class ConstantTernaryFactor[T](val nodes: Seq[Node[T]],
         var k = 0;
         while (k < nodes(2).domain.size) {
           val currFactorValue = factorValues(i)(j)(k);
-          sentNodeMessages(0)(i) += currFactorValue * receivedNodeMessages(1)(j) * receivedNodeMessages(2)(k);
-          sentNodeMessages(1)(j) += currFactorValue * receivedNodeMessages(0)(i) * receivedNodeMessages(2)(k);
-          sentNodeMessages(2)(k) += currFactorValue * receivedNodeMessages(0)(i) * receivedNodeMessages(1)(j);
+          messages(out0 + i) += currFactorValue * messages(in1 + j) * messages(in2 + k);
+          messages(out1 + j) += currFactorValue * messages(in0 + i) * messages(in2 + k);
+          messages(out2 + k) += currFactorValue * messages(in0 + i) * messages(in1 + j);
           k += 1;
         }
       }
     }
-    for (i <- 0 until sentNodeMessages.size) {
+    for (i <- 0 until nodes.size) {
       if (normalize) {
-        GUtil.normalizeiHard(sentNodeMessages(i));
+        MessageStore.normalizeiHard(messages, nodeOut(i), nodes(i).domain.size);
       }
-      require(!sentNodeMessages(i).contains(0.0));
-      nodes(i).receiveMessage(this, sentNodeMessages(i));
+      require(!MessageStore.contains(messages, nodeOut(i), nodes(i).domain.size, 0.0));
+      nodes(i).receiveMessage(nodeSlots(i));
     }
   }
 }
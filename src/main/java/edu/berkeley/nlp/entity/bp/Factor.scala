@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.entity.bp
 
+import edu.berkeley.nlp.entity.Driver
 import edu.berkeley.nlp.entity.GUtil
 import edu.berkeley.nlp.futile.util.Logger
 
@@ -9,12 +10,13 @@ trait Factor {
   
   def clearAllMessages();
   
-  def receiveMessage(node: Node[_], message: Array[Double]);
-  
   def sendMessages();
   
   def getAllAssociatedFeatures(): Array[String];
   
+  // Indices of every weight the factor's potentials depend on, possibly with repeats
+  def getIndexedFeatures(): Array[Int];
+  
   def computeFactorNormalizer: Double;
   
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]);
@@ -26,39 +28,20 @@ class AgreementFactor(val nodeOne: Node[String],
                       val indexedFeatureMatrix: Array[Array[Seq[Int]]],
                       val defaultValMatrix: Array[Array[Double]]) extends Factor {
   var cachedWeights: Array[Float] = null;
-  nodeOne.registerFactor(this);
-  nodeTwo.registerFactor(this);
+  private val nodeOneSlot = nodeOne.registerFactor(this);
+  private val nodeTwoSlot = nodeTwo.registerFactor(this);
   
-  var receivedNodeOneMessage: Array[Double] = null;
-  var receivedNodeTwoMessage: Array[Double] = null;
-  var sentNodeOneMessage: Array[Double] = new Array[Double](nodeOne.domain.size);
-  var sentNodeTwoMessage: Array[Double] = new Array[Double](nodeTwo.domain.size);
   
   def setWeights(newWeights: Array[Float]) {
+    // Sent messages live in the nodes' received regions now, which get reinitialized
+    // separately, so there's nothing to zero out here
     this.cachedWeights = newWeights;
-    for (i <- 0 until sentNodeOneMessage.length) {
-      sentNodeOneMessage(i) = 0;
-    }
-    for (i <- 0 until sentNodeTwoMessage.length) {
-      sentNodeTwoMessage(i) = 0;
-    }
   }
   
   def clearAllMessages() {
     throw new RuntimeException("Unimplemented");
   }
   
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message));
-    require(message.size == node.domain.size);
-    if (node == nodeOne) {
-      receivedNodeOneMessage = message;
-    } else if (node == nodeTwo) {
-      receivedNodeTwoMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
-  }
   
   def factorValue(nodeOneValueIdx: Int, nodeTwoValueIdx: Int): Double = {
     var featValue = 1.0;
@@ -73,31 +56,32 @@ class AgreementFactor(val nodeOne: Node[String],
   }
   
   def sendMessages() {
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeOneOut = nodeOne.receivedMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
+    val nodeTwoOut = nodeTwo.receivedMessageOffset(nodeTwoSlot);
     throw new RuntimeException("Need to initialize these from null in case they're cleared");
-    for (i <- 0 until sentNodeOneMessage.length) {
-      sentNodeOneMessage(i) = 0;
-    }
-    for (i <- 0 until sentNodeTwoMessage.length) {
-      sentNodeTwoMessage(i) = 0;
-    }
+    java.util.Arrays.fill(messages, nodeOneOut, nodeOneOut + nodeOne.domain.size, 0.0);
+    java.util.Arrays.fill(messages, nodeTwoOut, nodeTwoOut + nodeTwo.domain.size, 0.0);
     
     for (i <- 0 until nodeOne.domain.size) {
       // While loop for the inner loop here
       var j = 0;
       while (j < nodeTwo.domain.size) {
         val currFactorValue = factorValue(i, j);
-        sentNodeOneMessage(i) += currFactorValue * receivedNodeTwoMessage(j);
-        sentNodeTwoMessage(j) += currFactorValue * receivedNodeOneMessage(i);
+        messages(nodeOneOut + i) += currFactorValue * messages(nodeTwoIn + j);
+        messages(nodeTwoOut + j) += currFactorValue * messages(nodeOneIn + i);
         j += 1;
       }
     }
-    GUtil.normalizeiHard(sentNodeOneMessage);
-    GUtil.normalizeiHard(sentNodeTwoMessage);
+    MessageStore.normalizeiHard(messages, nodeOneOut, nodeOne.domain.size);
+    MessageStore.normalizeiHard(messages, nodeTwoOut, nodeTwo.domain.size);
     
-    require(!sentNodeOneMessage.contains(0.0));
-    require(!sentNodeTwoMessage.contains(0.0));
-    nodeOne.receiveMessage(this, sentNodeOneMessage);
-    nodeTwo.receiveMessage(this, sentNodeTwoMessage);
+    require(!MessageStore.contains(messages, nodeOneOut, nodeOne.domain.size, 0.0));
+    require(!MessageStore.contains(messages, nodeTwoOut, nodeTwo.domain.size, 0.0));
+    nodeOne.receiveMessage(nodeOneSlot);
+    nodeTwo.receiveMessage(nodeTwoSlot);
   }
   
   def getAllAssociatedFeatures(): Array[String] = {
@@ -105,11 +89,16 @@ class AgreementFactor(val nodeOne: Node[String],
     featureMatrix.flatMap(_.flatMap((currFeats: Seq[String]) => currFeats)).toSet.toArray;
   }
   
+  def getIndexedFeatures(): Array[Int] = indexedFeatureMatrix.flatMap(_.flatMap(feats => feats)).toArray;
+  
   def computeFactorNormalizer: Double = {
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
     var normalizer = 0.0;
     for (i <- 0 until nodeOne.domain.size) {
       for (j <- 0 until nodeTwo.domain.size) {
-        val value = factorValue(i, j) * receivedNodeOneMessage(i) * receivedNodeTwoMessage(j);
+        val value = factorValue(i, j) * messages(nodeOneIn + i) * messages(nodeTwoIn + j);
         normalizer += value;
       }
     }
@@ -117,11 +106,14 @@ class AgreementFactor(val nodeOne: Node[String],
   }
   
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
     val normalizer = computeFactorNormalizer;
     val multiplier = scale/normalizer;
     for (i <- 0 until nodeOne.domain.size) {
       for (j <- 0 until nodeTwo.domain.size) {
-        val value = factorValue(i, j) * receivedNodeOneMessage(i) * receivedNodeTwoMessage(j);
+        val value = factorValue(i, j) * messages(nodeOneIn + i) * messages(nodeTwoIn + j);
         var featIdx = 0;
         while (featIdx < indexedFeatureMatrix(i)(j).size) {
           gradient(indexedFeatureMatrix(i)(j)(featIdx)) += (multiplier * value).toFloat;
@@ -137,13 +129,9 @@ class BinaryFactorGeneral(val nodeOne: Node[_],
                           val nodeTwo: Node[_],
                           val indexedFeatureMatrix: Array[Array[Array[Int]]]) extends Factor {
   var cachedWeights: Array[Float] = null;
-  nodeOne.registerFactor(this);
-  nodeTwo.registerFactor(this);
+  private val nodeOneSlot = nodeOne.registerFactor(this);
+  private val nodeTwoSlot = nodeTwo.registerFactor(this);
   
-  var receivedNodeOneMessage: Array[Double] = null;
-  var receivedNodeTwoMessage: Array[Double] = null;
-  var sentNodeOneMessage: Array[Double] = null;
-  var sentNodeTwoMessage: Array[Double] = null;
   
   def setWeights(newWeights: Array[Float]) {
     this.cachedWeights = newWeights;
@@ -156,24 +144,9 @@ class BinaryFactorGeneral(val nodeOne: Node[_],
   }
   
   def clearAllMessages() {
-    receivedNodeOneMessage = null;
-    receivedNodeTwoMessage = null;
-    sentNodeOneMessage = null;
-    sentNodeTwoMessage = null;
-  }
-  
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message));
-    require(message.size == node.domain.size);
-    if (node == nodeOne) {
-      receivedNodeOneMessage = message;
-    } else if (node == nodeTwo) {
-      receivedNodeTwoMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
   }
   
+  
   def factorValue(nodeOneValueIdx: Int, nodeTwoValueIdx: Int): Double = {
     if (indexedFeatureMatrix(nodeOneValueIdx)(nodeTwoValueIdx) == null) {
       // N.B. -10 instead of infinity for numerical reasons
@@ -184,48 +157,46 @@ class BinaryFactorGeneral(val nodeOne: Node[_],
   }
   
   def sendMessages() {
-    if (sentNodeOneMessage == null) {
-      sentNodeOneMessage = Array.tabulate(nodeOne.domain.size)(i => 0);
-    } else {
-      for (i <- 0 until sentNodeOneMessage.length) {
-        sentNodeOneMessage(i) = 0;
-      }
-    }
-    if (sentNodeTwoMessage == null) {
-      sentNodeTwoMessage = Array.tabulate(nodeTwo.domain.size)(i => 0);
-    } else {
-      for (i <- 0 until sentNodeTwoMessage.length) {
-        sentNodeTwoMessage(i) = 0;
-      }
-    }
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeOneOut = nodeOne.receivedMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
+    val nodeTwoOut = nodeTwo.receivedMessageOffset(nodeTwoSlot);
+    java.util.Arrays.fill(messages, nodeOneOut, nodeOneOut + nodeOne.domain.size, 0.0);
+    java.util.Arrays.fill(messages, nodeTwoOut, nodeTwoOut + nodeTwo.domain.size, 0.0);
     
     for (i <- 0 until nodeOne.domain.size) {
       // While loop for the inner loop here
       var j = 0;
       while (j < nodeTwo.domain.size) {
         val currFactorValue = factorValue(i, j);
-        sentNodeOneMessage(i) += currFactorValue * receivedNodeTwoMessage(j);
-        sentNodeTwoMessage(j) += currFactorValue * receivedNodeOneMessage(i);
+        messages(nodeOneOut + i) += currFactorValue * messages(nodeTwoIn + j);
+        messages(nodeTwoOut + j) += currFactorValue * messages(nodeOneIn + i);
         j += 1;
       }
     }
-    GUtil.normalizeiHard(sentNodeOneMessage);
-    GUtil.normalizeiHard(sentNodeTwoMessage);
+    MessageStore.normalizeiHard(messages, nodeOneOut, nodeOne.domain.size);
+    MessageStore.normalizeiHard(messages, nodeTwoOut, nodeTwo.domain.size);
 //    require(!sentNodeOneMessage.contains(0.0), nodeOne.domain.entries.toSeq + " " + nodeTwo.domain.entries.toSeq);
 //    require(!sentNodeTwoMessage.contains(0.0), nodeOne.domain.entries.toSeq + " " + nodeTwo.domain.entries.toSeq);
-    nodeOne.receiveMessage(this, sentNodeOneMessage);
-    nodeTwo.receiveMessage(this, sentNodeTwoMessage);
+    nodeOne.receiveMessage(nodeOneSlot);
+    nodeTwo.receiveMessage(nodeTwoSlot);
   }
   
   def getAllAssociatedFeatures(): Array[String] = {
     throw new RuntimeException("Deprecated");
   }
   
+  def getIndexedFeatures(): Array[Int] = indexedFeatureMatrix.flatMap(_.flatMap(feats => if (feats == null) Array[Int]() else feats));
+  
   def computeFactorNormalizer: Double = {
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
     var normalizer = 0.0;
     for (i <- 0 until nodeOne.domain.size) {
       for (j <- 0 until nodeTwo.domain.size) {
-        val value = factorValue(i, j) * receivedNodeOneMessage(i) * receivedNodeTwoMessage(j);
+        val value = factorValue(i, j) * messages(nodeOneIn + i) * messages(nodeTwoIn + j);
         normalizer += value;
       }
     }
@@ -233,12 +204,15 @@ class BinaryFactorGeneral(val nodeOne: Node[_],
   }
   
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {
+    val messages = nodeOne.messages;
+    val nodeOneIn = nodeOne.sentMessageOffset(nodeOneSlot);
+    val nodeTwoIn = nodeTwo.sentMessageOffset(nodeTwoSlot);
     val normalizer = computeFactorNormalizer;
     val multiplier = scale/normalizer;
     for (i <- 0 until nodeOne.domain.size) {
       for (j <- 0 until nodeTwo.domain.size) {
         if (indexedFeatureMatrix(i)(j) != null) {
-          val value = factorValue(i, j) * receivedNodeOneMessage(i) * receivedNodeTwoMessage(j);
+          val value = factorValue(i, j) * messages(nodeOneIn + i) * messages(nodeTwoIn + j);
           val delta = (value * multiplier).toFloat;
           var featIdx = 0;
           while (featIdx < indexedFeatureMatrix(i)(j).size) {
@@ -261,9 +235,9 @@ class PropertyFactor(val selectedAntecedentMentionIdx: Int,
                      val defaultValMatrix: Array[Array[Double]]) extends Factor {
   var cachedWeights: Array[Float] = null;
   require(antecedentPropertyNode.domain == propertyNode.domain);
-  propertyNode.registerFactor(this);
-  antecedentNode.registerFactor(this);
-  antecedentPropertyNode.registerFactor(this);
+  private val propertyNodeSlot = propertyNode.registerFactor(this);
+  private val antecedentNodeSlot = antecedentNode.registerFactor(this);
+  private val antecedentPropertyNodeSlot = antecedentPropertyNode.registerFactor(this);
   var selectedAntecedentValueIdx = -1;
   for (i <- 0 until antecedentNode.domain.size) {
     if (antecedentNode.domain.value(i) == selectedAntecedentMentionIdx) {
@@ -271,43 +245,15 @@ class PropertyFactor(val selectedAntecedentMentionIdx: Int,
     }
   }
   
-  var receivedPropertyMessage: Array[Double] = null;
-  var receivedAntecedentMessage: Array[Double] = null;
-  var receivedAntecedentPropertyMessage: Array[Double] = null;
-  var sentPropertyMessage: Array[Double] = new Array[Double](propertyNode.domain.size);
-  var sentAntecedentMessage: Array[Double] = new Array[Double](antecedentNode.domain.size);
-  var sentAntecedentPropertyMessage: Array[Double] = new Array[Double](antecedentPropertyNode.domain.size);
   
   def setWeights(newWeights: Array[Float]) {
     this.cachedWeights = newWeights;
-    for (i <- 0 until sentPropertyMessage.length) {
-      sentPropertyMessage(i) = 0;
-    }
-    for (i <- 0 until sentAntecedentMessage.length) {
-      sentAntecedentMessage(i) = 0;
-    }
-    for (i <- 0 until sentAntecedentPropertyMessage.length) {
-      sentAntecedentPropertyMessage(i) = 0;
-    }
   }
   
   def clearAllMessages() {
     throw new RuntimeException("Unimplemented");
   }
   
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message));
-    require(message.size == node.domain.size);
-    if (node == propertyNode) {
-      receivedPropertyMessage = message;
-    } else if (node == antecedentNode) {
-      receivedAntecedentMessage = message;
-    } else if (node == antecedentPropertyNode) {
-      receivedAntecedentPropertyMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
-  }
   
   def factorValue(propertyValueIdx: Int, antecedentValueIdx: Int, antecedentPropertyValueIdx: Int): Double = {
     if (antecedentValueIdx == selectedAntecedentValueIdx) {
@@ -324,14 +270,21 @@ class PropertyFactor(val selectedAntecedentMentionIdx: Int,
   
   // TODO: Optimize this if it's slow
   def sendMessages() {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
+    val propertyOut = propertyNode.receivedMessageOffset(propertyNodeSlot);
+    val antecedentIn = antecedentNode.sentMessageOffset(antecedentNodeSlot);
+    val antecedentOut = antecedentNode.receivedMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyIn = antecedentPropertyNode.sentMessageOffset(antecedentPropertyNodeSlot);
+    val antecedentPropertyOut = antecedentPropertyNode.receivedMessageOffset(antecedentPropertyNodeSlot);
     for (i <- 0 until propertyNode.domain.size) {
-      sentPropertyMessage(i) = 0;
+      messages(propertyOut + i) = 0;
     }
     for (i <- 0 until antecedentNode.domain.size) {
-      sentAntecedentMessage(i) = 0;
+      messages(antecedentOut + i) = 0;
     }
     for (i <- 0 until antecedentPropertyNode.domain.size) {
-      sentAntecedentPropertyMessage(i) = 0;
+      messages(antecedentPropertyOut + i) = 0;
     }
     
 //    // Antecedent message
@@ -396,21 +349,21 @@ class PropertyFactor(val selectedAntecedentMentionIdx: Int,
         var k = 0;
         while (k < antecedentPropertyNode.domain.size) {
           val currFactorValue = factorValue(j, i, k);
-          sentPropertyMessage(j) += currFactorValue * receivedAntecedentMessage(i) * receivedAntecedentPropertyMessage(k);
-          sentAntecedentMessage(i) += currFactorValue * receivedPropertyMessage(j) * receivedAntecedentPropertyMessage(k);
-          sentAntecedentPropertyMessage(k) += currFactorValue * receivedPropertyMessage(j) * receivedAntecedentMessage(i);
+          messages(propertyOut + j) += currFactorValue * messages(antecedentIn + i) * messages(antecedentPropertyIn + k);
+          messages(antecedentOut + i) += currFactorValue * messages(propertyIn + j) * messages(antecedentPropertyIn + k);
+          messages(antecedentPropertyOut + k) += currFactorValue * messages(propertyIn + j) * messages(antecedentIn + i);
           k += 1;
         }
       }
     }
-    GUtil.normalizeiHard(sentPropertyMessage);
-    GUtil.normalizeiHard(sentAntecedentMessage);
-    GUtil.normalizeiHard(sentAntecedentPropertyMessage);
+    MessageStore.normalizeiHard(messages, propertyOut, propertyNode.domain.size);
+    MessageStore.normalizeiHard(messages, antecedentOut, antecedentNode.domain.size);
+    MessageStore.normalizeiHard(messages, antecedentPropertyOut, antecedentPropertyNode.domain.size);
     
-    if (sentPropertyMessage.contains(0.0)) {
-      Logger.logss("Received prop message: " + receivedPropertyMessage.toSeq);
-      Logger.logss("Received antecedent prop message: " + receivedAntecedentPropertyMessage.toSeq);
-      Logger.logss("Received antecedent message: " + receivedAntecedentMessage.toSeq);
+    if (MessageStore.contains(messages, propertyOut, propertyNode.domain.size, 0.0)) {
+      Logger.logss("Received prop message: " + MessageStore.render(messages, propertyIn, propertyNode.domain.size));
+      Logger.logss("Received antecedent prop message: " + MessageStore.render(messages, antecedentPropertyIn, antecedentPropertyNode.domain.size));
+      Logger.logss("Received antecedent message: " + MessageStore.render(messages, antecedentIn, antecedentNode.domain.size));
       for (i <- 0 until antecedentNode.domain.size) {
         for (j <- 0 until propertyNode.domain.size) {
           // While loop for the inner loop here
@@ -423,11 +376,13 @@ class PropertyFactor(val selectedAntecedentMentionIdx: Int,
       }
       require(false);
     }
-    require(!sentAntecedentMessage.contains(0.0));
-    require(!sentAntecedentPropertyMessage.contains(0.0));
-    propertyNode.receiveMessage(this, sentPropertyMessage);
-    antecedentNode.receiveMessage(this, sentAntecedentMessage);
-    antecedentPropertyNode.receiveMessage(this, sentAntecedentPropertyMessage);
+    if (Driver.checkBpMessages) {
+      require(!MessageStore.contains(messages, antecedentOut, antecedentNode.domain.size, 0.0));
+      require(!MessageStore.contains(messages, antecedentPropertyOut, antecedentPropertyNode.domain.size, 0.0));
+    }
+    propertyNode.receiveMessage(propertyNodeSlot);
+    antecedentNode.receiveMessage(antecedentNodeSlot);
+    antecedentPropertyNode.receiveMessage(antecedentPropertyNodeSlot);
   }
   
   def getAllAssociatedFeatures(): Array[String] = {
@@ -435,12 +390,18 @@ class PropertyFactor(val selectedAntecedentMentionIdx: Int,
     featureMatrix.flatMap(_.flatMap((currFeats: Seq[String]) => currFeats)).toSet.toArray;
   }
   
+  def getIndexedFeatures(): Array[Int] = indexedFeatureMatrix.flatMap(_.flatMap(feats => feats)).toArray;
+  
   def computeFactorNormalizer: Double = {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
+    val antecedentIn = antecedentNode.sentMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyIn = antecedentPropertyNode.sentMessageOffset(antecedentPropertyNodeSlot);
     var normalizer = 0.0;
     for (i <- 0 until antecedentNode.domain.size) {
       for (j <- 0 until propertyNode.domain.size) {
         for (k <- 0 until antecedentPropertyNode.domain.size) {
-          val value = factorValue(j, i, k) * receivedPropertyMessage(j) * receivedAntecedentMessage(i) * receivedAntecedentPropertyMessage(k);
+          val value = factorValue(j, i, k) * messages(propertyIn + j) * messages(antecedentIn + i) * messages(antecedentPropertyIn + k);
           normalizer += value;
         }
       }
@@ -449,13 +410,17 @@ class PropertyFactor(val selectedAntecedentMentionIdx: Int,
   }
   
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
+    val antecedentIn = antecedentNode.sentMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyIn = antecedentPropertyNode.sentMessageOffset(antecedentPropertyNodeSlot);
     val normalizer = computeFactorNormalizer;
     val multiplier = scale/normalizer;
     for (i <- 0 until antecedentNode.domain.size) {
       if (antecedentNode.domain.entries(i) == selectedAntecedentMentionIdx) {
         for (j <- 0 until propertyNode.domain.size) {
           for (k <- 0 until antecedentPropertyNode.domain.size) {
-            val value = factorValue(j, i, k) * receivedPropertyMessage(j) * receivedAntecedentMessage(i) * receivedAntecedentPropertyMessage(k);
+            val value = factorValue(j, i, k) * messages(propertyIn + j) * messages(antecedentIn + i) * messages(antecedentPropertyIn + k);
             var featIdx = 0;
             while (featIdx < indexedFeatureMatrix(j)(k).size) {
               gradient(indexedFeatureMatrix(j)(k)(featIdx)) += (multiplier * value).toFloat;
@@ -473,9 +438,9 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
                          val antecedentNode: Node[Int],
                          val antecedentPropertyNode: Node[String]) extends Factor {
   require(antecedentPropertyNode.domain == propertyNode.domain);
-  propertyNode.registerFactor(this);
-  antecedentNode.registerFactor(this);
-  antecedentPropertyNode.registerFactor(this);
+  private val propertyNodeSlot = propertyNode.registerFactor(this);
+  private val antecedentNodeSlot = antecedentNode.registerFactor(this);
+  private val antecedentPropertyNodeSlot = antecedentPropertyNode.registerFactor(this);
   var selectedAntecedentValueIdx = -1;
   for (i <- 0 until antecedentNode.domain.size) {
     if (antecedentNode.domain.value(i) == selectedAntecedentMentionIdx) {
@@ -483,15 +448,9 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
     }
   }
   
-  var receivedPropertyMessage: Array[Double] = null;
-  var receivedAntecedentMessage: Array[Double] = null;
-  var receivedAntecedentPropertyMessage: Array[Double] = null;
-  var sentPropertyMessage: Array[Double] = new Array[Double](propertyNode.domain.size);
-  var sentAntecedentMessage: Array[Double] = new Array[Double](antecedentNode.domain.size);
-  var sentAntecedentPropertyMessage: Array[Double] = new Array[Double](antecedentPropertyNode.domain.size);
   
   def setWeights(newWeights: Array[Float]) {
-    clearMessages();
+    // Constant factor; sendMessages clears its messages before writing them
   }
   
   def clearAllMessages() {
@@ -499,36 +458,27 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
   }
   
   def clearMessages() {
+    val messages = propertyNode.messages;
+    val propertyOut = propertyNode.receivedMessageOffset(propertyNodeSlot);
+    val antecedentOut = antecedentNode.receivedMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyOut = antecedentPropertyNode.receivedMessageOffset(antecedentPropertyNodeSlot);
     var i = 0;
     while (i < propertyNode.domain.size) {
-      sentPropertyMessage(i) = 0;
+      messages(propertyOut + i) = 0;
       i += 1;
     }    
     i = 0;
     while (i < propertyNode.domain.size) {
-      sentAntecedentPropertyMessage(i) = 0;
+      messages(antecedentPropertyOut + i) = 0;
       i += 1;
     }
     i = 0;
-    while (i < sentAntecedentMessage.length) {
-      sentAntecedentMessage(i) = 0;
+    while (i < antecedentNode.domain.size) {
+      messages(antecedentOut + i) = 0;
       i += 1;
     }
   }
   
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message));
-    require(message.size == node.domain.size);
-    if (node == propertyNode) {
-      receivedPropertyMessage = message;
-    } else if (node == antecedentNode) {
-      receivedAntecedentMessage = message;
-    } else if (node == antecedentPropertyNode) {
-      receivedAntecedentPropertyMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
-  }
   
   def factorValue(propertyValueIdx: Int, antecedentValueIdx: Int, antecedentPropertyValueIdx: Int): Double = {
     if (antecedentValueIdx == selectedAntecedentValueIdx && propertyValueIdx != antecedentPropertyValueIdx) 0.0 else 1.0;
@@ -536,6 +486,13 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
   
   // TODO: Optimize this if it's slow
   def sendMessages() {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
+    val propertyOut = propertyNode.receivedMessageOffset(propertyNodeSlot);
+    val antecedentIn = antecedentNode.sentMessageOffset(antecedentNodeSlot);
+    val antecedentOut = antecedentNode.receivedMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyIn = antecedentPropertyNode.sentMessageOffset(antecedentPropertyNodeSlot);
+    val antecedentPropertyOut = antecedentPropertyNode.receivedMessageOffset(antecedentPropertyNodeSlot);
     clearMessages();
     
     // NEW COMPUTATION METHOD
@@ -547,9 +504,9 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
     var innerProduct = 0.0;
     i = 0;
     while (i < propertyNode.domain.size) {
-      propNodeSum += receivedPropertyMessage(i);
-      antPropNodeSum += receivedAntecedentPropertyMessage(i);
-      innerProduct += receivedPropertyMessage(i) * receivedAntecedentPropertyMessage(i);
+      propNodeSum += messages(propertyIn + i);
+      antPropNodeSum += messages(antecedentPropertyIn + i);
+      innerProduct += messages(propertyIn + i) * messages(antecedentPropertyIn + i);
       i += 1;
     }
     var nonselectedAntecedentSum = 0.0;
@@ -557,29 +514,29 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
     k = 0;
     while (k < antecedentNode.domain.size) {
       if (k != selectedAntecedentValueIdx) {
-        nonselectedAntecedentSum += receivedAntecedentMessage(k);
+        nonselectedAntecedentSum += messages(antecedentIn + k);
       } else {
-        selectedAntecedentVal = receivedAntecedentMessage(k);
+        selectedAntecedentVal = messages(antecedentIn + k);
       }
       k += 1;
     }
     
     i = 0;
     while (i < propertyNode.domain.size) {
-      sentPropertyMessage(i) = antPropNodeSum * nonselectedAntecedentSum + receivedAntecedentPropertyMessage(i) * selectedAntecedentVal;
+      messages(propertyOut + i) = antPropNodeSum * nonselectedAntecedentSum + messages(antecedentPropertyIn + i) * selectedAntecedentVal;
       i += 1;
     }
     j = 0;
     while (j < antecedentPropertyNode.domain.size) {
-      sentAntecedentPropertyMessage(j) = propNodeSum * nonselectedAntecedentSum + receivedPropertyMessage(j) * selectedAntecedentVal;
+      messages(antecedentPropertyOut + j) = propNodeSum * nonselectedAntecedentSum + messages(propertyIn + j) * selectedAntecedentVal;
       j += 1;
     }
     k = 0;
     while (k < antecedentNode.domain.size) {
       if (k == selectedAntecedentValueIdx) {
-        sentAntecedentMessage(k) = innerProduct;
+        messages(antecedentOut + k) = innerProduct;
       } else {
-        sentAntecedentMessage(k) = propNodeSum * antPropNodeSum;
+        messages(antecedentOut + k) = propNodeSum * antPropNodeSum;
       }
       k += 1;
     }
@@ -598,14 +555,14 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
 //      }
 //    }
     
-    GUtil.normalizeiHard(sentPropertyMessage);
-    GUtil.normalizeiHard(sentAntecedentMessage);
-    GUtil.normalizeiHard(sentAntecedentPropertyMessage);
+    MessageStore.normalizeiHard(messages, propertyOut, propertyNode.domain.size);
+    MessageStore.normalizeiHard(messages, antecedentOut, antecedentNode.domain.size);
+    MessageStore.normalizeiHard(messages, antecedentPropertyOut, antecedentPropertyNode.domain.size);
     
-    if (sentPropertyMessage.contains(0.0)) {
-      Logger.logss("Received prop message: " + receivedPropertyMessage.toSeq);
-      Logger.logss("Received antecedent prop message: " + receivedAntecedentPropertyMessage.toSeq);
-      Logger.logss("Received antecedent message: " + receivedAntecedentMessage.toSeq);
+    if (MessageStore.contains(messages, propertyOut, propertyNode.domain.size, 0.0)) {
+      Logger.logss("Received prop message: " + MessageStore.render(messages, propertyIn, propertyNode.domain.size));
+      Logger.logss("Received antecedent prop message: " + MessageStore.render(messages, antecedentPropertyIn, antecedentPropertyNode.domain.size));
+      Logger.logss("Received antecedent message: " + MessageStore.render(messages, antecedentIn, antecedentNode.domain.size));
       for (i <- 0 until antecedentNode.domain.size) {
         for (j <- 0 until propertyNode.domain.size) {
           // While loop for the inner loop here
@@ -618,11 +575,13 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
       }
       require(false);
     }
-    require(!sentAntecedentMessage.contains(0.0));
-    require(!sentAntecedentPropertyMessage.contains(0.0));
-    propertyNode.receiveMessage(this, sentPropertyMessage);
-    antecedentNode.receiveMessage(this, sentAntecedentMessage);
-    antecedentPropertyNode.receiveMessage(this, sentAntecedentPropertyMessage);
+    if (Driver.checkBpMessages) {
+      require(!MessageStore.contains(messages, antecedentOut, antecedentNode.domain.size, 0.0));
+      require(!MessageStore.contains(messages, antecedentPropertyOut, antecedentPropertyNode.domain.size, 0.0));
+    }
+    propertyNode.receiveMessage(propertyNodeSlot);
+    antecedentNode.receiveMessage(antecedentNodeSlot);
+    antecedentPropertyNode.receiveMessage(antecedentPropertyNodeSlot);
   }
   
   def computeFactorNormalizer: Double = {
@@ -631,6 +590,8 @@ class HardPropertyFactor(val selectedAntecedentMentionIdx: Int,
   
   def getAllAssociatedFeatures(): Array[String] = new Array[String](0);
   
+  def getIndexedFeatures(): Array[Int] = new Array[Int](0);
+  
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {}
 }
 
@@ -643,9 +604,9 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
                               val antecedentPropertyNode: Node[T],
                               val indexedFeatureMatrix: Array[Array[Array[Int]]]) extends Factor {
   var cachedWeights: Array[Float] = null;
-  propertyNode.registerFactor(this);
-  antecedentNode.registerFactor(this);
-  antecedentPropertyNode.registerFactor(this);
+  private val propertyNodeSlot = propertyNode.registerFactor(this);
+  private val antecedentNodeSlot = antecedentNode.registerFactor(this);
+  private val antecedentPropertyNodeSlot = antecedentPropertyNode.registerFactor(this);
   var selectedAntecedentValueIdx = -1;
   for (i <- 0 until antecedentNode.domain.size) {
     if (antecedentNode.domain.value(i) == selectedAntecedentMentionIdx) {
@@ -653,12 +614,6 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
     }
   }
   
-  var receivedPropertyMessage: Array[Double] = null;
-  var receivedAntecedentMessage: Array[Double] = null;
-  var receivedAntecedentPropertyMessage: Array[Double] = null;
-  var sentPropertyMessage: Array[Double] = null;
-  var sentAntecedentMessage: Array[Double] = null;
-  var sentAntecedentPropertyMessage: Array[Double] = null;
   
   def setWeights(newWeights: Array[Float]) {
     this.cachedWeights = newWeights;
@@ -674,28 +629,9 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
   }
   
   def clearAllMessages() {
-    receivedPropertyMessage = null;
-    receivedAntecedentMessage = null;
-    receivedAntecedentPropertyMessage = null;
-    sentPropertyMessage = null;
-    sentAntecedentMessage = null;
-    sentAntecedentPropertyMessage = null;
-  }
-  
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    require(!GUtil.containsNaN(message));
-    require(message.size == node.domain.size);
-    if (node == propertyNode) {
-      receivedPropertyMessage = message;
-    } else if (node == antecedentNode) {
-      receivedAntecedentMessage = message;
-    } else if (node == antecedentPropertyNode) {
-      receivedAntecedentPropertyMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
   }
   
+  
   def factorValue(propertyValueIdx: Int, antecedentValueIdx: Int, antecedentPropertyValueIdx: Int): Double = {
     if (antecedentValueIdx == selectedAntecedentValueIdx) {
       var logFeatValue = GUtil.scoreIndexedFeats(indexedFeatureMatrix(propertyValueIdx)(antecedentPropertyValueIdx), cachedWeights);
@@ -706,15 +642,13 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
   }
   
   def sendMessages() {
-    if (sentPropertyMessage == null) {
-      sentPropertyMessage = Array.tabulate(propertyNode.domain.size)(i => 0);
-    }
-    if (sentAntecedentMessage == null) {
-      sentAntecedentMessage = Array.tabulate(antecedentNode.domain.size)(i => 0);
-    }
-    if (sentAntecedentPropertyMessage == null) {
-      sentAntecedentPropertyMessage = Array.tabulate(antecedentPropertyNode.domain.size)(i => 0);
-    }
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
+    val propertyOut = propertyNode.receivedMessageOffset(propertyNodeSlot);
+    val antecedentIn = antecedentNode.sentMessageOffset(antecedentNodeSlot);
+    val antecedentOut = antecedentNode.receivedMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyIn = antecedentPropertyNode.sentMessageOffset(antecedentPropertyNodeSlot);
+    val antecedentPropertyOut = antecedentPropertyNode.receivedMessageOffset(antecedentPropertyNodeSlot);
     // OLD METHOD
 //      for (i <- 0 until propertyNode.domain.size) {
 //        sentPropertyMessage(i) = 0;
@@ -745,26 +679,26 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
       var j = 0;
       var sum = 0.0;
       while (j < antecedentPropertyNode.domain.size) {
-        sum += receivedAntecedentPropertyMessage(j);
+        sum += messages(antecedentPropertyIn + j);
         j += 1;
       }
-      propertyMessageSumForIrrelevantAntecedents += receivedPropertyMessage(i) * sum;
+      propertyMessageSumForIrrelevantAntecedents += messages(propertyIn + i) * sum;
     }
     for (k <- 0 until antecedentNode.domain.size) {
       if (k != selectedAntecedentValueIdx) {
 //        maybeDisplay("AN IRR", sentAntecedentMessage(k), propertyMessageSumForIrrelevantAntecedents);
-        sentAntecedentMessage(k) = propertyMessageSumForIrrelevantAntecedents;
+        messages(antecedentOut + k) = propertyMessageSumForIrrelevantAntecedents;
       } else {
         var propertyMessageSumForRelevantAntecedent = 0.0;
         for (i <- 0 until propertyNode.domain.size) {
           var j = 0;
           while (j < antecedentPropertyNode.domain.size) {
-            propertyMessageSumForRelevantAntecedent += receivedPropertyMessage(i) * receivedAntecedentPropertyMessage(j) * factorValue(i, k, j);
+            propertyMessageSumForRelevantAntecedent += messages(propertyIn + i) * messages(antecedentPropertyIn + j) * factorValue(i, k, j);
             j += 1;
           }
         }
 //        maybeDisplay("AN REL", sentAntecedentMessage(k), propertyMessageSumForRelevantAntecedent);
-        sentAntecedentMessage(k) = propertyMessageSumForRelevantAntecedent;
+        messages(antecedentOut + k) = propertyMessageSumForRelevantAntecedent;
       }
     }
     // Property messages
@@ -772,46 +706,46 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
     var k = 0;
     while (k < antecedentNode.domain.size) {
       if (k != selectedAntecedentValueIdx) {
-        irrelevantAntecedentSum += receivedAntecedentMessage(k);
+        irrelevantAntecedentSum += messages(antecedentIn + k);
       }
       k += 1;
     }
     var constantPropertyComponent = 0.0;
     for (j <- 0 until antecedentPropertyNode.domain.size) {
-      constantPropertyComponent += receivedAntecedentPropertyMessage(j) * irrelevantAntecedentSum;
+      constantPropertyComponent += messages(antecedentPropertyIn + j) * irrelevantAntecedentSum;
     }
     for (i <- 0 until propertyNode.domain.size) {
       var messageVal = constantPropertyComponent;
       var j = 0;
       while (j < antecedentPropertyNode.domain.size) {
-        messageVal += receivedAntecedentPropertyMessage(j) * receivedAntecedentMessage(selectedAntecedentValueIdx) * factorValue(i, selectedAntecedentValueIdx, j);
+        messageVal += messages(antecedentPropertyIn + j) * messages(antecedentIn + selectedAntecedentValueIdx) * factorValue(i, selectedAntecedentValueIdx, j);
         j += 1;
       }
 //      maybeDisplay("PROP", sentPropertyMessage(i), messageVal);
-      sentPropertyMessage(i) = messageVal;
+      messages(propertyOut + i) = messageVal;
     }
     // Analogous for the other property message
     
     var constantAntecedentPropertyComponent = 0.0;
     for (i <- 0 until propertyNode.domain.size) {
-      constantAntecedentPropertyComponent += receivedPropertyMessage(i) * irrelevantAntecedentSum;
+      constantAntecedentPropertyComponent += messages(propertyIn + i) * irrelevantAntecedentSum;
     }
     for (j <- 0 until antecedentPropertyNode.domain.size) {
       var messageVal = constantAntecedentPropertyComponent;
       var i = 0;
       while (i < propertyNode.domain.size) {
-        messageVal += receivedPropertyMessage(i) * receivedAntecedentMessage(selectedAntecedentValueIdx) * factorValue(i, selectedAntecedentValueIdx, j);
+        messageVal += messages(propertyIn + i) * messages(antecedentIn + selectedAntecedentValueIdx) * factorValue(i, selectedAntecedentValueIdx, j);
         i += 1;
       }
-      sentAntecedentPropertyMessage(j) = messageVal;
-    }
-    GUtil.normalizeiHard(sentPropertyMessage);
-    GUtil.normalizeiHard(sentAntecedentMessage);
-    GUtil.normalizeiHard(sentAntecedentPropertyMessage);
-    if (sentPropertyMessage.contains(0.0)) {
-      Logger.logss("Received prop message: " + receivedPropertyMessage.toSeq);
-      Logger.logss("Received antecedent prop message: " + receivedAntecedentPropertyMessage.toSeq);
-      Logger.logss("Received antecedent message: " + receivedAntecedentMessage.toSeq);
+      messages(antecedentPropertyOut + j) = messageVal;
+    }
+    MessageStore.normalizeiHard(messages, propertyOut, propertyNode.domain.size);
+    MessageStore.normalizeiHard(messages, antecedentOut, antecedentNode.domain.size);
+    MessageStore.normalizeiHard(messages, antecedentPropertyOut, antecedentPropertyNode.domain.size);
+    if (MessageStore.contains(messages, propertyOut, propertyNode.domain.size, 0.0)) {
+      Logger.logss("Received prop message: " + MessageStore.render(messages, propertyIn, propertyNode.domain.size));
+      Logger.logss("Received antecedent prop message: " + MessageStore.render(messages, antecedentPropertyIn, antecedentPropertyNode.domain.size));
+      Logger.logss("Received antecedent message: " + MessageStore.render(messages, antecedentIn, antecedentNode.domain.size));
       for (i <- 0 until antecedentNode.domain.size) {
         for (j <- 0 until propertyNode.domain.size) {
           // While loop for the inner loop here
@@ -824,21 +758,29 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
       }
       require(false);
     }
-    require(!sentAntecedentMessage.contains(0.0));
-    require(!sentAntecedentPropertyMessage.contains(0.0));
-    propertyNode.receiveMessage(this, sentPropertyMessage);
-    antecedentNode.receiveMessage(this, sentAntecedentMessage);
-    antecedentPropertyNode.receiveMessage(this, sentAntecedentPropertyMessage);
+    if (Driver.checkBpMessages) {
+      require(!MessageStore.contains(messages, antecedentOut, antecedentNode.domain.size, 0.0));
+      require(!MessageStore.contains(messages, antecedentPropertyOut, antecedentPropertyNode.domain.size, 0.0));
+    }
+    propertyNode.receiveMessage(propertyNodeSlot);
+    antecedentNode.receiveMessage(antecedentNodeSlot);
+    antecedentPropertyNode.receiveMessage(antecedentPropertyNodeSlot);
   }
   
   def getAllAssociatedFeatures(): Array[String] = Array[String]();
   
+  def getIndexedFeatures(): Array[Int] = indexedFeatureMatrix.flatMap(_.flatMap(feats => feats));
+  
   def computeFactorNormalizer: Double = {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
+    val antecedentIn = antecedentNode.sentMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyIn = antecedentPropertyNode.sentMessageOffset(antecedentPropertyNodeSlot);
     var normalizer = 0.0;
     for (i <- 0 until antecedentNode.domain.size) {
       for (j <- 0 until propertyNode.domain.size) {
         for (k <- 0 until antecedentPropertyNode.domain.size) {
-          val value = factorValue(j, i, k) * receivedPropertyMessage(j) * receivedAntecedentMessage(i) * receivedAntecedentPropertyMessage(k);
+          val value = factorValue(j, i, k) * messages(propertyIn + j) * messages(antecedentIn + i) * messages(antecedentPropertyIn + k);
           normalizer += value;
         }
       }
@@ -847,13 +789,17 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
   }
   
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
+    val antecedentIn = antecedentNode.sentMessageOffset(antecedentNodeSlot);
+    val antecedentPropertyIn = antecedentPropertyNode.sentMessageOffset(antecedentPropertyNodeSlot);
     val normalizer = computeFactorNormalizer;
     val multiplier = scale/normalizer;
     for (i <- 0 until antecedentNode.domain.size) {
       if (antecedentNode.domain.entries(i) == selectedAntecedentMentionIdx) {
         for (j <- 0 until propertyNode.domain.size) {
           for (k <- 0 until antecedentPropertyNode.domain.size) {
-            val value = factorValue(j, i, k) * receivedPropertyMessage(j) * receivedAntecedentMessage(i) * receivedAntecedentPropertyMessage(k);
+            val value = factorValue(j, i, k) * messages(propertyIn + j) * messages(antecedentIn + i) * messages(antecedentPropertyIn + k);
             var featIdx = 0;
             while (featIdx < indexedFeatureMatrix(j)(k).size) {
               gradient(indexedFeatureMatrix(j)(k)(featIdx)) += (multiplier * value).toFloat;
@@ -871,8 +817,7 @@ class BetterPropertyFactor[T](val selectedAntecedentMentionIdx: Int,
 class UnaryFactorOld(val propertyNode: Node[_]) extends Factor {
 //                     val unaryFactor: Array[Double]) extends Factor {
   val unaryFactor = Array.fill(propertyNode.domain.size)(0.0);
-  propertyNode.registerFactor(this);
-  var receivedPropertyMessage: Array[Double] = null;
+  private val propertyNodeSlot = propertyNode.registerFactor(this);
   
   def setWeights(newWeights: Array[Float]) {
     // Do nothing
@@ -896,22 +841,18 @@ class UnaryFactorOld(val propertyNode: Node[_]) extends Factor {
     }
   }
   
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    if (node == propertyNode) {
-      receivedPropertyMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
-  }
   
   def sendMessages() {
-    propertyNode.receiveMessage(this, unaryFactor);
+    System.arraycopy(unaryFactor, 0, propertyNode.messages, propertyNode.receivedMessageOffset(propertyNodeSlot), unaryFactor.length);
+    propertyNode.receiveMessage(propertyNodeSlot);
   }
   
   def computeFactorNormalizer = {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
     var normalizer = 0.0;
     for (i <- 0 until propertyNode.domain.size) {
-      val value = unaryFactor(i) * receivedPropertyMessage(i);
+      val value = unaryFactor(i) * messages(propertyIn + i);
       normalizer += value;
     }
     normalizer;
@@ -919,6 +860,8 @@ class UnaryFactorOld(val propertyNode: Node[_]) extends Factor {
   
   def getAllAssociatedFeatures(): Array[String] = new Array[String](0);
   
+  def getIndexedFeatures(): Array[Int] = new Array[Int](0);
+  
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {
     // No features so nothing to do
   }
@@ -928,10 +871,9 @@ class UnaryFactorGeneral(val propertyNode: Node[_],
                          val indexedFeatures: Array[Array[Int]]) extends Factor {
   var cachedWeights: Array[Float] = null;
   var constantOffset: Array[Float] = null;
-  propertyNode.registerFactor(this);
+  private val propertyNodeSlot = propertyNode.registerFactor(this);
   require(propertyNode.domain.size == indexedFeatures.size);
-  var receivedMessage: Array[Double] = null;
-  var sentMessage: Array[Double] = null;
+  private val cachedMessage = new Array[Double](propertyNode.domain.size);
   var cacheDirty = true;
   
 //  val indexedFeaturesForEachValue = featuresForEachValue.map(_.map(featurizer.getIndex(_, false)));
@@ -946,18 +888,9 @@ class UnaryFactorGeneral(val propertyNode: Node[_],
   }
   
   def clearAllMessages() {
-    receivedMessage = null;
-    sentMessage = null;
     cacheDirty = true;
   }
     
-  def receiveMessage(node: Node[_], message: Array[Double]) {
-    if (node == propertyNode) {
-      receivedMessage = message;
-    } else {
-      throw new RuntimeException("Bad node in graph");
-    }
-  }
   
   // TODO: OPTIMIZE ME
   def factorValue(propertyValueIdx: Int): Double = {
@@ -977,37 +910,44 @@ class UnaryFactorGeneral(val propertyNode: Node[_],
   }
   
   def sendMessages() {
+    // The message only changes with the weights, so it's cached and just copied in after
+    // the first send (the node's copy can be wiped when its messages are reinitialized)
     if (cacheDirty) {
-      if (sentMessage == null) {
-        sentMessage = Array.tabulate(propertyNode.domain.size)(i => factorValue(i));
-      } else {
-        for (i <- 0 until sentMessage.size) {
-          sentMessage(i) = factorValue(i);
-        }
+      var i = 0;
+      while (i < propertyNode.domain.size) {
+        cachedMessage(i) = factorValue(i);
+        i += 1;
       }
       cacheDirty = false;
     }
-    propertyNode.receiveMessage(this, sentMessage);
+    System.arraycopy(cachedMessage, 0, propertyNode.messages, propertyNode.receivedMessageOffset(propertyNodeSlot), cachedMessage.length);
+    propertyNode.receiveMessage(propertyNodeSlot);
   }
   
   def getAllAssociatedFeatures(): Array[String] = {
     throw new RuntimeException("Deprecated");
   }
   
+  def getIndexedFeatures(): Array[Int] = indexedFeatures.flatten;
+  
   def computeFactorNormalizer = {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
     var normalizer = 0.0;
     for (i <- 0 until propertyNode.domain.size) {
-      val value = factorValue(i) * receivedMessage(i);
+      val value = factorValue(i) * messages(propertyIn + i);
       normalizer += value;
     }
     normalizer;
   }
   
   def addExpectedFeatureCounts(scale: Float, gradient: Array[Float]) {
+    val messages = propertyNode.messages;
+    val propertyIn = propertyNode.sentMessageOffset(propertyNodeSlot);
     val normalizer = computeFactorNormalizer;
     val multiplier = scale/normalizer;
     for (i <- 0 until propertyNode.domain.size) {
-      val delta = (factorValue(i) * receivedMessage(i) * multiplier).toFloat;
+      val delta = (factorValue(i) * messages(propertyIn + i) * multiplier).toFloat;
       var featIdx = 0;
       while (featIdx < indexedFeatures(i).size) {
         gradient(indexedFeatures(i)(featIdx)) += delta;
@@ -0,0 +1,99 @@
+package edu.berkeley.nlp.entity.bp
+
+/**
+ * All of the BP messages of a factor graph in one preallocated array. Each node gets a
+ * contiguous block: the messages it has received from each of its factors (in slot order)
+ * followed by the messages it sends to each of them, so every node-factor edge has a
+ * fixed offset in each direction (see Node.receivedMessageOffset and sentMessageOffset).
+ * Passing a message just means writing it into its region, so nothing is allocated while
+ * BP runs, and reset() scrubs everything in place between runs. A message that hasn't
+ * been sent yet is all ones, i.e., uniform.
+ *
+ * Must be created after every factor has been attached to its nodes.
+ */
+class MessageStore(val nodes: Seq[Node[_]]) {
+  val messages = {
+    var size = 0L;
+    for (node <- nodes) {
+      size += 2L * node.factors.size * node.domain.size;
+    }
+    require(size <= Integer.MAX_VALUE, "Too many messages for one graph: " + size);
+    new Array[Double](size.toInt);
+  }
+
+  {
+    var start = 0;
+    for (node <- nodes) {
+      node.attachMessages(messages, start);
+      start += 2 * node.factors.size * node.domain.size;
+    }
+  }
+  reset();
+
+  def size = messages.size;
+
+  def reset() {
+    java.util.Arrays.fill(messages, 1.0);
+  }
+}
+
+object MessageStore {
+
+  def normalizeiHard(arr: Array[Double], start: Int, len: Int) {
+    var total = 0.0;
+    var idx = start;
+    while (idx < start + len) {
+      total += arr(idx);
+      idx += 1;
+    }
+    if (total <= 0.0) {
+      throw new RuntimeException("Bad total for normalizing: " + total);
+    }
+    idx = start;
+    while (idx < start + len) {
+      arr(idx) /= total;
+      idx += 1;
+    }
+  }
+
+  def logNormalizei(arr: Array[Double], start: Int, len: Int) {
+    var max = Double.NegativeInfinity;
+    var idx = start;
+    while (idx < start + len) {
+      if (arr(idx) > max) max = arr(idx);
+      idx += 1;
+    }
+    var total = 0.0;
+    idx = start;
+    while (idx < start + len) {
+      total += Math.exp(arr(idx) - max);
+      idx += 1;
+    }
+    val normalizer = max + Math.log(total);
+    idx = start;
+    while (idx < start + len) {
+      arr(idx) -= normalizer;
+      idx += 1;
+    }
+  }
+
+  def contains(arr: Array[Double], start: Int, len: Int, value: Double): Boolean = {
+    var idx = start;
+    while (idx < start + len) {
+      if (arr(idx) == value) return true;
+      idx += 1;
+    }
+    false;
+  }
+
+  def containsNaN(arr: Array[Double], start: Int, len: Int): Boolean = {
+    var idx = start;
+    while (idx < start + len) {
+      if (arr(idx).isNaN) return true;
+      idx += 1;
+    }
+    false;
+  }
+
+  def render(arr: Array[Double], start: Int, len: Int) = arr.slice(start, start + len).toSeq;
+}
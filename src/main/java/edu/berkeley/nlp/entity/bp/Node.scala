@@ -1,155 +1,191 @@
 package edu.berkeley.nlp.entity.bp
 import scala.collection.mutable.ArrayBuffer
 import edu.berkeley.nlp.futile.util.Logger
+import edu.berkeley.nlp.entity.Driver
 import edu.berkeley.nlp.entity.GUtil
 
 class Node[T](val domain: Domain[T]) {
   var factors = new ArrayBuffer[Factor]();
-  var receivedMessages: Array[Array[Double]] = null;
-  var sentMessages: Array[Array[Double]] = null;
+  // Backing array of the graph's MessageStore; this node's messages are the block
+  // [receivedStart, sentStart) of messages received followed by the block of messages sent
+  var messages: Array[Double] = null;
+  private var receivedStart = -1;
+  private var sentStart = -1;
   var cachedBeliefsOrMarginals: Array[Double] = Array.fill(domain.size)(0.0);
-  
-  def registerFactor(factor: Factor) {
+
+  /**
+   * Adds factor as a neighbor of this node and returns its slot, which the factor uses to
+   * find the messages on the edge between them.
+   */
+  def registerFactor(factor: Factor): Int = {
+    require(messages == null, "Can't add factors to a node once its messages have been allocated");
     factors += factor;
+    factors.size - 1;
+  }
+
+  /**
+   * Called by MessageStore to give this node its block of message storage.
+   */
+  def attachMessages(messages: Array[Double], start: Int) {
+    this.messages = messages;
+    this.receivedStart = start;
+    this.sentStart = start + factors.size * domain.size;
   }
-  
-  // TODO: Do I need this null thing?
+
+  // Where the factor in factorSlot writes its message to this node
+  def receivedMessageOffset(factorSlot: Int) = receivedStart + factorSlot * domain.size;
+
+  // Where this node writes its message to the factor in factorSlot
+  def sentMessageOffset(factorSlot: Int) = sentStart + factorSlot * domain.size;
+
   def initializeReceivedMessagesUniform() {
-    if (receivedMessages == null) {
-      receivedMessages = new Array[Array[Double]](factors.size);
-    } else {
-      for (i <- 0 until receivedMessages.size) {
-        receivedMessages(i) = null;
-      }
-    }
+    require(messages != null, "Messages haven't been allocated; build a MessageStore over the graph first");
+    java.util.Arrays.fill(messages, receivedStart, sentStart, 1.0);
   }
-  
+
   def clearSentMessages() {
-    this.sentMessages = null;
+    java.util.Arrays.fill(messages, sentStart, sentStart + factors.size * domain.size, 1.0);
   }
-  
-  // This is just here so we can let things be null...At some point, it was a problem because
-  // the received messages remember which factors sent them, so clearing them for some reason
-  // caused problems (maybe writing the value 1.0 was problematic when we weren't clearing the
-  // received messages on the other end?). Can probably get rid of this somehow and just do the
-  // obvious thing of initializing messages to 1.0.
-  def receivedMessageValue(i: Int, j: Int): Double = {
-    if (receivedMessages(i) == null) {
-      1.0;
-    } else {
-      receivedMessages(i)(j);
+
+  def receivedMessageValue(i: Int, j: Int): Double = messages(receivedStart + i * domain.size + j);
+
+  /**
+   * Called by the factor in factorSlot once it has written its message to this node.
+   */
+  def receiveMessage(factorSlot: Int) {
+    if (Driver.checkBpMessages) {
+      checkMessage(factorSlot);
     }
   }
-  
-  def receiveMessage(factor: Factor, message: Array[Double]) {
-    // Lots of checks on well-formedness
-    require(receivedMessages != null);
-    require(message.size == domain.size); 
-    var messageIdx = 0;
+
+  // Lots of checks on well-formedness; these are expensive so they only run with checkBpMessages
+  private def checkMessage(factorSlot: Int) {
+    require(factorSlot >= 0 && factorSlot < factors.size);
+    val start = receivedMessageOffset(factorSlot);
+    var messageIdx = start;
     var total = 0.0
     // Message can contain some zeroes but can't be all zeroes
-    while (messageIdx < message.size) {
-      if (message(messageIdx).isNaN() || message(messageIdx).isInfinite) {
-        Logger.logss("For domain: " + domain + ", bad received message: " + message.toSeq + " from " + factor.getClass());
-        Logger.logss("Previous message: " + receivedMessages(factors.indexOf(factor)).toSeq);
+    while (messageIdx < start + domain.size) {
+      if (messages(messageIdx).isNaN() || messages(messageIdx).isInfinite) {
+        Logger.logss("For domain: " + domain + ", bad received message: " + MessageStore.render(messages, start, domain.size) + " from " + factors(factorSlot).getClass());
         require(false);
       }
-      total += message(messageIdx);
+      total += messages(messageIdx);
       messageIdx += 1;
     }
     if (total == 0) {
-      Logger.logss("For domain: " + domain + ", bad received message: " + message.toSeq + " from " + factor.getClass());
-      Logger.logss("Previous message: " + receivedMessages(factors.indexOf(factor)).toSeq);
+      Logger.logss("For domain: " + domain + ", bad received message: " + MessageStore.render(messages, start, domain.size) + " from " + factors(factorSlot).getClass());
       require(false)
     }
-    // This is what the method actually does
-    val idx = factors.indexOf(factor);
-    require(idx != -1 && idx < receivedMessages.size);
-    receivedMessages(idx) = message;
   }
-  
+
   def sendMessages() {
     sendMessages(1.0);
   }
-  
+
   def sendMessages(messageMultiplier: Double) {
-    sendMessagesUseLogSpace(messageMultiplier);
-  }
-  
-  // Received messages get exponentiated
-  def sendMessagesUseLogSpace(messageMultiplier: Double) {
-    for (i <- 0 until cachedBeliefsOrMarginals.size) {
-      cachedBeliefsOrMarginals(i) = 0.0;
-    }
-    require(receivedMessages.size == factors.size);
-    for (i <- 0 until receivedMessages.size) {
-      var j = 0;
-      while (j < cachedBeliefsOrMarginals.size) {
-        cachedBeliefsOrMarginals(j) += Math.log(receivedMessageValue(i, j)) * messageMultiplier;
-        j += 1;
-      }
-    }
-    GUtil.logNormalizei(cachedBeliefsOrMarginals);
-    require(!GUtil.containsNaN(cachedBeliefsOrMarginals), cachedBeliefsOrMarginals.toSeq)
-    for (i <- 0 until cachedBeliefsOrMarginals.size) {
-      cachedBeliefsOrMarginals(i) = Math.exp(cachedBeliefsOrMarginals(i));
-    }
-    require(!GUtil.containsNaN(cachedBeliefsOrMarginals), cachedBeliefsOrMarginals.toSeq)
-    if (sentMessages == null) {
-      sentMessages = new Array[Array[Double]](factors.size);
-    }
-    for (i <- 0 until factors.length) {
-      if (sentMessages(i) == null) {
-        sentMessages(i) = new Array[Double](domain.size);
-      }
+    computeBeliefs(messageMultiplier);
+    if (Driver.checkBpMessages) require(!GUtil.containsNaN(cachedBeliefsOrMarginals), cachedBeliefsOrMarginals.toSeq)
+    val domainSize = domain.size;
+    var i = 0;
+    while (i < factors.size) {
+      val receivedOffset = receivedStart + i * domainSize;
+      val sentOffset = sentStart + i * domainSize;
       var j = 0;
       var normalizer = 0.0;
-      while (j < domain.size) {
-        val rmVal = receivedMessageValue(i, j);
+      while (j < domainSize) {
+        val rmVal = messages(receivedOffset + j);
         if (rmVal == 0) {
-          sentMessages(i)(j) = 0;
+          messages(sentOffset + j) = 0;
         } else {
           val msgVal = cachedBeliefsOrMarginals(j)/rmVal;
           normalizer += msgVal;
-          sentMessages(i)(j) = msgVal;
+          messages(sentOffset + j) = msgVal;
+        }
+        j += 1;
+      }
+      if (Driver.checkBpMessages) require(normalizer > 0, domain.entries.toSeq);
+      j = 0;
+      while (j < domainSize) {
+        messages(sentOffset + j) /= normalizer;
+        j += 1;
+      }
+      i += 1;
+    }
+  }
+
+  /**
+   * Stores the normalized product of the received messages, each raised to messageMultiplier,
+   * in cachedBeliefsOrMarginals. The product is taken directly, rescaling whenever it gets
+   * small, rather than by summing logs, since this is the inner loop of BP; exponentiated
+   * messages still go through log space.
+   */
+  private def computeBeliefs(messageMultiplier: Double) {
+    val domainSize = domain.size;
+    if (messageMultiplier == 1.0) {
+      java.util.Arrays.fill(cachedBeliefsOrMarginals, 1.0);
+      var i = 0;
+      while (i < factors.size) {
+        val receivedOffset = receivedStart + i * domainSize;
+        var max = 0.0;
+        var j = 0;
+        while (j < domainSize) {
+          cachedBeliefsOrMarginals(j) *= messages(receivedOffset + j);
+          if (cachedBeliefsOrMarginals(j) > max) max = cachedBeliefsOrMarginals(j);
+          j += 1;
+        }
+        if (max > 0 && max < Node.RescaleThreshold) {
+          j = 0;
+          while (j < domainSize) {
+            cachedBeliefsOrMarginals(j) /= max;
+            j += 1;
+          }
         }
+        i += 1;
+      }
+      var total = 0.0;
+      var j = 0;
+      while (j < domainSize) {
+        total += cachedBeliefsOrMarginals(j);
         j += 1;
       }
-      require(normalizer > 0, domain.entries.toSeq);
       j = 0;
-      while (j < domain.size) {
-        sentMessages(i)(j) /= normalizer;
+      while (j < domainSize) {
+        cachedBeliefsOrMarginals(j) /= total;
+        j += 1;
+      }
+    } else {
+      java.util.Arrays.fill(cachedBeliefsOrMarginals, 0.0);
+      var i = 0;
+      while (i < factors.size) {
+        val receivedOffset = receivedStart + i * domainSize;
+        var j = 0;
+        while (j < domainSize) {
+          cachedBeliefsOrMarginals(j) += Math.log(messages(receivedOffset + j)) * messageMultiplier;
+          j += 1;
+        }
+        i += 1;
+      }
+      GUtil.logNormalizei(cachedBeliefsOrMarginals);
+      var j = 0;
+      while (j < domainSize) {
+        cachedBeliefsOrMarginals(j) = Math.exp(cachedBeliefsOrMarginals(j));
         j += 1;
       }
-      factors(i).receiveMessage(this, sentMessages(i));
     }
   }
-  
+
   def getMarginals(): Array[Double] = {
-    getMarginalsUseLogSpace(1.0);
+    getMarginals(1.0);
   }
-  
+
   def getMarginals(messageMultiplier: Double): Array[Double] = {
-    getMarginalsUseLogSpace(messageMultiplier);
-  }
-  
-  def getMarginalsUseLogSpace(messageMultiplier: Double): Array[Double] = {
-    for (i <- 0 until cachedBeliefsOrMarginals.size) {
-      cachedBeliefsOrMarginals(i) = 0.0;
-    }
-    for (i <- 0 until cachedBeliefsOrMarginals.size) {
-      for (j <- 0 until receivedMessages.size) {
-        cachedBeliefsOrMarginals(i) += Math.log(receivedMessageValue(j, i)) * messageMultiplier;
-      }
-    }
-//    if (domain.size < 20) {
-//      Logger.logss("Node with domain " + domain.entries.toSeq + " receiving messages from " + factors.size + " factors");
-//      receivedMessages.foreach(msg => Logger.logss(if (msg != null) msg.toSeq else "null"));
-//    }
-    GUtil.logNormalizei(cachedBeliefsOrMarginals);
-    for (i <- 0 until cachedBeliefsOrMarginals.size) {
-      cachedBeliefsOrMarginals(i) = Math.exp(cachedBeliefsOrMarginals(i));
-    }
+    computeBeliefs(messageMultiplier);
     cachedBeliefsOrMarginals
   }
 }
+
+object Node {
+  // Products of messages are rescaled once they get this small so they can't underflow
+  val RescaleThreshold = 1e-100;
+}
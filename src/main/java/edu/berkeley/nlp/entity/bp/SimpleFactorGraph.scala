@@ -5,6 +5,7 @@ import edu.berkeley.nlp.math.SloppyMath
 
 class SimpleFactorGraph[T](val nodes: Seq[Node[T]],
                            val factors: Seq[ConstantFactor[T]]) {
+  val messageStore = new MessageStore(nodes);
   
   def runBP(numItrs: Int) {
     nodes.foreach(_.initializeReceivedMessagesUniform());
@@ -117,8 +118,8 @@ object SimpleFactorGraph {
       var logSumOfProds = Double.NegativeInfinity;
       for (valueIdx <- 0 until node.domain.size) {
         var logProd = 0.0;
-        for (msg <- node.receivedMessages) {
-          logProd += Math.log(msg(valueIdx));
+        for (factorIdx <- 0 until node.factors.size) {
+          logProd += Math.log(node.receivedMessageValue(factorIdx, valueIdx));
         }
         logSumOfProds = SloppyMath.logAdd(logSumOfProds, logProd);
       }
@@ -137,7 +138,7 @@ object SimpleFactorGraph {
           var logProd = 0.0;
           for (otherFactorIdx <- 0 until node.factors.size) {
             if (otherFactorIdx != factorIdx) {
-              logProd += Math.log(node.receivedMessages(otherFactorIdx)(valueIdx));
+              logProd += Math.log(node.receivedMessageValue(otherFactorIdx, valueIdx));
             }
           }
           logSumOfProds = SloppyMath.logAdd(logSumOfProds, logProd);
@@ -0,0 +1,279 @@
+package edu.berkeley.nlp.entity.coref
+
+import java.util.Locale
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashSet
+
+/**
+ * Recall and precision numerators and denominators for one metric. These add across
+ * documents, which is how the CoNLL scorer aggregates a corpus.
+ */
+class PRSuffStats(val recallNum: Double, val recallDenom: Double, val precNum: Double, val precDenom: Double) extends Serializable {
+  def recall = if (recallDenom == 0) 0.0 else recallNum / recallDenom;
+  def prec = if (precDenom == 0) 0.0 else precNum / precDenom;
+  def f1 = if (prec + recall == 0) 0.0 else 2 * prec * recall / (prec + recall);
+
+  def +(other: PRSuffStats) = new PRSuffStats(recallNum + other.recallNum, recallDenom + other.recallDenom, precNum + other.precNum, precDenom + other.precDenom);
+}
+
+/**
+ * Sufficient statistics for everything the CoNLL reference scorer (scorer.pl all) reports:
+ * MUC, B^3, mention- and entity-based CEAF, and BLANC, the last as coreference and
+ * non-coreference link counts (Luo et al., 2014).
+ */
+class CorefConllSuffStats(val muc: PRSuffStats,
+                          val bcub: PRSuffStats,
+                          val ceafm: PRSuffStats,
+                          val ceafe: PRSuffStats,
+                          val blancCoref: PRSuffStats,
+                          val blancNonCoref: PRSuffStats) extends Serializable {
+
+  def +(other: CorefConllSuffStats) = new CorefConllSuffStats(muc + other.muc, bcub + other.bcub, ceafm + other.ceafm, ceafe + other.ceafe,
+                                                              blancCoref + other.blancCoref, blancNonCoref + other.blancNonCoref);
+
+  // With no links of one kind on either side, BLANC is just the score for the other kind
+  private def blanc(coref: Double, nonCoref: Double) = {
+    if (blancCoref.recallDenom == 0 && blancCoref.precDenom == 0) {
+      nonCoref;
+    } else if (blancNonCoref.recallDenom == 0 && blancNonCoref.precDenom == 0) {
+      coref;
+    } else {
+      (coref + nonCoref) / 2;
+    }
+  }
+
+  def blancRecall = blanc(blancCoref.recall, blancNonCoref.recall);
+  def blancPrec = blanc(blancCoref.prec, blancNonCoref.prec);
+  def blancF1 = blanc(blancCoref.f1, blancNonCoref.f1);
+
+  /**
+   * Renders the totals the way scorer.pl does, so CorefConllScorer.processConllString can
+   * read either.
+   */
+  def renderLikeReferenceScorer: String = {
+    val sb = new StringBuilder;
+    for ((name, stats) <- Seq("muc" -> muc, "bcub" -> bcub, "ceafm" -> ceafm, "ceafe" -> ceafe)) {
+      sb.append("METRIC " + name + ":\n");
+      sb.append("Coreference: " + CorefConllSuffStats.renderPR(stats) + "\n");
+      sb.append(CorefConllSuffStats.Separator + "\n");
+    }
+    sb.append("METRIC blanc:\n");
+    sb.append("Coreference links: " + CorefConllSuffStats.renderPR(blancCoref) + "\n");
+    sb.append(CorefConllSuffStats.Separator + "\n");
+    sb.append("Non-coreference links: " + CorefConllSuffStats.renderPR(blancNonCoref) + "\n");
+    sb.append(CorefConllSuffStats.Separator + "\n");
+    sb.append("BLANC: Recall: " + CorefConllSuffStats.pct(blancRecall) + "\tPrecision: " + CorefConllSuffStats.pct(blancPrec) + "\tF1: " + CorefConllSuffStats.pct(blancF1) + "\n");
+    sb.append(CorefConllSuffStats.Separator);
+    sb.toString;
+  }
+}
+
+object CorefConllSuffStats {
+  val Separator = "-" * 74;
+
+  val Zero = {
+    val zero = new PRSuffStats(0, 0, 0, 0);
+    new CorefConllSuffStats(zero, zero, zero, zero, zero, zero);
+  }
+
+  def renderPR(stats: PRSuffStats) = {
+    "Recall: (" + num(stats.recallNum) + " / " + num(stats.recallDenom) + ") " + pct(stats.recall) +
+        "\tPrecision: (" + num(stats.precNum) + " / " + num(stats.precDenom) + ") " + pct(stats.prec) +
+        "\tF1: " + pct(stats.f1);
+  }
+
+  // No exponents, since processConllString only reads plain decimals
+  private def num(d: Double) = java.math.BigDecimal.valueOf(d).stripTrailingZeros.toPlainString;
+
+  private def pct(d: Double) = "%.2f%%".formatLocal(Locale.US, d * 100);
+}
+
+/**
+ * In-process reimplementation of the CoNLL reference coreference scorer. Entities are
+ * given as lists of mentions, where a mention is identified by its span (sentence, start,
+ * end) just as it is when the scorer reads the written CoNLL files; a span repeated
+ * within one side is only counted the first time it appears. Everything is computed from
+ * the key/response overlap (contingency) matrix of one document, with CEAF's optimal
+ * entity alignment found by the Hungarian algorithm.
+ */
+object CorefConllMetrics {
+
+  def computeSuffStats(key: OrderedClusteringBound, response: OrderedClusteringBound): CorefConllSuffStats = {
+    computeSuffStats(getEntities(key), getEntities(response));
+  }
+
+  def getEntities(clustering: OrderedClusteringBound): Seq[Seq[(Int,Int,Int)]] = {
+    val seen = new HashSet[(Int,Int,Int)];
+    val entities = clustering.clustering.clusters.map(cluster => {
+      cluster.map(mentIdx => {
+        val ment = clustering.ments(mentIdx);
+        (ment.sentIdx, ment.startIdx, ment.endIdx);
+      }).filter(seen.add(_));
+    });
+    entities.filter(!_.isEmpty);
+  }
+
+  def computeSuffStats(key: Seq[Seq[(Int,Int,Int)]], response: Seq[Seq[(Int,Int,Int)]]): CorefConllSuffStats = {
+    val keySizes = key.map(_.size).toArray;
+    val responseSizes = response.map(_.size).toArray;
+    // overlaps(i)(j) = number of mentions in both key entity i and response entity j
+    val overlaps = Array.ofDim[Int](key.size, response.size);
+    val responseEntityOf = new scala.collection.mutable.HashMap[(Int,Int,Int),Int];
+    for (j <- 0 until response.size; ment <- response(j)) {
+      responseEntityOf.put(ment, j);
+    }
+    for (i <- 0 until key.size; ment <- key(i)) {
+      val j = responseEntityOf.getOrElse(ment, -1);
+      if (j != -1) {
+        overlaps(i)(j) += 1;
+      }
+    }
+    val numKeyMents = keySizes.sum;
+    val numResponseMents = responseSizes.sum;
+
+    // MUC: each entity scores its size minus the number of pieces the other side splits it
+    // into, counting each mention missing from the other side as its own piece
+    var mucRecallNum = 0.0;
+    for (i <- 0 until key.size) {
+      var numPieces = keySizes(i);
+      for (j <- 0 until response.size) {
+        if (overlaps(i)(j) > 0) numPieces -= overlaps(i)(j) - 1;
+      }
+      mucRecallNum += keySizes(i) - numPieces;
+    }
+    var mucPrecNum = 0.0;
+    for (j <- 0 until response.size) {
+      var numPieces = responseSizes(j);
+      for (i <- 0 until key.size) {
+        if (overlaps(i)(j) > 0) numPieces -= overlaps(i)(j) - 1;
+      }
+      mucPrecNum += responseSizes(j) - numPieces;
+    }
+    val muc = new PRSuffStats(mucRecallNum, keySizes.map(_ - 1).sum, mucPrecNum, responseSizes.map(_ - 1).sum);
+
+    // B^3, CEAF similarity matrices, and BLANC link counts
+    var bcubRecallNum = 0.0;
+    var bcubPrecNum = 0.0;
+    var sharedCorefLinks = 0.0;
+    val entitySims = Array.ofDim[Double](key.size, response.size);
+    val mentionSims = Array.ofDim[Double](key.size, response.size);
+    for (i <- 0 until key.size; j <- 0 until response.size) {
+      val overlap = overlaps(i)(j);
+      if (overlap > 0) {
+        bcubRecallNum += overlap.toDouble * overlap / keySizes(i);
+        bcubPrecNum += overlap.toDouble * overlap / responseSizes(j);
+        sharedCorefLinks += choose2(overlap);
+        mentionSims(i)(j) = overlap;
+        entitySims(i)(j) = 2.0 * overlap / (keySizes(i) + responseSizes(j));
+      }
+    }
+    val bcub = new PRSuffStats(bcubRecallNum, numKeyMents, bcubPrecNum, numResponseMents);
+    val ceafmSim = maxAlignmentScore(mentionSims);
+    val ceafm = new PRSuffStats(ceafmSim, numKeyMents, ceafmSim, numResponseMents);
+    val ceafeSim = maxAlignmentScore(entitySims);
+    val ceafe = new PRSuffStats(ceafeSim, key.size, ceafeSim, response.size);
+
+    val keyCorefLinks = keySizes.map(choose2(_)).sum;
+    val responseCorefLinks = responseSizes.map(choose2(_)).sum;
+    val blancCoref = new PRSuffStats(sharedCorefLinks, keyCorefLinks, sharedCorefLinks, responseCorefLinks);
+    // Non-coreference links both sides have are pairs of mentions they share that are in
+    // different entities on both sides: all pairs of shared mentions, less those in the same
+    // key entity and those in the same response entity, plus those in both (removed twice)
+    val sharedMentsPerKeyEntity = overlaps.map(_.sum);
+    val sharedMentsPerResponseEntity = Array.tabulate(response.size)(j => (0 until key.size).map(overlaps(_)(j)).sum);
+    val sharedNonCorefLinks = choose2(sharedMentsPerKeyEntity.sum) - sharedMentsPerKeyEntity.map(choose2(_)).sum - sharedMentsPerResponseEntity.map(choose2(_)).sum + sharedCorefLinks;
+    val blancNonCoref = new PRSuffStats(sharedNonCorefLinks, choose2(numKeyMents) - keyCorefLinks, sharedNonCorefLinks, choose2(numResponseMents) - responseCorefLinks);
+    new CorefConllSuffStats(muc, bcub, ceafm, ceafe, blancCoref, blancNonCoref);
+  }
+
+  private def choose2(n: Int): Double = n.toDouble * (n - 1) / 2;
+
+  /**
+   * Total similarity of the best one-to-one alignment of rows to columns.
+   */
+  def maxAlignmentScore(sims: Array[Array[Double]]): Double = {
+    if (sims.size == 0 || sims(0).size == 0) {
+      0.0;
+    } else {
+      val transpose = sims.size > sims(0).size;
+      val rows = if (transpose) sims(0).size else sims.size;
+      val cols = if (transpose) sims.size else sims(0).size;
+      val assignment = hungarian(Array.tabulate(rows, cols)((r, c) => -(if (transpose) sims(c)(r) else sims(r)(c))));
+      var total = 0.0;
+      for (r <- 0 until rows) {
+        total += (if (transpose) sims(assignment(r))(r) else sims(r)(assignment(r)));
+      }
+      total;
+    }
+  }
+
+  /**
+   * Minimum-cost assignment of each row to a distinct column (requires rows <= cols);
+   * returns the column of each row. Standard O(rows^2 * cols) Hungarian algorithm with
+   * potentials.
+   */
+  def hungarian(costs: Array[Array[Double]]): Array[Int] = {
+    val n = costs.size;
+    val m = costs(0).size;
+    require(n <= m);
+    // 1-indexed; column 0 is a sentinel
+    val u = new Array[Double](n + 1);
+    val v = new Array[Double](m + 1);
+    val rowOfCol = new Array[Int](m + 1);
+    val way = new Array[Int](m + 1);
+    val minSlack = new Array[Double](m + 1);
+    val used = new Array[Boolean](m + 1);
+    var row = 1;
+    while (row <= n) {
+      rowOfCol(0) = row;
+      var col0 = 0;
+      java.util.Arrays.fill(minSlack, Double.PositiveInfinity);
+      java.util.Arrays.fill(used, false);
+      do {
+        used(col0) = true;
+        val row0 = rowOfCol(col0);
+        var delta = Double.PositiveInfinity;
+        var col1 = 0;
+        var col = 1;
+        while (col <= m) {
+          if (!used(col)) {
+            val slack = costs(row0 - 1)(col - 1) - u(row0) - v(col);
+            if (slack < minSlack(col)) {
+              minSlack(col) = slack;
+              way(col) = col0;
+            }
+            if (minSlack(col) < delta) {
+              delta = minSlack(col);
+              col1 = col;
+            }
+          }
+          col += 1;
+        }
+        col = 0;
+        while (col <= m) {
+          if (used(col)) {
+            u(rowOfCol(col)) += delta;
+            v(col) -= delta;
+          } else {
+            minSlack(col) -= delta;
+          }
+          col += 1;
+        }
+        col0 = col1;
+      } while (rowOfCol(col0) != 0);
+      do {
+        val col1 = way(col0);
+        rowOfCol(col0) = rowOfCol(col1);
+        col0 = col1;
+      } while (col0 != 0);
+      row += 1;
+    }
+    val assignment = new Array[Int](n);
+    for (col <- 1 to m) {
+      if (rowOfCol(col) != 0) {
+        assignment(rowOfCol(col) - 1) = col - 1;
+      }
+    }
+    assignment;
+  }
+}
@@ -26,6 +26,20 @@ class CorefConllScorer(val conllEvalScriptPath: String) {
   
   def score(conllDocs: Seq[ConllDoc], rawPredClusterings: Seq[OrderedClusteringBound], goldClusterings: Seq[OrderedClusteringBound], saveTempFiles: Boolean) = {
     val predClusterings = if (Driver.doConllPostprocessing) rawPredClusterings.map(_.postprocessForConll()) else rawPredClusterings;
+    if (Driver.useConllScorerScript) {
+      runScorerScript(conllDocs, predClusterings, goldClusterings, saveTempFiles);
+    } else {
+      if (Driver.conllOutputDir != "" && saveTempFiles) {
+        writeConllFiles(conllDocs, predClusterings, goldClusterings, true);
+      }
+      // Scores the files we would have written without writing them or running perl
+      val indices = (0 until conllDocs.size);
+      val suffStats = (if (indices.size > 1) indices.par else indices).aggregate(CorefConllSuffStats.Zero)((stats, i) => stats + CorefConllMetrics.computeSuffStats(goldClusterings(i), predClusterings(i)), _ + _);
+      suffStats.renderLikeReferenceScorer;
+    }
+  }
+  
+  private def writeConllFiles(conllDocs: Seq[ConllDoc], predClusterings: Seq[OrderedClusteringBound], goldClusterings: Seq[OrderedClusteringBound], saveTempFiles: Boolean): (File, File) = {
 //    var predFile = File.createTempFile("temp", ".conll");
     val (predFile, goldFile) = if (Driver.conllOutputDir != "" && saveTempFiles) {
       val pFile = File.createTempFile("temp", ".conll", new File(Driver.conllOutputDir));
@@ -51,6 +65,11 @@ class CorefConllScorer(val conllEvalScriptPath: String) {
     // Flush and close the buffers
     predWriter.close();
     goldWriter.close();
+    (predFile, goldFile);
+  }
+  
+  private def runScorerScript(conllDocs: Seq[ConllDoc], predClusterings: Seq[OrderedClusteringBound], goldClusterings: Seq[OrderedClusteringBound], saveTempFiles: Boolean) = {
+    val (predFile, goldFile) = writeConllFiles(conllDocs, predClusterings, goldClusterings, saveTempFiles);
     Logger.logss("Running scoring program...");
     import edu.berkeley.nlp.entity.Driver;
 // Build and run the process for the CoNLL eval script script
@@ -102,11 +121,13 @@ object CorefConllScorer {
     val ceafeR = ceafeRNum/ceafeRDenom * 100.0;
     val ceafeF = 2 * ceafeP * ceafeR/(ceafeP + ceafeR);
     val avg = (mucF + bcubF + ceafeF)/3.0;
+    val blancMatcher = Pattern.compile("BLANC:.*F1: ([0-9.]+)%").matcher(summary);
+    val blancStr = if (blancMatcher.find()) ", BLANC = " + fmt(blancMatcher.group(1).toDouble) else "";
     if (renderSuffStats) {
       "MUC/BCUB/CEAFE P/R N/D:\t" + mucPNum + "\t" + mucPDenom + "\t" + mucRNum + "\t" + mucRDenom + "\t" + bcubPNum + "\t" + bcubPDenom + "\t" + bcubRNum + "\t" + bcubRDenom + "\t" + ceafePNum + "\t" + ceafePDenom + "\t" + ceafeRNum + "\t" +ceafeRDenom;
     } else {
       "MUC P-R-F1, BCUB P-R-F1, CEAFE P-R-F1, Average:\t" + fmt(mucP) + "\t" + fmt(mucR) + "\t" + fmt(mucF) + "\t" + fmt(bcubP) + "\t" + fmt(bcubR) + "\t" + fmt(bcubF) + "\t" + fmt(ceafeP) + "\t" + fmt(ceafeR) + "\t" + fmt(ceafeF) + "\t" + fmt(avg) + "\n" +
-             "MUC = " + fmt(mucF) + ", BCUB = " + fmt(bcubF) + ", CEAFE = " + fmt(ceafeF) + ", AVG = " + fmt(avg);
+             "MUC = " + fmt(mucF) + ", BCUB = " + fmt(bcubF) + ", CEAFE = " + fmt(ceafeF) + ", AVG = " + fmt(avg) + blancStr;
     }
   }
   
@@ -512,7 +512,16 @@ object CorefEvaluator {
 //  }
   
   def getLossesFast(doc: CorefDoc, predBackpointers: Array[Int], mucPrecWeight: Double, mucRecWeight: Double, mucF1Weight: Double, bcubPrecWeight: Double, bcubRecWeight: Double, bcubF1Weight: Double, prunedEdges: Option[Array[Array[Boolean]]]): Array[Array[Double]] = {
-    // N.B. must be done sequentially because predBackpointers gets mutated
+    new DownstreamLossComputer(doc, predBackpointers).computeLosses(mucPrecWeight, mucRecWeight, mucF1Weight, bcubPrecWeight, bcubRecWeight, bcubF1Weight, prunedEdges)
+  }
+  
+  /**
+   * Straightforward version of getLossesFast that rebuilds the cluster maps for every entry;
+   * much slower, but kept to check DownstreamLossComputer against (see DownstreamLossComputerTest).
+   * Temporarily mutates predBackpointers, so don't share them with other threads while
+   * this runs.
+   */
+  def getLossesReference(doc: CorefDoc, predBackpointers: Array[Int], mucPrecWeight: Double, mucRecWeight: Double, mucF1Weight: Double, bcubPrecWeight: Double, bcubRecWeight: Double, bcubF1Weight: Double, prunedEdges: Option[Array[Array[Boolean]]]): Array[Array[Double]] = {
     val goldClustering = doc.goldClustering.bind(doc.goldMentions, false).toSimple
     val origPredClustering = OrderedClustering.createFromBackpointers(predBackpointers).bind(doc.predMentions, false).toSimple
     // Caches some computation about the backpointers structure to make computing cluster
@@ -758,20 +767,13 @@ object CorefEvaluator {
   }
   
   // Align target to source
+  // (the first matching index in source if there are duplicates, -1 if there's none)
   def computeMapping(source: OrderedClusteringBoundSimple, target: OrderedClusteringBoundSimple) = {
-    Array.tabulate(target.ments.size)(i => {
-      val targetMent = target.ments(i)
-      val matchingIndices = (0 until source.ments.size).filter(j => {
-        val sourceMent = source.ments(j)
-//        targetMent.sentIdx == sourceMent.sentIdx && targetMent.startIdx == sourceMent.startIdx && targetMent.endIdx == sourceMent.endIdx
-        targetMent == sourceMent
-      })
-      if (matchingIndices.size != 0) {
-        matchingIndices.head
-      } else {
-        -1
-      }
-    });
+    val sourceIndices = new HashMap[(Int,Int,Int),Int]
+    for (j <- source.ments.size - 1 to 0 by -1) {
+      sourceIndices.put(source.ments(j), j)
+    }
+    Array.tabulate(target.ments.size)(i => sourceIndices.getOrElse(target.ments(i), -1));
   }
   
   def main(args: Array[String]) {
@@ -5,8 +5,12 @@ import scala.collection.mutable.HashSet
 import edu.berkeley.nlp.futile.math.CachingDifferentiableFunction
 import edu.berkeley.nlp.futile.math.LBFGSMinimizer
 import edu.berkeley.nlp.futile.util.Logger
+import edu.berkeley.nlp.futile.fig.basic.Indexer
 import edu.berkeley.nlp.futile.fig.basic.SysInfoUtils
 import java.util.Arrays
+import edu.berkeley.nlp.entity.ConcurrentIndexer
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.OrderedParallelExecutor
 
 
 class CorefFeaturizerTrainer() {
@@ -18,13 +22,20 @@ class CorefFeaturizerTrainer() {
     // Do all preprocessing of the training set necessary to compute features
     Logger.logss("Memory before featurization: " + SysInfoUtils.getUsedMemoryStr());
     Logger.startTrack("Featurizing (basic pass)");
-    var idx = 0;
-    for (docGraph <- docGraphs) {
-      if (idx % 5 == 0) {
-        Logger.logs("Featurizing (basic pass) " + idx + ", " + SysInfoUtils.getUsedMemoryStr() + ", " + featureIndexer.size());
+    featureIndexer match {
+      case concurrentIndexer: ConcurrentIndexer[_] if Driver.numFeaturizationThreads > 1 => {
+        featurizeParallel(docGraphs, pairwiseIndexingFeaturizer, concurrentIndexer.asInstanceOf[ConcurrentIndexer[String]], Driver.numFeaturizationThreads);
+      }
+      case _ => {
+        var idx = 0;
+        for (docGraph <- docGraphs) {
+          if (idx % 5 == 0) {
+            Logger.logs("Featurizing (basic pass) " + idx + ", " + SysInfoUtils.getUsedMemoryStr() + ", " + featureIndexer.size());
+          }
+          docGraph.featurizeIndexNonPrunedUseCache(pairwiseIndexingFeaturizer);
+          idx += 1;
+        }
       }
-      docGraph.featurizeIndexNonPrunedUseCache(pairwiseIndexingFeaturizer);
-      idx += 1;
     }
     Logger.endTrack();
     Logger.logss("Features after featurization: " + featureIndexer.size());
@@ -36,6 +47,43 @@ class CorefFeaturizerTrainer() {
     Logger.logss("Memory after featurization: " + SysInfoUtils.getUsedMemoryStr());
   }
   
+  /**
+   * Featurizes the documents on numThreads threads, all adding to featureIndexer at once,
+   * then renumbers the features in the order the serial loop would have indexed them (each
+   * document's features in order, documents in order) so the indexer and feature charts
+   * come out exactly as they would serially.
+   */
+  private def featurizeParallel(docGraphs: Seq[DocumentGraph], pairwiseIndexingFeaturizer: PairwiseIndexingFeaturizer, featureIndexer: ConcurrentIndexer[String], numThreads: Int) {
+    val numFeatsBefore = featureIndexer.size;
+    val executor = new OrderedParallelExecutor[FeatureChart](numThreads);
+    try {
+      var idx = 0;
+      for (docGraph <- docGraphs) {
+        executor.submit(docGraph.featurizeIndexNonPrunedUseCache(pairwiseIndexingFeaturizer), (chart: FeatureChart) => {
+          if (idx % 5 == 0) {
+            Logger.logs("Featurizing (basic pass) " + idx + ", " + SysInfoUtils.getUsedMemoryStr() + ", " + featureIndexer.size());
+          }
+          idx += 1;
+        });
+      }
+      executor.finish();
+    } finally {
+      executor.shutdown();
+    }
+    if (featureIndexer.size > numFeatsBefore) {
+      val oldToNew = featureIndexer.renumberByFirstOccurrence(numFeatsBefore, docGraphs.map(_.cachedFeats.feats));
+      for (docGraph <- docGraphs) {
+        val feats = docGraph.cachedFeats.feats;
+        var i = 0;
+        while (i < feats.size) {
+          feats(i) = oldToNew(feats(i));
+          i += 1;
+        }
+      }
+      pairwiseIndexingFeaturizer.featureIndicesRenumbered();
+    }
+  }
+  
 //  def featurizeRahmanAddToIndexer(docGraphs: Seq[DocumentGraph], featurizer: PairwiseIndexingFeaturizer, entityFeaturizer: EntityFeaturizer) {
 //    // Could potentially do this for all DocumentGraphs but right now the
 //    // only information used is the number of clusterers and the sizes of their domains
@@ -192,3 +240,14 @@ class CorefFeaturizerTrainer() {
     adagradNanos += (System.nanoTime() - nanoTime);
   }
 }
+
+object CorefFeaturizerTrainer {
+  
+  /**
+   * A fresh feature indexer for training: one that featurizeBasic can grow from several
+   * threads if -numFeaturizationThreads asks for them, otherwise a plain Indexer.
+   */
+  def newFeatureIndexer(): Indexer[String] = {
+    if (Driver.numFeaturizationThreads > 1) new ConcurrentIndexer[String] else new Indexer[String];
+  }
+}
@@ -9,6 +9,8 @@ import edu.berkeley.nlp.entity.sem.BasicWordNetSemClasser
 import scala.util.Random
 import edu.berkeley.nlp.futile.fig.basic.Indexer
 import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.Metrics
+import edu.berkeley.nlp.entity.OrderedParallelExecutor
 
 trait CorefPruner {
 
@@ -104,6 +106,14 @@ object CorefPruner {
     docIDsAndModels
   }
   
+  /**
+   * Trains a model on all but each fold of the training documents. Up to
+   * numPrunerFoldThreads folds are trained at once. Each fold builds its own document
+   * graphs, indexer and featurizer, but they share the loaded documents, whose mentions
+   * lazily cache their conjunction strings and semantic descriptors, and WordNet. Those
+   * mention caches are published safely and hold values that don't depend on the fold,
+   * and WordNet lookups are synchronized, so the models come out the same either way.
+   */
   def trainKFoldModels(trainPath: String, trainSize: Int, numFolds: Int) = {
     val numberGenderComputer = NumberGenderComputer.readBergsmaLinData(Driver.numberGenderDataPath);
     val queryCounts: Option[QueryCountsBundle] = None;
@@ -118,37 +128,53 @@ object CorefPruner {
     val docIDsToFolds = new HashMap[UID,Int] ++ (0 until docIDsShuffled.size).map(i => docIDsShuffled(i) -> Math.min(i/foldSize, numFolds - 1));
     val docIDsAndModels = (docIDsToFolds, new ArrayBuffer[PairwiseScorer]);
     
-    for (fold <- (0 until numFolds)) {
-      // Train on data outside the fold, evaluate on data inside the fold
-      val foldTrainingDocs = allTrainDocsReordered.filter(doc => docIDsToFolds(doc.rawDoc.uid) != fold);
-      val foldTestDocs = allTrainDocsReordered.filter(doc => docIDsToFolds(doc.rawDoc.uid) == fold);
-      Logger.logss("STARTING FOLD " + fold + ": training on " + foldTrainingDocs.size + " documents, running on " + foldTestDocs.size + " documents");
-      
-      val foldTrainDocGraphs = foldTrainingDocs.map(new DocumentGraph(_, true));
-      CorefSystem.preprocessDocsCacheResources(foldTrainDocGraphs);
-      
-      val lexicalCounts = LexicalCountsBundle.countLexicalItems(foldTrainingDocs, Driver.lexicalFeatCutoff);
-      val featureIndexer = new Indexer[String]();
-      featureIndexer.getIndex(PairwiseIndexingFeaturizerJoint.UnkFeatName);
-      val featureSetSpec = FeatureSetSpecification(Driver.pairwiseFeats, Driver.conjScheme, Driver.conjFeats, Driver.conjMentionTypes, Driver.conjTemplates);
-      val basicFeaturizer = new PairwiseIndexingFeaturizerJoint(featureIndexer, featureSetSpec, lexicalCounts, queryCounts, Some(new BasicWordNetSemClasser), Seq[AuxiliaryFeaturizer]());
-      val featurizerTrainer = new CorefFeaturizerTrainer();
-      featurizerTrainer.featurizeBasic(foldTrainDocGraphs, basicFeaturizer);
-      
-      val basicInferencer = new DocumentInferencerBasic()
-      val lossFcnObjFirstPass = PairwiseLossFunctions(Driver.lossFcn);
-      val firstPassWeights = featurizerTrainer.train(foldTrainDocGraphs,
-                                                     basicFeaturizer,
-                                                     Driver.eta.toFloat,
-                                                     Driver.reg.toFloat,
-                                                     Driver.batchSize,
-                                                     lossFcnObjFirstPass,
-                                                     Driver.numItrs,
-                                                     basicInferencer);
-      val pairwiseScorer = new PairwiseScorer(basicFeaturizer, firstPassWeights).pack;
-      docIDsAndModels._2 += pairwiseScorer;
+    // At most numPrunerFoldThreads folds (and their featurized documents) in memory at once
+    val executor = new OrderedParallelExecutor[PairwiseScorer](Driver.numPrunerFoldThreads, Driver.numPrunerFoldThreads);
+    val foldsOverlap = Driver.numPrunerFoldThreads > 1;
+    if (foldsOverlap) {
+      Metrics.suspendIterations();
+    }
+    try {
+      for (fold <- (0 until numFolds)) {
+        // Train on data outside the fold, evaluate on data inside the fold
+        val foldTrainingDocs = allTrainDocsReordered.filter(doc => docIDsToFolds(doc.rawDoc.uid) != fold);
+        val foldTestDocs = allTrainDocsReordered.filter(doc => docIDsToFolds(doc.rawDoc.uid) == fold);
+        Logger.logss("STARTING FOLD " + fold + ": training on " + foldTrainingDocs.size + " documents, running on " + foldTestDocs.size + " documents");
+        executor.submit(trainFoldModel(foldTrainingDocs, queryCounts), docIDsAndModels._2 += _);
+      }
+      executor.finish();
+    } finally {
+      executor.shutdown();
+      if (foldsOverlap) {
+        Metrics.resumeIterations();
+      }
     }
     Logger.logs(docIDsAndModels._2.size + " models created");
     docIDsAndModels
   }
+  
+  private def trainFoldModel(foldTrainingDocs: Seq[CorefDoc], queryCounts: Option[QueryCountsBundle]): PairwiseScorer = {
+    val foldTrainDocGraphs = foldTrainingDocs.map(new DocumentGraph(_, true));
+    CorefSystem.preprocessDocsCacheResources(foldTrainDocGraphs);
+    
+    val lexicalCounts = LexicalCountsBundle.countLexicalItems(foldTrainingDocs, Driver.lexicalFeatCutoff);
+    val featureIndexer = CorefFeaturizerTrainer.newFeatureIndexer();
+    featureIndexer.getIndex(PairwiseIndexingFeaturizerJoint.UnkFeatName);
+    val featureSetSpec = FeatureSetSpecification(Driver.pairwiseFeats, Driver.conjScheme, Driver.conjFeats, Driver.conjMentionTypes, Driver.conjTemplates);
+    val basicFeaturizer = new PairwiseIndexingFeaturizerJoint(featureIndexer, featureSetSpec, lexicalCounts, queryCounts, Some(new BasicWordNetSemClasser), Seq[AuxiliaryFeaturizer]());
+    val featurizerTrainer = new CorefFeaturizerTrainer();
+    FeaturizationCache.featurizeBasic(foldTrainDocGraphs, basicFeaturizer, featurizerTrainer, Driver.featurizationCacheDir);
+    
+    val basicInferencer = new DocumentInferencerBasic()
+    val lossFcnObjFirstPass = PairwiseLossFunctions(Driver.lossFcn);
+    val firstPassWeights = featurizerTrainer.train(foldTrainDocGraphs,
+                                                   basicFeaturizer,
+                                                   Driver.eta.toFloat,
+                                                   Driver.reg.toFloat,
+                                                   Driver.batchSize,
+                                                   lossFcnObjFirstPass,
+                                                   Driver.numItrs,
+                                                   basicInferencer);
+    new PairwiseScorer(basicFeaturizer, firstPassWeights).pack;
+  }
 }
@@ -85,13 +85,16 @@ object CorefSystem {
   
   def preprocessDocsCacheResources(allDocGraphs: Seq[DocumentGraph]) {
     if (Driver.wordNetPath != "") {
-      val wni = new WordNetInterfacer(Driver.wordNetPath);
+      // Shared so that the pruner folds and the main model don't each load WordNet
+      val wni = WordNetInterfacer.getCachedInstance;
       allDocGraphs.foreach(_.cacheWordNetInterfacer(wni));
     }
   }
   
   def runTrainEvaluate(trainPath: String, trainSize: Int, devPath: String, devSize: Int, modelPath: String) {
-    checkFileReachableForRead(Driver.conllEvalScriptPath, "conllEvalScriptPath");
+    if (Driver.useConllScorerScript) {
+      checkFileReachableForRead(Driver.conllEvalScriptPath, "conllEvalScriptPath");
+    }
     checkFileReachableForRead(devPath, "testPath");
     val scorer = runTrain(trainPath, trainSize);
     if (!modelPath.isEmpty) {
@@ -135,7 +138,7 @@ object CorefSystem {
     preprocessDocsCacheResources(trainDocGraphs);
     CorefPruner.buildPruner(Driver.pruningStrategy).pruneAll(trainDocGraphs);
     
-    val featureIndexer = new Indexer[String]();
+    val featureIndexer = CorefFeaturizerTrainer.newFeatureIndexer();
     featureIndexer.getIndex(PairwiseIndexingFeaturizerJoint.UnkFeatName);
     val featureSetSpec = FeatureSetSpecification(Driver.pairwiseFeats, Driver.conjScheme, Driver.conjFeats, Driver.conjMentionTypes, Driver.conjTemplates);
     val auxFeaturizers = new ArrayBuffer[AuxiliaryFeaturizer]
@@ -154,7 +157,7 @@ object CorefSystem {
     }
     val basicFeaturizer = new PairwiseIndexingFeaturizerJoint(featureIndexer, featureSetSpec, lexicalCounts, queryCounts, semClasser, auxFeaturizers);
     val featurizerTrainer = new CorefFeaturizerTrainer();
-    featurizerTrainer.featurizeBasic(trainDocGraphs, basicFeaturizer);
+    FeaturizationCache.featurizeBasic(trainDocGraphs, basicFeaturizer, featurizerTrainer, Driver.featurizationCacheDir);
     PairwiseIndexingFeaturizer.printFeatureTemplateCounts(featureIndexer)
 
     val weights = if (!Driver.alternateTraining) {
@@ -188,7 +191,8 @@ object CorefSystem {
         new SimplePairwiseLossFunction(PairwiseLossFunctions(Driver.lossFcn))
       }
       val computer = new MentionRankingDocumentComputer(featureIndexer, basicFeaturizer, lossFcnObj, Driver.doSps, Driver.doMaxTraining, Driver.lossFromCurrWeights, Driver.lossFromGold)
-      val weightsDouble = new GeneralTrainer2(parallel = false).trainAdagradSparse(trainDocGraphs, computer, Driver.eta, Driver.reg, Driver.batchSize, Driver.numItrs, computer.getInitialWeights(0.0), true)
+      val trainer = new GeneralTrainer2[DocumentGraph](parallel = Driver.numTrainThreads > 1, numThreads = Driver.numTrainThreads, hogwild = Driver.hogwildTraining)
+      val weightsDouble = trainer.trainAdagradSparse(trainDocGraphs, computer, Driver.eta, Driver.reg, Driver.batchSize, Driver.numItrs, computer.getInitialWeights(0.0), true)
       val weights = weightsDouble.map(_.toFloat)
       // Evaluate on train
       val scorer = new PairwiseScorer(basicFeaturizer, weights);
@@ -1,6 +1,7 @@
 package edu.berkeley.nlp.entity.coref
 import scala.collection.JavaConverters._
 import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.entity.Metrics
 import scala.collection.mutable.ArrayBuffer
 import scala.collection.mutable.HashMap
 import scala.util.Random
@@ -16,12 +17,8 @@ class DocumentGraph(val corefDoc: CorefDoc,
                     val addToFeaturizer: Boolean) {
   // addToFeaturizer should be true for train documents (if a feature is unseen on
   // these, we add it to the featurizer) and false for dev/test documents
-  // By convention: a feature vector is empty if it has been pruned
-  val emptyIntArray = Array[Int]();
-  var cachedFeats = new Array[Array[Array[Int]]](corefDoc.numPredMents);
-  for (i <- 0 until corefDoc.numPredMents) {
-    cachedFeats(i) = Array.fill(i+1)(emptyIntArray);
-  }
+  // Pruned edges are never featurized; any features they had before being pruned are ignored
+  var cachedFeats = FeatureChart.empty(corefDoc.numPredMents);
   // These are just here so we don't have to reinstantiate them; they should
   // be overwritten every time the weights change (which is all the time)
   val cachedScoreMatrix = new Array[Array[Float]](corefDoc.numPredMents);
@@ -48,6 +45,9 @@ class DocumentGraph(val corefDoc: CorefDoc,
   val storedRelsBetter = new Array[HashMap[Seq[Pointer],Set[String]]](this.size);
   val storedRelsBetterCumulative = new Array[HashMap[Seq[Pointer],Set[String]]](this.size);
   val cachedMentionHeadMatchStatus: Array[Option[Boolean]] = Array.tabulate(this.size)(i => None);
+  // Per-mention lexical properties for the featurizer that computed them (they depend on its lexical counts)
+  val cachedMentionProperties = new Array[MentionFeatureProperties](this.size);
+  var cachedMentionPropertiesFeaturizer: PairwiseIndexingFeaturizerJoint = null;
   
   // WordNetInterfacer so the featurizer can find it if it needs to
   var cachedWni: WordNetInterfacer = null;
@@ -95,23 +95,23 @@ class DocumentGraph(val corefDoc: CorefDoc,
         val jSentIdx = getMention(j).sentIdx;
         if (j < i - maxBackptrMentDistance || (getMention(i).mentionType == MentionType.PRONOMINAL && iSentIdx - jSentIdx > maxPronounSentDistance)) {
           prunedEdges(i)(j) = true;
-          cachedFeats(i)(j) = emptyIntArray;
         }
       }
     }
   }
   
   def pruneEdgesModel(model: PairwiseScorer, logPruningThreshold: Double) {
+    val startNanos = Metrics.CorefPrune.start();
     for (i <- 0 until prunedEdges.size) {
       val scores = (0 to i).map(j => model.score(this, i, j, false));
       val bestIdx = GUtil.argMaxIdxFloat(scores);
       for (j <- 0 to i) {
         if (scores(j) < scores(bestIdx) + logPruningThreshold) {
           prunedEdges(i)(j) = true;
-          cachedFeats(i)(j) = emptyIntArray;
         }
       }
     }
+    Metrics.CorefPrune.stop(startNanos);
   }
   
   def computePruningStats(): PruningStats = {
@@ -211,13 +211,13 @@ class DocumentGraph(val corefDoc: CorefDoc,
   // N.B. The matrices returned by this method are volatile. The feats one hangs around
   // unless you refeaturize, but the other one gets mutated every time you call this
   // method (though obviously it's only different if you prune or if the weights have changed).
-  def featurizeIndexAndScoreNonPrunedUseCache(scorer: PairwiseScorer): (Array[Array[Array[Int]]], Array[Array[Float]]) = {
+  def featurizeIndexAndScoreNonPrunedUseCache(scorer: PairwiseScorer): (FeatureChart, Array[Array[Float]]) = {
     val featsChart = featurizeIndexNonPrunedUseCache(scorer.featurizer);
     val scoreChart = cachedScoreMatrix;
     for (i <- 0 until corefDoc.numPredMents) {
       for (j <- 0 to i) {
         if (!prunedEdges(i)(j)) {
-          scoreChart(i)(j) = GUtil.scoreIndexedFeats(featsChart(i)(j), scorer.weights);
+          scoreChart(i)(j) = featsChart.score(i, j, scorer.weights);
         } else {
           scoreChart(i)(j) = Float.NegativeInfinity;
         }
@@ -226,12 +226,12 @@ class DocumentGraph(val corefDoc: CorefDoc,
     (featsChart, scoreChart)
   }
   
-  def scoreUseCache(scorer: PairwiseScorer, mentIdx: Int): (Array[Array[Int]], Array[Float]) = {
-    val featsChart = featurizeIndexNonPrunedUseCache(scorer.featurizer)(mentIdx)
+  def scoreUseCache(scorer: PairwiseScorer, mentIdx: Int): (FeatureChart, Array[Float]) = {
+    val featsChart = featurizeIndexNonPrunedUseCache(scorer.featurizer)
     val scoreVec = cachedScoreMatrix(mentIdx);
     for (j <- 0 to mentIdx) {
       if (!prunedEdges(mentIdx)(j)) {
-        scoreVec(j) = GUtil.scoreIndexedFeats(featsChart(j), scorer.weights);
+        scoreVec(j) = featsChart.score(mentIdx, j, scorer.weights);
       } else {
         scoreVec(j) = Float.NegativeInfinity;
       }
@@ -241,7 +241,7 @@ class DocumentGraph(val corefDoc: CorefDoc,
   
   // How does this know whether or not to add features? The private variable addToFeatures...
   // a bit of a hack...
-  def featurizeIndexNonPrunedUseCache(featurizer: PairwiseIndexingFeaturizer): Array[Array[Array[Int]]] = {
+  def featurizeIndexNonPrunedUseCache(featurizer: PairwiseIndexingFeaturizer): FeatureChart = {
     if (cacheEmpty || featurizer != cachedFeaturizer) {
       cachedFeats = featurizeIndexNonPruned(featurizer);
       cachedFeaturizer = featurizer;
@@ -249,19 +249,22 @@ class DocumentGraph(val corefDoc: CorefDoc,
     }
     cachedFeats;
   }
+  
+  /**
+   * Installs features computed earlier with featurizer (see FeaturizationCache) as if
+   * featurizeIndexNonPrunedUseCache had just computed them.
+   */
+  def setCachedFeats(feats: FeatureChart, featurizer: PairwiseIndexingFeaturizer) {
+    require(feats.numMents == corefDoc.numPredMents);
+    cachedFeats = feats;
+    cachedFeaturizer = featurizer;
+    cacheEmpty = false;
+  }
 
-  private def featurizeIndexNonPruned(featurizer: PairwiseIndexingFeaturizer): Array[Array[Array[Int]]] = {
-    val featsChart = new Array[Array[Array[Int]]](corefDoc.numPredMents);
-    for (i <- 0 until corefDoc.numPredMents) {
-      featsChart(i) = new Array[Array[Int]](i+1);
-      for (j <- 0 to i) {
-        if (!prunedEdges(i)(j)) {
-          featsChart(i)(j) = featurizer.featurizeIndex(this, i, j, addToFeaturizer);
-        }
-      }
-//      Logger.logss(i + ": " + featsChart(i).map(_.head).toSeq);
+  private def featurizeIndexNonPruned(featurizer: PairwiseIndexingFeaturizer): FeatureChart = {
+    Metrics.FeaturizeCoref.time {
+      FeatureChart.build(corefDoc.numPredMents, (i, j) => prunedEdges(i)(j), (i, j) => featurizer.featurizeIndex(this, i, j, addToFeaturizer));
     }
-    featsChart;
   }
   
   def scoreNonPrunedUseCache(weights: Array[Float]): Array[Array[Float]] = {
@@ -270,8 +273,8 @@ class DocumentGraph(val corefDoc: CorefDoc,
     for (i <- 0 until corefDoc.numPredMents) {
       for (j <- 0 to i) {
         if (!prunedEdges(i)(j)) {
-          require(featsChart(i)(j).size > 0);
-          scoreChart(i)(j) = GUtil.scoreIndexedFeats(featsChart(i)(j), weights);
+          require(featsChart.numFeats(i, j) > 0);
+          scoreChart(i)(j) = featsChart.score(i, j, weights);
         } else {
           scoreChart(i)(j) = Float.NegativeInfinity;
         }
@@ -282,21 +285,11 @@ class DocumentGraph(val corefDoc: CorefDoc,
   
   def setPrunedEdges(prunedEdges: Array[Array[Boolean]]) {
     this.prunedEdges = prunedEdges;
-    for (i <- 0 until prunedEdges.size) {
-      for (j <- 0 until prunedEdges(i).size) {
-        if (prunedEdges(i)(j)) {
-          cachedFeats(i)(j) = emptyIntArray;
-        }
-      }
-    }
   }
   
   def clearFeatureCache() {
-    for (i <- 0 until cachedFeats.size) {
-      for (j <- 0 until cachedFeats(i).size) {
-        cachedFeats(i)(j) = emptyIntArray;
-      }
-    }
+    cachedFeats = FeatureChart.empty(corefDoc.numPredMents);
+    cacheEmpty = true;
   }
   
   def printAverageFeatureCountInfo() {
@@ -304,14 +297,14 @@ class DocumentGraph(val corefDoc: CorefDoc,
     var denomAnaphoric = 0;
     var numerNonanaphoric = 0;
     var denomNonanaphoric = 0;
-    for (i <- 0 until cachedFeats.size) {
-      for (j <-0 until cachedFeats(i).size) {
+    for (i <- 0 until this.size) {
+      for (j <- 0 to i) {
         if (!prunedEdges(i)(j)) {
           if (i != j) {
-            numerAnaphoric += cachedFeats(i)(j).size;
+            numerAnaphoric += cachedFeats.numFeats(i, j);
             denomAnaphoric += 1;
           } else {
-            numerNonanaphoric += cachedFeats(i)(j).size;
+            numerNonanaphoric += cachedFeats.numFeats(i, j);
             denomNonanaphoric += 1;
           }
         }
@@ -422,6 +415,17 @@ class DocumentGraph(val corefDoc: CorefDoc,
     storedRelsBetterCumulative(idx)(rels);
   }
   
+  def getMentionPropertiesUseCache(featurizer: PairwiseIndexingFeaturizerJoint, idx: Int): MentionFeatureProperties = {
+    if (featurizer ne cachedMentionPropertiesFeaturizer) {
+      java.util.Arrays.fill(cachedMentionProperties.asInstanceOf[Array[Object]], null);
+      cachedMentionPropertiesFeaturizer = featurizer;
+    }
+    if (cachedMentionProperties(idx) == null) {
+      cachedMentionProperties(idx) = featurizer.computeMentionProperties(getMention(idx));
+    }
+    cachedMentionProperties(idx);
+  }
+  
   def getHeadMatchStatus(idx: Int) = {
     if (!cachedMentionHeadMatchStatus(idx).isDefined) {
       cachedMentionHeadMatchStatus(idx) = Some((0 until idx).map(i => (getMention(i).headStringLc == getMention(idx).headStringLc)).foldLeft(false)(_ || _));
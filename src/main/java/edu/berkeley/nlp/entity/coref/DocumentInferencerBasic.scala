@@ -80,7 +80,7 @@ class DocumentInferencerBasic extends DocumentInferencer {
     for (i <- 0 until docGraph.size) {
       for (j <- 0 to i) {
         if (predMarginals(i)(j) > 1e-20) {
-          GUtil.addToGradient(featsChart(i)(j), -predMarginals(i)(j), gradient);
+          featsChart.addToGradient(i, j, -predMarginals(i)(j), gradient);
         }
       }
     }
@@ -88,7 +88,7 @@ class DocumentInferencerBasic extends DocumentInferencer {
     for (i <- 0 until docGraph.size) {
       for (j <- 0 to i) {
         if (goldMarginals(i)(j) > 1e-20) {
-          GUtil.addToGradient(featsChart(i)(j), goldMarginals(i)(j), gradient);
+          featsChart.addToGradient(i, j, goldMarginals(i)(j), gradient);
         }
       }
     }
@@ -7,9 +7,19 @@ case class MentClusterMapping(val maxSize: Int) {
   val mentsToClusters = new Array[Int](maxSize);
   val clustersToMents = new ArrayBuffer[ArrayBuffer[Int]]();
   var nextClusterIdx = 0;
+  // Once trackClusterValues has been called: each mention's best value under each clusterer,
+  // each mention's conjunction id (see EntityFeaturizer.conjId), and for each cluster how
+  // many of its members take each value under each clusterer, kept current as mentions
+  // are assigned so entity features don't have to walk the clusters
+  var mentBestClusters: Array[Array[Int]] = null;
+  var numClusterValues: Array[Int] = null;
+  var mentConjIds: Array[Int] = null;
+  var conjIdsFeaturizer: EntityFeaturizer = null;
+  val clusterValueCounts = new ArrayBuffer[Array[Array[Int]]]();
   
   def clear() {
     clustersToMents.clear;
+    clusterValueCounts.clear;
     nextClusterIdx = 0;
   }
   
@@ -17,6 +27,20 @@ case class MentClusterMapping(val maxSize: Int) {
     clustersToMents(mentsToClusters(mentIdx));
   }
   
+  def isTrackingClusterValues = mentBestClusters != null;
+  
+  /**
+   * Starts keeping per-cluster value counts; call on a cleared mapping. The best clusters
+   * are computed once and reused, since a document's cluster posteriors don't change.
+   */
+  def trackClusterValues(docGraph: DocumentGraph) {
+    require(clustersToMents.isEmpty);
+    if (mentBestClusters == null) {
+      mentBestClusters = Array.tabulate(docGraph.numClusterers, docGraph.size)((clustererIdx, mentIdx) => docGraph.getBestCluster(clustererIdx, mentIdx));
+      numClusterValues = Array.tabulate(docGraph.numClusterers)(clustererIdx => if (docGraph.size == 0) 0 else docGraph.numClusters(clustererIdx));
+    }
+  }
+  
   def populateWithGold(docGraph: DocumentGraph) {
     for (i <- 0 until docGraph.size) {
       val antecedent = docGraph.getGoldAntecedentsUnderCurrentPruning(i)(0);
@@ -28,12 +52,23 @@ case class MentClusterMapping(val maxSize: Int) {
     if (assignmentIdx == mentIdx) {
       mentsToClusters(mentIdx) = nextClusterIdx;
       clustersToMents += ArrayBuffer[Int](mentIdx);
+      if (mentBestClusters != null) {
+        clusterValueCounts += Array.tabulate(numClusterValues.size)(clustererIdx => new Array[Int](numClusterValues(clustererIdx)));
+      }
       nextClusterIdx += 1;
     } else {
       val clusterIdx = mentsToClusters(assignmentIdx)
       mentsToClusters(mentIdx) = clusterIdx;
       clustersToMents(clusterIdx) += mentIdx;
     }
+    if (mentBestClusters != null) {
+      val counts = clusterValueCounts(mentsToClusters(mentIdx));
+      var clustererIdx = 0;
+      while (clustererIdx < counts.size) {
+        counts(clustererIdx)(mentBestClusters(clustererIdx)(mentIdx)) += 1;
+        clustererIdx += 1;
+      }
+    }
   }
 }
 
@@ -42,6 +77,16 @@ class DocumentInferencerRahman(val entityFeaturizer: EntityFeaturizer,
                                val rahmanTrainType: String) extends DocumentInferencer {
   
   var wCounter = 0;
+  private val entityFeatureIndices = new java.util.IdentityHashMap[Indexer[String],EntityFeatureIndex];
+  
+  private def entityFeatureIndex(featureIndexer: Indexer[String]) = synchronized {
+    var index = entityFeatureIndices.get(featureIndexer);
+    if (index == null) {
+      index = new EntityFeatureIndex(entityFeaturizer, featureIndexer);
+      entityFeatureIndices.put(featureIndexer, index);
+    }
+    index;
+  }
   
   def getInitialWeightVector(featureIndexer: Indexer[String]): Array[Float] = Array.fill(featureIndexer.size())(0.0F);
   
@@ -65,7 +110,8 @@ class DocumentInferencerRahman(val entityFeaturizer: EntityFeaturizer,
                                          entityAntecedents: Array[Int]): (Array[Array[Float]], MentClusterMapping) = {
     val marginals = docGraph.cachedMarginalMatrix;
     val mentClusterMapping = docGraph.cachedMentClusterMapping;
-    mentClusterMapping.clear();
+    entityFeaturizer.prepareMapping(docGraph, mentClusterMapping);
+    val featureIndex = entityFeatureIndex(pairwiseScorer.featurizer.getIndexer);
     for (i <- 0 until docGraph.size) {
       var normalizer = 0.0F;
       // Restrict to gold antecedents if we're doing gold, but don't load the gold antecedents
@@ -77,18 +123,19 @@ class DocumentInferencerRahman(val entityFeaturizer: EntityFeaturizer,
         // If this is a legal antecedent
         if (!docGraph.isPruned(i, j) && (!gold || goldAntecedents.contains(j))) {
           // N.B. Including lossFcn is okay even for gold because it should be zero
-          val entityFeatures = entityFeaturizer.featurize(docGraph, i, j, mentClusterMapping.mentsToClusters, mentClusterMapping.clustersToMents);
+          val entityFeatures = entityFeaturizer.featurizeIndexed(i, j, mentClusterMapping, featureIndex);
 //          if (j != i) {
 //            Logger.logss("Prev ments for " + j + ": " + mentClusterMapping.getCluster(j).map(docGraph.getMention(_).headString))
 //          }
-//          Logger.logss("Features for " + i + " -> " + j + ": " + entityFeatures.map(_.name));
-          val entityFeatsScore = entityFeatures.foldLeft(0.0)((score, feat) => {
-            val featIdx = pairwiseScorer.featurizer.getIndexer.indexOf(feat.name);
-            if (featIdx == -1) {
-              throw new RuntimeException("Unknown feature: " + feat.name);
+          var entityFeatsScore = 0.0;
+          var featIdx = 0;
+          while (featIdx < entityFeatures.size) {
+            if (entityFeatures(featIdx) == -1) {
+              throw new RuntimeException("Unknown feature: " + unknownFeatureName(docGraph, i, j, mentClusterMapping, pairwiseScorer.featurizer.getIndexer));
             }
-            score + pairwiseScorer.weights(featIdx)
-          });
+            entityFeatsScore += pairwiseScorer.weights(entityFeatures(featIdx));
+            featIdx += 1;
+          }
           val unnormalizedProb = Math.exp(scoresChart(i)(j) + entityFeatsScore + lossFcn(docGraph.corefDoc, i, j)).toFloat;
           marginals(i)(j) = unnormalizedProb;
           normalizer += unnormalizedProb;
@@ -141,10 +188,11 @@ class DocumentInferencerRahman(val entityFeaturizer: EntityFeaturizer,
     val (featsChart, scoresChart) = docGraph.featurizeIndexAndScoreNonPrunedUseCache(pairwiseScorer);
     val goldAntecedents = (0 until docGraph.size).map(i => docGraph.getGoldAntecedentsNoPruning(i)(0)).toArray;
     val isGoldFirstPass = rahmanTrainType.contains("predusegold");
+    val gradientFeatureIndex = entityFeatureIndex(entityFeatureIndexer);
     
     val predMarginals = this.computeMarginalsAndViterbi(docGraph, pairwiseScorer, false, lossFcn, scoresChart, if (isGoldFirstPass) goldAntecedents else null)._1;
     val predMentClusterMapping = docGraph.cachedMentClusterMapping;
-    predMentClusterMapping.clear();
+    entityFeaturizer.prepareMapping(docGraph, predMentClusterMapping);
     // Used if we want to use predicted previous clusters for computing gold features
     val predAntecedents = new Array[Int](docGraph.size);
     for (i <- 0 until docGraph.size) {
@@ -153,9 +201,11 @@ class DocumentInferencerRahman(val entityFeaturizer: EntityFeaturizer,
       for (j <- 0 to i) {
         // Compute the features associated with this
         if (predMarginals(i)(j) > 1e-20) {
-          addToGradient(featsChart(i)(j), -predMarginals(i)(j), gradient);
-          val entityFeatures = entityFeaturizer.featurize(docGraph, i, j, predMentClusterMapping.mentsToClusters, predMentClusterMapping.clustersToMents);
-          val indexedFeatures = entityFeaturizer.indexFeatures(entityFeatures, entityFeatureIndexer);
+          featsChart.addToGradient(i, j, -predMarginals(i)(j), gradient);
+          val indexedFeatures = entityFeaturizer.featurizeIndexed(i, j, predMentClusterMapping, gradientFeatureIndex);
+          if (indexedFeatures.contains(-1)) {
+            throw new RuntimeException("Unknown feature: " + unknownFeatureName(docGraph, i, j, predMentClusterMapping, entityFeatureIndexer));
+          }
           addToGradient(indexedFeatures, -predMarginals(i)(j), gradient);
           if (predMarginals(i)(j) > bestAntecedentScore) {
             bestAntecedentIdx = j;
@@ -176,15 +226,17 @@ class DocumentInferencerRahman(val entityFeaturizer: EntityFeaturizer,
 //    val goldMarginals = this.computeMarginalsAndViterbi(docGraph, pairwiseScorer, true, lossFcn, scoresChart, if (isPredSecondPass) predAntecedents else null)._1;
     val goldMarginals = this.computeMarginalsAndViterbi(docGraph, pairwiseScorer, true, lossFcn, scoresChart, if (isPredSecondPass) predAntecedents else goldAntecedents)._1;
     val goldMentClusterMapping = docGraph.cachedMentClusterMapping;
-    goldMentClusterMapping.clear();
+    entityFeaturizer.prepareMapping(docGraph, goldMentClusterMapping);
     for (i <- 0 until docGraph.size) {
       var bestAntecedentIdx = -1;
       var bestAntecedentScore = Float.NegativeInfinity;
       for (j <- 0 to i) {
         if (goldMarginals(i)(j) > 1e-20) {
-          addToGradient(featsChart(i)(j), goldMarginals(i)(j), gradient);
-          val entityFeatures = entityFeaturizer.featurize(docGraph, i, j, goldMentClusterMapping.mentsToClusters, goldMentClusterMapping.clustersToMents);
-          val indexedFeatures = entityFeaturizer.indexFeatures(entityFeatures, entityFeatureIndexer);
+          featsChart.addToGradient(i, j, goldMarginals(i)(j), gradient);
+          val indexedFeatures = entityFeaturizer.featurizeIndexed(i, j, goldMentClusterMapping, gradientFeatureIndex);
+          if (indexedFeatures.contains(-1)) {
+            throw new RuntimeException("Unknown feature: " + unknownFeatureName(docGraph, i, j, goldMentClusterMapping, entityFeatureIndexer));
+          }
           addToGradient(indexedFeatures, goldMarginals(i)(j), gradient);
           if (goldMarginals(i)(j) > bestAntecedentScore) {
             bestAntecedentIdx = j;
@@ -213,7 +265,14 @@ class DocumentInferencerRahman(val entityFeaturizer: EntityFeaturizer,
     wCounter += 1;
   }
   
-  private def addToGradient(feats: Seq[Int], scale: Float, gradient: Array[Float]) {
+  /**
+   * Finds the name of a feature of (i, j) the indexer is missing, for error messages.
+   */
+  private def unknownFeatureName(docGraph: DocumentGraph, i: Int, j: Int, mapping: MentClusterMapping, featureIndexer: Indexer[String]) = {
+    entityFeaturizer.featurize(docGraph, i, j, mapping.mentsToClusters, mapping.clustersToMents).map(_.name).find(featureIndexer.indexOf(_) == -1).getOrElse("");
+  }
+  
+  private def addToGradient(feats: Array[Int], scale: Float, gradient: Array[Float]) {
     var i = 0;
     while (i < feats.size) {
       val feat = feats(i);
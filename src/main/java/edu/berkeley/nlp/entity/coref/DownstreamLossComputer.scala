@@ -0,0 +1,414 @@
+package edu.berkeley.nlp.entity.coref
+
+import java.util.Arrays
+import scala.collection.mutable.ArrayBuffer
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.GUtil
+
+/**
+ * Computes the table of downstream losses behind CorefEvaluator.getLossesFast: for each
+ * mention i and candidate antecedent j, how much worse the weighted MUC/B^3 of the
+ * predicted clustering gets if i's backpointer is moved to j.
+ *
+ * The constructor snapshots the predicted and gold clusterings as flat arrays (cluster of
+ * each mention, alignments, each cluster's MUC partition and B^3 terms), which are never
+ * changed afterwards. A row only depends on how moving i splits its cluster (the same for
+ * every j) and on j's cluster, so each entry just adjusts the terms for the clusters
+ * involved instead of rebuilding cluster maps. Rows are independent and run in parallel for
+ * large documents unless training is already multi-threaded; each thread reuses one set of
+ * scratch arrays. Sums are accumulated in
+ * the same order as in CorefEvaluator.getLossesReference, so the losses are identical.
+ */
+class DownstreamLossComputer(doc: CorefDoc, predBackpointers: Array[Int]) {
+  private val numMents = predBackpointers.size
+  private val goldClustering = doc.goldClustering.bind(doc.goldMentions, false).toSimple
+  private val predClustering = OrderedClustering.createFromBackpointers(predBackpointers).bind(doc.predMentions, false).toSimple
+  private val goldToPredAlignment = CorefEvaluator.computeMapping(predClustering, goldClustering)
+  private val predToGoldAlignment = CorefEvaluator.computeMapping(goldClustering, predClustering)
+  private val mucComputation = new MucComputation(goldClustering, predClustering, goldToPredAlignment, predToGoldAlignment)
+  private val bcubComputation = new BcubComputation(goldClustering, predClustering, goldToPredAlignment, predToGoldAlignment, true)
+
+  // Members of each cluster in increasing order
+  private val predClusters = predClustering.clustering.clusters.map(_.toArray.sorted).toArray
+  private val numPredClusters = predClusters.size
+  private val predClusterOf = DownstreamLossComputer.clusterOf(predClusters, numMents)
+  private val goldClusters = goldClustering.clustering.clusters.map(_.toArray).toArray
+  private val numGoldClusters = goldClusters.size
+  private val goldClusterOf = DownstreamLossComputer.clusterOf(goldClusters, goldClustering.ments.size)
+
+  ////////////// MUC //////////////
+  // Sizes of the gold clusters' partitions and the pred clusters in each (sorted); the
+  // rest of a partition is its unaligned mentions
+  private val goldPartitionSizes = mucComputation.keyClusterPartitions.map(_.size)
+  private val goldPartitionClusters = mucComputation.keyClusterPartitions.map(_.filter(_ < numPredClusters).toArray.sorted)
+  // Gold clusters whose partition includes each pred cluster
+  private val goldClustersTouching = {
+    val touching = Array.fill(numPredClusters)(new ArrayBuffer[Int])
+    for (goldClusterIdx <- 0 until numGoldClusters; predClusterIdx <- goldPartitionClusters(goldClusterIdx)) {
+      touching(predClusterIdx) += goldClusterIdx
+    }
+    touching.map(_.toArray)
+  }
+  // Distinct gold clusters that each pred cluster's aligned mentions belong to, and how many
+  // of its mentions are unaligned; together these make up the pred cluster's partition
+  private val predClusterGolds = predClusters.map(cluster => cluster.filter(predToGoldAlignment(_) != -1).map(ment => goldClusterOf(predToGoldAlignment(ment))).distinct)
+  private val predClusterNumUnaligned = predClusters.map(_.count(predToGoldAlignment(_) == -1))
+
+  ////////////// B^3 //////////////
+  // For each pred cluster, the gold clusters (ascending) whose recall terms include it and those terms
+  private val (recallTermGolds, recallTermValues) = {
+    val golds = Array.fill(numPredClusters)(new ArrayBuffer[Int])
+    val values = Array.fill(numPredClusters)(new ArrayBuffer[Double])
+    for (goldClusterIdx <- 0 until numGoldClusters; (predClusterIdx, value) <- bcubComputation.recallSumTerms(goldClusterIdx)) {
+      golds(predClusterIdx) += goldClusterIdx
+      values(predClusterIdx) += value
+    }
+    (golds.map(_.toArray), values.map(_.toArray))
+  }
+  private val precTermTotals = bcubComputation.precSumTerms.map(_.values.foldLeft(0.0)(_ + _))
+  // For each pred mention, the gold clusters (ascending) whose projection onto the pred mentions contains it
+  private val mentProjectedGolds = {
+    val golds = Array.fill(numMents)(new ArrayBuffer[Int])
+    for (goldClusterIdx <- 0 until numGoldClusters; goldMentIdx <- goldClusters(goldClusterIdx)) {
+      val alignment = goldToPredAlignment(goldMentIdx)
+      if (alignment != -1 && (golds(alignment).isEmpty || golds(alignment).last != goldClusterIdx)) {
+        golds(alignment) += goldClusterIdx
+      }
+    }
+    golds.map(_.toArray)
+  }
+  // For each pred cluster, the gold clusters (ascending) whose projections intersect it and
+  // the sizes of the intersections
+  private val (projectedGolds, projectedCounts) = {
+    val scratch = DownstreamLossComputer.scratch.get
+    scratch.ensureCapacity(numMents, numGoldClusters)
+    val lists = predClusters.map(scratch.projectedGolds(_, 0, true, mentProjectedGolds))
+    (lists.map(_._1), lists.map(_._2))
+  }
+
+  def computeLosses(mucPrecWeight: Double, mucRecWeight: Double, mucF1Weight: Double, bcubPrecWeight: Double, bcubRecWeight: Double, bcubF1Weight: Double, prunedEdges: Option[Array[Array[Boolean]]]): Array[Array[Double]] = {
+    val weights = Array(mucPrecWeight, mucRecWeight, mucF1Weight, bcubPrecWeight, bcubRecWeight, bcubF1Weight)
+    if (numMents >= DownstreamLossComputer.ParallelMinMents && !DownstreamLossComputer.calledFromParallelTraining) {
+      (0 until numMents).par.map(i => computeRow(i, weights, prunedEdges)).toArray
+    } else {
+      Array.tabulate(numMents)(i => computeRow(i, weights, prunedEdges))
+    }
+  }
+
+  private def computeRow(i: Int, weights: Array[Double], prunedEdges: Option[Array[Array[Boolean]]]): Array[Double] = {
+    val scratch = DownstreamLossComputer.scratch.get
+    scratch.ensureCapacity(numMents, numGoldClusters)
+    val oldValue = predBackpointers(i)
+    val currClusterIdx = predClusterOf(i)
+    val currCluster = predClusters(currClusterIdx)
+    // Cutting i's backpointer splits its cluster into i's subtree (which goes with j) and the
+    // rest (which stays with oldValue; empty if i has no antecedent)
+    val stamp = scratch.nextStamp()
+    val inSubtree = scratch.inSubtree
+    inSubtree(i) = stamp
+    var subtreeSize = 1
+    var k = 0
+    while (k < currCluster.size) {
+      val ment = currCluster(k)
+      if (ment > i && inSubtree(predBackpointers(ment)) == stamp) {
+        inSubtree(ment) = stamp
+        subtreeSize += 1
+      }
+      k += 1
+    }
+    val restSize = currCluster.size - subtreeSize
+
+    // MUC precision: partitions of the two halves with respect to the gold clusters
+    val subtreeGoldMarks = scratch.subtreeGoldMarks
+    val restGoldMarks = scratch.restGoldMarks
+    var subtreePartitionSize = 0
+    var restPartitionSize = 0
+    k = 0
+    while (k < currCluster.size) {
+      val ment = currCluster(k)
+      val alignment = predToGoldAlignment(ment)
+      val goldMarks = if (inSubtree(ment) == stamp) subtreeGoldMarks else restGoldMarks
+      if (alignment == -1 || goldMarks(goldClusterOf(alignment)) != stamp) {
+        if (alignment != -1) {
+          goldMarks(goldClusterOf(alignment)) = stamp
+        }
+        if (inSubtree(ment) == stamp) subtreePartitionSize += 1 else restPartitionSize += 1
+      }
+      k += 1
+    }
+    var mucPrecNumerBase = mucComputation.precSuffStats._1
+    mucPrecNumerBase -= (currCluster.size - (predClusterGolds(currClusterIdx).size + predClusterNumUnaligned(currClusterIdx)))
+    if (restSize > 0) {
+      mucPrecNumerBase += restSize - restPartitionSize
+    }
+
+    // MUC recall: for gold clusters whose partitions include i's cluster, whether they
+    // include each half
+    val touching = goldClustersTouching(currClusterIdx)
+    val touchesRest = scratch.touchesRest
+    val touchesSubtree = scratch.touchesSubtree
+    k = 0
+    while (k < touching.size) {
+      touchesRest(k) = false
+      touchesSubtree(k) = false
+      val goldCluster = goldClusters(touching(k))
+      var l = 0
+      while (l < goldCluster.size) {
+        val alignment = goldToPredAlignment(goldCluster(l))
+        if (alignment != -1 && predClusterOf(alignment) == currClusterIdx) {
+          if (inSubtree(alignment) == stamp) touchesSubtree(k) = true else touchesRest(k) = true
+        }
+        l += 1
+      }
+      k += 1
+    }
+
+    // B^3: intersections of the two halves with the projected gold clusters
+    val (restGolds, restCounts) = scratch.projectedGolds(currCluster, stamp, false, mentProjectedGolds)
+    val (subtreeGolds, subtreeCounts) = scratch.projectedGolds(currCluster, stamp, true, mentProjectedGolds)
+
+    val unchangedLoss = mucComputation.prec * weights(0) + mucComputation.recall * weights(1) + mucComputation.f1 * weights(2) +
+        bcubComputation.prec * weights(3) + bcubComputation.recall * weights(4) + bcubComputation.f1 * weights(5)
+    val results = new Array[Double](i + 1)
+    var j = 0
+    while (j <= i) {
+      results(j) = if (prunedEdges.isDefined && prunedEdges.get(i)(j)) {
+        Double.NegativeInfinity
+      } else if (j == oldValue || (j != i && predClusterOf(j) == predClusterOf(oldValue))) {
+        // Linking to something else in the same cluster doesn't change the clustering
+        unchangedLoss
+      } else {
+        val targetClusterIdx = predClusterOf(j)
+        val targetSize = predClusters(targetClusterIdx).size
+        val newClusterSize = if (j == i) subtreeSize else subtreeSize + targetSize
+
+        ////////////// MUC //////////////
+        var mucRecNewNumer = mucComputation.recallSuffStats._1
+        k = 0
+        while (k < touching.size) {
+          val goldClusterIdx = touching(k)
+          val partitionClusters = goldPartitionClusters(goldClusterIdx)
+          val numUnaligned = goldPartitionSizes(goldClusterIdx) - partitionClusters.size
+          val touchesTarget = j != i && Arrays.binarySearch(partitionClusters, targetClusterIdx) >= 0
+          val newPartitionSize = numUnaligned + (if (touchesRest(k)) 1 else 0) + (if (touchesSubtree(k) || touchesTarget) 1 else 0) +
+              partitionClusters.size - 1 - (if (touchesTarget) 1 else 0)
+          mucRecNewNumer = mucRecNewNumer + goldPartitionSizes(goldClusterIdx) - newPartitionSize
+          k += 1
+        }
+        var mucPrecNewNumer = mucPrecNumerBase
+        if (j == i) {
+          mucPrecNewNumer += subtreeSize - subtreePartitionSize
+        } else {
+          mucPrecNewNumer -= (targetSize - (predClusterGolds(targetClusterIdx).size + predClusterNumUnaligned(targetClusterIdx)))
+          var newPartitionSize = subtreePartitionSize + predClusterNumUnaligned(targetClusterIdx)
+          val targetGolds = predClusterGolds(targetClusterIdx)
+          k = 0
+          while (k < targetGolds.size) {
+            if (subtreeGoldMarks(targetGolds(k)) != stamp) {
+              newPartitionSize += 1
+            }
+            k += 1
+          }
+          mucPrecNewNumer += newClusterSize - newPartitionSize
+        }
+        val mucPrecNewDenom = mucComputation.precSuffStats._2 + (if (oldValue == i) 1 else if (j == i) -1 else 0)
+
+        ////////////// B^3 //////////////
+        var bcubRecNewNumer = bcubComputation.recallSuffStats._1.toDouble
+        val currTermGolds = recallTermGolds(currClusterIdx)
+        val currTermValues = recallTermValues(currClusterIdx)
+        val targetTermGolds = if (targetClusterIdx != currClusterIdx) recallTermGolds(targetClusterIdx) else DownstreamLossComputer.NoInts
+        val targetTermValues = recallTermValues(targetClusterIdx)
+        var p = 0
+        var q = 0
+        while (p < currTermGolds.size || q < targetTermGolds.size) {
+          val goldClusterIdx = Math.min(if (p < currTermGolds.size) currTermGolds(p) else Int.MaxValue, if (q < targetTermGolds.size) targetTermGolds(q) else Int.MaxValue)
+          if (p < currTermGolds.size && currTermGolds(p) == goldClusterIdx) {
+            bcubRecNewNumer -= currTermValues(p)
+            p += 1
+          }
+          if (q < targetTermGolds.size && targetTermGolds(q) == goldClusterIdx) {
+            bcubRecNewNumer -= targetTermValues(q)
+            q += 1
+          }
+        }
+        var bcubPrecNewNumer = bcubComputation.precSuffStats._1.toDouble
+        bcubPrecNewNumer -= precTermTotals(currClusterIdx)
+        if (currClusterIdx != targetClusterIdx) {
+          bcubPrecNewNumer -= precTermTotals(targetClusterIdx)
+        }
+        // New terms for the two clusters, in gold cluster order
+        val aGolds = if (restSize > 1) restGolds else DownstreamLossComputer.NoInts
+        val sGolds = if (newClusterSize > 1) subtreeGolds else DownstreamLossComputer.NoInts
+        val tGolds = if (newClusterSize > 1 && j != i) projectedGolds(targetClusterIdx) else DownstreamLossComputer.NoInts
+        val tCounts = projectedCounts(targetClusterIdx)
+        var a = 0
+        var s = 0
+        var t = 0
+        while (a < aGolds.size || s < sGolds.size || t < tGolds.size) {
+          val goldClusterIdx = Math.min(if (a < aGolds.size) aGolds(a) else Int.MaxValue,
+                                        Math.min(if (s < sGolds.size) sGolds(s) else Int.MaxValue, if (t < tGolds.size) tGolds(t) else Int.MaxValue))
+          val goldClusterSize = goldClusters(goldClusterIdx).size
+          if (a < aGolds.size && aGolds(a) == goldClusterIdx) {
+            val intersectionSize1 = restCounts(a)
+            bcubRecNewNumer += intersectionSize1 * intersectionSize1.toDouble / goldClusterSize.toDouble
+            bcubPrecNewNumer += intersectionSize1 * intersectionSize1.toDouble / restSize.toDouble
+            a += 1
+          }
+          var intersectionSize2 = 0
+          if (s < sGolds.size && sGolds(s) == goldClusterIdx) {
+            intersectionSize2 += subtreeCounts(s)
+            s += 1
+          }
+          if (t < tGolds.size && tGolds(t) == goldClusterIdx) {
+            intersectionSize2 += tCounts(t)
+            t += 1
+          }
+          if (intersectionSize2 > 0) {
+            bcubRecNewNumer += intersectionSize2 * intersectionSize2.toDouble / goldClusterSize.toDouble
+            bcubPrecNewNumer += intersectionSize2 * intersectionSize2.toDouble / newClusterSize.toDouble
+          }
+        }
+        // Singletons created or destroyed change the precision denominator
+        var bcubPrecNewDenom = bcubComputation.precSuffStats._2.toDouble
+        if (oldValue != i) {
+          if (restSize == 1) {
+            bcubPrecNewDenom -= 1
+          }
+          if (j == i) {
+            if (subtreeSize == 1) {
+              bcubPrecNewDenom -= 1
+            }
+          } else if (targetSize == 1) {
+            bcubPrecNewDenom += 1
+          }
+        } else {
+          if (currCluster.size == 1) {
+            bcubPrecNewDenom += 1
+          }
+          if (targetSize == 1) {
+            bcubPrecNewDenom += 1
+          }
+        }
+
+        val mucRecall = mucRecNewNumer.toDouble / mucComputation.recallSuffStats._2.toDouble
+        val mucPrec = mucPrecNewNumer.toDouble / mucPrecNewDenom
+        val mucF1 = 2.0 * mucPrec * mucRecall / (mucPrec + mucRecall)
+        val bcubRecall = bcubRecNewNumer.toDouble / bcubComputation.recallSuffStats._2.toDouble
+        val bcubPrec = bcubPrecNewNumer.toDouble / bcubPrecNewDenom
+        val bcubF1 = 2.0 * bcubPrec * bcubRecall / (bcubPrec + bcubRecall)
+        mucPrec * weights(0) + mucRecall * weights(1) + mucF1 * weights(2) +
+            bcubPrec * weights(3) + bcubRecall * weights(4) + bcubF1 * weights(5)
+      }
+      j += 1
+    }
+    val bestScore = results(GUtil.argMaxIdx(results))
+    j = 0
+    while (j < results.size) {
+      // Scale by doc size so it's around the right scale
+      results(j) = (bestScore - results(j)) * numMents
+      j += 1
+    }
+    results
+  }
+}
+
+object DownstreamLossComputer {
+  // Documents with fewer mentions than this are done on the calling thread
+  val ParallelMinMents = 64
+
+  // Losses are computed during training, so when training already runs on several threads
+  // (or several pruner folds train at once) the rows stay on the calling thread rather
+  // than oversubscribing the cores with the global fork-join pool
+  def calledFromParallelTraining = Driver.numTrainThreads > 1 || Driver.numPrunerFoldThreads > 1
+
+  val NoInts = new Array[Int](0)
+
+  private val scratch = new ThreadLocal[Scratch] {
+    override def initialValue() = new Scratch
+  }
+
+  private def clusterOf(clusters: Array[Array[Int]], numMents: Int) = {
+    val clusterOf = Array.fill(numMents)(-1)
+    for (clusterIdx <- 0 until clusters.size; ment <- clusters(clusterIdx)) {
+      clusterOf(ment) = clusterIdx
+    }
+    clusterOf
+  }
+
+  /**
+   * Per-thread buffers, grown as needed. Marks are compared against a stamp that changes for
+   * every row, so they never need clearing.
+   */
+  private class Scratch {
+    private var stamp = 0
+    var inSubtree = new Array[Int](0)
+    var subtreeGoldMarks = new Array[Int](0)
+    var restGoldMarks = new Array[Int](0)
+    var touchesRest = new Array[Boolean](0)
+    var touchesSubtree = new Array[Boolean](0)
+    private var goldCounts = new Array[Int](0)
+    private var golds = new Array[Int](0)
+
+    def ensureCapacity(numMents: Int, numGoldClusters: Int) {
+      if (inSubtree.size < numMents) {
+        inSubtree = new Array[Int](numMents)
+      }
+      if (subtreeGoldMarks.size < numGoldClusters) {
+        subtreeGoldMarks = new Array[Int](numGoldClusters)
+        restGoldMarks = new Array[Int](numGoldClusters)
+        touchesRest = new Array[Boolean](numGoldClusters)
+        touchesSubtree = new Array[Boolean](numGoldClusters)
+        goldCounts = new Array[Int](numGoldClusters)
+        golds = new Array[Int](numGoldClusters)
+      }
+    }
+
+    // Positive and different for every row until it wraps around, which clears the marks
+    def nextStamp(): Int = {
+      if (stamp == Int.MaxValue) {
+        Arrays.fill(inSubtree, 0)
+        Arrays.fill(subtreeGoldMarks, 0)
+        Arrays.fill(restGoldMarks, 0)
+        stamp = 0
+      }
+      stamp += 1
+      stamp
+    }
+
+    /**
+     * For the mentions of cluster that are (or with inSubtree false, aren't) marked with
+     * stamp in this.inSubtree, or all of them if stamp is 0: the gold clusters whose
+     * projections contain any of them, ascending, and how many each contains.
+     */
+    def projectedGolds(cluster: Array[Int], stamp: Int, inSubtree: Boolean, mentProjectedGolds: Array[Array[Int]]): (Array[Int], Array[Int]) = {
+      var numGolds = 0
+      var k = 0
+      while (k < cluster.size) {
+        val ment = cluster(k)
+        if (stamp == 0 || (this.inSubtree(ment) == stamp) == inSubtree) {
+          val mentGolds = mentProjectedGolds(ment)
+          var l = 0
+          while (l < mentGolds.size) {
+            if (goldCounts(mentGolds(l)) == 0) {
+              golds(numGolds) = mentGolds(l)
+              numGolds += 1
+            }
+            goldCounts(mentGolds(l)) += 1
+            l += 1
+          }
+        }
+        k += 1
+      }
+      Arrays.sort(golds, 0, numGolds)
+      val counts = new Array[Int](numGolds)
+      k = 0
+      while (k < numGolds) {
+        counts(k) = goldCounts(golds(k))
+        goldCounts(golds(k)) = 0
+        k += 1
+      }
+      Arrays.copyOf(golds, numGolds) -> counts
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package edu.berkeley.nlp.entity.coref
 import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import edu.berkeley.nlp.entity.LongIntOpenHashMap
 import edu.berkeley.nlp.futile.fig.basic.Indexer
 import edu.berkeley.nlp.futile.util.Logger
 
@@ -12,10 +14,141 @@ class EntityFeaturizer(val featsToUse: String) {
   
   val AddPrevConjunctions = false;
   
+  private val useAgree = featsToUse.contains("+entityagree");
+  private val useAgreeCustom = featsToUse.contains("+entityagreecustom");
+  private val useFine = featsToUse.contains("+entityfine");
+  // Conjunction strings for featurizeIndexed, interned to ids starting at 1; 0 means none
+  private val conjIds = new HashMap[String,Int];
+  private val conjStrs = new ArrayBuffer[String];
+  
   def indexFeatures(feats: Seq[Feature], featureIndexer: Indexer[String]): Seq[Int] = {
     feats.map(feat => featureIndexer.indexOf(feat.name));
   }
   
+  private def computeConjStr(ment: Mention): String = {
+    if (featsToUse.contains("+conjfine")) {
+      ment.computeConjStr(ConjFeatures.TYPE_OR_CANONICAL_PRON, None, None);
+    } else if (featsToUse.contains("+conjcoarse")) {
+      ment.mentionType.toString;
+    } else {
+      null;
+    }
+  }
+  
+  private def conjId(conjStr: String): Int = synchronized {
+    if (conjStr == null) {
+      0;
+    } else {
+      conjIds.getOrElseUpdate(conjStr, {
+        conjStrs += conjStr;
+        require(conjStrs.size <= EntityFeaturizer.MaxConjId);
+        conjStrs.size;
+      });
+    }
+  }
+  
+  /**
+   * Clears mapping and sets it up for featurizeIndexed on docGraph.
+   */
+  def prepareMapping(docGraph: DocumentGraph, mapping: MentClusterMapping) {
+    mapping.clear();
+    mapping.trackClusterValues(docGraph);
+    require(mapping.numClusterValues.size <= EntityFeaturizer.MaxClustererIdx + 1 && mapping.numClusterValues.forall(_ <= EntityFeaturizer.MaxClusterValue + 1));
+    if (mapping.conjIdsFeaturizer != this) {
+      mapping.mentConjIds = Array.tabulate(docGraph.size)(i => conjId(computeConjStr(docGraph.getMention(i))));
+      mapping.conjIdsFeaturizer = this;
+    }
+  }
+  
+  /**
+   * The features featurize would return, in the same order, as indices from index (-1 for
+   * ones its indexer doesn't have). Agreement counts come from the per-cluster value counts
+   * that mapping keeps up to date rather than from walking the antecedent's cluster, and
+   * features are looked up by packed keys rather than by name. mapping must have been set
+   * up with prepareMapping and then filled in through updateWithAssignment.
+   */
+  def featurizeIndexed(currMentIdx: Int, antecedentIdx: Int, mapping: MentClusterMapping, index: EntityFeatureIndex): Array[Int] = {
+    if (antecedentIdx == currMentIdx) {
+      EntityFeaturizer.NoFeats;
+    } else {
+      val clusterIdx = mapping.mentsToClusters(antecedentIdx);
+      val valueCounts = mapping.clusterValueCounts(clusterIdx);
+      val totalCount = mapping.clustersToMents(clusterIdx).size;
+      val numClusterers = mapping.numClusterValues.size;
+      var numBasicFeats = 0;
+      for (clustererIdx <- 0 until numClusterers) {
+        numBasicFeats += (if (useAgree) 2 else 0) + (if (useFine) 2 * mapping.numClusterValues(clustererIdx) else 0);
+      }
+      val currConjId = mapping.mentConjIds(currMentIdx);
+      val feats = new Array[Int](if (currConjId == 0) numBasicFeats else 2 * numBasicFeats);
+      var featIdx = 0;
+      var clustererIdx = 0;
+      while (clustererIdx < numClusterers) {
+        val currClusterValue = mapping.mentBestClusters(clustererIdx)(currMentIdx);
+        val agreeCount = valueCounts(clustererIdx)(currClusterValue);
+        val agreeBucket = EntityFeaturizer.bucketIdx(agreeCount, totalCount);
+        val disagreeBucket = EntityFeaturizer.bucketIdx(totalCount - agreeCount, totalCount);
+        if (useAgree) {
+          val keyValue = if (useAgreeCustom) currClusterValue else 0;
+          featIdx = addFeat(feats, featIdx, numBasicFeats, currConjId, index, false, clustererIdx, keyValue, 0, agreeBucket, false);
+          featIdx = addFeat(feats, featIdx, numBasicFeats, currConjId, index, false, clustererIdx, keyValue, 0, disagreeBucket, true);
+        }
+        if (useFine) {
+          // N.B. featurizeBasic counts agreement with currClusterValue for every potentialValue
+          var potentialValue = 0;
+          while (potentialValue < mapping.numClusterValues(clustererIdx)) {
+            featIdx = addFeat(feats, featIdx, numBasicFeats, currConjId, index, true, clustererIdx, currClusterValue, potentialValue, agreeBucket, false);
+            featIdx = addFeat(feats, featIdx, numBasicFeats, currConjId, index, true, clustererIdx, currClusterValue, potentialValue, disagreeBucket, true);
+            potentialValue += 1;
+          }
+        }
+        clustererIdx += 1;
+      }
+      feats;
+    }
+  }
+  
+  /**
+   * Fills in the feature at featIdx and, if there's a conjunction, its conjoined version
+   * numBasicFeats further on; returns the next featIdx.
+   */
+  private def addFeat(feats: Array[Int], featIdx: Int, numBasicFeats: Int, currConjId: Int, index: EntityFeatureIndex,
+                      fine: Boolean, clustererIdx: Int, currValue: Int, potentialValue: Int, bucket: Int, disagree: Boolean): Int = {
+    feats(featIdx) = index.getIndex(EntityFeaturizer.packKey(fine, clustererIdx, currValue, potentialValue, bucket, disagree, 0));
+    if (currConjId != 0) {
+      feats(numBasicFeats + featIdx) = index.getIndex(EntityFeaturizer.packKey(fine, clustererIdx, currValue, potentialValue, bucket, disagree, currConjId));
+    }
+    featIdx + 1;
+  }
+  
+  /**
+   * The name of the feature a packed key from featurizeIndexed stands for.
+   */
+  def featureName(key: Long): String = {
+    val conj = (key % (EntityFeaturizer.MaxConjId + 1)).toInt;
+    var rest = key / (EntityFeaturizer.MaxConjId + 1);
+    val disagree = rest % 2 == 1;
+    rest /= 2;
+    val bucket = getAllBucketTypes()((rest % EntityFeaturizer.NumBuckets).toInt);
+    rest /= EntityFeaturizer.NumBuckets;
+    val potentialValue = rest % (EntityFeaturizer.MaxClusterValue + 1);
+    rest /= (EntityFeaturizer.MaxClusterValue + 1);
+    val currValue = rest % (EntityFeaturizer.MaxClusterValue + 1);
+    rest /= (EntityFeaturizer.MaxClusterValue + 1);
+    val clustererIdx = rest % (EntityFeaturizer.MaxClustererIdx + 1);
+    val fine = rest / (EntityFeaturizer.MaxClustererIdx + 1) == 1;
+    val prefix = "Entity" + (if (disagree) "Disagree" else "Agree") + "C" + clustererIdx;
+    val context = if (fine) {
+      prefix + ":" + currValue + "-" + potentialValue + "=" + bucket;
+    } else if (useAgreeCustom) {
+      prefix + "-" + currValue + "=" + bucket;
+    } else {
+      prefix + "=" + bucket;
+    }
+    val conjStr = if (conj == 0) null else synchronized { conjStrs(conj - 1) };
+    EntityFeaturizer.createBasicFeature(if (conjStr == null) context else context + "&Curr=" + conjStr, "").name;
+  }
+  
   // Assuming is that partialClusters contains at least up to and including
   // the mention *before* the current mention
   def featurize(docGraph: DocumentGraph, currMentIdx: Int, antecedentIdx: Int, mentsToClusters: Seq[Int], clustersToMents: ArrayBuffer[ArrayBuffer[Int]]): Seq[Feature] = {
@@ -140,6 +273,37 @@ class EntityFeaturizer(val featsToUse: String) {
 
 object EntityFeaturizer {
   
+  val NoFeats = new Array[Int](0);
+  
+  // Limits on the fields of the packed keys featurizeIndexed uses
+  val MaxClustererIdx = 0xFF;
+  val MaxClusterValue = 0xFFF;
+  val NumBuckets = 9;
+  val MaxConjId = 0x3FF;
+  
+  def packKey(fine: Boolean, clustererIdx: Int, currValue: Int, potentialValue: Int, bucket: Int, disagree: Boolean, conjId: Int): Long = {
+    var key = if (fine) 1L else 0L;
+    key = key * (MaxClustererIdx + 1) + clustererIdx;
+    key = key * (MaxClusterValue + 1) + currValue;
+    key = key * (MaxClusterValue + 1) + potentialValue;
+    key = key * NumBuckets + bucket;
+    key = key * 2 + (if (disagree) 1 else 0);
+    key * (MaxConjId + 1) + conjId;
+  }
+  
+  /**
+   * Position of bucketCount(count, denom) in getAllBucketTypes.
+   */
+  def bucketIdx(count: Int, denom: Int): Int = {
+    if (denom == 1) {
+      count;
+    } else if (denom == 2) {
+      2 + count;
+    } else {
+      if (count == 0) 5 else if (count <= denom/2) 6 else if (count < denom) 7 else 8;
+    }
+  }
+  
   // Only used by DocumentInferencerRahman, is somewhat brittle since it'll break
   // if the conjunction scheme changes
   def computeAllPossibleCanonicalConjunctionStrs(): Set[String] = {
@@ -195,3 +359,27 @@ object EntityFeaturizer {
     }
   }
 }
+
+/**
+ * Looks up the packed keys of EntityFeaturizer.featurizeIndexed in featureIndexer, building
+ * a feature's name only the first time its key comes up. Never adds to the indexer (entity
+ * features are all indexed up front from getAllPossibleFeatures), so misses are cached too.
+ * Every thread fills its own cache, since lookups happen for every entity feature of every
+ * pair and parallel training would otherwise contend on one lock; the keys are few, and
+ * filling a cache twice gives the same answers.
+ */
+class EntityFeatureIndex(val featurizer: EntityFeaturizer, val featureIndexer: Indexer[String]) {
+  private val keysToFeatIdx = new ThreadLocal[LongIntOpenHashMap] {
+    override def initialValue() = new LongIntOpenHashMap;
+  }
+  
+  def getIndex(key: Long): Int = {
+    val cache = keysToFeatIdx.get;
+    var featIdx = cache.get(key, -2);
+    if (featIdx == -2) {
+      featIdx = featureIndexer.indexOf(featurizer.featureName(key));
+      cache.put(key, featIdx);
+    }
+    featIdx;
+  }
+}
@@ -0,0 +1,114 @@
+package edu.berkeley.nlp.entity.coref
+
+import edu.berkeley.nlp.entity.AdagradWeightVector
+import edu.berkeley.nlp.entity.SparseGradient
+
+/**
+ * Indexed features for every (mention, antecedent) edge of a document, stored in
+ * compressed sparse row form: one flat array of feature indices plus one offset per edge.
+ * Edge (i, j) with j <= i is numbered i*(i+1)/2 + j, so the features of that edge are
+ * feats(edgeStarts(e)) until feats(edgeStarts(e+1)). Pruned edges have no features and
+ * cost only their offset, and scoring runs straight over the flat array instead of
+ * chasing a pointer per edge.
+ */
+class FeatureChart(val numMents: Int,
+                   val feats: Array[Int],
+                   val edgeStarts: Array[Int]) {
+  require(edgeStarts.size == FeatureChart.numEdges(numMents) + 1);
+
+  def edgeIdx(currIdx: Int, antIdx: Int) = currIdx * (currIdx + 1) / 2 + antIdx;
+
+  def featStart(currIdx: Int, antIdx: Int) = edgeStarts(edgeIdx(currIdx, antIdx));
+
+  def featEnd(currIdx: Int, antIdx: Int) = edgeStarts(edgeIdx(currIdx, antIdx) + 1);
+
+  def numFeats(currIdx: Int, antIdx: Int) = featEnd(currIdx, antIdx) - featStart(currIdx, antIdx);
+
+  def totalNumFeats = feats.size;
+
+  /**
+   * Copies out the features of one edge; only use this for things that need to hold on
+   * to them (e.g. factor graphs), since it allocates.
+   */
+  def apply(currIdx: Int, antIdx: Int): Array[Int] = {
+    java.util.Arrays.copyOfRange(feats, featStart(currIdx, antIdx), featEnd(currIdx, antIdx));
+  }
+
+  def score(currIdx: Int, antIdx: Int, weights: Array[Float]): Float = {
+    val edge = edgeIdx(currIdx, antIdx);
+    var featIdx = edgeStarts(edge);
+    val end = edgeStarts(edge + 1);
+    var featTotal = 0.0F;
+    while (featIdx < end) {
+      featTotal += weights(feats(featIdx));
+      featIdx += 1;
+    }
+    featTotal;
+  }
+
+  def score(currIdx: Int, antIdx: Int, weights: AdagradWeightVector): Double = {
+    val edge = edgeIdx(currIdx, antIdx);
+    var featIdx = edgeStarts(edge);
+    val end = edgeStarts(edge + 1);
+    var featTotal = 0.0;
+    while (featIdx < end) {
+      featTotal += weights.access(feats(featIdx));
+      featIdx += 1;
+    }
+    featTotal;
+  }
+
+  def addToGradient(currIdx: Int, antIdx: Int, scale: Float, gradient: Array[Float]) {
+    val edge = edgeIdx(currIdx, antIdx);
+    var featIdx = edgeStarts(edge);
+    val end = edgeStarts(edge + 1);
+    while (featIdx < end) {
+      gradient(feats(featIdx)) += scale;
+      featIdx += 1;
+    }
+  }
+
+  def addToGradient(currIdx: Int, antIdx: Int, scale: Double, gradient: SparseGradient) {
+    val edge = edgeIdx(currIdx, antIdx);
+    var featIdx = edgeStarts(edge);
+    val end = edgeStarts(edge + 1);
+    while (featIdx < end) {
+      gradient.incrementCount(feats(featIdx), scale);
+      featIdx += 1;
+    }
+  }
+}
+
+object FeatureChart {
+
+  def numEdges(numMents: Int) = numMents * (numMents + 1) / 2;
+
+  def empty(numMents: Int) = new FeatureChart(numMents, new Array[Int](0), new Array[Int](numEdges(numMents) + 1));
+
+  /**
+   * Builds a chart by calling featurizeEdge on every unpruned edge in order; the
+   * per-edge arrays it returns are only transient.
+   */
+  def build(numMents: Int, isPruned: (Int, Int) => Boolean, featurizeEdge: (Int, Int) => Array[Int]): FeatureChart = {
+    val edgeStarts = new Array[Int](numEdges(numMents) + 1);
+    var feats = new Array[Int](Math.max(16, numEdges(numMents)));
+    var numFeats = 0;
+    var edge = 0;
+    for (i <- 0 until numMents) {
+      for (j <- 0 to i) {
+        edgeStarts(edge) = numFeats;
+        if (!isPruned(i, j)) {
+          val edgeFeats = featurizeEdge(i, j);
+          if (numFeats + edgeFeats.size > feats.size) {
+            feats = java.util.Arrays.copyOf(feats, Math.max(feats.size * 2, numFeats + edgeFeats.size));
+          }
+          System.arraycopy(edgeFeats, 0, feats, numFeats, edgeFeats.size);
+          numFeats += edgeFeats.size;
+        }
+        edge += 1;
+      }
+    }
+    edgeStarts(edge) = numFeats;
+    new FeatureChart(numMents, java.util.Arrays.copyOf(feats, numFeats), edgeStarts);
+  }
+}
@@ -0,0 +1,230 @@
+package edu.berkeley.nlp.entity.coref
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import scala.collection.mutable.ArrayBuffer
+import edu.berkeley.nlp.entity.ConllDocWriter
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * On-disk cache of the basic coref featurization pass (CorefFeaturizerTrainer.featurizeBasic),
+ * so that training runs that only change optimization settings (eta, reg, numItrs, ...)
+ * skip featurizing the training set. Entries are content-addressed: the file name is a
+ * SHA-1 over everything the features depend on, namely the documents in order (their
+ * CoNLL rendering, the extracted mentions with their properties, and the pruning masks,
+ * which stand in for the pruning configuration), the options that control feature
+ * extraction, the sizes and modification times of the WordNet and lexical inference
+ * files the auxiliary featurizers read, and the features already in the indexer. An
+ * entry holds the features the pass added to the indexer and every document's
+ * FeatureChart as gzipped binary.
+ *
+ * Changes to the feature extraction code itself aren't detected, so FeatureCodeVersion
+ * goes into the key too: bump it along with any change to the coref features.
+ */
+object FeaturizationCache {
+  val FormatVersion = 1;
+  // Bump whenever a change to the coref feature code changes what features come out
+  val FeatureCodeVersion = 1;
+
+  /**
+   * Same as featurizerTrainer.featurizeBasic(docGraphs, featurizer), but reuses the result
+   * from cacheDir if an earlier run produced it and stores it there otherwise. An empty
+   * cacheDir turns the cache off.
+   */
+  def featurizeBasic(docGraphs: Seq[DocumentGraph], featurizer: PairwiseIndexingFeaturizer, featurizerTrainer: CorefFeaturizerTrainer, cacheDir: String) {
+    if (cacheDir == "") {
+      featurizerTrainer.featurizeBasic(docGraphs, featurizer);
+    } else {
+      val featureIndexer = featurizer.getIndexer;
+      val key = computeKey(docGraphs, featureIndexer);
+      val file = new File(cacheDir, "coref-feats-" + key + ".bin.gz");
+      val maybeCached = if (file.exists) read(file, key, docGraphs, featureIndexer.size) else None;
+      if (maybeCached.isDefined) {
+        val (newFeats, charts) = maybeCached.get;
+        for (feat <- newFeats) {
+          featureIndexer.getIndex(feat);
+        }
+        for (i <- 0 until docGraphs.size) {
+          docGraphs(i).setCachedFeats(charts(i), featurizer);
+        }
+        Logger.logss("Loaded featurized documents from " + file + "; features after featurization: " + featureIndexer.size);
+      } else {
+        val numFeatsBefore = featureIndexer.size;
+        featurizerTrainer.featurizeBasic(docGraphs, featurizer);
+        write(file, key, docGraphs, featureIndexer, numFeatsBefore);
+      }
+    }
+  }
+
+  /**
+   * extra holds anything else the features depend on (used by JointFeaturizationCache for
+   * the NER and linking options and documents' NER domains).
+   */
+  def computeKey(docGraphs: Seq[DocumentGraph], featureIndexer: Indexer[String], extra: Seq[String] = Seq()): String = {
+    val digest = MessageDigest.getInstance("SHA-1");
+    def update(str: String) {
+      digest.update(str.getBytes(StandardCharsets.UTF_8));
+      digest.update(0.toByte);
+    }
+    update("v" + FormatVersion + " features v" + FeatureCodeVersion);
+    update(Seq(Driver.lang, Driver.pairwiseFeats, Driver.conjFeats, Driver.conjScheme, Driver.conjMentionTypes, Driver.conjTemplates,
+               Driver.semClasserType, Driver.wordNetPath, Driver.lexicalFeatCutoff, Driver.lexInfPath, Driver.lexInfIndices).mkString(" "));
+    // The auxiliary featurizers read these, and they can be regenerated in place
+    update(fingerprintPath(Driver.wordNetPath));
+    update(fingerprintPath(Driver.lexInfPath));
+    for (i <- 0 until featureIndexer.size) {
+      update(featureIndexer.getObject(i));
+    }
+    for (docGraph <- docGraphs) {
+      val conllOut = new StringWriter;
+      val conllWriter = new PrintWriter(conllOut);
+      ConllDocWriter.writeDoc(conllWriter, docGraph.corefDoc.rawDoc);
+      conllWriter.flush();
+      update(conllOut.toString);
+      for (ment <- docGraph.corefDoc.predMentions) {
+        update(Seq(ment.sentIdx, ment.startIdx, ment.endIdx, ment.headIdx, ment.allHeadIndices.mkString(","), ment.isCoordinated,
+                   ment.mentionType, ment.nerString, ment.number, ment.gender).mkString(" "));
+      }
+      val prunedBits = new StringBuilder;
+      for (i <- 0 until docGraph.size; j <- 0 to i) {
+        prunedBits += (if (docGraph.prunedEdges(i)(j)) '1' else '0');
+      }
+      update(prunedBits.toString);
+    }
+    extra.foreach(update(_));
+    digest.digest.map(b => "%02x".format(b & 0xFF)).mkString;
+  }
+
+  /**
+   * Path, size and modification time of every file under path (or of path itself if it's
+   * a file), so that a resource regenerated at the same path changes the key. Reading the
+   * contents would be safer but means hashing all of WordNet on every run.
+   */
+  def fingerprintPath(path: String): String = {
+    if (path == "") {
+      "";
+    } else {
+      val fingerprint = new StringBuilder;
+      def visit(file: File) {
+        if (file.isDirectory) {
+          file.listFiles.sortBy(_.getName).foreach(visit);
+        } else if (file.exists) {
+          fingerprint.append(file.getPath).append(' ').append(file.length).append(' ').append(file.lastModified).append('\n');
+        } else {
+          fingerprint.append(file.getPath).append(" missing\n");
+        }
+      }
+      visit(new File(path));
+      fingerprint.toString;
+    }
+  }
+
+  /**
+   * Returns the features to add to the indexer (which must have numFeatsBefore features)
+   * and the charts, or None if the file can't be read or doesn't fit these documents; in
+   * that case nothing has been changed.
+   */
+  private def read(file: File, key: String, docGraphs: Seq[DocumentGraph], numFeatsBefore: Int): Option[(Seq[String], Seq[FeatureChart])] = {
+    try {
+      val in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+      try {
+        if (in.readInt != FormatVersion || in.readUTF != key || in.readInt != numFeatsBefore) {
+          throw new IOException("header doesn't match");
+        }
+        val newFeats = Array.fill(in.readInt)(in.readUTF);
+        if (in.readInt != docGraphs.size) {
+          throw new IOException("wrong number of documents");
+        }
+        val charts = new ArrayBuffer[FeatureChart];
+        for (docGraph <- docGraphs) {
+          val numMents = in.readInt;
+          if (numMents != docGraph.size) {
+            throw new IOException("wrong number of mentions in " + docGraph.corefDoc.rawDoc.printableDocName);
+          }
+          val feats = readInts(in);
+          val edgeStarts = readInts(in);
+          charts += new FeatureChart(numMents, feats, edgeStarts);
+        }
+        Some(newFeats.toSeq -> charts);
+      } finally {
+        in.close();
+      }
+    } catch {
+      case e: Exception => {
+        Logger.logss("Couldn't use featurization cache file " + file + ", featurizing from scratch: " + e);
+        None;
+      }
+    }
+  }
+
+  private[entity] def readInts(in: DataInputStream) = {
+    val arr = new Array[Int](in.readInt);
+    var i = 0;
+    while (i < arr.size) {
+      arr(i) = in.readInt;
+      i += 1;
+    }
+    arr;
+  }
+
+  /**
+   * Writes to a temporary file and moves it into place, so concurrent runs never see a
+   * partial entry.
+   */
+  private def write(file: File, key: String, docGraphs: Seq[DocumentGraph], featureIndexer: Indexer[String], numFeatsBefore: Int) {
+    file.getAbsoluteFile.getParentFile.mkdirs();
+    val tmpFile = File.createTempFile(file.getName, ".tmp", file.getAbsoluteFile.getParentFile);
+    try {
+      val out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+      try {
+        out.writeInt(FormatVersion);
+        out.writeUTF(key);
+        out.writeInt(numFeatsBefore);
+        out.writeInt(featureIndexer.size - numFeatsBefore);
+        for (i <- numFeatsBefore until featureIndexer.size) {
+          out.writeUTF(featureIndexer.getObject(i));
+        }
+        out.writeInt(docGraphs.size);
+        for (docGraph <- docGraphs) {
+          val chart = docGraph.cachedFeats;
+          out.writeInt(chart.numMents);
+          writeInts(out, chart.feats);
+          writeInts(out, chart.edgeStarts);
+        }
+      } finally {
+        out.close();
+      }
+      Files.move(tmpFile.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Logger.logss("Wrote featurized documents to " + file);
+    } catch {
+      case e: IOException => Logger.logss("Couldn't write featurization cache file " + file + ": " + e);
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  private[entity] def writeInts(out: DataOutputStream, arr: Array[Int]) {
+    out.writeInt(arr.size);
+    var i = 0;
+    while (i < arr.size) {
+      out.writeInt(arr(i));
+      i += 1;
+    }
+  }
+}
@@ -34,8 +34,13 @@ class Mention(val rawDoc: ConllDoc,
   private val cachedWordsLc = rawDoc.words(sentIdx).slice(startIdx, endIdx).map(_.toLowerCase);
   private val cachedSpanStringLc = spanToString.toLowerCase;
   
-  private var cachedConjFeatureStrings = Array.tabulate(ConjFeatures.values.size)(i => "");
-  private var cachedSemanticDescriptors: Option[IndexedSeq[String]] = None;
+  // Filled in lazily, possibly by several threads at once (the pruner folds share
+  // mentions): a value is always computed in full and published by replacing the whole
+  // volatile reference, so a reader sees either nothing or a finished value. Two threads
+  // may both compute the same value and one update can be lost, which only costs a
+  // recomputation.
+  @volatile private var cachedConjFeatureStrings = Array.tabulate(ConjFeatures.values.size)(i => "");
+  @volatile private var cachedSemanticDescriptors: Option[IndexedSeq[String]] = None;
   
   var cachedNerPossibilities: Option[Chunk[Counter[String]]] = None;
   var cachedNerGold: Option[Chunk[String]] = None;
@@ -98,8 +103,11 @@ class Mention(val rawDoc: ConllDoc,
   
   def computeConjStr(conjFeatures: ConjFeatures, wni: Option[WordNetInterfacer], semClasser: Option[SemClasser]) = {
     val ordinal = conjFeatures.ordinal();
-    if (cachedConjFeatureStrings(ordinal).isEmpty) {
-      cachedConjFeatureStrings(ordinal) = conjFeatures match {
+    val cached = cachedConjFeatureStrings(ordinal);
+    if (!cached.isEmpty) {
+      cached;
+    } else {
+      val conjStr = conjFeatures match {
         case ConjFeatures.NONE => "-"; // not just empty so that the isEmpty check above passes
         case ConjFeatures.TYPE => mentionType.toString;
         case ConjFeatures.TYPE_OR_RAW_PRON => if (mentionType.isClosedClass) headStringLc else mentionType.toString;
@@ -115,8 +123,11 @@ class Mention(val rawDoc: ConllDoc,
         case ConjFeatures.CUSTOM_NERFINE_OR_CANONICAL_PRON => computeCustomNerFineOrCanonicalPronConjStr(wni.get, semClasser.get);
         case _ => throw new RuntimeException("Haven't defined how to compute conjStr for " + conjFeatures);
       }
+      val newCache = cachedConjFeatureStrings.clone;
+      newCache(ordinal) = conjStr;
+      cachedConjFeatureStrings = newCache;
+      conjStr;
     }
-    cachedConjFeatureStrings(ordinal);
   }
   
   private def computeTypeOrCanonicalPronConjStr = if (mentionType.isClosedClass) {
@@ -212,7 +223,10 @@ class Mention(val rawDoc: ConllDoc,
   def computeSemClass(wni: WordNetInterfacer) = SemClass.getSemClass(headStringLc, nerString, wni)
   
   def computeSemanticDescriptors(featsToUse: Set[String], wni: WordNetInterfacer, semClasser: SemClasser): IndexedSeq[String] = {
-    if (!cachedSemanticDescriptors.isDefined) {
+    val cached = cachedSemanticDescriptors;
+    if (cached.isDefined) {
+      cached.get;
+    } else {
       val indicators = new ArrayBuffer[String];
       if (!mentionType.isClosedClass && featsToUse.contains("scsc")) {
         indicators += semClasser.getSemClass(this, wni);
@@ -221,8 +235,8 @@ class Mention(val rawDoc: ConllDoc,
         indicators += "NE:" + nerString;
       }
       cachedSemanticDescriptors = Some(indicators);
+      indicators;
     }
-    cachedSemanticDescriptors.get;
   }
   
   def iWi(other: Mention) = {
@@ -3,7 +3,7 @@ package edu.berkeley.nlp.entity.coref
 import edu.berkeley.nlp.futile.fig.basic.Indexer
 import edu.berkeley.nlp.entity.GUtil
 import edu.berkeley.nlp.entity.LikelihoodAndGradientComputerSparse
-import edu.berkeley.nlp.futile.util.IntCounter
+import edu.berkeley.nlp.entity.SparseGradient
 import edu.berkeley.nlp.entity.AdagradWeightVector
 import edu.berkeley.nlp.futile.util.Logger
 import edu.berkeley.nlp.entity.GeneralTrainer2
@@ -15,15 +15,15 @@ class MentionRankingComputerSparse(val featIdx: Indexer[String],
 
   def getInitialWeights(initialWeightsScale: Double): Array[Double] = Array.tabulate(featIdx.size)(i => 0.0)
   
-  private def computeFeatsScores(ex: (DocumentGraph,Int), weights: AdagradWeightVector): (Array[Array[Int]], Array[Float]) = {
+  private def computeFeatsScores(ex: (DocumentGraph,Int), weights: AdagradWeightVector): (FeatureChart, Array[Float]) = {
     val docGraph = ex._1
     val i = ex._2
-    val featsChart = docGraph.featurizeIndexNonPrunedUseCache(featurizer)(i)
+    val featsChart = docGraph.featurizeIndexNonPrunedUseCache(featurizer)
     val scoreVec = docGraph.cachedScoreMatrix(i);
     for (j <- 0 to i) {
       if (!docGraph.prunedEdges(i)(j)) {
-        require(featsChart(j).size > 0);
-        scoreVec(j) = weights.score(featsChart(j)).toFloat;
+        require(featsChart.numFeats(i, j) > 0);
+        scoreVec(j) = featsChart.score(i, j, weights).toFloat;
       } else {
         scoreVec(j) = Float.NegativeInfinity;
       }
@@ -83,7 +83,7 @@ class MentionRankingComputerSparse(val featIdx: Indexer[String],
     bestIdx -> bestScore
   }
   
-  def accumulateGradientAndComputeObjective(ex: (DocumentGraph,Int), weights: AdagradWeightVector, gradient: IntCounter): Double = {
+  def accumulateGradientAndComputeObjective(ex: (DocumentGraph,Int), weights: AdagradWeightVector, gradient: SparseGradient): Double = {
     val docGraph = ex._1
     val i = ex._2
     val (featsChart, scores) = computeFeatsScores(ex, weights)
@@ -91,8 +91,8 @@ class MentionRankingComputerSparse(val featIdx: Indexer[String],
       val (predMax, predScore) = computeMax(ex, scores, false)
       val (goldMax, goldScore) = computeMax(ex, scores, true)
       if (predMax != goldMax) {
-        GeneralTrainer2.addToGradient(featsChart(predMax), -1.0, gradient)
-        GeneralTrainer2.addToGradient(featsChart(goldMax), 1.0, gradient)
+        featsChart.addToGradient(i, predMax, -1.0, gradient)
+        featsChart.addToGradient(i, goldMax, 1.0, gradient)
         predScore - goldScore
       } else {
         0.0 // no gap
@@ -106,7 +106,7 @@ class MentionRankingComputerSparse(val featIdx: Indexer[String],
       var currProb = 0.0
       for (j <- 0 to i) {
         if (predMarginals(j) > 1e-20) {
-          GeneralTrainer2.addToGradient(featsChart(j), -predMarginals(j).toDouble, gradient);
+          featsChart.addToGradient(i, j, -predMarginals(j).toDouble, gradient);
           if (goldAntecedents.contains(j)) {
             currProb += predMarginals(j)
           }
@@ -120,7 +120,7 @@ class MentionRankingComputerSparse(val featIdx: Indexer[String],
       val goldMarginals = computeMarginals(ex, scores, true);
       for (j <- 0 to i) {
         if (goldMarginals(j) > 1e-20) {
-          GeneralTrainer2.addToGradient(featsChart(j), goldMarginals(j).toDouble, gradient);
+          featsChart.addToGradient(i, j, goldMarginals(j).toDouble, gradient);
         }
       }
       currLogProb
@@ -128,6 +128,6 @@ class MentionRankingComputerSparse(val featIdx: Indexer[String],
   }
   
   def computeObjective(ex: (DocumentGraph,Int), weights: AdagradWeightVector): Double = {
-    accumulateGradientAndComputeObjective(ex, weights, new IntCounter)
+    accumulateGradientAndComputeObjective(ex, weights, new SparseGradient)
   }
 }
\ No newline at end of file
@@ -3,7 +3,7 @@ package edu.berkeley.nlp.entity.coref
 import edu.berkeley.nlp.futile.fig.basic.Indexer
 import edu.berkeley.nlp.entity.GUtil
 import edu.berkeley.nlp.entity.LikelihoodAndGradientComputerSparse
-import edu.berkeley.nlp.futile.util.IntCounter
+import edu.berkeley.nlp.entity.SparseGradient
 import edu.berkeley.nlp.entity.AdagradWeightVector
 import edu.berkeley.nlp.futile.util.Logger
 import edu.berkeley.nlp.entity.GeneralTrainer2
@@ -106,15 +106,15 @@ class MentionRankingDocumentComputer(val featIdx: Indexer[String],
     results -> totalScore
   }
   
-  def accumulateGradientAndComputeObjective(ex: DocumentGraph, weights: AdagradWeightVector, gradient: IntCounter): Double = {
+  def accumulateGradientAndComputeObjective(ex: DocumentGraph, weights: AdagradWeightVector, gradient: SparseGradient): Double = {
     val (featsChart, scores) = MentionRankingDocumentComputer.computeFeatsScores(ex, featurizer, weights)
     if (doSps) {
       val (predMax, predScore) = computeMax(ex, weights, scores, false)
       val (goldMax, goldScore) = computeMax(ex, weights, scores, true)
       for (i <- 0 until ex.size) {
         if (predMax(i) != goldMax(i)) {
-          GeneralTrainer2.addToGradient(featsChart(i)(predMax(i)), -1.0, gradient)
-          GeneralTrainer2.addToGradient(featsChart(i)(goldMax(i)), 1.0, gradient)
+          featsChart.addToGradient(i, predMax(i), -1.0, gradient)
+          featsChart.addToGradient(i, goldMax(i), 1.0, gradient)
         }
       }
       predScore - goldScore
@@ -131,7 +131,7 @@ class MentionRankingDocumentComputer(val featIdx: Indexer[String],
         var currProbMaxing = 0.0
         for (j <- 0 to i) {
           if (predMarginals(i)(j) > 1e-20) {
-            GeneralTrainer2.addToGradient(featsChart(i)(j), -predMarginals(i)(j).toDouble, gradient);
+            featsChart.addToGradient(i, j, -predMarginals(i)(j).toDouble, gradient);
             if (goldAntecedents.contains(j)) {
               currProb += predMarginals(i)(j)
               currProbMaxing = Math.max(currProbMaxing, predMarginals(i)(j))
@@ -154,7 +154,7 @@ class MentionRankingDocumentComputer(val featIdx: Indexer[String],
       for (i <- 0 until ex.size) {
         for (j <- 0 to i) {
           if (goldMarginals(i)(j) > 1e-20) {
-            GeneralTrainer2.addToGradient(featsChart(i)(j), goldMarginals(i)(j).toDouble, gradient);
+            featsChart.addToGradient(i, j, goldMarginals(i)(j).toDouble, gradient);
           }
         }
       }
@@ -163,21 +163,21 @@ class MentionRankingDocumentComputer(val featIdx: Indexer[String],
   }
   
   def computeObjective(ex: DocumentGraph, weights: AdagradWeightVector): Double = {
-    accumulateGradientAndComputeObjective(ex, weights, new IntCounter)
+    accumulateGradientAndComputeObjective(ex, weights, new SparseGradient)
   }
 }
 
 object MentionRankingDocumentComputer {
   
-  def computeFeatsScores(ex: DocumentGraph, featurizer: PairwiseIndexingFeaturizer, weights: AdagradWeightVector): (Array[Array[Array[Int]]], Array[Array[Float]]) = {
+  def computeFeatsScores(ex: DocumentGraph, featurizer: PairwiseIndexingFeaturizer, weights: AdagradWeightVector): (FeatureChart, Array[Array[Float]]) = {
     val docGraph = ex
     val featsChart = docGraph.featurizeIndexNonPrunedUseCache(featurizer)
     val scoreMat = docGraph.cachedScoreMatrix;
     for (i <- 0 until docGraph.size) {
       for (j <- 0 to i) {
         if (!docGraph.prunedEdges(i)(j)) {
-          require(featsChart(i)(j).size > 0);
-          scoreMat(i)(j) = weights.score(featsChart(i)(j)).toFloat;
+          require(featsChart.numFeats(i, j) > 0);
+          scoreMat(i)(j) = featsChart.score(i, j, weights).toFloat;
         } else {
           scoreMat(i)(j) = Float.NegativeInfinity;
         }
@@ -0,0 +1,146 @@
+package edu.berkeley.nlp.entity.coref
+
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.mutable.ArrayBuffer
+import edu.berkeley.nlp.entity.ConcurrentIndexer
+import edu.berkeley.nlp.entity.LongIntOpenHashMap
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+/**
+ * Front end to a string feature Indexer for conjoined pairwise features. Base feature
+ * names and conjunction strings are interned to small ids once, and a feature with its
+ * current/previous conjunctions is looked up by a packed (base, curr, prev) long key in
+ * a primitive map rather than by building and hashing featName + "&C=" + ... + "&P=" + ...
+ *
+ * The full feature string is only materialized the first time a key is seen, and is
+ * then indexed by the underlying Indexer exactly as in string mode, so the resulting
+ * feature indices (and hence weights) are identical.
+ *
+ * A featurizer can be shared by parallel featurization and pruning, so lookups must not
+ * serialize: the interned ids live in concurrent maps and each thread has its own packed
+ * key cache, so hits never lock. Misses go to the underlying indexer, which is only locked
+ * around if it isn't a ConcurrentIndexer. Each thread's cache holds the features it has
+ * seen, so with many threads this trades some memory for not contending.
+ */
+class PackedFeatureIndexer(val featureIndexer: Indexer[String]) {
+  private val baseIds = new ConcurrentHashMap[String,Integer];
+  private val baseNames = new ArrayBuffer[String];
+  // Conjunction ids start at 1; 0 means "no conjunction"
+  private val conjIds = new ConcurrentHashMap[String,Integer];
+  private val conjNames = new ArrayBuffer[String];
+  private val indexerIsConcurrent = featureIndexer.isInstanceOf[ConcurrentIndexer[_]];
+  // Bumped by clearCachedIndices; a thread whose cache is from an older generation drops it
+  @volatile private var cacheGeneration = 0;
+  private val threadCaches = new ThreadLocal[(Int, LongIntOpenHashMap)];
+
+  private def packedToFeatIdx: LongIntOpenHashMap = {
+    val generation = cacheGeneration;
+    val cache = threadCaches.get;
+    if (cache != null && cache._1 == generation) {
+      cache._2;
+    } else {
+      val newCache = new LongIntOpenHashMap;
+      threadCaches.set(generation -> newCache);
+      newCache;
+    }
+  }
+
+  /**
+   * Number of features in the calling thread's cache.
+   */
+  def numCachedFeatures = packedToFeatIdx.size;
+
+  /**
+   * Forgets the cached feature indices in every thread (but not the interned names), for
+   * when the underlying indexer has been renumbered.
+   */
+  def clearCachedIndices() = synchronized {
+    cacheGeneration += 1;
+  }
+
+  /**
+   * Returns the index of featName conjoined with currConj and prevConj (either of which
+   * may be null to mean that conjunction is absent), or -1 if addToIndexer is false
+   * and the feature isn't in the indexer.
+   */
+  def getIndex(featName: String, currConj: String, prevConj: String, addToIndexer: Boolean): Int = {
+    val cache = packedToFeatIdx;
+    val baseId = lookupId(baseIds, featName);
+    val currConjId = if (currConj == null) 0 else lookupId(conjIds, currConj);
+    val prevConjId = if (prevConj == null) 0 else lookupId(conjIds, prevConj);
+    if (baseId != -1 && currConjId != -1 && prevConjId != -1 && currConjId <= PackedFeatureIndexer.MaxConjId && prevConjId <= PackedFeatureIndexer.MaxConjId) {
+      val featIdx = cache.get(PackedFeatureIndexer.pack(baseId, currConjId, prevConjId), -1);
+      if (featIdx != -1) {
+        return featIdx;
+      }
+    }
+    // Slow path: build the string and consult the real indexer
+    val featIdx = if (indexerIsConcurrent) {
+      lookupInIndexer(featName, currConj, prevConj, addToIndexer);
+    } else {
+      featureIndexer.synchronized {
+        lookupInIndexer(featName, currConj, prevConj, addToIndexer);
+      }
+    }
+    // Only remember features that are in the indexer so that unseen features at test time
+    // don't make this grow without bound, and so we never cache a stale miss
+    if (featIdx != -1) {
+      val newBaseId = if (baseId != -1) baseId else intern(featName, baseIds, baseNames, 0);
+      val newCurrConjId = if (currConjId != -1) currConjId else intern(currConj, conjIds, conjNames, 1);
+      val newPrevConjId = if (prevConjId != -1) prevConjId else intern(prevConj, conjIds, conjNames, 1);
+      if (newCurrConjId <= PackedFeatureIndexer.MaxConjId && newPrevConjId <= PackedFeatureIndexer.MaxConjId) {
+        cache.put(PackedFeatureIndexer.pack(newBaseId, newCurrConjId, newPrevConjId), featIdx);
+      }
+    }
+    featIdx;
+  }
+
+  private def lookupInIndexer(featName: String, currConj: String, prevConj: String, addToIndexer: Boolean) = {
+    if (addToIndexer) {
+      featureIndexer.getIndex(materialize(featName, currConj, prevConj));
+    } else {
+      featureIndexer.indexOf(materialize(featName, currConj, prevConj));
+    }
+  }
+
+  private def lookupId(ids: ConcurrentHashMap[String,Integer], str: String) = {
+    val id = ids.get(str);
+    if (id == null) -1 else id.intValue;
+  }
+
+  // Rare, so it just locks; names are only appended under the lock
+  private def intern(str: String, ids: ConcurrentHashMap[String,Integer], names: ArrayBuffer[String], offset: Int): Int = synchronized {
+    val id = ids.get(str);
+    if (id != null) {
+      id.intValue;
+    } else {
+      names += str;
+      val newId = names.size - 1 + offset;
+      ids.put(str, newId);
+      newId;
+    }
+  }
+
+  /**
+   * Renders the feature string for a packed key; only needed for model dumps and debugging.
+   */
+  def getFeatureName(packedKey: Long) = synchronized {
+    val baseId = (packedKey >>> 32).toInt;
+    val currConjId = ((packedKey >>> 16) & PackedFeatureIndexer.MaxConjId).toInt;
+    val prevConjId = (packedKey & PackedFeatureIndexer.MaxConjId).toInt;
+    materialize(baseNames(baseId), if (currConjId == 0) null else conjNames(currConjId - 1), if (prevConjId == 0) null else conjNames(prevConjId - 1));
+  }
+
+  private def materialize(featName: String, currConj: String, prevConj: String) = {
+    featName + (if (currConj != null) "&C=" + currConj else "") + (if (prevConj != null) "&P=" + prevConj else "");
+  }
+}
+
+object PackedFeatureIndexer {
+  // Each conjunction id gets 16 bits of the key and the base feature id gets the top 32
+  val MaxConjId = 0xFFFF;
+
+  def pack(baseId: Int, currConjId: Int, prevConjId: Int): Long = {
+    (baseId.toLong << 32) | (currConjId.toLong << 16) | prevConjId.toLong;
+  }
+}
@@ -13,6 +13,12 @@ trait PairwiseIndexingFeaturizer {
   def getQueryCountsBundle: Option[QueryCountsBundle];
 
   def featurizeIndex(docGraph: DocumentGraph, currMentIdx: Int, antecedentIdx: Int, addToFeaturizer: Boolean): Array[Int];
+  
+  /**
+   * Called after the indexer has been renumbered (see ConcurrentIndexer) so that anything
+   * caching feature indices can drop them.
+   */
+  def featureIndicesRenumbered() {}
 }
 
 object PairwiseIndexingFeaturizer {
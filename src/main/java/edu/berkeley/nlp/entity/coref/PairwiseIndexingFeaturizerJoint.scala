@@ -16,6 +16,7 @@ import edu.berkeley.nlp.entity.sem.SemClass
 import edu.berkeley.nlp.entity.sem.SemClasser
 import edu.berkeley.nlp.entity.ner.NerFeaturizer
 import edu.berkeley.nlp.entity.WordNetInterfacer
+import edu.berkeley.nlp.entity.Driver
 
 /**
  * DO NOT try to add WordNetInterfacer here! It is not serializable and so
@@ -47,6 +48,15 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
 //    }
 //  }
   
+  // Only used when Driver.primitiveFeatureIndexing is on; rebuilt rather than serialized with the model
+  @transient private lazy val packedFeatureIndexer = new PackedFeatureIndexer(featureIndexer);
+  
+  override def featureIndicesRenumbered() {
+    if (Driver.primitiveFeatureIndexing) {
+      packedFeatureIndexer.clearCachedIndices();
+    }
+  }
+  
   private def maybeAddFeat(indexedFeats: ArrayBuffer[Int], feat: String, addToIndexer: Boolean) {
     if (addToIndexer) {
       indexedFeats += featureIndexer.getIndex(feat)
@@ -56,6 +66,20 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
     }
   }
   
+  /**
+   * Adds featName conjoined with "&C=" + currConj and "&P=" + prevConj, where a null
+   * conjunction is left off. Avoids building the conjoined string when features are
+   * indexed through packed primitive keys.
+   */
+  private def maybeAddConjoinedFeat(indexedFeats: ArrayBuffer[Int], featName: String, currConj: String, prevConj: String, addToIndexer: Boolean) {
+    if (Driver.primitiveFeatureIndexing) {
+      val idx = packedFeatureIndexer.getIndex(featName, currConj, prevConj, addToIndexer);
+      if (idx != -1) indexedFeats += idx;
+    } else {
+      maybeAddFeat(indexedFeats, featName + (if (currConj != null) "&C=" + currConj else "") + (if (prevConj != null) "&P=" + prevConj else ""), addToIndexer);
+    }
+  }
+  
   def getQueryCountsBundle = queryCounts;
   
   def featurizeIndex(docGraph: DocumentGraph, currMentIdx: Int, antecedentIdx: Int, addToFeaturizer: Boolean): Array[Int] = {
@@ -73,64 +97,50 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
                                         antecedentMent: Mention,
                                         addToFeaturizer: Boolean) {
     if (featureSet.conjScheme == ConjScheme.BOTH) {
-      val currConjunction = "&C=" + currMent.computeConjStr(featureSet.conjFeatures, Some(docGraph.cachedWni), semClasser);
+      val currConjunction = fetchConjStr(docGraph, currMent, featureSet.conjFeatures);
       val prevConjunction = if (currMent != antecedentMent) {
-        "&P=" + antecedentMent.computeConjStr(featureSet.conjFeatures, Some(docGraph.cachedWni), semClasser);
+        fetchConjStr(docGraph, antecedentMent, featureSet.conjFeatures);
       } else {
-        "";
+        null;
       }
-      maybeAddFeat(feats, featName + currConjunction + prevConjunction, addToFeaturizer);
-//      feats += getIndex(featName + currConjunction + prevConjunction, addToFeaturizer);
+      maybeAddConjoinedFeat(feats, featName, currConjunction, prevConjunction, addToFeaturizer);
     } else if (featureSet.conjScheme == ConjScheme.COARSE_CURRENT_BOTH) {
       // Note that this one behaves differently than the one above because BOTH is not always fired.
       // If it were always fired, it would often double with CURRENT.
-      maybeAddFeat(feats, featName, addToFeaturizer);
-//      feats += getIndex(featName, addToFeaturizer);
-      val currConjunction = "&C=" + currMent.computeConjStr(featureSet.conjFeatures, Some(docGraph.cachedWni), semClasser);
-      val featAndCurrConjunction = featName + currConjunction;
-      maybeAddFeat(feats, featAndCurrConjunction, addToFeaturizer)
-//      feats += getIndex(featAndCurrConjunction, addToFeaturizer);
+      maybeAddConjoinedFeat(feats, featName, null, null, addToFeaturizer);
+      val currConjunction = fetchConjStr(docGraph, currMent, featureSet.conjFeatures);
+      maybeAddConjoinedFeat(feats, featName, currConjunction, null, addToFeaturizer)
       if (currMent != antecedentMent) {
-        val prevConjunction = "&P=" + antecedentMent.computeConjStr(featureSet.conjFeatures, Some(docGraph.cachedWni), semClasser);
-        maybeAddFeat(feats, featAndCurrConjunction + prevConjunction, addToFeaturizer);
-//        feats += getIndex(featAndCurrConjunction + prevConjunction, addToFeaturizer);
+        val prevConjunction = fetchConjStr(docGraph, antecedentMent, featureSet.conjFeatures);
+        maybeAddConjoinedFeat(feats, featName, currConjunction, prevConjunction, addToFeaturizer);
       }
     } else { // All varieties of COARSE_BOTH
       // N.B. WHITELIST has the behavior that if no templates (type pairs) are specified,
       // then all templates (type pairs) are assumed to be whitelisted
-      maybeAddFeat(feats, featName, addToFeaturizer);
-//      feats += getIndex(featName, addToFeaturizer);
+      maybeAddConjoinedFeat(feats, featName, null, null, addToFeaturizer);
       val validPair = (featureSet.conjScheme == ConjScheme.COARSE_BOTH ||
                        (featureSet.conjScheme == ConjScheme.COARSE_BOTH_WHITELIST && (featureSet.conjListedTypePairs.isEmpty || featureSet.conjListedTypePairs.contains(antecedentMent.mentionType -> currMent.mentionType))) ||
                        (featureSet.conjScheme == ConjScheme.COARSE_BOTH_BLACKLIST && !featureSet.conjListedTypePairs.contains(antecedentMent.mentionType -> currMent.mentionType)));
       val validTemplate = (featureSet.conjScheme == ConjScheme.COARSE_BOTH ||
                           (featureSet.conjScheme == ConjScheme.COARSE_BOTH_WHITELIST && (featureSet.conjListedTemplates.isEmpty || featureSet.conjListedTemplates.contains(PairwiseIndexingFeaturizer.getTemplate(featName)))) ||
                           (featureSet.conjScheme == ConjScheme.COARSE_BOTH_BLACKLIST && !featureSet.conjListedTemplates.contains(PairwiseIndexingFeaturizer.getTemplate(featName))));
-      if (validPair && validTemplate) {
-        val currConjunction = "&C=" + currMent.computeConjStr(featureSet.conjFeatures, Some(docGraph.cachedWni), semClasser);
-        val prevConjunction = if (currMent != antecedentMent) {
-          "&P=" + antecedentMent.computeConjStr(featureSet.conjFeatures, Some(docGraph.cachedWni), semClasser);
-        } else {
-          "";
-        }
-        maybeAddFeat(feats, featName + currConjunction + prevConjunction, addToFeaturizer);
-//        feats += getIndex(featName + currConjunction + prevConjunction, addToFeaturizer);
-      } else { // Back off to the EMNLP conjunctions
-        val currConjunction = "&C=" + currMent.computeConjStr(ConjFeatures.TYPE_OR_CANONICAL_PRON, Some(docGraph.cachedWni), semClasser);
-        val prevConjunction = if (currMent != antecedentMent) {
-          "&P=" + antecedentMent.computeConjStr(ConjFeatures.TYPE_OR_CANONICAL_PRON, Some(docGraph.cachedWni), semClasser);
-        } else {
-          "";
-        }
-        maybeAddFeat(feats, featName + currConjunction + prevConjunction, addToFeaturizer);
-//        feats += getIndex(featName + currConjunction + prevConjunction, addToFeaturizer);
+      // Back off to the EMNLP conjunctions if this pair or template isn't conjoined
+      val conjFeatures = if (validPair && validTemplate) featureSet.conjFeatures else ConjFeatures.TYPE_OR_CANONICAL_PRON;
+      val currConjunction = fetchConjStr(docGraph, currMent, conjFeatures);
+      val prevConjunction = if (currMent != antecedentMent) {
+        fetchConjStr(docGraph, antecedentMent, conjFeatures);
+      } else {
+        null;
       }
+      maybeAddConjoinedFeat(feats, featName, currConjunction, prevConjunction, addToFeaturizer);
     }
   }
   
   def featurizeIndexStandard(docGraph: DocumentGraph, currMentIdx: Int, antecedentIdx: Int, addToFeaturizer: Boolean): Array[Int] = {
     val currMent = docGraph.getMention(currMentIdx);
     val antecedentMent = docGraph.getMention(antecedentIdx);
+    val currProps = docGraph.getMentionPropertiesUseCache(this, currMentIdx);
+    val antecedentProps = docGraph.getMentionPropertiesUseCache(this, antecedentIdx);
 //    val feats = new ArrayBuffer[Int]();
     val feats = new ArrayBuffer[Int]();
     def addFeatureShortcut = (featName: String) => {
@@ -153,23 +163,23 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
     }
     // N.B. INCLUDED IN SURFACE
     if (!featsToUse.contains("nolexanaph") && !currMent.mentionType.isClosedClass) {
-      addFeatureShortcut("SNMentHead=" + fetchHeadWordOrPos(currMent) + snStr);
+      addFeatureShortcut("SNMentHead=" + fetchHeadWordOrPos(docGraph, currMentIdx) + snStr);
     }
     // N.B. INCLUDED IN SURFACE
     if (!featsToUse.contains("nolexfirstword") && !currMent.mentionType.isClosedClass) {
-      addFeatureShortcut("SNMentFirst=" + fetchFirstWordOrPos(currMent) + snStr);
+      addFeatureShortcut("SNMentFirst=" + fetchFirstWordOrPos(docGraph, currMentIdx) + snStr);
     }
     // N.B. INCLUDED IN SURFACE
     if (!featsToUse.contains("nolexlastword") && !currMent.mentionType.isClosedClass) {
-      addFeatureShortcut("SNMentLast=" + fetchLastWordOrPos(currMent) + snStr);
+      addFeatureShortcut("SNMentLast=" + fetchLastWordOrPos(docGraph, currMentIdx) + snStr);
     }
     // N.B. INCLUDED IN SURFACE
     if (!featsToUse.contains("nolexprecedingword")) {
-      addFeatureShortcut("SNMentPreceding=" + fetchPrecedingWordOrPos(currMent) + snStr);
+      addFeatureShortcut("SNMentPreceding=" + fetchPrecedingWordOrPos(docGraph, currMentIdx) + snStr);
     }
     // N.B. INCLUDED IN SURFACE
     if (!featsToUse.contains("nolexfollowingword")) {
-      addFeatureShortcut("SNMentFollowing=" + fetchFollowingWordOrPos(currMent) + snStr);
+      addFeatureShortcut("SNMentFollowing=" + fetchFollowingWordOrPos(docGraph, currMentIdx) + snStr);
     }
     // FEATURES ON THE ANTECEDENT
     if (!startingNew) {
@@ -180,23 +190,23 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
       }
       // N.B. INCLUDED IN SURFACE
       if (!featsToUse.contains("nolexanaph") && !antecedentMent.mentionType.isClosedClass) {
-        addFeatureShortcut("PrevMentHead=" + fetchHeadWordOrPos(antecedentMent));
+        addFeatureShortcut("PrevMentHead=" + fetchHeadWordOrPos(docGraph, antecedentIdx));
       }
       // N.B. INCLUDED IN SURFACE
       if (!featsToUse.contains("nolexfirstword") && !antecedentMent.mentionType.isClosedClass) {
-        addFeatureShortcut("PrevMentFirst=" + fetchFirstWordOrPos(antecedentMent));
+        addFeatureShortcut("PrevMentFirst=" + fetchFirstWordOrPos(docGraph, antecedentIdx));
       }
       // N.B. INCLUDED IN SURFACE
       if (!featsToUse.contains("nolexlastword") && !antecedentMent.mentionType.isClosedClass) {
-        addFeatureShortcut("PrevMentLast=" + fetchLastWordOrPos(antecedentMent));
+        addFeatureShortcut("PrevMentLast=" + fetchLastWordOrPos(docGraph, antecedentIdx));
       }
       // N.B. INCLUDED IN SURFACE
       if (!featsToUse.contains("nolexprecedingword")) {
-        addFeatureShortcut("PrevMentPreceding=" + fetchPrecedingWordOrPos(antecedentMent));
+        addFeatureShortcut("PrevMentPreceding=" + fetchPrecedingWordOrPos(docGraph, antecedentIdx));
       }
       // N.B. INCLUDED IN SURFACE
       if (!featsToUse.contains("nolexfollowingword")) {
-        addFeatureShortcut("PrevMentFollowing=" + fetchFollowingWordOrPos(antecedentMent));
+        addFeatureShortcut("PrevMentFollowing=" + fetchFollowingWordOrPos(docGraph, antecedentIdx));
       }
     }
     
@@ -237,15 +247,15 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
       if (!startingNew) {
         // Nominal and proper features
         // String match
-        val exactStrMatch = (currMent.spanToString.toLowerCase.equals(antecedentMent.spanToString.toLowerCase));
+        val exactStrMatch = (currMent.spanToStringLc.equals(antecedentMent.spanToStringLc));
         // N.B. INCLUDED IN SURFACE
         if (!featsToUse.contains("noexactmatch")) {
           addFeatureShortcut("ExactStrMatch=" + exactStrMatch);
         }
         // N.B. INCLUDED IN FINAL
         if (featsToUse.contains("FINAL") || featsToUse.contains("emcontained")) {
-          addFeatureShortcut("ThisContained=" + (antecedentMent.spanToString.contains(currMent.spanToString)));
-          addFeatureShortcut("AntContained=" + (currMent.spanToString.contains(antecedentMent.spanToString)));
+          addFeatureShortcut("ThisContained=" + (antecedentProps.spanString.contains(currProps.spanString)));
+          addFeatureShortcut("AntContained=" + (currProps.spanString.contains(antecedentProps.spanString)));
         }
         // Head match
         val headMatch = currMent.headStringLc.equals(antecedentMent.headStringLc);
@@ -255,8 +265,8 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
         }
         // N.B. INCLUDED IN FINAL
         if (featsToUse.contains("FINAL") || featsToUse.contains("hmcontained")) {
-          addFeatureShortcut("ThisHeadContained=" + (antecedentMent.spanToString.contains(currMent.headString)));
-          addFeatureShortcut("AntHeadContained=" + (currMent.spanToString.contains(antecedentMent.headString)));
+          addFeatureShortcut("ThisHeadContained=" + (antecedentProps.spanString.contains(currMent.headString)));
+          addFeatureShortcut("AntHeadContained=" + (currProps.spanString.contains(antecedentMent.headString)));
         }
         // HEAD CONTAINED VARIANTS
         if (featsToUse.contains("morehmcontained")) {
@@ -269,7 +279,7 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
         }
         if (featsToUse.contains("bilexical")) {
           if (!antecedentMent.mentionType.isClosedClass) {
-            addFeatureShortcut("Heads=" + fetchHeadWordOrPos(currMent) + "-" + fetchHeadWordOrPos(antecedentMent));
+            addFeatureShortcut("Heads=" + fetchHeadWordOrPos(docGraph, currMentIdx) + "-" + fetchHeadWordOrPos(docGraph, antecedentIdx));
           }
         }
         if (featsToUse.contains("semcombo")) {
@@ -299,8 +309,8 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
         if (featsToUse.contains("semclassandheads")) {
           val currSc = docGraph.getSemClassUseCache(docGraph.cachedWni, currMentIdx);
           val antecedentSc = docGraph.getSemClassUseCache(docGraph.cachedWni, antecedentIdx);
-          addFeatureShortcut("AntHeadCurrSem=" + currSc + "-" + fetchHeadWordOrPos(antecedentMent));
-          addFeatureShortcut("CurrHeadAntSem=" + fetchHeadWordOrPos(currMent) + "-" + antecedentSc);
+          addFeatureShortcut("AntHeadCurrSem=" + currSc + "-" + fetchHeadWordOrPos(docGraph, antecedentIdx));
+          addFeatureShortcut("CurrHeadAntSem=" + fetchHeadWordOrPos(docGraph, currMentIdx) + "-" + antecedentSc);
         }
         if (featsToUse.contains("hearst")) {
           // Only fire on referring linkages that don't have head match
@@ -368,20 +378,20 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
         // TYPE_OR_CANONICAL_PRON conjunctions
         if (!antecedentMent.mentionType.isClosedClass) {
           for (descriptor <- antecedentDescriptors) {
-            if (!featsToUse.contains("noschead")) addFeatureShortcut("CurrHeadPrevSC=" + fetchHeadWordOrPos(currMent) + "-" + descriptor);
-            if (!featsToUse.contains("noscfirst")) addFeatureShortcut("CurrFirstPrevSC=" + fetchFirstWordOrPos(currMent) + "-" + descriptor);
-            if (!featsToUse.contains("nosclast")) addFeatureShortcut("CurrLastPrevSC=" + fetchLastWordOrPos(currMent) + "-" + descriptor);
-            if (!featsToUse.contains("noscprec")) addFeatureShortcut("CurrPrecedingPrevSC=" + fetchPrecedingWordOrPos(currMent) + "-" + descriptor);
-            if (!featsToUse.contains("noscfol")) addFeatureShortcut("CurrFollowingPrevSC=" + fetchFollowingWordOrPos(currMent) + "-" + descriptor);
+            if (!featsToUse.contains("noschead")) addFeatureShortcut("CurrHeadPrevSC=" + fetchHeadWordOrPos(docGraph, currMentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("noscfirst")) addFeatureShortcut("CurrFirstPrevSC=" + fetchFirstWordOrPos(docGraph, currMentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("nosclast")) addFeatureShortcut("CurrLastPrevSC=" + fetchLastWordOrPos(docGraph, currMentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("noscprec")) addFeatureShortcut("CurrPrecedingPrevSC=" + fetchPrecedingWordOrPos(docGraph, currMentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("noscfol")) addFeatureShortcut("CurrFollowingPrevSC=" + fetchFollowingWordOrPos(docGraph, currMentIdx) + "-" + descriptor);
           }
         }
         if (!currMent.mentionType.isClosedClass) {
           for (descriptor <- currDescriptors) {
-            if (!featsToUse.contains("noschead")) addFeatureShortcut("PrevHeadCurrSC=" + fetchHeadWordOrPos(antecedentMent) + "-" + descriptor);
-            if (!featsToUse.contains("noscfirst")) addFeatureShortcut("PrevFirstCurrSC=" + fetchFirstWordOrPos(antecedentMent) + "-" + descriptor);
-            if (!featsToUse.contains("nosclast")) addFeatureShortcut("PrevLastCurrSC=" + fetchLastWordOrPos(antecedentMent) + "-" + descriptor);
-            if (!featsToUse.contains("noscprec")) addFeatureShortcut("PrevPrecedingCurrSC=" + fetchPrecedingWordOrPos(antecedentMent) + "-" + descriptor);
-            if (!featsToUse.contains("noscfol")) addFeatureShortcut("PrevFollowingCurrSC=" + fetchFollowingWordOrPos(antecedentMent) + "-" + descriptor);
+            if (!featsToUse.contains("noschead")) addFeatureShortcut("PrevHeadCurrSC=" + fetchHeadWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("noscfirst")) addFeatureShortcut("PrevFirstCurrSC=" + fetchFirstWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("nosclast")) addFeatureShortcut("PrevLastCurrSC=" + fetchLastWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("noscprec")) addFeatureShortcut("PrevPrecedingCurrSC=" + fetchPrecedingWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+            if (!featsToUse.contains("noscfol")) addFeatureShortcut("PrevFollowingCurrSC=" + fetchFollowingWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
           }
         }
       }
@@ -394,27 +404,27 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
       } else {
         ConjFeatures.CUSTOM_NERFINE_OR_CANONICAL_PRON
       }
-      val descriptor = currMent.computeConjStr(conjTypeTheseFeats, Some(docGraph.cachedWni), semClasser);
+      val descriptor = fetchConjStr(docGraph, currMent, conjTypeTheseFeats);
       if (!currMent.mentionType.isClosedClass()) {
         addFeatureShortcut("SNSemClass=" + descriptor + "-" + startingNew);
       }
       if (!startingNew) {
-        val antecedentDescriptor = antecedentMent.computeConjStr(conjTypeTheseFeats, Some(docGraph.cachedWni), semClasser);
+        val antecedentDescriptor = fetchConjStr(docGraph, antecedentMent, conjTypeTheseFeats);
         // Only use non-closed class because otherwise we already include this with
         // TYPE_OR_CANONICAL_PRON conjunctions
         if (!antecedentMent.mentionType.isClosedClass) {
-          if (!featsToUse.contains("noschead")) addFeatureShortcut("CurrHeadPrevSC=" + fetchHeadWordOrPos(currMent) + "-" + antecedentDescriptor);
-          if (!featsToUse.contains("noscfirst")) addFeatureShortcut("CurrFirstPrevSC=" + fetchFirstWordOrPos(currMent) + "-" + antecedentDescriptor);
-          if (!featsToUse.contains("nosclast")) addFeatureShortcut("CurrLastPrevSC=" + fetchLastWordOrPos(currMent) + "-" + antecedentDescriptor);
-          if (!featsToUse.contains("noscprec")) addFeatureShortcut("CurrPrecedingPrevSC=" + fetchPrecedingWordOrPos(currMent) + "-" + antecedentDescriptor);
-          if (!featsToUse.contains("noscfol")) addFeatureShortcut("CurrFollowingPrevSC=" + fetchFollowingWordOrPos(currMent) + "-" + antecedentDescriptor);
+          if (!featsToUse.contains("noschead")) addFeatureShortcut("CurrHeadPrevSC=" + fetchHeadWordOrPos(docGraph, currMentIdx) + "-" + antecedentDescriptor);
+          if (!featsToUse.contains("noscfirst")) addFeatureShortcut("CurrFirstPrevSC=" + fetchFirstWordOrPos(docGraph, currMentIdx) + "-" + antecedentDescriptor);
+          if (!featsToUse.contains("nosclast")) addFeatureShortcut("CurrLastPrevSC=" + fetchLastWordOrPos(docGraph, currMentIdx) + "-" + antecedentDescriptor);
+          if (!featsToUse.contains("noscprec")) addFeatureShortcut("CurrPrecedingPrevSC=" + fetchPrecedingWordOrPos(docGraph, currMentIdx) + "-" + antecedentDescriptor);
+          if (!featsToUse.contains("noscfol")) addFeatureShortcut("CurrFollowingPrevSC=" + fetchFollowingWordOrPos(docGraph, currMentIdx) + "-" + antecedentDescriptor);
         }
         if (!currMent.mentionType.isClosedClass) {
-          if (!featsToUse.contains("noschead")) addFeatureShortcut("PrevHeadCurrSC=" + fetchHeadWordOrPos(antecedentMent) + "-" + descriptor);
-          if (!featsToUse.contains("noscfirst")) addFeatureShortcut("PrevFirstCurrSC=" + fetchFirstWordOrPos(antecedentMent) + "-" + descriptor);
-          if (!featsToUse.contains("nosclast")) addFeatureShortcut("PrevLastCurrSC=" + fetchLastWordOrPos(antecedentMent) + "-" + descriptor);
-          if (!featsToUse.contains("noscprec")) addFeatureShortcut("PrevPrecedingCurrSC=" + fetchPrecedingWordOrPos(antecedentMent) + "-" + descriptor);
-          if (!featsToUse.contains("noscfol")) addFeatureShortcut("PrevFollowingCurrSC=" + fetchFollowingWordOrPos(antecedentMent) + "-" + descriptor);
+          if (!featsToUse.contains("noschead")) addFeatureShortcut("PrevHeadCurrSC=" + fetchHeadWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+          if (!featsToUse.contains("noscfirst")) addFeatureShortcut("PrevFirstCurrSC=" + fetchFirstWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+          if (!featsToUse.contains("nosclast")) addFeatureShortcut("PrevLastCurrSC=" + fetchLastWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+          if (!featsToUse.contains("noscprec")) addFeatureShortcut("PrevPrecedingCurrSC=" + fetchPrecedingWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
+          if (!featsToUse.contains("noscfol")) addFeatureShortcut("PrevFollowingCurrSC=" + fetchFollowingWordOrPos(docGraph, antecedentIdx) + "-" + descriptor);
         }
       }
     }
@@ -443,24 +453,50 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
     feats.toArray;
   }
   
-  def fetchHeadWordOrPos(ment: Mention) = fetchWordOrPosDefault(ment.headStringLc, ment.pos(ment.headIdx - ment.startIdx), lexicalCounts.commonHeadWordCounts);
-  def fetchFirstWordOrPos(ment: Mention) = fetchWordOrPosDefault(ment.words(0).toLowerCase, ment.pos(0), lexicalCounts.commonFirstWordCounts);
+  /**
+   * Properties of a single mention that get read once per antecedent pair; these only depend on the mention
+   * (and this featurizer's lexical counts), so DocumentGraph caches them and they're computed once per mention.
+   */
+  def computeMentionProperties(ment: Mention): MentionFeatureProperties = {
+    new MentionFeatureProperties(fetchHeadWordOrPos(ment), fetchFirstWordOrPos(ment), fetchLastWordOrPos(ment),
+                                 fetchPrecedingWordOrPos(ment), fetchFollowingWordOrPos(ment), ment.spanToString,
+                                 new Array[String](ConjFeatures.values.size));
+  }
+  
+  def fetchHeadWordOrPos(docGraph: DocumentGraph, mentIdx: Int): String = docGraph.getMentionPropertiesUseCache(this, mentIdx).headWordOrPos;
+  def fetchFirstWordOrPos(docGraph: DocumentGraph, mentIdx: Int): String = docGraph.getMentionPropertiesUseCache(this, mentIdx).firstWordOrPos;
+  def fetchLastWordOrPos(docGraph: DocumentGraph, mentIdx: Int): String = docGraph.getMentionPropertiesUseCache(this, mentIdx).lastWordOrPos;
+  def fetchPrecedingWordOrPos(docGraph: DocumentGraph, mentIdx: Int): String = docGraph.getMentionPropertiesUseCache(this, mentIdx).precedingWordOrPos;
+  def fetchFollowingWordOrPos(docGraph: DocumentGraph, mentIdx: Int): String = docGraph.getMentionPropertiesUseCache(this, mentIdx).followingWordOrPos;
   
-  def fetchLastWordOrPos(ment: Mention) = {
+  // Conjunctions are computed lazily since some of them need WordNet and aren't used by every feature set
+  private def fetchConjStr(docGraph: DocumentGraph, ment: Mention, conjFeatures: ConjFeatures) = {
+    val conjStrs = docGraph.getMentionPropertiesUseCache(this, ment.mentIdx).conjStrs;
+    val ordinal = conjFeatures.ordinal();
+    if (conjStrs(ordinal) == null) {
+      conjStrs(ordinal) = ment.computeConjStr(conjFeatures, Some(docGraph.cachedWni), semClasser);
+    }
+    conjStrs(ordinal);
+  }
+  
+  def fetchHeadWordOrPos(ment: Mention): String = fetchWordOrPosDefault(ment.headStringLc, ment.pos(ment.headIdx - ment.startIdx), lexicalCounts.commonHeadWordCounts);
+  def fetchFirstWordOrPos(ment: Mention): String = fetchWordOrPosDefault(ment.words(0).toLowerCase, ment.pos(0), lexicalCounts.commonFirstWordCounts);
+  
+  def fetchLastWordOrPos(ment: Mention): String = {
     if (ment.words.size == 1 || ment.endIdx - 1 == ment.headIdx) {
       ""
     } else {
       fetchWordOrPosDefault(ment.words(ment.words.size - 1).toLowerCase, ment.pos(ment.pos.size - 1), lexicalCounts.commonLastWordCounts);
     }
   }
-  private def fetchPenultimateWordOrPos(ment: Mention) = {
+  private def fetchPenultimateWordOrPos(ment: Mention): String = {
     if (ment.words.size <= 2) {
       ""
     } else {
       fetchWordOrPosDefault(ment.words(ment.words.size - 2).toLowerCase, ment.pos(ment.pos.size - 2), lexicalCounts.commonPenultimateWordCounts);
     }
   }
-  private def fetchSecondWordOrPos(ment: Mention) = {
+  private def fetchSecondWordOrPos(ment: Mention): String = {
     if (ment.words.size <= 3) {
       ""
     } else {
@@ -468,11 +504,11 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
     }
   }
   
-  def fetchPrecedingWordOrPos(ment: Mention) = fetchWordOrPosDefault(ment.contextWordOrPlaceholder(-1).toLowerCase, ment.contextPosOrPlaceholder(-1), lexicalCounts.commonPrecedingWordCounts);
-  def fetchFollowingWordOrPos(ment: Mention) = fetchWordOrPosDefault(ment.contextWordOrPlaceholder(ment.words.size).toLowerCase, ment.contextPosOrPlaceholder(ment.words.size), lexicalCounts.commonFollowingWordCounts);
+  def fetchPrecedingWordOrPos(ment: Mention): String = fetchWordOrPosDefault(ment.contextWordOrPlaceholder(-1).toLowerCase, ment.contextPosOrPlaceholder(-1), lexicalCounts.commonPrecedingWordCounts);
+  def fetchFollowingWordOrPos(ment: Mention): String = fetchWordOrPosDefault(ment.contextWordOrPlaceholder(ment.words.size).toLowerCase, ment.contextPosOrPlaceholder(ment.words.size), lexicalCounts.commonFollowingWordCounts);
   private def fetchPrecedingBy2WordOrPos(ment: Mention) = fetchWordOrPosDefault(ment.contextWordOrPlaceholder(-2).toLowerCase, ment.contextPosOrPlaceholder(-2), lexicalCounts.commonPrecedingBy2WordCounts);
   private def fetchFollowingBy2WordOrPos(ment: Mention) = fetchWordOrPosDefault(ment.contextWordOrPlaceholder(ment.words.size + 1).toLowerCase, ment.contextPosOrPlaceholder(ment.words.size + 1), lexicalCounts.commonFollowingBy2WordCounts);
-  private def fetchGovernorWordOrPos(ment: Mention) = fetchWordOrPosDefault(ment.governor.toLowerCase, ment.governorPos, lexicalCounts.commonGovernorWordCounts);
+  private def fetchGovernorWordOrPos(ment: Mention): String = fetchWordOrPosDefault(ment.governor.toLowerCase, ment.governorPos, lexicalCounts.commonGovernorWordCounts);
   
   
   private def fetchWordOrPosDefault(word: String, pos: String, counter: Counter[String]) = {
@@ -613,6 +649,15 @@ class PairwiseIndexingFeaturizerJoint(val featureIndexer: Indexer[String],
   }
 }
   
+@SerialVersionUID(1L)
+class MentionFeatureProperties(val headWordOrPos: String,
+                               val firstWordOrPos: String,
+                               val lastWordOrPos: String,
+                               val precedingWordOrPos: String,
+                               val followingWordOrPos: String,
+                               val spanString: String,
+                               val conjStrs: Array[String]) extends Serializable;
+  
 object PairwiseIndexingFeaturizerJoint {
   val UnkFeatName = "UNK_FEAT";
 }
@@ -1,4 +1,5 @@
 package edu.berkeley.nlp.entity.coref
+import java.util.concurrent.ConcurrentHashMap
 import edu.berkeley.nlp.futile.util.Logger
 import scala.collection.mutable.HashMap
 import scala.collection.mutable.ArrayBuffer
@@ -37,43 +38,32 @@ class DownstreamPairwiseLossFunction(spec: String,
   val bcubF1Weight = params(6).toDouble
   
   val inferencer = new DocumentInferencerBasic
-  val cache = new HashMap[UID,Array[Array[Double]]]
+  // Parallel training asks for losses from several threads. A document's losses are computed
+  // outside any lock; if two threads race on the same document, the first one stored wins
+  // (both get the same losses anyway)
+  val cache = new ConcurrentHashMap[UID,Array[Array[Double]]]
   
-  def loss(doc: CorefDoc, ment: Int, ant: Int): Double = {
+  private def getOrComputeLosses(doc: CorefDoc, prunedEdges: Option[Array[Array[Boolean]]]): Array[Array[Double]] = {
     val uid = doc.rawDoc.uid
-    if (!cache.contains(uid)) {
+    val cached = cache.get(uid)
+    if (cached != null) {
+      cached
+    } else {
       Logger.logss("Caching computation for " + uid)
       val docGraph = new DocumentGraph(doc, false)
       val scorerThisFold = models(foldMapping(uid))
       val backpointers = inferencer.viterbiDecode(docGraph, scorerThisFold)
-      cache.put(doc.rawDoc.uid, CorefEvaluator.getLosses(doc, backpointers, mucPrecWeight, mucRecWeight, mucF1Weight, bcubPrecWeight, bcubRecWeight, bcubF1Weight, None))
+      val losses = CorefEvaluator.getLosses(doc, backpointers, mucPrecWeight, mucRecWeight, mucF1Weight, bcubPrecWeight, bcubRecWeight, bcubF1Weight, prunedEdges)
+      val raced = cache.putIfAbsent(uid, losses)
+      if (raced != null) raced else losses
     }
-    cache(uid)(ment)(ant)
   }
   
-  def loss(doc: CorefDoc, ment: Int, prunedEdges: Array[Array[Boolean]]): Array[Double] = {
-    val uid = doc.rawDoc.uid
-    if (!cache.contains(uid)) {
-      Logger.logss("Caching computation for " + uid)
-      val docGraph = new DocumentGraph(doc, false)
-      val scorerThisFold = models(foldMapping(uid))
-      val backpointers = inferencer.viterbiDecode(docGraph, scorerThisFold)
-      cache.put(doc.rawDoc.uid, CorefEvaluator.getLosses(doc, backpointers, mucPrecWeight, mucRecWeight, mucF1Weight, bcubPrecWeight, bcubRecWeight, bcubF1Weight, Some(prunedEdges)))
-    }
-    cache(uid)(ment)
-  }
+  def loss(doc: CorefDoc, ment: Int, ant: Int): Double = getOrComputeLosses(doc, None)(ment)(ant)
   
-  def loss(doc: CorefDoc, prunedEdges: Array[Array[Boolean]]): Array[Array[Double]] = {
-    val uid = doc.rawDoc.uid
-    if (!cache.contains(uid)) {
-      Logger.logss("Caching computation for " + uid)
-      val docGraph = new DocumentGraph(doc, false)
-      val scorerThisFold = models(foldMapping(uid))
-      val backpointers = inferencer.viterbiDecode(docGraph, scorerThisFold)
-      cache.put(doc.rawDoc.uid, CorefEvaluator.getLosses(doc, backpointers, mucPrecWeight, mucRecWeight, mucF1Weight, bcubPrecWeight, bcubRecWeight, bcubF1Weight, Some(prunedEdges)))
-    }
-    cache(uid)
-  }
+  def loss(doc: CorefDoc, ment: Int, prunedEdges: Array[Array[Boolean]]): Array[Double] = getOrComputeLosses(doc, Some(prunedEdges))(ment)
+  
+  def loss(doc: CorefDoc, prunedEdges: Array[Array[Boolean]]): Array[Array[Double]] = getOrComputeLosses(doc, Some(prunedEdges))
   
   def lossFromCurrPrediction(doc: CorefDoc, prunedEdges: Array[Array[Boolean]], prediction: Array[Int]): Array[Array[Double]] = {
     val uid = doc.rawDoc.uid
@@ -0,0 +1,82 @@
+package edu.berkeley.nlp.entity.joint
+
+import java.util.HashMap
+import edu.berkeley.nlp.entity.coref.UID
+
+/**
+ * Cache of document factor graphs keyed by document UID. Each graph is charged weigh(graph)
+ * against a budget of maxWeight; with maxWeight < 0 the cache is unbounded, which keeps every
+ * graph resident for the whole run. Once a graph won't fit in what's left of the budget it
+ * isn't admitted and nothing is evicted, so the resident set stays fixed and graphs outside it
+ * are rebuilt on every miss. Training sweeps documents in the same order each epoch, and under
+ * that access pattern LRU eviction would drop every graph before it came around again; a
+ * stable resident set instead hits on every graph it holds.
+ *
+ * Safe to use from several threads: every method locks the cache, except that
+ * getOrElseUpdate builds a missing graph outside the lock (so two threads can both build
+ * the same one, and the second put just replaces the first).
+ */
+class FactorGraphCache[G <: AnyRef](val name: String, val maxWeight: Long, val weigh: G => Long) {
+  private var numHits = 0L;
+  private var numMisses = 0L;
+  private var numRejected = 0L;
+  private var totalWeight = 0L;
+
+  private val cache = new HashMap[UID,G];
+
+  def isBounded = maxWeight >= 0;
+
+  def size = synchronized { cache.size(); }
+
+  def weight = synchronized { totalWeight; }
+
+  def contains(uid: UID) = synchronized { cache.containsKey(uid); }
+
+  /**
+   * Returns the cached graph for uid, or null if it isn't present (never stored or
+   * not admitted). Counts as a hit or a miss.
+   */
+  def get(uid: UID): G = synchronized {
+    val graph = cache.get(uid);
+    if (graph != null) numHits += 1 else numMisses += 1;
+    graph;
+  }
+
+  /**
+   * Stores the graph if it fits in the remaining budget; returns whether it was stored.
+   */
+  def put(uid: UID, graph: G): Boolean = synchronized {
+    val old = cache.get(uid);
+    val graphWeight = weigh(graph);
+    val newTotal = totalWeight + graphWeight - (if (old != null) weigh(old) else 0L);
+    if (isBounded && newTotal > maxWeight) {
+      numRejected += 1;
+      false;
+    } else {
+      cache.put(uid, graph);
+      totalWeight = newTotal;
+      true;
+    }
+  }
+
+  def getOrElseUpdate(uid: UID, builder: => G): G = {
+    val graph = get(uid);
+    if (graph != null) {
+      graph;
+    } else {
+      val newGraph = builder;
+      put(uid, newGraph);
+      newGraph;
+    }
+  }
+
+  def clear() = synchronized {
+    cache.clear();
+    totalWeight = 0L;
+  }
+
+  def renderStats = synchronized {
+    name + " factor graph cache: " + size + " resident with weight " + totalWeight + " (max " + (if (isBounded) maxWeight.toString else "unbounded") + "), " +
+      numHits + " hits, " + numMisses + " misses, " + numRejected + " not admitted";
+  }
+}
@@ -1,34 +1,83 @@
 package edu.berkeley.nlp.entity.joint
 
 import scala.collection.mutable.HashMap
-import edu.berkeley.nlp.entity.coref.UID
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.Metrics
 import edu.berkeley.nlp.futile.fig.basic.Indexer
 import edu.berkeley.nlp.entity.ner.NerFeaturizer
 import edu.berkeley.nlp.entity.ner.MCNerFeaturizer
 import edu.berkeley.nlp.entity.coref.CorefDoc
+import edu.berkeley.nlp.entity.coref.DocumentGraph
+import edu.berkeley.nlp.entity.coref.UID
 import edu.berkeley.nlp.entity.wiki.WikipediaInterface
 
 trait FactorGraphFactory[D,G<:JointDocFactorGraph] {
   
   def getIndexer: Indexer[String];
+  
+  def getFeaturizer: JointFeaturizerShared[_];
+  
+  def getDocumentGraph(obj: D): DocumentGraph;
+  
+  /**
+   * Everything about the document besides its DocumentGraph that the features of its graphs
+   * depend on (NER pruning domains, gold labels that restrict domains), for keying
+   * JointFeaturizationCache.
+   */
+  def describeForFeatureCache(obj: D): String;
 
+  /**
+   * featureTape records the NER and linking features of a graph this builds from scratch, or
+   * replays features recorded earlier instead of computing them; see JointFeaturizationCache.
+   */
   def getDocFactorGraph(obj: D,
                         isGold: Boolean,
                         addToIndexer: Boolean,
                         useCache: Boolean,
                         corefLossFcn: (CorefDoc, Int, Int) => Float,
                         nerLossFcn: (String, String) => Float,
-                        wikiLossFcn: (Seq[String], String) => Float): G;
+                        wikiLossFcn: (Seq[String], String) => Float,
+                        featureTape: JointFeatureTape = JointFeatureTape.Live): G;
   
   def getDocFactorGraphHard(obj: D, isGold: Boolean) = {
     getDocFactorGraph(obj, isGold, false, true, null, null, null);
   }
+  
+  def renderCacheStats: String;
+  
+  /**
+   * Sorted features of the document's gold and predicted graphs, as recorded when they were
+   * first built, or null if they haven't been built. Doesn't touch the graph caches, so it's
+   * safe to call for every document even when they're bounded.
+   */
+  def getActiveFeatures(obj: D): Array[Int];
+  
+  private val activeFeatures = new HashMap[UID,Array[Int]];
+  
+  protected def recordActiveFeatures(uid: UID, graph: G): G = {
+    activeFeatures.synchronized {
+      // Gold and predicted graphs read the same features, but take the union to be safe
+      val feats = activeFeatures.getOrElse(uid, new Array[Int](0)) ++ graph.getIndexedFeatures;
+      java.util.Arrays.sort(feats);
+      activeFeatures.put(uid, feats.distinct);
+    }
+    graph;
+  }
+  
+  protected def lookupActiveFeatures(uid: UID): Array[Int] = activeFeatures.synchronized {
+    activeFeatures.getOrElse(uid, null);
+  }
+  
+  // Graph size grows with the number of antecedent arcs, so that's what counts against the cache budget
+  protected def mentionPairs(numMentions: Int): Long = numMentions.toLong * numMentions;
 }
 
 class FactorGraphFactoryOnto(val featurizer: JointFeaturizerShared[NerFeaturizer],
                              val wikiDB: Option[WikipediaInterface]) extends FactorGraphFactory[JointDoc,JointDocFactorGraphOnto] {
-  val goldFactorGraphCache = new HashMap[UID, JointDocFactorGraphOnto]();
-  val guessFactorGraphCache = new HashMap[UID, JointDocFactorGraphOnto]();
+  val goldFactorGraphCache = new FactorGraphCache[JointDocFactorGraphOnto]("Gold", Driver.factorGraphCacheMentionPairs, graph => mentionPairs(graph.docGraph.size));
+  val guessFactorGraphCache = new FactorGraphCache[JointDocFactorGraphOnto]("Guess", Driver.factorGraphCacheMentionPairs, graph => mentionPairs(graph.docGraph.size));
+  // Loss functions the cached graphs were first built with, so that graphs the cache didn't admit can be rebuilt
+  @volatile private var cachedLossFcns: ((CorefDoc, Int, Int) => Float, (String, String) => Float, (Seq[String], String) => Float) = null;
   
   private def fetchGraphCache(gold: Boolean) = {
     if (gold) {
@@ -40,32 +89,56 @@ class FactorGraphFactoryOnto(val featurizer: JointFeaturizerShared[NerFeaturizer
   
   def getIndexer = featurizer.indexer;
   
+  def renderCacheStats = goldFactorGraphCache.renderStats + "; " + guessFactorGraphCache.renderStats;
+  
+  def getActiveFeatures(doc: JointDoc) = lookupActiveFeatures(doc.rawDoc.uid);
+  
+  def getFeaturizer = featurizer;
+  
+  def getDocumentGraph(doc: JointDoc) = doc.docGraph;
+  
+  def describeForFeatureCache(doc: JointDoc) = {
+    (0 until doc.rawDoc.numSents).map(sentIdx => doc.getGoldNerDomains(sentIdx).mkString("|") + "\n" + doc.getPredNerDomains(sentIdx).mkString("|")).mkString("\n");
+  }
+  
   def getDocFactorGraph(doc: JointDoc,
                         gold: Boolean,
                         addToIndexer: Boolean,
                         useCache: Boolean,
                         corefLossFcn: (CorefDoc, Int, Int) => Float,
                         nerLossFcn: (String, String) => Float,
-                        wikiLossFcn: (Seq[String], String) => Float): JointDocFactorGraphOnto = {
+                        wikiLossFcn: (Seq[String], String) => Float,
+                        featureTape: JointFeatureTape): JointDocFactorGraphOnto = {
     if (useCache) {
-      val cache = fetchGraphCache(gold);
-      if (!cache.contains(doc.rawDoc.uid)) {
-        cache.put(doc.rawDoc.uid, new JointDocFactorGraphOnto(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn));
+      if (corefLossFcn != null) {
+        cachedLossFcns = (corefLossFcn, nerLossFcn, wikiLossFcn);
       }
-      cache(doc.rawDoc.uid);
+      fetchGraphCache(gold).getOrElseUpdate(doc.rawDoc.uid, {
+        if (corefLossFcn != null) {
+          recordActiveFeatures(doc.rawDoc.uid, Metrics.FactorGraphBuild.time(new JointDocFactorGraphOnto(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn, featureTape)));
+        } else if (Driver.rebuildUncachedFactorGraphs && cachedLossFcns != null) {
+          // Every feature was indexed when the graph was first built, so we never need to add to the indexer here
+          Metrics.FactorGraphBuild.time(new JointDocFactorGraphOnto(doc, featurizer, wikiDB, gold, false, cachedLossFcns._1, cachedLossFcns._2, cachedLossFcns._3, JointFeatureTape.Live));
+        } else {
+          throw new RuntimeException("Factor graph for " + doc.rawDoc.printableDocName + " wasn't in the cache and can't be rebuilt; " +
+                                     "cache it with loss functions first or enable rebuildUncachedFactorGraphs");
+        }
+      });
     } else {
       if (corefLossFcn == null) {
         throw new RuntimeException("You called getDocFactorGraphHard but it wasn't in the cache...")
       }
-      new JointDocFactorGraphOnto(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn)
+      Metrics.FactorGraphBuild.time(new JointDocFactorGraphOnto(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn, featureTape))
     }
   }
 }
 
 class FactorGraphFactoryACE(val featurizer: JointFeaturizerShared[MCNerFeaturizer],
                             val wikiDB: Option[WikipediaInterface]) extends FactorGraphFactory[JointDocACE,JointDocFactorGraphACE] {
-  val goldFactorGraphCache = new HashMap[UID, JointDocFactorGraphACE]();
-  val guessFactorGraphCache = new HashMap[UID, JointDocFactorGraphACE]();
+  val goldFactorGraphCache = new FactorGraphCache[JointDocFactorGraphACE]("Gold", Driver.factorGraphCacheMentionPairs, graph => mentionPairs(graph.docGraph.size));
+  val guessFactorGraphCache = new FactorGraphCache[JointDocFactorGraphACE]("Guess", Driver.factorGraphCacheMentionPairs, graph => mentionPairs(graph.docGraph.size));
+  // Loss functions the cached graphs were first built with, so that graphs the cache didn't admit can be rebuilt
+  @volatile private var cachedLossFcns: ((CorefDoc, Int, Int) => Float, (String, String) => Float, (Seq[String], String) => Float) = null;
   
   private def fetchGraphCache(gold: Boolean) = {
     if (gold) {
@@ -77,24 +150,45 @@ class FactorGraphFactoryACE(val featurizer: JointFeaturizerShared[MCNerFeaturize
   
   def getIndexer = featurizer.indexer;
   
+  def renderCacheStats = goldFactorGraphCache.renderStats + "; " + guessFactorGraphCache.renderStats;
+  
+  def getActiveFeatures(doc: JointDocACE) = lookupActiveFeatures(doc.rawDoc.uid);
+  
+  def getFeaturizer = featurizer;
+  
+  def getDocumentGraph(doc: JointDocACE) = doc.docGraph;
+  
+  // Gold NER labels come from the mentions, but gold titles restrict the gold graph's domains
+  def describeForFeatureCache(doc: JointDocACE) = doc.goldWikiChunks.map(_.mkString(" ")).mkString("\n");
+  
   def getDocFactorGraph(doc: JointDocACE,
                         gold: Boolean,
                         addToIndexer: Boolean,
                         useCache: Boolean,
                         corefLossFcn: (CorefDoc, Int, Int) => Float,
                         nerLossFcn: (String, String) => Float,
-                        wikiLossFcn: (Seq[String], String) => Float): JointDocFactorGraphACE = {
+                        wikiLossFcn: (Seq[String], String) => Float,
+                        featureTape: JointFeatureTape): JointDocFactorGraphACE = {
     if (useCache) {
-      val cache = fetchGraphCache(gold);
-      if (!cache.contains(doc.rawDoc.uid)) {
-        cache.put(doc.rawDoc.uid, new JointDocFactorGraphACE(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn));
+      if (corefLossFcn != null) {
+        cachedLossFcns = (corefLossFcn, nerLossFcn, wikiLossFcn);
       }
-      cache(doc.rawDoc.uid);
+      fetchGraphCache(gold).getOrElseUpdate(doc.rawDoc.uid, {
+        if (corefLossFcn != null) {
+          recordActiveFeatures(doc.rawDoc.uid, Metrics.FactorGraphBuild.time(new JointDocFactorGraphACE(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn, featureTape)));
+        } else if (Driver.rebuildUncachedFactorGraphs && cachedLossFcns != null) {
+          // Every feature was indexed when the graph was first built, so we never need to add to the indexer here
+          Metrics.FactorGraphBuild.time(new JointDocFactorGraphACE(doc, featurizer, wikiDB, gold, false, cachedLossFcns._1, cachedLossFcns._2, cachedLossFcns._3, JointFeatureTape.Live));
+        } else {
+          throw new RuntimeException("Factor graph for " + doc.rawDoc.printableDocName + " wasn't in the cache and can't be rebuilt; " +
+                                     "cache it with loss functions first or enable rebuildUncachedFactorGraphs");
+        }
+      });
     } else {
       if (corefLossFcn == null) {
         throw new RuntimeException("You called getDocFactorGraphHard but it wasn't in the cache...")
       }
-      new JointDocFactorGraphACE(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn)
+      Metrics.FactorGraphBuild.time(new JointDocFactorGraphACE(doc, featurizer, wikiDB, gold, addToIndexer, corefLossFcn, nerLossFcn, wikiLossFcn, featureTape))
     }
   }
 }
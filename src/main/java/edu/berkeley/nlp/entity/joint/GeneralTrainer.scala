@@ -2,6 +2,7 @@ package edu.berkeley.nlp.entity.joint
 import scala.Array.canBuildFrom
 import scala.collection.JavaConverters.asScalaBufferConverter
 import scala.collection.mutable.HashSet
+import edu.berkeley.nlp.entity.Metrics
 import edu.berkeley.nlp.futile.math.CachingDifferentiableFunction
 import edu.berkeley.nlp.futile.math.LBFGSMinimizer
 import edu.berkeley.nlp.futile.util.Logger
@@ -11,9 +12,22 @@ import java.util.Arrays
 trait LikelihoodAndGradientComputer[T] {
   def addUnregularizedStochasticGradient(ex: T, weights: Array[Float], gradient: Array[Float]);
   def computeLogLikelihood(ex: T, weights: Array[Float]): Float;
+  
+  /**
+   * Indices of every weight that the other two methods can read or touch for ex, or null
+   * if that isn't known, in which case training has to update every weight every step.
+   */
+  def getActiveFeatures(ex: T): Array[Int] = null;
 }
 
-class GeneralTrainer[T] {
+/**
+ * If sparseUpdates is set and the computer reports each example's active features,
+ * Adagrad steps only visit the features of the current minibatch: the L1 shrinkage that
+ * the dense update would have applied to a weight on the steps where it had no gradient
+ * is replayed right before the weight is next read (and for all weights at the end of
+ * each iteration), so the learned weights are exactly the same as with dense updates.
+ */
+class GeneralTrainer[T](val sparseUpdates: Boolean = true) {
   
   var inferenceNanos = 0L;
   var adagradNanos = 0L;
@@ -35,16 +49,22 @@ class GeneralTrainer[T] {
                    lambda: Float,
                    batchSize: Int,
                    numItrs: Int,
-                   learningCallback: Array[Float] => Unit = (weights: Array[Float]) => {}): Array[Float] = {
+                   learningCallback: Array[Float] => Unit = null): Array[Float] = {
 //    val weights = Array.fill(pairwiseIndexingFeaturizer.featureIndexer.size)(0.0);
     val weights = Array.fill(numFeats)(0.0F);
     val reusableGradientArray = Array.fill(numFeats)(0.0F);
     val diagGt = Array.fill(numFeats)(0.0F);
+    // A callback can read or overwrite any weight after every step, so it needs dense updates
+    val batchActiveFeats = if (sparseUpdates && learningCallback == null) getBatchActiveFeatures(trainExs, computer, batchSize) else null;
+    // Number of steps whose update each weight has had applied, for sparse updates
+    val numStepsApplied = if (batchActiveFeats != null) new Array[Int](numFeats) else null;
+    var numSteps = 0;
     for (i <- 0 until numItrs) {
       Logger.logss("ITERATION " + i);
       val startTime = System.nanoTime();
       inferenceNanos = 0;
       adagradNanos = 0;
+      Metrics.beginIteration(i);
       Logger.startTrack("Computing gradient");
       var currIdx = 0;
       var currBatchIdx = 0;
@@ -53,17 +73,41 @@ class GeneralTrainer[T] {
         if (printFreq == 0 || currBatchIdx % printFreq == 0) {
           Logger.logs("Computing gradient on " + currIdx);
         }
-        takeAdagradStepL1R(trainExs.slice(currIdx, Math.min(trainExs.size, currIdx + batchSize)),
-                           computer,
-                           weights,
-                           reusableGradientArray,
-                           diagGt,
-                           eta,
-                           lambda);
-        learningCallback(weights)
+        if (batchActiveFeats != null) {
+          takeAdagradStepL1RSparse(trainExs.slice(currIdx, Math.min(trainExs.size, currIdx + batchSize)),
+                                   batchActiveFeats(currBatchIdx),
+                                   computer,
+                                   weights,
+                                   reusableGradientArray,
+                                   diagGt,
+                                   numStepsApplied,
+                                   numSteps,
+                                   eta,
+                                   lambda);
+        } else {
+          takeAdagradStepL1R(trainExs.slice(currIdx, Math.min(trainExs.size, currIdx + batchSize)),
+                             computer,
+                             weights,
+                             reusableGradientArray,
+                             diagGt,
+                             eta,
+                             lambda);
+          if (learningCallback != null) {
+            learningCallback(weights);
+          }
+        }
+        numSteps += 1;
         currIdx += batchSize;
         currBatchIdx += 1;
       }
+      if (batchActiveFeats != null) {
+        // Everything gets read below (and returned at the end), so bring it all up to date
+        var featIdx = 0;
+        while (featIdx < numFeats) {
+          catchUpWeight(featIdx, weights, diagGt, numStepsApplied, numSteps, eta, lambda);
+          featIdx += 1;
+        }
+      }
       Logger.endTrack();
       Logger.logss("NONZERO WEIGHTS: " + weights.foldRight(0)((weight, count) => if (Math.abs(weight) > 1e-15) count + 1 else count));
       Logger.logss("WEIGHT VECTOR NORM: " + weights.foldRight(0.0)((weight, norm) => norm + weight * weight));
@@ -75,6 +119,7 @@ class GeneralTrainer[T] {
       Logger.logss("MILLIS FOR ITER " + i + ": " + (System.nanoTime() - startTime) / 1000000.0);
       Logger.logss("MILLIS INFERENCE FOR ITER " + i + ": " + inferenceNanos / 1000000.0);
       Logger.logss("MILLIS ADAGRAD FOR ITER " + i + ": " + adagradNanos / 1000000.0);
+      Metrics.endIteration(i);
       Logger.logss("MEMORY AFTER ITER " + i + ": " + SysInfoUtils.getUsedMemoryStr());
     }
     weights
@@ -106,32 +151,141 @@ class GeneralTrainer[T] {
                          lambda: Float) {
     Arrays.fill(reusableGradientArray, 0.0F);
     var nanoTime = System.nanoTime();
-    for (ex <- exs) {
-      computer.addUnregularizedStochasticGradient(ex, weights, reusableGradientArray);
-    }
-    inferenceNanos += (System.nanoTime() - nanoTime);
+    computeGradient(exs, computer, weights, reusableGradientArray);
+    addInferenceTime(System.nanoTime() - nanoTime);
     nanoTime = System.nanoTime();
     // Precompute this so dividing by batch size is a multiply and not a divide
     val batchSizeMultiplier = 1.0F/exs.size;
     var i = 0;
     while (i < reusableGradientArray.size) {
-      val xti = weights(i);
       // N.B. We negate the gradient here because the Adagrad formulas are all for minimizing
       // and we're trying to maximize, so think of it as minimizing the negative of the objective
       // which has the opposite gradient
-      // Equation (25) in http://www.cs.berkeley.edu/~jduchi/projects/DuchiHaSi10.pdf
-      // eta is the step size, lambda is the regularization
-      val gti = -reusableGradientArray(i) * batchSizeMultiplier;
-      // Update diagGt
-      diagGt(i) += gti * gti;
+      updateWeight(i, -reusableGradientArray(i) * batchSizeMultiplier, weights, diagGt, eta, lambda);
+      i += 1;
+    }
+    addAdagradTime(System.nanoTime() - nanoTime);
+  }
+  
+  /**
+   * Same as takeAdagradStepL1R but only visits activeFeats, which must contain every feature
+   * the minibatch reads or touches; numStepsApplied says how far behind the other weights are.
+   */
+  def takeAdagradStepL1RSparse(exs: Seq[T],
+                               activeFeats: Array[Int],
+                               computer: LikelihoodAndGradientComputer[T],
+                               weights: Array[Float],
+                               reusableGradientArray: Array[Float],
+                               diagGt: Array[Float],
+                               numStepsApplied: Array[Int],
+                               numStepsSoFar: Int,
+                               eta: Float,
+                               lambda: Float) {
+    var nanoTime = System.nanoTime();
+    var k = 0;
+    while (k < activeFeats.size) {
+      catchUpWeight(activeFeats(k), weights, diagGt, numStepsApplied, numStepsSoFar, eta, lambda);
+      k += 1;
+    }
+    addAdagradTime(System.nanoTime() - nanoTime);
+    nanoTime = System.nanoTime();
+    // reusableGradientArray is all zeroes coming in, since we clear exactly what gets touched
+    computeGradient(exs, computer, weights, reusableGradientArray);
+    addInferenceTime(System.nanoTime() - nanoTime);
+    nanoTime = System.nanoTime();
+    val batchSizeMultiplier = 1.0F/exs.size;
+    k = 0;
+    while (k < activeFeats.size) {
+      val i = activeFeats(k);
+      updateWeight(i, -reusableGradientArray(i) * batchSizeMultiplier, weights, diagGt, eta, lambda);
+      reusableGradientArray(i) = 0.0F;
+      numStepsApplied(i) = numStepsSoFar + 1;
+      k += 1;
+    }
+    addAdagradTime(System.nanoTime() - nanoTime);
+  }
+  
+  private def computeGradient(exs: Seq[T], computer: LikelihoodAndGradientComputer[T], weights: Array[Float], gradient: Array[Float]) {
+    for (ex <- exs) {
+      Metrics.beginDoc("train", ex);
+      computer.addUnregularizedStochasticGradient(ex, weights, gradient);
+      Metrics.endDoc();
+    }
+  }
+  
+  // Both go to the per-iteration totals that get logged as well as to Metrics
+  private def addInferenceTime(nanos: Long) {
+    inferenceNanos += nanos;
+    Metrics.Gradient.record(nanos);
+  }
+  
+  private def addAdagradTime(nanos: Long) {
+    adagradNanos += nanos;
+    Metrics.WeightUpdate.record(nanos);
+  }
+  
+  // gti is the negated gradient
+  private def updateWeight(i: Int, gti: Float, weights: Array[Float], diagGt: Array[Float], eta: Float, lambda: Float) {
+    val xti = weights(i);
+    // Equation (25) in http://www.cs.berkeley.edu/~jduchi/projects/DuchiHaSi10.pdf
+    // eta is the step size, lambda is the regularization
+    // Update diagGt
+    diagGt(i) += gti * gti;
+    val Htii = 1F + Math.sqrt(diagGt(i)).toFloat;
+    // Avoid divisions at all costs...
+    val etaOverHtii = eta / Htii;
+    val newXti = xti - etaOverHtii * gti;
+    weights(i) = Math.signum(newXti) * Math.max(0, Math.abs(newXti) - lambda * etaOverHtii);
+  }
+  
+  /**
+   * Applies the updates weight i missed since it was last touched. With no gradient, each
+   * one is just an L1 shrinkage step with Htii unchanged; they're replayed one at a time
+   * rather than in closed form so that the floating point results match dense updates
+   * exactly, which is cheap since a weight stops changing once it hits zero.
+   */
+  private def catchUpWeight(i: Int, weights: Array[Float], diagGt: Array[Float], numStepsApplied: Array[Int], numSteps: Int, eta: Float, lambda: Float) {
+    var missedSteps = numSteps - numStepsApplied(i);
+    if (missedSteps > 0) {
       val Htii = 1F + Math.sqrt(diagGt(i)).toFloat;
-      // Avoid divisions at all costs...
       val etaOverHtii = eta / Htii;
-      val newXti = xti - etaOverHtii * gti;
-      weights(i) = Math.signum(newXti) * Math.max(0, Math.abs(newXti) - lambda * etaOverHtii);
-      i += 1;
+      var xti = weights(i);
+      while (missedSteps > 0) {
+        if (xti == 0) {
+          // Stays zero from here on (a dense update also turns -0 into 0)
+          xti = 0.0F;
+          missedSteps = 0;
+        } else {
+          xti = Math.signum(xti) * Math.max(0, Math.abs(xti) - lambda * etaOverHtii);
+          missedSteps -= 1;
+        }
+      }
+      weights(i) = xti;
+      numStepsApplied(i) = numSteps;
+    }
+  }
+  
+  /**
+   * Union of the active features of the examples in each minibatch, or null if the computer
+   * can't report them.
+   */
+  private def getBatchActiveFeatures(trainExs: Seq[T], computer: LikelihoodAndGradientComputer[T], batchSize: Int): Array[Array[Int]] = {
+    val numBatches = (trainExs.size + batchSize - 1) / batchSize;
+    val batchActiveFeats = new Array[Array[Int]](numBatches);
+    var totalActiveFeats = 0L;
+    for (batchIdx <- 0 until numBatches) {
+      val exActiveFeats = trainExs.slice(batchIdx * batchSize, Math.min(trainExs.size, (batchIdx + 1) * batchSize)).map(computer.getActiveFeatures(_));
+      if (exActiveFeats.contains(null)) {
+        Logger.logss("Active features not available; using dense Adagrad updates");
+        return null;
+      }
+      val feats = exActiveFeats.flatten.toArray;
+      java.util.Arrays.sort(feats);
+      batchActiveFeats(batchIdx) = feats.distinct;
+      totalActiveFeats += batchActiveFeats(batchIdx).size;
     }
-    adagradNanos += (System.nanoTime() - nanoTime);
+    Logger.logss("Using sparse Adagrad updates; " + (totalActiveFeats.toDouble / Math.max(1, numBatches)) + " active features per minibatch on average");
+    batchActiveFeats;
   }
   
   
@@ -44,6 +44,9 @@ class JointComputerShared[D,G<:JointDocFactorGraph](factorGraphFactory: FactorGr
     goldNormalizer - predNormalizer;
   }
   
+  // Recorded when the graphs were built, so this doesn't rebuild graphs a bounded cache evicted
+  override def getActiveFeatures(doc: D): Array[Int] = factorGraphFactory.getActiveFeatures(doc);
+  
   def addUnregularizedStochasticGradient(doc: D,
                                          weights: Array[Float],
                                          gradient: Array[Float]) = {
@@ -107,11 +110,14 @@ class JointComputerShared[D,G<:JointDocFactorGraph](factorGraphFactory: FactorGr
     // change the max.
     factorGraph.computeAndStoreMarginals(weights, false, NumBpIters);
 //    computeAndStoreMarginals(factorGraph, weights, lossAugmented = false, exponentiateMessages = true);
+    val startNanos = Metrics.BpDecode.start();
     // MBR decoding on coref
     val predBackptrs = factorGraph.decodeCorefProduceBackpointers;
     // MBR decoding on NER as well
     val chunks = factorGraph.decodeNERProduceChunks;
     val wikiChunks = factorGraph.decodeWikificationProduceChunks;
+    Metrics.BpDecode.stop(startNanos);
+    Metrics.DocsDecoded.inc();
     factorGraph.scrubMessages();
     (predBackptrs, OrderedClustering.createFromBackpointers(predBackptrs), chunks, wikiChunks);
   }
@@ -44,6 +44,9 @@ trait JointDocFactorGraph {
   
   def addExpectedFeatureCountsToGradient(scale: Float, gradient: Array[Float]);
   
+  // Every feature whose weight the graph reads, i.e., every feature its gradient can touch
+  def getIndexedFeatures: Array[Int];
+  
   def decodeCorefProduceBackpointers: Array[Int];
   
   def decodeNERProduceChunks: Seq[Seq[Chunk[String]]];
@@ -5,6 +5,7 @@ import scala.collection.mutable.ArrayBuffer
 import edu.berkeley.nlp.entity.coref.CorefDoc
 import edu.berkeley.nlp.entity.coref.DocumentGraph
 import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.entity.Metrics
 import edu.berkeley.nlp.entity.coref.PairwiseIndexingFeaturizer
 import edu.berkeley.nlp.entity.coref.PairwiseIndexingFeaturizerJoint
 import edu.berkeley.nlp.entity.coref.PairwiseScorer
@@ -17,6 +18,7 @@ import edu.berkeley.nlp.entity.Chunk
 import edu.berkeley.nlp.entity.bp.BetterPropertyFactor
 import edu.berkeley.nlp.entity.bp.Factor
 import edu.berkeley.nlp.entity.bp.Node
+import edu.berkeley.nlp.entity.bp.MessageStore
 import edu.berkeley.nlp.entity.bp.UnaryFactorOld
 import scala.Array.canBuildFrom
 import edu.berkeley.nlp.entity.bp.Domain
@@ -40,7 +42,8 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
                              val addToIndexer: Boolean,
                              val corefLossFcn: (CorefDoc, Int, Int) => Float,
                              val nerLossFcn: (String, String) => Float,
-                             val wikiLossFcn: (Seq[String], String) => Float) extends JointDocFactorGraph {
+                             val wikiLossFcn: (Seq[String], String) => Float,
+                             val featureTape: JointFeatureTape) extends JointDocFactorGraph {
   
   val docGraph = doc.docGraph;
   val nerLabelIndexer = featurizer.nerFeaturizer.labelIndexer;
@@ -95,7 +98,7 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
     // COREF
     val domainArr = docGraph.getPrunedDomain(i, gold);
     corefNodes(i) = addAndReturnNode(new Node[Int](new Domain(domainArr)), true);
-    val featsEachDecision = domainArr.map(antIdx => featsChart(i)(antIdx));
+    val featsEachDecision = domainArr.map(antIdx => featsChart(i, antIdx));
     corefUnaryFactors(i) = addAndReturnFactor(new UnaryFactorGeneral(corefNodes(i), featsEachDecision), false);
     corefUnaryFactors(i).setConstantOffset(Array.tabulate(domainArr.size)(entryIdx => corefLossFcn(docGraph.corefDoc, i, domainArr(entryIdx))));
     // NER
@@ -105,7 +108,7 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
       new Domain[String](MCNerFeaturizer.StdLabelIndexer.getObjects.asScala.toArray);
     }
     nerNodes(i) = addAndReturnNode(new Node[String](nerDomainArr), true);
-    val allNerFeats = featurizer.nerFeaturizer.featurize(MCNerExample(docGraph, i), addToIndexer);
+    val allNerFeats = featureTape.feats2(featurizer.nerFeaturizer.featurize(MCNerExample(docGraph, i), addToIndexer));
     val nerFeatsEachDecision = nerDomainArr.entries.map(neLabel => allNerFeats(neLabelIdx.indexOf(neLabel)));
     nerUnaryFactors(i) = addAndReturnFactor(new UnaryFactorGeneral(nerNodes(i), nerFeatsEachDecision), false);
     nerUnaryFactors(i).setConstantOffset(Array.tabulate(nerDomainArr.size)(entryIdx => {
@@ -160,7 +163,7 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
         // Build unary factors for queries
         val queryDomain = new Domain(queries.toArray)
         queryNodes(i) = addAndReturnNode(new Node[Query](queryDomain), false);
-        val queryFeatures = qcComputer.featurizeQueries(queries, addToIndexer);
+        val queryFeatures = featureTape.feats2(qcComputer.featurizeQueries(queries, addToIndexer));
         queryUnaryFactors(i) = addAndReturnFactor(new UnaryFactorGeneral(queryNodes(i), queryFeatures), false);
         val rawQueryDenotations = qcComputer.extractDenotationSetWithNil(queries, queryDisambigs, Driver.maxNumWikificationOptions);
         val denotations = if (gold && !Driver.leaveWikificationLatent && mentIsInGold) {
@@ -170,7 +173,7 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
           rawQueryDenotations;
         }
         wikiNodes(i) = addAndReturnNode(new Node[String](new Domain(denotations.toArray)), true);
-        queryWikiBinaryFactors(i) = addAndReturnFactor(new BinaryFactorGeneral(queryNodes(i), wikiNodes(i), qcComputer.featurizeQueriesAndDenotations(queries, denotations, addToIndexer)), false);
+        queryWikiBinaryFactors(i) = addAndReturnFactor(new BinaryFactorGeneral(queryNodes(i), wikiNodes(i), featureTape.feats3(qcComputer.featurizeQueriesAndDenotations(queries, denotations, addToIndexer))), false);
       }
     }
   }
@@ -182,9 +185,9 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
       for (j <- domain.entries) {
         if (j != i) {
           val antNerNode = nerNodes(j);
-          val featsIndexed: Array[Array[Array[Int]]] = Array.tabulate(currNerNode.domain.size, antNerNode.domain.size)((currNerValIdx, antNerValIdx) => {
+          val featsIndexed: Array[Array[Array[Int]]] = featureTape.feats3(Array.tabulate(currNerNode.domain.size, antNerNode.domain.size)((currNerValIdx, antNerValIdx) => {
             featurizer.getCorefNerFeatures(docGraph, i, j, currNerNode.domain.entries(currNerValIdx), antNerNode.domain.entries(antNerValIdx), addToIndexer);
-          });
+          }));
           agreementFactors(i)(j) = addAndReturnFactor(new BetterPropertyFactor[String](j, currNerNode, corefNodes(i), antNerNode, featsIndexed), true);
         }
       }
@@ -195,9 +198,9 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
     for (i <- 0 until docGraph.size) {
       val wikiNode = wikiNodes(i);
       val nerNode = nerNodes(i);
-      val featsIndexed: Array[Array[Array[Int]]] = Array.tabulate(wikiNode.domain.size, nerNode.domain.size)((wikiValIdx, nerValIdx) => {
+      val featsIndexed: Array[Array[Array[Int]]] = featureTape.feats3(Array.tabulate(wikiNode.domain.size, nerNode.domain.size)((wikiValIdx, nerValIdx) => {
         featurizer.getWikiNerFeatures(docGraph, i, wikiNode.domain.entries(wikiValIdx), nerNode.domain.entries(nerValIdx), wikiDB, addToIndexer);
-      });
+      }));
       wikiNerFactors(i) = addAndReturnFactor(new BinaryFactorGeneral(wikiNode, nerNode, featsIndexed), true);
     }
   }
@@ -209,16 +212,18 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
       for (j <- domain.entries) {
         if (j != i) {
           val antWikiNode = wikiNodes(j);
-          val featsIndexed: Array[Array[Array[Int]]] = Array.tabulate(currWikiNode.domain.size, antWikiNode.domain.size)((currWikiValIdx, antWikiValIdx) => {
+          val featsIndexed: Array[Array[Array[Int]]] = featureTape.feats3(Array.tabulate(currWikiNode.domain.size, antWikiNode.domain.size)((currWikiValIdx, antWikiValIdx) => {
             featurizer.getCorefWikiFeatures(docGraph, i, j, currWikiNode.domain.entries(currWikiValIdx), antWikiNode.domain.entries(antWikiValIdx), wikiDB, addToIndexer);
-          });
+          }));
           corefWikiFactors(i)(j) = addAndReturnFactor(new BetterPropertyFactor[String](j, currWikiNode, corefNodes(i), antWikiNode, featsIndexed), true);
         }
       }
     }
   }
   
-  // Initialize received messages at nodes
+  // All of the factors are attached now, so lay out the messages and initialize the
+  // received messages at nodes
+  val messageStore = new MessageStore(allNodes);
   allNodes.foreach(_.initializeReceivedMessagesUniform());
 
   var nerNanos = 0L;
@@ -235,9 +240,8 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
     for (factor <- allFactors) {
       factor.setWeights(weights);
     }
-    // Scrub values of potentials. Can't just reset all to zero because they're
-    // still linked to the received messages from the previous iteration, so the
-    // arrays themselves need to be reinitialized.
+    // Scrub values of potentials: received messages go back to uniform (in place in
+    // the message store) before the nodes send their first messages.
     allNodes.foreach(_.initializeReceivedMessagesUniform());
     for (node <- allNodes) {
       node.sendMessages;
@@ -251,8 +255,12 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
   def computeAndStoreMarginals(weights: Array[Float],
                                exponentiateMessages: Boolean,
                                numBpIters: Int) {
+    var startNanos = Metrics.BpSetWeights.start();
     setWeights(weights);
+    Metrics.BpSetWeights.stop(startNanos);
+    startNanos = Metrics.BpPassMessages.start();
     passMessagesFancy(numBpIters, exponentiateMessages);
+    Metrics.BpPassMessages.stop(startNanos);
   }
   
   def computeLogNormalizerApprox: Double = {
@@ -260,8 +268,7 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
   }
   
   def scrubMessages() {
-    allNodes.foreach(_.initializeReceivedMessagesUniform);
-    allNodes.foreach(_.clearSentMessages);
+    messageStore.reset();
     allFactors.foreach(_.clearAllMessages);
   }
   
@@ -360,6 +367,8 @@ class JointDocFactorGraphACE(val doc: JointDocACE,
     allFactors.foreach(_.addExpectedFeatureCounts(scale, gradient))
   }
   
+  def getIndexedFeatures: Array[Int] = allFactors.toArray.flatMap(_.getIndexedFeatures);
+  
   //////////////
   // DECODING //
   //////////////
@@ -5,6 +5,7 @@ import scala.collection.mutable.ArrayBuffer
 import edu.berkeley.nlp.entity.coref.CorefDoc
 import edu.berkeley.nlp.entity.coref.DocumentGraph
 import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.entity.Metrics
 import edu.berkeley.nlp.entity.coref.PairwiseIndexingFeaturizer
 import edu.berkeley.nlp.entity.coref.PairwiseIndexingFeaturizerJoint
 import edu.berkeley.nlp.entity.coref.PairwiseScorer
@@ -17,6 +18,7 @@ import edu.berkeley.nlp.entity.Chunk
 import edu.berkeley.nlp.entity.bp.BetterPropertyFactor
 import edu.berkeley.nlp.entity.bp.Factor
 import edu.berkeley.nlp.entity.bp.Node
+import edu.berkeley.nlp.entity.bp.MessageStore
 import edu.berkeley.nlp.entity.bp.UnaryFactorOld
 import scala.Array.canBuildFrom
 import edu.berkeley.nlp.entity.bp.Domain
@@ -37,7 +39,8 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
                               val addToIndexer: Boolean,
                               val corefLossFcn: (CorefDoc, Int, Int) => Float,
                               val nerLossFcn: (String, String) => Float,
-                              val wikiLossFcn: (Seq[String], String) => Float) extends JointDocFactorGraph {
+                              val wikiLossFcn: (Seq[String], String) => Float,
+                              val featureTape: JointFeatureTape) extends JointDocFactorGraph {
   val docGraph = doc.docGraph;
   val nerLabelIndexer = featurizer.nerFeaturizer.labelIndexer;
   Logger.logss("Instantiating factor graph for " + doc.rawDoc.printableDocName + " with " + doc.rawDoc.words.size + " sentences and " + docGraph.getMentions.size + " mentions");
@@ -93,17 +96,17 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
   for (i <- 0 until docGraph.size()) {
     val domainArr = docGraph.getPrunedDomain(i, gold);
     corefNodes(i) = addAndReturnNode(new Node[Int](new Domain(domainArr)), true);
-    val featsEachDecision = domainArr.map(antIdx => featsChart(i)(antIdx));
+    val featsEachDecision = domainArr.map(antIdx => featsChart(i, antIdx));
 //    Logger.logss(i + ": "+  featsEachDecision.map(_.size).toSeq);
     corefUnaryFactors(i) = addAndReturnFactor(new UnaryFactorGeneral(corefNodes(i), featsEachDecision), false);
   }
   // NER NODES AND UNARY FACTORS
   // Build the transition feature matrix and share it across objects
-  val allTransitionFeats = Array.tabulate(nerLabelIndexer.size, nerLabelIndexer.size)((prevValIdx, currValIdx) => {
+  val allTransitionFeats = featureTape.feats3(Array.tabulate(nerLabelIndexer.size, nerLabelIndexer.size)((prevValIdx, currValIdx) => {
     featurizer.nerFeaturizer.featurizeTransition(nerLabelIndexer.getObject(prevValIdx), nerLabelIndexer.getObject(currValIdx), addToIndexer);
-  });
+  }));
   for (sentIdx <- 0 until doc.rawDoc.numSents) {
-    val nerFeatsThisSent = featurizer.nerFeaturizer.featurize(new NerExample(doc.rawDoc.words(sentIdx), doc.rawDoc.pos(sentIdx), null), addToIndexer);
+    val nerFeatsThisSent = featureTape.feats3(featurizer.nerFeaturizer.featurize(new NerExample(doc.rawDoc.words(sentIdx), doc.rawDoc.pos(sentIdx), null), addToIndexer));
     val prunedDomains = if (gold && !Driver.leaveNERLatent) doc.getGoldNerDomains(sentIdx) else doc.getPredNerDomains(sentIdx);
     nerNodes(sentIdx) = prunedDomains.map(prunedDomain => addAndReturnNode(new Node[String](prunedDomain), true));
     nerUnaryFactors(sentIdx) = Array.tabulate(doc.rawDoc.words(sentIdx).size)(wordIdx => {
@@ -161,12 +164,12 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
           // Build unary factors for queries
           val queryDomain = new Domain(queries.toArray)
           queryNodes(i) = addAndReturnNode(new Node[Query](queryDomain), false);
-          val queryFeatures = qcComputer.featurizeQueries(queries, addToIndexer);
+          val queryFeatures = featureTape.feats2(qcComputer.featurizeQueries(queries, addToIndexer));
           queryUnaryFactors(i) = addAndReturnFactor(new UnaryFactorGeneral(queryNodes(i), queryFeatures), false);
           // Always latent
           val denotations = qcComputer.extractDenotationSetWithNil(queries, queryDisambigs, Driver.maxNumWikificationOptions);
           wikiNodes(i) = addAndReturnNode(new Node[String](new Domain(denotations.toArray)), true);
-          queryWikiBinaryFactors(i) = addAndReturnFactor(new BinaryFactorGeneral(queryNodes(i), wikiNodes(i), qcComputer.featurizeQueriesAndDenotations(queries, denotations, addToIndexer)), false);
+          queryWikiBinaryFactors(i) = addAndReturnFactor(new BinaryFactorGeneral(queryNodes(i), wikiNodes(i), featureTape.feats3(qcComputer.featurizeQueriesAndDenotations(queries, denotations, addToIndexer))), false);
         }
       }
     }
@@ -198,9 +201,9 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
           // Ensure that two mentions with the same head don't get a factor
           if (j != i && (docGraph.getMention(i).sentIdx != docGraph.getMention(j).sentIdx || docGraph.getMention(i).headIdx != docGraph.getMention(j).headIdx)) {
             val antSemNode = semNodes(j);
-            val featsIndexed: Array[Array[Array[Int]]] = Array.tabulate(currSemNode.domain.size, antSemNode.domain.size)((currSemValIdx, antSemValIdx) => {
+            val featsIndexed: Array[Array[Array[Int]]] = featureTape.feats3(Array.tabulate(currSemNode.domain.size, antSemNode.domain.size)((currSemValIdx, antSemValIdx) => {
               featurizer.getCorefNerFeatures(docGraph, i, j, currSemNode.domain.entries(currSemValIdx), antSemNode.domain.entries(antSemValIdx), addToIndexer);
-            });
+            }));
             agreementFactors(i)(j) = addAndReturnFactor(new BetterPropertyFactor[String](j, currSemNode, corefNodes(i), antSemNode, featsIndexed), true);
           }
         }
@@ -213,9 +216,9 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
           // Ensure that two mentions with the same head don't get a factor
           if (j != i && (docGraph.getMention(i).sentIdx != docGraph.getMention(j).sentIdx || docGraph.getMention(i).headIdx != docGraph.getMention(j).headIdx)) {
             val antNerNode = nerNodes(docGraph.getMention(j).sentIdx)(docGraph.getMention(j).headIdx);
-            val featsIndexed: Array[Array[Array[Int]]] = Array.tabulate(currNerNode.domain.size, antNerNode.domain.size)((currNerValIdx, antNerValIdx) => {
+            val featsIndexed: Array[Array[Array[Int]]] = featureTape.feats3(Array.tabulate(currNerNode.domain.size, antNerNode.domain.size)((currNerValIdx, antNerValIdx) => {
               featurizer.getCorefNerFeatures(docGraph, i, j, currNerNode.domain.entries(currNerValIdx), antNerNode.domain.entries(antNerValIdx), addToIndexer);
-            });
+            }));
             agreementFactors(i)(j) = addAndReturnFactor(new BetterPropertyFactor[String](j, currNerNode, corefNodes(i), antNerNode, featsIndexed), true);
           }
         }
@@ -231,9 +234,9 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
       for (j <- domain.entries) {
         if (j != i) {
           val antWikiNode = wikiNodes(j);
-          val featsIndexed: Array[Array[Array[Int]]] = Array.tabulate(currWikiNode.domain.size, antWikiNode.domain.size)((currWikiValIdx, antWikiValIdx) => {
+          val featsIndexed: Array[Array[Array[Int]]] = featureTape.feats3(Array.tabulate(currWikiNode.domain.size, antWikiNode.domain.size)((currWikiValIdx, antWikiValIdx) => {
             featurizer.getCorefWikiFeatures(docGraph, i, j, currWikiNode.domain.entries(currWikiValIdx), antWikiNode.domain.entries(antWikiValIdx), wikiDB, addToIndexer);
-          });
+          }));
           corefWikiFactors(i)(j) = addAndReturnFactor(new BetterPropertyFactor[String](j, currWikiNode, corefNodes(i), antWikiNode, featsIndexed), true);
         }
       }
@@ -245,9 +248,9 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
     for (i <- 0 until docGraph.size) {
       val wikiNode = wikiNodes(i);
       val nerNode = nerNodes(docGraph.getMention(i).sentIdx)(docGraph.getMention(i).headIdx);
-      val featsIndexed: Array[Array[Array[Int]]] = Array.tabulate(wikiNode.domain.size, nerNode.domain.size)((wikiValIdx, nerValIdx) => {
+      val featsIndexed: Array[Array[Array[Int]]] = featureTape.feats3(Array.tabulate(wikiNode.domain.size, nerNode.domain.size)((wikiValIdx, nerValIdx) => {
         featurizer.getWikiNerFeatures(docGraph, i, wikiNode.domain.entries(wikiValIdx), nerNode.domain.entries(nerValIdx), wikiDB, addToIndexer);
-      });
+      }));
       wikiNerFactors(i) = addAndReturnFactor(new BinaryFactorGeneral(wikiNode, nerNode, featsIndexed), true);
     }
   }
@@ -264,12 +267,12 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
     }
   }
 
-  // Initialize received messages at nodes
+  // All of the factors are attached now, so lay out the messages and initialize the
+  // received messages at nodes
+  val messageStore = new MessageStore(allNodes);
   allNodes.foreach(_.initializeReceivedMessagesUniform());
 
-  var nerNanos = 0L;
-  var agreeNanos = 0L;
-  
+  Metrics.DocMentions.observe(docGraph.size);
   Logger.logss("Document factor graph instantiated: " + docGraph.size + " mentions, " + allNodes.size + " nodes (" + allNodesEveryIter.size + " every iter), " +
                allFactors.size + " factors (" + allFactorsEveryIter.size + " every iter): " + corefUnaryFactors.size + " coref unary factors, " +
                nerUnaryFactors.map(_.size).reduce(_ + _) + " NER unary factors, " + nerBinaryFactors.map(_.size).reduce(_ + _) + " NER binary factors");
@@ -281,9 +284,8 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
     for (factor <- allFactors) {
       factor.setWeights(weights);
     }
-    // Scrub values of potentials. Can't just reset all to zero because they're
-    // still linked to the received messages from the previous iteration, so the
-    // arrays themselves need to be reinitialized.
+    // Scrub values of potentials: received messages go back to uniform (in place in
+    // the message store) before the nodes send their first messages.
     allNodes.foreach(_.initializeReceivedMessagesUniform());
     for (node <- allNodes) {
       node.sendMessages;
@@ -297,7 +299,10 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
   def computeAndStoreMarginals(weights: Array[Float],
                                exponentiateMessages: Boolean,
                                numBpIters: Int) {
+    var startNanos = Metrics.BpSetWeights.start();
     setWeights(weights);
+    Metrics.BpSetWeights.stop(startNanos);
+    startNanos = Metrics.BpPassMessages.start();
     if (Driver.useFancyMessagePassing) {
       passMessagesFancy(numBpIters, exponentiateMessages);
     } else {
@@ -305,6 +310,7 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
         passMessagesOneRound(i == 0 || i == numBpIters - 1, if (exponentiateMessages) 1.0 + 2 * i else 1.0);
       }
     }
+    Metrics.BpPassMessages.stop(startNanos);
 //    passMessagesFancy(numBpIters, exponentiateMessages);
   }
   
@@ -313,8 +319,7 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
   }
   
   def scrubMessages() {
-    allNodes.foreach(_.initializeReceivedMessagesUniform);
-    allNodes.foreach(_.clearSentMessages);
+    messageStore.reset();
     allFactors.foreach(_.clearAllMessages);
   }
   
@@ -342,7 +347,7 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
           passMessagesRelevantNERNodes(1.0);
         }
       }
-      val time = System.nanoTime();
+      val startNanos = Metrics.BpAgreement.start();
       for (i <- 0 until agreementFactors.size) {
         for (agreementFactor <- agreementFactors(i)) {
           if (agreementFactor != null) {
@@ -357,7 +362,7 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
           }
         }
       }
-      agreeNanos += System.nanoTime() - time;
+      Metrics.BpAgreement.stop(startNanos);
     }
     // Send stuff back to unary factors
     passNodeMessagesNonnull(corefNodes, 1.0);
@@ -370,8 +375,6 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
     }
     passMessagesFancyNERBackbone();
 //    Logger.logss(SimpleFactorGraph.computeLogNormalizerApprox(allNodes, allFactors))
-//    Logger.logss("NER: " + nerNanos/1000000);
-//    Logger.logss("AGREE: " + agreeNanos/1000000);
   }
   
   def passNodeMessagesNonnull(nodes: Array[_ <: Node[_]], messageMultiplier: Double) {
@@ -396,7 +399,7 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
   }
   
   def passMessagesFancyNERBackbone() {
-    val time = System.nanoTime();
+    val startNanos = Metrics.BpNerBackbone.start();
     for (sentIdx <- 0 until nerNodes.size) {
       for (i <- 0 until nerNodes(sentIdx).size) {
         nerNodes(sentIdx)(i).sendMessages;
@@ -411,7 +414,7 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
         }
       }
     }
-    nerNanos += System.nanoTime() - time;
+    Metrics.BpNerBackbone.stop(startNanos);
   }
 
   def passMessagesOneRound(firstOrLastIter: Boolean, messageMultiplier: Double) {
@@ -450,6 +453,8 @@ class JointDocFactorGraphOnto(val doc: JointDoc,
     allFactors.foreach(_.addExpectedFeatureCounts(scale, gradient))
   }
   
+  def getIndexedFeatures: Array[Int] = allFactors.toArray.flatMap(_.getIndexedFeatures);
+  
   def decodeCorefProduceBackpointers = {
     (0 until docGraph.size).map(i => corefNodes(i).domain.entries(GUtil.argMaxIdx(corefNodes(i).getMarginals))).toArray;
   }
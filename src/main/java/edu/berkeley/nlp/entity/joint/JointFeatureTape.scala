@@ -0,0 +1,103 @@
+package edu.berkeley.nlp.entity.joint
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * The NER and linking feature arrays a document factor graph computes while it's being
+ * built, in the order it computes them. A recording tape computes each one and keeps it;
+ * a replaying tape hands back what a recording kept without featurizing, which works
+ * because building the same graph over the same document asks for the same features in
+ * the same order (see JointFeaturizationCache). JointFeatureTape.Live just computes.
+ *
+ * Nested arrays are kept as a one-element length header followed by their rows, so a
+ * tape is just a sequence of (possibly null) int arrays.
+ */
+class JointFeatureTape private (private val entries: ArrayBuffer[Array[Int]], val isReplaying: Boolean) {
+  private var nextEntry = 0;
+
+  def isLive = entries == null;
+
+  def getEntries: Seq[Array[Int]] = entries;
+
+  def isExhausted = isLive || !isReplaying || nextEntry == entries.size;
+
+  def feats(compute: => Array[Int]): Array[Int] = {
+    if (isLive) {
+      compute;
+    } else if (isReplaying) {
+      read();
+    } else {
+      val result = compute;
+      entries += result;
+      result;
+    }
+  }
+
+  def feats2(compute: => Array[Array[Int]]): Array[Array[Int]] = {
+    if (isLive) {
+      compute;
+    } else if (isReplaying) {
+      read2();
+    } else {
+      val result = compute;
+      record2(result);
+      result;
+    }
+  }
+
+  def feats3(compute: => Array[Array[Array[Int]]]): Array[Array[Array[Int]]] = {
+    if (isLive) {
+      compute;
+    } else if (isReplaying) {
+      read3();
+    } else {
+      val result = compute;
+      record3(result);
+      result;
+    }
+  }
+
+  private def read(): Array[Int] = {
+    if (nextEntry >= entries.size) {
+      throw new RuntimeException("Feature tape ran out after " + entries.size + " entries; the graph asked for different features than were recorded");
+    }
+    nextEntry += 1;
+    entries(nextEntry - 1);
+  }
+
+  private def read2(): Array[Array[Int]] = {
+    val header = read();
+    if (header == null) null else Array.fill(header(0))(read());
+  }
+
+  private def read3(): Array[Array[Array[Int]]] = {
+    val header = read();
+    if (header == null) null else Array.fill(header(0))(read2());
+  }
+
+  private def record2(arr: Array[Array[Int]]) {
+    if (arr == null) {
+      entries += null;
+    } else {
+      entries += Array(arr.size);
+      arr.foreach(entries += _);
+    }
+  }
+
+  private def record3(arr: Array[Array[Array[Int]]]) {
+    if (arr == null) {
+      entries += null;
+    } else {
+      entries += Array(arr.size);
+      arr.foreach(record2(_));
+    }
+  }
+}
+
+object JointFeatureTape {
+  val Live = new JointFeatureTape(null, false);
+
+  def recording = new JointFeatureTape(new ArrayBuffer[Array[Int]], false);
+
+  def replaying(entries: Seq[Array[Int]]) = new JointFeatureTape(ArrayBuffer(entries:_*), true);
+}
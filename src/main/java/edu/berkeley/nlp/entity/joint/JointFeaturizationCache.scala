@@ -0,0 +1,198 @@
+package edu.berkeley.nlp.entity.joint
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.coref.FeatureChart
+import edu.berkeley.nlp.entity.coref.FeaturizationCache
+import edu.berkeley.nlp.entity.coref.PairwiseLossFunctions
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * On-disk cache of the joint featurization pass, where TRAIN_EVALUATE and the ACE training
+ * modes build every training document's gold and guess factor graphs. Coref, NER and
+ * linking features all go into one indexer, interleaved document by document, so an entry
+ * holds the whole pass: for each document in order, the features its graphs added to the
+ * indexer, its coref FeatureChart, and the NER and linking feature arrays each graph asked
+ * for (see JointFeatureTape). Loading an entry rebuilds the graphs from those instead of
+ * featurizing, which leaves the indexer and graphs exactly as featurizing would have.
+ *
+ * Keys are computed like FeaturizationCache's, plus the NER and linking options, the files
+ * the Brown clusters and Wikipedia database come from, and each document's NER domains and
+ * gold titles, and FeatureCodeVersion, which has to be bumped along with any change to
+ * the joint factor graphs' features. Entries are written as the graphs are built, so the
+ * pass never holds more than one document's features beyond what the graph caches keep.
+ */
+object JointFeaturizationCache {
+  val FormatVersion = 1;
+  // Bump whenever a change to the NER, linking or joint factor feature code changes what
+  // features come out (coref feature changes bump FeaturizationCache.FeatureCodeVersion)
+  val FeatureCodeVersion = 1;
+
+  /**
+   * Builds and caches the gold and guess graphs of every document with factory, reusing the
+   * features from cacheDir if an earlier run produced them and storing them there otherwise.
+   * An empty cacheDir turns the cache off.
+   */
+  def buildTrainingGraphs[D,G<:JointDocFactorGraph](docs: Seq[D], factory: FactorGraphFactory[D,G], cacheDir: String) {
+    if (cacheDir == "") {
+      docs.foreach(doc => buildGraphs(doc, factory, JointFeatureTape.Live, JointFeatureTape.Live));
+    } else {
+      val key = computeKey(docs, factory);
+      val file = new File(cacheDir, "joint-feats-" + key + ".bin.gz");
+      if (!file.exists || !replay(file, key, docs, factory)) {
+        record(file, key, docs, factory);
+      }
+    }
+  }
+
+  private def buildGraphs[D,G<:JointDocFactorGraph](doc: D, factory: FactorGraphFactory[D,G], goldTape: JointFeatureTape, guessTape: JointFeatureTape) {
+    factory.getDocFactorGraph(doc, true, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn, goldTape);
+    factory.getDocFactorGraph(doc, false, true, true, PairwiseLossFunctions(Driver.lossFcn), JointLossFcns.nerLossFcn, JointLossFcns.wikiLossFcn, guessTape);
+  }
+
+  def computeKey[D,G<:JointDocFactorGraph](docs: Seq[D], factory: FactorGraphFactory[D,G]): String = {
+    val featurizer = factory.getFeaturizer;
+    val options = Seq("joint v" + FormatVersion, "features v" + FeatureCodeVersion, Driver.nerFeatureSet, Driver.brownPath, Driver.corefNerBrownLength, featurizer.corefNerFeatures,
+                      featurizer.corefWikiFeatures, featurizer.wikiNerFeatures, Driver.addIntermediateTypeLayer, Driver.leaveNERLatent,
+                      Driver.leaveWikificationLatent, Driver.maxNumWikificationOptions, Driver.wikipediaPath).mkString(" ");
+    val extra = Seq(options, FeaturizationCache.fingerprintPath(Driver.brownPath), FeaturizationCache.fingerprintPath(Driver.wikipediaPath)) ++
+      docs.map(factory.describeForFeatureCache(_));
+    FeaturizationCache.computeKey(docs.map(factory.getDocumentGraph(_)), factory.getIndexer, extra);
+  }
+
+  /**
+   * Returns false without changing anything if the file's header doesn't fit these documents.
+   * Past the header a failure can't be undone (graphs are already built), so it's fatal.
+   */
+  private def replay[D,G<:JointDocFactorGraph](file: File, key: String, docs: Seq[D], factory: FactorGraphFactory[D,G]): Boolean = {
+    val featureIndexer = factory.getIndexer;
+    var in: DataInputStream = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+      if (in.readInt != FormatVersion || in.readUTF != key || in.readInt != featureIndexer.size || in.readInt != docs.size) {
+        throw new IOException("header doesn't match");
+      }
+    } catch {
+      case e: Exception => {
+        Logger.logss("Couldn't use featurization cache file " + file + ", featurizing from scratch: " + e);
+        if (in != null) in.close();
+        in = null;
+      }
+    }
+    if (in == null) {
+      false;
+    } else {
+      try {
+        for (doc <- docs) {
+          val docGraph = factory.getDocumentGraph(doc);
+          for (i <- 0 until in.readInt) {
+            featureIndexer.getIndex(in.readUTF);
+          }
+          val numMents = in.readInt;
+          docGraph.setCachedFeats(new FeatureChart(numMents, FeaturizationCache.readInts(in), FeaturizationCache.readInts(in)), factory.getFeaturizer.corefFeaturizer);
+          val goldTape = JointFeatureTape.replaying(readTape(in));
+          val guessTape = JointFeatureTape.replaying(readTape(in));
+          buildGraphs(doc, factory, goldTape, guessTape);
+          if (!goldTape.isExhausted || !guessTape.isExhausted) {
+            throw new RuntimeException(docGraph.corefDoc.rawDoc.printableDocName + " asked for fewer features than were recorded");
+          }
+        }
+      } catch {
+        case e: Exception => throw new RuntimeException("Featurization cache file " + file + " doesn't match the documents or the feature code; delete it and rerun", e);
+      } finally {
+        in.close();
+      }
+      Logger.logss("Loaded featurized documents from " + file + "; features after featurization: " + featureIndexer.size);
+      true;
+    }
+  }
+
+  /**
+   * Builds the graphs, writing each document's features to a temporary file as it goes and
+   * moving it into place at the end, so concurrent runs never see a partial entry. If
+   * writing fails the graphs are still built.
+   */
+  private def record[D,G<:JointDocFactorGraph](file: File, key: String, docs: Seq[D], factory: FactorGraphFactory[D,G]) {
+    val featureIndexer = factory.getIndexer;
+    var out: DataOutputStream = null;
+    var tmpFile: File = null;
+    def giveUp(e: IOException) {
+      Logger.logss("Couldn't write featurization cache file " + file + ": " + e);
+      if (out != null) {
+        try { out.close(); } catch { case _: IOException => }
+      }
+      if (tmpFile != null) tmpFile.delete();
+      out = null;
+    }
+    try {
+      file.getAbsoluteFile.getParentFile.mkdirs();
+      tmpFile = File.createTempFile(file.getName, ".tmp", file.getAbsoluteFile.getParentFile);
+      out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+      out.writeInt(FormatVersion);
+      out.writeUTF(key);
+      out.writeInt(featureIndexer.size);
+      out.writeInt(docs.size);
+    } catch {
+      case e: IOException => giveUp(e);
+    }
+    for (doc <- docs) {
+      val numFeatsBefore = featureIndexer.size;
+      val goldTape = if (out != null) JointFeatureTape.recording else JointFeatureTape.Live;
+      val guessTape = if (out != null) JointFeatureTape.recording else JointFeatureTape.Live;
+      buildGraphs(doc, factory, goldTape, guessTape);
+      if (out != null) {
+        try {
+          out.writeInt(featureIndexer.size - numFeatsBefore);
+          for (i <- numFeatsBefore until featureIndexer.size) {
+            out.writeUTF(featureIndexer.getObject(i));
+          }
+          val chart = factory.getDocumentGraph(doc).cachedFeats;
+          out.writeInt(chart.numMents);
+          FeaturizationCache.writeInts(out, chart.feats);
+          FeaturizationCache.writeInts(out, chart.edgeStarts);
+          writeTape(out, goldTape);
+          writeTape(out, guessTape);
+        } catch {
+          case e: IOException => giveUp(e);
+        }
+      }
+    }
+    if (out != null) {
+      try {
+        out.close();
+        Files.move(tmpFile.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Logger.logss("Wrote featurized documents to " + file);
+      } catch {
+        case e: IOException => Logger.logss("Couldn't write featurization cache file " + file + ": " + e);
+      } finally {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  private def readTape(in: DataInputStream): Seq[Array[Int]] = {
+    Array.fill(in.readInt)(if (in.readBoolean) FeaturizationCache.readInts(in) else null);
+  }
+
+  private def writeTape(out: DataOutputStream, tape: JointFeatureTape) {
+    val entries = tape.getEntries;
+    out.writeInt(entries.size);
+    for (entry <- entries) {
+      out.writeBoolean(entry != null);
+      if (entry != null) {
+        FeaturizationCache.writeInts(out, entry);
+      }
+    }
+  }
+}
@@ -91,11 +91,11 @@ class JointFeaturizerShared[T](val corefFeaturizer: PairwiseIndexingFeaturizer,
       if (restrictCC && mentIsClosedClass) {
         maybeAddFeat(feats, "PrevHeadCurrSC=" + antMent.headStringLc + "-" + currSemType, addToIndexer);
       } else {
-        maybeAddFeats(feats, Array("PrevHeadCurrSC=" + corefFeaturizerCast.fetchHeadWordOrPos(antMent) + "-" + currSemType,
-                                   "PrevFirstCurrSC=" + corefFeaturizerCast.fetchFirstWordOrPos(antMent) + "-" + currSemType), addToIndexer);
+        maybeAddFeats(feats, Array("PrevHeadCurrSC=" + corefFeaturizerCast.fetchHeadWordOrPos(docGraph, antIdx) + "-" + currSemType,
+                                   "PrevFirstCurrSC=" + corefFeaturizerCast.fetchFirstWordOrPos(docGraph, antIdx) + "-" + currSemType), addToIndexer);
       }
-      maybeAddFeats(feats, Array("PrevPrecedingCurrSC=" + corefFeaturizerCast.fetchPrecedingWordOrPos(antMent) + "-" + currSemType,
-                                 "PrevFollowingCurrSC=" + corefFeaturizerCast.fetchFollowingWordOrPos(antMent) + "-" + currSemType), addToIndexer);
+      maybeAddFeats(feats, Array("PrevPrecedingCurrSC=" + corefFeaturizerCast.fetchPrecedingWordOrPos(docGraph, antIdx) + "-" + currSemType,
+                                 "PrevFollowingCurrSC=" + corefFeaturizerCast.fetchFollowingWordOrPos(docGraph, antIdx) + "-" + currSemType), addToIndexer);
       if (useBrownClusters) {
         maybeAddFeats(feats, Array("PrevHeadBrownCurrSC=" + fetchBrownCluster(antMent.headString) + "-" + currSemType,
                                    "PrevFirstBrownCurrSC=" + fetchBrownCluster(antMent.words(0)) + "-" + currSemType,
@@ -107,11 +107,11 @@ class JointFeaturizerShared[T](val corefFeaturizer: PairwiseIndexingFeaturizer,
       if (restrictCC && mentIsClosedClass) {
         maybeAddFeat(feats, "CurrHeadPrevSC=" + ment.headStringLc + "-" + antSemType, addToIndexer);
       } else {
-        maybeAddFeats(feats, Array("CurrHeadPrevSC=" + corefFeaturizerCast.fetchHeadWordOrPos(ment) + "-" + antSemType,
-                                   "CurrFirstPrevSC=" + corefFeaturizerCast.fetchFirstWordOrPos(ment) + "-" + antSemType), addToIndexer);
+        maybeAddFeats(feats, Array("CurrHeadPrevSC=" + corefFeaturizerCast.fetchHeadWordOrPos(docGraph, currIdx) + "-" + antSemType,
+                                   "CurrFirstPrevSC=" + corefFeaturizerCast.fetchFirstWordOrPos(docGraph, currIdx) + "-" + antSemType), addToIndexer);
       }
-      maybeAddFeats(feats, Array("CurrPrecedingPrevSC=" + corefFeaturizerCast.fetchPrecedingWordOrPos(ment) + "-" + antSemType,
-                                 "CurrFollowingPrevSC=" + corefFeaturizerCast.fetchFollowingWordOrPos(ment) + "-" + antSemType), addToIndexer);
+      maybeAddFeats(feats, Array("CurrPrecedingPrevSC=" + corefFeaturizerCast.fetchPrecedingWordOrPos(docGraph, currIdx) + "-" + antSemType,
+                                 "CurrFollowingPrevSC=" + corefFeaturizerCast.fetchFollowingWordOrPos(docGraph, currIdx) + "-" + antSemType), addToIndexer);
       if (useBrownClusters) {
         maybeAddFeats(feats, Array("CurrHeadBrownPrevSC=" + fetchBrownCluster(ment.headString) + "-" + antSemType,
                                    "CurrFirstBrownPrevSC=" + fetchBrownCluster(ment.words(0)) + "-" + antSemType,
@@ -120,8 +120,8 @@ class JointFeaturizerShared[T](val corefFeaturizer: PairwiseIndexingFeaturizer,
       }
     }
     if (corefNerFeatures.contains("hmc") && !mentIsClosedClass && !antMentIsClosedClass) {
-      maybeAddFeats(feats, Array("ThisHeadContainedAndTypes=" + (antMent.spanToString.contains(ment.headString) + "-" + currSemType + "-" + antSemType),
-                                 "AntHeadContainedAndTypes=" + (ment.spanToString.contains(antMent.headString) + "-" + currSemType + "-" + antSemType)), addToIndexer);
+      maybeAddFeats(feats, Array("ThisHeadContainedAndTypes=" + (docGraph.getMentionPropertiesUseCache(corefFeaturizerCast, antIdx).spanString.contains(ment.headString) + "-" + currSemType + "-" + antSemType),
+                                 "AntHeadContainedAndTypes=" + (docGraph.getMentionPropertiesUseCache(corefFeaturizerCast, currIdx).spanString.contains(antMent.headString) + "-" + currSemType + "-" + antSemType)), addToIndexer);
     }
     feats.toArray;
   }
@@ -145,7 +145,7 @@ class JointFeaturizerShared[T](val corefFeaturizer: PairwiseIndexingFeaturizer,
 //      val corefFeaturizerCast = corefFeaturizer.asInstanceOf[PairwiseIndexingFeaturizerJoint];
 //      if (wikiTitle != NilToken) {
 //        for (category <- wikiFeaturizer.wikiCategoryDB.get.getCategories(wikiTitle)) {
-//          maybeAddFeat(feats, "PrevHeadCurrCategory=" + corefFeaturizerCast.fetchHeadWordOrPos(antMent) + "-" + category, addToIndexer);
+//          maybeAddFeat(feats, "PrevHeadCurrCategory=" + corefFeaturizerCast.fetchHeadWordOrPos(docGraph, antIdx) + "-" + category, addToIndexer);
 //        }
 //      }
 //    }
@@ -181,7 +181,7 @@ class JointFeaturizerShared[T](val corefFeaturizer: PairwiseIndexingFeaturizer,
       }
       if (wikiNerFeatures.contains("nillexical")) {
         val corefFeaturizerCast = corefFeaturizer.asInstanceOf[PairwiseIndexingFeaturizerJoint];
-        maybeAddFeat(feats, "HeadAndNil=" + corefFeaturizerCast.fetchHeadWordOrPos(docGraph.getMention(currIdx)), addToIndexer);
+        maybeAddFeat(feats, "HeadAndNil=" + corefFeaturizerCast.fetchHeadWordOrPos(docGraph, currIdx), addToIndexer);
       }
     }
     feats.toArray;
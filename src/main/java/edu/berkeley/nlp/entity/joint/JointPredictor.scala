@@ -7,6 +7,8 @@ import edu.berkeley.nlp.entity.ConllDoc
 import edu.berkeley.nlp.entity.ConllDocReader
 import edu.berkeley.nlp.entity.ConllDocWriter
 import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.entity.Metrics
+import edu.berkeley.nlp.entity.OrderedParallelExecutor
 import edu.berkeley.nlp.entity.coref.CorefDocAssembler
 import edu.berkeley.nlp.entity.coref.CorefDocAssemblerACE
 import edu.berkeley.nlp.entity.coref.CorefPruner
@@ -33,24 +35,43 @@ class JointPredictor(val jointFeaturizer: JointFeaturizerShared[NerFeaturizer],
                      val corefPruner: CorefPruner,
                      val nerPruner: NerPruner) extends Serializable {
   
-  def makeIndividualDocPredictionWriter(maybeWikipediaInterface: Option[WikipediaInterface], outWriter: PrintWriter, outWikiWriter: PrintWriter): (JointDoc => Unit) = {
+  /**
+   * Returns a function that decodes one document, or (if skipMentionlessDocs) returns null
+   * if the document has no mentions, since decoding would break. Factor graphs aren't
+   * cached, so the function can be called concurrently on different documents.
+   */
+  def makeDocDecoder(maybeWikipediaInterface: Option[WikipediaInterface], skipMentionlessDocs: Boolean = true): (JointDoc => JointPredictor.DocPrediction) = {
     val fgfOnto = new FactorGraphFactoryOnto(jointFeaturizer, maybeWikipediaInterface);
     val computer = new JointComputerShared(fgfOnto);
     (jointDoc: JointDoc) => {
-      Logger.logss("Decoding " + jointDoc.rawDoc.printableDocName);
-      // Don't decode if there are no mentions because things will break
-      if (jointDoc.docGraph.getMentions.size == 0) {
-        if (jointDoc.rawDoc.numSents > 0) {
-          Logger.logss("WARNING: Document with zero mentions but nonzero number of sentences, not running NER but there could be NE mentions")
-        }
-        ConllDocWriter.writeDoc(outWriter, jointDoc.rawDoc)
+      if (skipMentionlessDocs && jointDoc.docGraph.getMentions.size == 0) {
+        null;
       } else {
-        val (backptrs, clustering, nerChunks, wikiChunks) = computer.viterbiDecodeProduceAnnotations(jointDoc, weights);
-        ConllDocWriter.writeDocWithPredAnnotationsWikiStandoff(outWriter, outWikiWriter, jointDoc.rawDoc, nerChunks, clustering.bind(jointDoc.docGraph.getMentions, Driver.doConllPostprocessing), wikiChunks);
+        computer.viterbiDecodeProduceAnnotations(jointDoc, weights);
       }
     }
   }
   
+  def writePrediction(outWriter: PrintWriter, outWikiWriter: PrintWriter, jointDoc: JointDoc, prediction: JointPredictor.DocPrediction, doConllPostprocessing: Boolean) {
+    val startNanos = Metrics.DocWrite.start();
+    Logger.logss("Decoded " + jointDoc.rawDoc.printableDocName);
+    if (prediction == null) {
+      if (jointDoc.rawDoc.numSents > 0) {
+        Logger.logss("WARNING: Document with zero mentions but nonzero number of sentences, not running NER but there could be NE mentions")
+      }
+      ConllDocWriter.writeDoc(outWriter, jointDoc.rawDoc)
+    } else {
+      val (backptrs, clustering, nerChunks, wikiChunks) = prediction;
+      ConllDocWriter.writeDocWithPredAnnotationsWikiStandoff(outWriter, outWikiWriter, jointDoc.rawDoc, nerChunks, clustering.bind(jointDoc.docGraph.getMentions, doConllPostprocessing), wikiChunks);
+    }
+    Metrics.DocWrite.stop(startNanos);
+  }
+  
+  def makeIndividualDocPredictionWriter(maybeWikipediaInterface: Option[WikipediaInterface], outWriter: PrintWriter, outWikiWriter: PrintWriter): (JointDoc => Unit) = {
+    val decoder = makeDocDecoder(maybeWikipediaInterface);
+    (jointDoc: JointDoc) => writePrediction(outWriter, outWikiWriter, jointDoc, decoder(jointDoc), Driver.doConllPostprocessing);
+  }
+  
   def decodeWriteOutput(jointTestDocs: Seq[JointDoc], maybeWikipediaInterface: Option[WikipediaInterface], doConllPostprocessing: Boolean) {
     decodeWriteOutputMaybeEvaluate(jointTestDocs, maybeWikipediaInterface, doConllPostprocessing, false);
   }
@@ -59,24 +80,24 @@ class JointPredictor(val jointFeaturizer: JointFeaturizerShared[NerFeaturizer],
     decodeWriteOutputMaybeEvaluate(jointTestDocs, maybeWikipediaInterface, doConllPostprocessing, true);
   }
   
+  /**
+   * Decodes documents on Driver.numDecodeThreads threads; output is written (and results
+   * collected for evaluation) in input order, so it's the same as decoding serially.
+   */
   private def decodeWriteOutputMaybeEvaluate(jointTestDocs: Seq[JointDoc], maybeWikipediaInterface: Option[WikipediaInterface], doConllPostprocessing: Boolean, evaluate: Boolean) {
-    val fgfOnto = new FactorGraphFactoryOnto(jointFeaturizer, maybeWikipediaInterface);
-    val computer = new JointComputerShared(fgfOnto);
+    // Evaluation needs a prediction for every document, so don't skip any
+    val decoder = makeDocDecoder(maybeWikipediaInterface, !evaluate);
     val outWriter = IOUtils.openOutHard(Execution.getFile("output.conll"))
     val outWikiWriter = IOUtils.openOutHard(Execution.getFile("output-wiki.conll"))
     val allPredBackptrsAndClusterings = new ArrayBuffer[(Array[Int],OrderedClustering)];
     val predNEChunks = new ArrayBuffer[Seq[Seq[Chunk[String]]]];
     Logger.startTrack("Decoding");
-    for (i <- (0 until jointTestDocs.size)) {
-      Logger.logss("Decoding " + i);
-      val jointDevDoc = jointTestDocs(i);
-      val (backptrs, clustering, nerChunks, wikiChunks) = computer.viterbiDecodeProduceAnnotations(jointDevDoc, weights);
-      ConllDocWriter.writeDocWithPredAnnotationsWikiStandoff(outWriter, outWikiWriter, jointDevDoc.rawDoc, nerChunks, clustering.bind(jointDevDoc.docGraph.getMentions, Driver.doConllPostprocessing), wikiChunks);
+    decodeWriteInOrder(jointTestDocs, decoder, outWriter, outWikiWriter, doConllPostprocessing, (jointDevDoc: JointDoc, prediction: JointPredictor.DocPrediction) => {
       if (evaluate) {
-        allPredBackptrsAndClusterings += (backptrs -> clustering);
-        predNEChunks += nerChunks;
+        allPredBackptrsAndClusterings += (prediction._1 -> prediction._2);
+        predNEChunks += prediction._3;
       }
-    }
+    });
     outWriter.close();
     outWikiWriter.close();
     Logger.endTrack();
@@ -88,6 +109,26 @@ class JointPredictor(val jointFeaturizer: JointFeaturizerShared[NerFeaturizer],
     }
   }
 
+  /**
+   * Decodes documents with decoder on Driver.numDecodeThreads threads, writing each one out
+   * and then passing it to consumer in input order.
+   */
+  def decodeWriteInOrder(jointTestDocs: Seq[JointDoc], decoder: JointDoc => JointPredictor.DocPrediction, outWriter: PrintWriter, outWikiWriter: PrintWriter,
+                         doConllPostprocessing: Boolean, consumer: (JointDoc, JointPredictor.DocPrediction) => Unit) {
+    val executor = new OrderedParallelExecutor[JointPredictor.DocPrediction](Driver.numDecodeThreads);
+    try {
+      for (jointDoc <- jointTestDocs) {
+        executor.submit(decoder(jointDoc), (prediction: JointPredictor.DocPrediction) => {
+          writePrediction(outWriter, outWikiWriter, jointDoc, prediction, doConllPostprocessing);
+          consumer(jointDoc, prediction);
+        });
+      }
+      executor.finish();
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
   def pack: JointPredictor = {
     if (jointFeaturizer.canReplaceIndexer) {
       val (newIndexer, newWeights) = GUtil.packFeaturesAndWeights(jointFeaturizer.indexer, weights);
@@ -97,3 +138,8 @@ class JointPredictor(val jointFeaturizer: JointFeaturizerShared[NerFeaturizer],
     }
   }
 }
+
+object JointPredictor {
+  // Coref backpointers and clustering, NER chunks, and Wikification chunks for one document
+  type DocPrediction = (Array[Int], OrderedClustering, Seq[Seq[Chunk[String]]], Seq[Seq[Chunk[String]]]);
+}
@@ -25,6 +25,8 @@ import edu.berkeley.nlp.futile.fig.basic.IOUtils
 import edu.berkeley.nlp.futile.util.Logger
 import edu.berkeley.nlp.entity.Driver
 import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.entity.Metrics
+import edu.berkeley.nlp.entity.OrderedParallelExecutor
 import edu.berkeley.nlp.entity.coref.CorefDocAssemblerACE
 import edu.berkeley.nlp.entity.ner.MCNerFeaturizer
 import edu.berkeley.nlp.entity.wiki.CorpusWikiAnnots
@@ -34,26 +36,74 @@ import edu.berkeley.nlp.entity.coref.OrderedClusteringBound
 import edu.berkeley.nlp.entity.wiki.WikificationEvaluator
 import edu.berkeley.nlp.entity.wiki._
 import scala.collection.mutable.HashSet
+import java.io.PrintWriter
 
 @SerialVersionUID(1L)
 class JointPredictorACE(val jointFeaturizer: JointFeaturizerShared[MCNerFeaturizer],
                         val weights: Array[Float],
                         val corefPruner: CorefPruner) extends Serializable {
   
+  /**
+   * Returns a function that decodes one document, or returns null if the document has no
+   * mentions, since decoding would break. Factor graphs aren't cached, so the function can
+   * be called concurrently on different documents.
+   */
+  def makeDocDecoder(maybeWikipediaInterface: Option[WikipediaInterface]): (JointDocACE => JointPredictor.DocPrediction) = {
+    val fgfAce = new FactorGraphFactoryACE(jointFeaturizer, maybeWikipediaInterface);
+    val computer = new JointComputerShared(fgfAce);
+    (jointDoc: JointDocACE) => {
+      if (jointDoc.docGraph.getMentions.size == 0) {
+        null;
+      } else {
+        computer.viterbiDecodeProduceAnnotations(jointDoc, weights);
+      }
+    }
+  }
+  
+  def writePrediction(outWriter: PrintWriter, outWikiWriter: PrintWriter, jointDoc: JointDocACE, prediction: JointPredictor.DocPrediction, doConllPostprocessing: Boolean) {
+    val startNanos = Metrics.DocWrite.start();
+    Logger.logss("Decoded " + jointDoc.rawDoc.printableDocName);
+    if (prediction == null) {
+      if (jointDoc.rawDoc.numSents > 0) {
+        Logger.logss("WARNING: Document with zero mentions but nonzero number of sentences, not running NER but there could be NE mentions")
+      }
+      ConllDocWriter.writeDoc(outWriter, jointDoc.rawDoc)
+    } else {
+      val (backptrs, clustering, nerChunks, wikiChunks) = prediction;
+      ConllDocWriter.writeDocWithPredAnnotationsWikiStandoff(outWriter, outWikiWriter, jointDoc.rawDoc, nerChunks, clustering.bind(jointDoc.docGraph.getMentions, doConllPostprocessing), wikiChunks);
+    }
+    Metrics.DocWrite.stop(startNanos);
+  }
+  
+  /**
+   * Returns a function that decodes one document and writes its annotations out, so that
+   * documents can be streamed through without holding a corpus in memory.
+   */
+  def makeIndividualDocPredictionWriter(maybeWikipediaInterface: Option[WikipediaInterface], outWriter: PrintWriter, outWikiWriter: PrintWriter, doConllPostprocessing: Boolean): (JointDocACE => Unit) = {
+    val decoder = makeDocDecoder(maybeWikipediaInterface);
+    (jointDoc: JointDocACE) => writePrediction(outWriter, outWikiWriter, jointDoc, decoder(jointDoc), doConllPostprocessing);
+  }
+  
+  /**
+   * Decodes on Driver.numDecodeThreads threads, writing output in input order.
+   */
   def decodeWriteOutput(jointTestDocs: Seq[JointDocACE], maybeWikipediaInterface: Option[WikipediaInterface], doConllPostprocessing: Boolean) {
-    val fgfOnto = new FactorGraphFactoryACE(jointFeaturizer, maybeWikipediaInterface);
-    val computer = new JointComputerShared(fgfOnto);
+    val decoder = makeDocDecoder(maybeWikipediaInterface);
     val outWriter = IOUtils.openOutHard(Execution.getFile("output.conll"))
     val outWikiWriter = IOUtils.openOutHard(Execution.getFile("output-wiki.conll"))
     Logger.startTrack("Decoding");
-    for (i <- (0 until jointTestDocs.size)) {
-      Logger.logss("Decoding " + i);
-      val (backptrs, clustering, nerChunks, wikiChunks) = computer.viterbiDecodeProduceAnnotations(jointTestDocs(i), weights);
-      ConllDocWriter.writeDocWithPredAnnotationsWikiStandoff(outWriter, outWikiWriter, jointTestDocs(i).rawDoc, nerChunks, clustering.bind(jointTestDocs(i).docGraph.getMentions, doConllPostprocessing), wikiChunks);
+    val executor = new OrderedParallelExecutor[JointPredictor.DocPrediction](Driver.numDecodeThreads);
+    try {
+      for (jointDoc <- jointTestDocs) {
+        executor.submit(decoder(jointDoc), (prediction: JointPredictor.DocPrediction) => writePrediction(outWriter, outWikiWriter, jointDoc, prediction, doConllPostprocessing));
+      }
+      executor.finish();
+    } finally {
+      executor.shutdown();
     }
+    Logger.endTrack();
     outWriter.close();
     outWikiWriter.close();
-    Logger.endTrack();
   }
   
   def decodeWriteOutputEvaluate(jointTestDocs: Seq[JointDocACE], maybeWikipediaInterface: Option[WikipediaInterface], doConllPostprocessing: Boolean, wikiLabelsInTrain: Set[String] = Set[String]()) {
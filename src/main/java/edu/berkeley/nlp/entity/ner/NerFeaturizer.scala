@@ -96,15 +96,15 @@ class NerFeaturizer(val featureSet: Set[String],
   }
   
   private def computeWikipediaSurfaceFeatures(words: Seq[String], numCategories: Int = 1): Seq[Seq[String]] = {
-    val surfaceToTitle = wikipediaDB.get.titleGivenSurfaceDB.surfaceToTitle;
+    val titleGivenSurfaceDB = wikipediaDB.get.titleGivenSurfaceDB;
 //    val possibleSurfaceStrings = .keySet;
     val featsEachSpan = Array.tabulate(words.size)(i => new ArrayBuffer[String]);
     for (i <- 0 until words.size; j <- 0 until words.size + 1) {
       // Cap at length 5
       if (i < j && i + 5 >= j) {
         val span = words.slice(i, j).reduce(_ + " " + _);
-        if (!corpusCounts.mostCommonUnigrams.contains(span) && surfaceToTitle.keySet.contains(span)) {
-          val title = surfaceToTitle.getCounter(span).argMax;
+        if (!corpusCounts.mostCommonUnigrams.contains(span) && titleGivenSurfaceDB.containsSurface(span)) {
+          val title = titleGivenSurfaceDB.getBestTitle(span);
 //          Logger.logss("Identified span " + span + " as referring to " + title);
           val categories = wikipediaDB.get.getCategoriesSortedByFrequency(title);
           val categoriesToUse = categories.slice(0, Math.min(categories.size, numCategories));
@@ -7,6 +7,7 @@ import edu.berkeley.nlp.futile.classify.GeneralLogisticRegression
 import edu.berkeley.nlp.entity.coref.CorefSystem
 import edu.berkeley.nlp.futile.util.Logger
 import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.entity.BinaryModel
 import edu.berkeley.nlp.futile.classify.SequenceExample
 import edu.berkeley.nlp.futile.fig.basic.IOUtils
 import java.io.FileInputStream
@@ -127,6 +128,12 @@ class NerSystemLabeled(val labelIndexer: Indexer[String],
     NerSystemLabeled.convertToLabeledChunks(SequenceExample.getBestPath(cachedStartMarginal, cachedVariationalProbs).map(NerSystemLabeled.LabelSetReduced(_)))
   }
   
+  /**
+   * Returns a system sharing this one's model and featurizer but with its own cached
+   * marginals, so that each thread can tag with its own instance.
+   */
+  def newInstance: NerSystemLabeled = new NerSystemLabeled(labelIndexer, featurizedTransitionMatrix, featurizer, weights);
+  
   def pack: NerSystemLabeled = {
     val (newFeatureIndexer, newWeights) = GUtil.packFeaturesAndWeights(featurizer.featureIndexer, weights);
     Logger.logss("Packing NER model from " + weights.size + " to " + newWeights.size)
@@ -175,7 +182,10 @@ object NerSystemLabeled {
     }
   }
   
-  def loadNerSystem(modelPath: String) = {
+  def loadNerSystem(modelPath: String): NerSystemLabeled = {
+    if (BinaryModel.isBinaryModel(modelPath)) {
+      return BinaryModel.load(modelPath).asInstanceOf[NerSystemLabeled];
+    }
     var nerSystem: NerSystemLabeled = null;
     try {
       val fileIn = new FileInputStream(new File(modelPath));
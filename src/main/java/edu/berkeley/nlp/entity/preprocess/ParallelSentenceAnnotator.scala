@@ -0,0 +1,96 @@
+package edu.berkeley.nlp.entity.preprocess
+
+import java.io.PrintWriter
+import edu.berkeley.nlp.PCFGLA.CoarseToFineMaxRuleParser
+import edu.berkeley.nlp.entity.ConllDocReader
+import edu.berkeley.nlp.entity.OrderedParallelExecutor
+import edu.berkeley.nlp.entity.lang.Language
+import edu.berkeley.nlp.entity.ner.NerSystemLabeled
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * Parses and NER tags for PreprocessingDriver on a pool of threads. Parsers keep their
+ * charts between sentences and the NER system keeps scratch marginals, so each worker gets
+ * its own instances from newInstance(), which share the grammar, lexicon and NER model
+ * with the loaded ones.
+ *
+ * Work is handed out a sentence at a time, across document boundaries, so a handful of
+ * long documents still keeps every thread busy. Results are consumed in submission order
+ * on the submitting thread, which does all the writing, so output is exactly what the
+ * serial path produces.
+ */
+class ParallelSentenceAnnotator(val parser: CoarseToFineMaxRuleParser,
+                                val backoffParser: CoarseToFineMaxRuleParser,
+                                val nerSystem: NerSystemLabeled,
+                                val numThreads: Int) {
+  private val parsers = new ThreadLocal[CoarseToFineMaxRuleParser] {
+    override def initialValue() = parser.newInstance();
+  }
+  private val backoffParsers = new ThreadLocal[CoarseToFineMaxRuleParser] {
+    override def initialValue() = if (backoffParser == null) null else backoffParser.newInstance();
+  }
+  private val nerSystems = new ThreadLocal[NerSystemLabeled] {
+    override def initialValue() = if (nerSystem == null) null else nerSystem.newInstance;
+  }
+  // Sentences come back as their CoNLL lines (null if dropped); whole-document tasks
+  // return null
+  private val executor = new OrderedParallelExecutor[Array[String]](numThreads);
+
+  /**
+   * Parses and tags the document's sentences and writes them to outputPath once they're
+   * all done (see PreprocessingDriver.processDocument).
+   */
+  def submitDoc(docName: String, tokenizedSentences: Array[Array[String]], outputPath: String) {
+    submitSentences(docName, tokenizedSentences, (conllLines: Array[Array[String]]) => {
+      PreprocessingDriver.writeConllLines(docName, conllLines, outputPath);
+    });
+  }
+
+  /**
+   * Same but appends the document to writer.
+   */
+  def submitDoc(docName: String, tokenizedSentences: Array[Array[String]], writer: PrintWriter) {
+    submitSentences(docName, tokenizedSentences, (conllLines: Array[Array[String]]) => {
+      PreprocessingDriver.writeConllLines(docName, conllLines, writer);
+      Logger.logss("Processed document " + docName);
+    });
+  }
+
+  private def submitSentences(docName: String, tokenizedSentences: Array[Array[String]], consumer: Array[Array[String]] => Unit) {
+    val conllLines = new Array[Array[String]](tokenizedSentences.size);
+    if (tokenizedSentences.isEmpty) {
+      executor.submit(null, (nothing: Array[String]) => consumer(conllLines));
+    }
+    for (sentIdx <- 0 until tokenizedSentences.size) {
+      executor.submit(PreprocessingDriver.annotateSentence(docName, tokenizedSentences(sentIdx), parsers.get, backoffParsers.get, nerSystems.get),
+                      (sentenceConllLines: Array[String]) => {
+        conllLines(sentIdx) = sentenceConllLines;
+        if (sentIdx == tokenizedSentences.size - 1) {
+          consumer(conllLines);
+        }
+      });
+    }
+  }
+
+  /**
+   * Reparses and retags a whole CoNLL file on one worker, which writes the output file
+   * itself (see Reprocessor.redoConllDocument).
+   */
+  def submitRedoConllDocument(inputPath: String, outputPath: String) {
+    executor.submit({
+      Reprocessor.redoConllDocument(parsers.get, backoffParsers.get, nerSystems.get, new ConllDocReader(Language.ENGLISH, ""), inputPath, outputPath);
+      null;
+    }, (nothing: Array[String]) => {});
+  }
+
+  /**
+   * Waits for everything submitted to be done and written, then stops the workers.
+   */
+  def finish() {
+    executor.finish();
+  }
+
+  def shutdown() {
+    executor.shutdown();
+  }
+}
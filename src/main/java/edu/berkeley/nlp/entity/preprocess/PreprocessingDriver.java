@@ -62,6 +62,9 @@ import edu.berkeley.nlp.util.Numberer;
  * because this is presumed to already be done.
  * Required arguments: -inputDir, -outputDir
  * 
+ * Parsing dominates the running time; -numThreads N parses and tags N sentences at once
+ * (see ParallelSentenceAnnotator) and writes exactly the same output.
+ * 
  * @author gdurrett
  *
  */
@@ -94,6 +97,8 @@ public class PreprocessingDriver implements Runnable {
   public static boolean useAlternateTokenizer = false;
   @Option(gloss = "Use full filesystem paths as document names rather than just file names")
   public static boolean useFullPathsAsDocNames = false;
+  @Option(gloss = "Number of threads for parsing and NER tagging, each with its own parser and NER instances; output is the same as with 1")
+  public static int numThreads = 1;
   
   public static enum Mode {
     RAW_TEXT, CONLL_JUST_WORDS, REDO_CONLL;
@@ -118,7 +123,9 @@ public class PreprocessingDriver implements Runnable {
       throw new RuntimeException("Couldn't locate input directory " + inputDir);
     }
     if (!inputDir.isEmpty() && !outputDir.isEmpty() && !inputDir.equals(outputDir)) {
-      if (mode == Mode.RAW_TEXT) {
+      if (numThreads > 1) {
+        runParallel(splitter, parser, backoffParser, nerSystem);
+      } else if (mode == Mode.RAW_TEXT) {
         for (File inputFile : new File(inputDir).listFiles()) {
           processDocument(splitter, parser, backoffParser, nerSystem, inputDir + "/" + inputFile.getName(), outputDir + "/" + inputFile.getName());
         }
@@ -143,12 +150,57 @@ public class PreprocessingDriver implements Runnable {
     }
   }
   
+  private void runParallel(SentenceSplitter splitter, CoarseToFineMaxRuleParser parser, CoarseToFineMaxRuleParser backoffParser, NerSystemLabeled nerSystem) {
+    Logger.logss("Parsing and tagging with " + numThreads + " threads");
+    ParallelSentenceAnnotator annotator = new ParallelSentenceAnnotator(parser, backoffParser, nerSystem, numThreads);
+    try {
+      if (mode == Mode.RAW_TEXT) {
+        for (File inputFile : new File(inputDir).listFiles()) {
+          String inputPath = inputDir + "/" + inputFile.getName();
+          String docName = docNameFor(inputPath);
+          annotator.submitDoc(docName, splitAndTokenize(splitter, docName, inputPath), outputDir + "/" + inputFile.getName());
+        }
+        annotator.finish();
+      } else if (mode == Mode.CONLL_JUST_WORDS) {
+        ConllDocJustWords[] conllDocs = ConllDocReader.readConllDocsJustWordsFromDir(inputDir);
+        PrintWriter writer = IOUtils.openOutHard(outputDir);
+        for (ConllDocJustWords conllDoc : conllDocs) {
+          annotator.submitDoc(conllDoc.docID(), conllDoc.wordsArrs(), writer);
+        }
+        annotator.finish();
+        writer.close();
+        Logger.logss("Wrote " + conllDocs.length + " documents to " + outputDir);
+      } else {
+        for (File inputFile : new File(inputDir).listFiles()) {
+          annotator.submitRedoConllDocument(inputDir + "/" + inputFile.getName(), outputDir + "/" + inputFile.getName());
+        }
+        annotator.finish();
+      }
+    } finally {
+      annotator.shutdown();
+    }
+  }
+  
   public static void processDocument(SentenceSplitter splitter, CoarseToFineMaxRuleParser parser, CoarseToFineMaxRuleParser backoffParser, NerSystemLabeled nerSystem, String inputPath, String outputPath) {
+    String docName = docNameFor(inputPath);
+    String[][] tokenizedSentences = splitAndTokenize(splitter, docName, inputPath);
+    String[][] docConllLines = renderDocConllLines(docName, tokenizedSentences, parser, backoffParser, nerSystem);
+    writeConllLines(docName, docConllLines, outputPath);
+  }
+  
+  public static String docNameFor(String inputPath) {
     String docName = inputPath;
     if (!useFullPathsAsDocNames && docName.contains("/")) {
       docName = docName.substring(docName.lastIndexOf("/") + 1);
     }
-    String[] lines = IOUtils.readLinesHard(inputPath).toArray(new String[0]);
+    return docName;
+  }
+  
+  public static String[][] splitAndTokenize(SentenceSplitter splitter, String docName, String inputPath) {
+    return splitAndTokenize(splitter, docName, IOUtils.readLinesHard(inputPath).toArray(new String[0]));
+  }
+  
+  public static String[][] splitAndTokenize(SentenceSplitter splitter, String docName, String[] lines) {
     String[] canonicalizedParagraphs = splitter.formCanonicalizedParagraphs(lines, respectInputLineBreaks, respectInputTwoLineBreaks);
     String[] sentences = null;
     if (skipSentenceSplitting) {
@@ -165,8 +217,7 @@ public class PreprocessingDriver implements Runnable {
       tokenizedSentences = SentenceSplitter.tokenize(sentences);
     }
     Logger.logss("Document " + docName + " contains " + lines.length + " lines and " + tokenizedSentences.length + " sentences");
-    String[][] docConllLines = renderDocConllLines(docName, tokenizedSentences, parser, backoffParser, nerSystem);
-    writeConllLines(docName, docConllLines, outputPath);
+    return tokenizedSentences;
   }
   
   public static void writeConllLines(String docName, String[][] docConllLines, String fileName) {
@@ -189,29 +240,36 @@ public class PreprocessingDriver implements Runnable {
   public static String[][] renderDocConllLines(String docName, String[][] tokenizedSentences, CoarseToFineMaxRuleParser parser, CoarseToFineMaxRuleParser backoffParser, NerSystemLabeled nerSystem) {
     String[][] conllLines = new String[tokenizedSentences.length][];
     for (int sentIdx = 0; sentIdx < tokenizedSentences.length; sentIdx++) {
-      String[] tokenizedSentence = tokenizedSentences[sentIdx];
-      Tree<String> parse = parse(parser, backoffParser, Arrays.asList(tokenizedSentence));
-      if (parse.getYield().size() != tokenizedSentence.length) {
-        Logger.logss("WARNING: couldn't parse sentence, dropping it: " + Arrays.toString(tokenizedSentence));
-        Logger.logss("  (This will be fixed to backing off to an X-bar grammar in a future release)");
-      } else {
-        String[] posTags = new String[tokenizedSentence.length];
-        List<String> preterminals = parse.getPreTerminalYield();
-        for (int i = 0; i < preterminals.size(); i++) {
-          posTags[i] = preterminals.get(i);
-        }
-        String[] nerBioLabels = null;
-        if (nerSystem != null) {
-          nerBioLabels = nerSystem.tagBIO(tokenizedSentence, posTags);
-        } else {
-          nerBioLabels = new String[tokenizedSentence.length];
-          Arrays.fill(nerBioLabels, "O");
-        }
-        conllLines[sentIdx] = renderSentenceConllLines(docName, 0, tokenizedSentence, posTags, parse, nerBioLabels);
-      }
+      conllLines[sentIdx] = annotateSentence(docName, tokenizedSentences[sentIdx], parser, backoffParser, nerSystem);
     }
     return conllLines;
   }
+  
+  /**
+   * Parses and NER tags one sentence and renders it as CoNLL lines, or returns null if it
+   * couldn't be parsed. Uses the parsers' internal state, so each thread needs its own.
+   */
+  public static String[] annotateSentence(String docName, String[] tokenizedSentence, CoarseToFineMaxRuleParser parser, CoarseToFineMaxRuleParser backoffParser, NerSystemLabeled nerSystem) {
+    Tree<String> parse = parse(parser, backoffParser, Arrays.asList(tokenizedSentence));
+    if (parse.getYield().size() != tokenizedSentence.length) {
+      Logger.logss("WARNING: couldn't parse sentence, dropping it: " + Arrays.toString(tokenizedSentence));
+      Logger.logss("  (This will be fixed to backing off to an X-bar grammar in a future release)");
+      return null;
+    }
+    String[] posTags = new String[tokenizedSentence.length];
+    List<String> preterminals = parse.getPreTerminalYield();
+    for (int i = 0; i < preterminals.size(); i++) {
+      posTags[i] = preterminals.get(i);
+    }
+    String[] nerBioLabels = null;
+    if (nerSystem != null) {
+      nerBioLabels = nerSystem.tagBIO(tokenizedSentence, posTags);
+    } else {
+      nerBioLabels = new String[tokenizedSentence.length];
+      Arrays.fill(nerBioLabels, "O");
+    }
+    return renderSentenceConllLines(docName, 0, tokenizedSentence, posTags, parse, nerBioLabels);
+  }
 
   public static String[] renderSentenceConllLines(String docName, int partNo, String[] words, String[] pos, Tree<String> parse, String[] nerBioLabels) {
     assert words.length == pos.length;
@@ -0,0 +1,52 @@
+package edu.berkeley.nlp.entity.preprocess
+
+import scala.collection.mutable.ArrayBuffer
+import edu.berkeley.nlp.PCFGLA.CoarseToFineMaxRuleParser
+import edu.berkeley.nlp.entity.ConllDoc
+import edu.berkeley.nlp.entity.ConllDocReader
+import edu.berkeley.nlp.entity.lang.Language
+
+/**
+ * Turns raw text that's already in memory into a ConllDoc the way PreprocessingDriver
+ * would: sentence splitting, tokenization and parsing, with no NER tags (the joint model
+ * predicts those anyway). The splitting and tokenization options are PreprocessingDriver's.
+ *
+ * Can be called from several threads at once; as in ParallelSentenceAnnotator, each
+ * thread gets its own parser instances sharing the grammar.
+ */
+class RawTextPreprocessor(val splitter: SentenceSplitter,
+                          val parser: CoarseToFineMaxRuleParser,
+                          val backoffParser: CoarseToFineMaxRuleParser) {
+  private val parsers = new ThreadLocal[CoarseToFineMaxRuleParser] {
+    override def initialValue() = parser.newInstance();
+  }
+  private val backoffParsers = new ThreadLocal[CoarseToFineMaxRuleParser] {
+    override def initialValue() = if (backoffParser == null) null else backoffParser.newInstance();
+  }
+
+  def preprocess(docName: String, text: String): ConllDoc = {
+    val tokenizedSentences = PreprocessingDriver.splitAndTokenize(splitter, docName, text.split("\\r?\\n"));
+    val docBySentencesByLines = new ArrayBuffer[ArrayBuffer[String]];
+    for (tokenizedSentence <- tokenizedSentences) {
+      val conllLines = PreprocessingDriver.annotateSentence(docName, tokenizedSentence, parsers.get, backoffParsers.get, null);
+      if (conllLines != null) {
+        docBySentencesByLines += (new ArrayBuffer[String] ++ conllLines);
+      }
+    }
+    new ConllDocReader(Language.ENGLISH).assembleConllDoc(docBySentencesByLines, docName, 0);
+  }
+}
+
+object RawTextPreprocessor {
+
+  /**
+   * backoffGrammarPath may be empty, in which case sentences the main grammar can't parse
+   * are dropped.
+   */
+  def load(sentenceSplitterModelPath: String, grammarPath: String, backoffGrammarPath: String) = {
+    val splitter = SentenceSplitter.loadSentenceSplitter(sentenceSplitterModelPath);
+    val parser = PreprocessingDriver.loadParser(grammarPath);
+    val backoffParser = if (backoffGrammarPath == "") null else PreprocessingDriver.loadParser(backoffGrammarPath);
+    new RawTextPreprocessor(splitter, parser, backoffParser);
+  }
+}
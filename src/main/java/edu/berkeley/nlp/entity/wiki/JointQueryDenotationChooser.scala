@@ -205,7 +205,7 @@ object JointQueryDenotationChooser {
     // Read in gold Wikification labels
     val goldWikification = WikiAnnotReaderWriter.readStandoffAnnotsAsCorpusAnnots(wikiPath)
     // Read in the title given surface database
-    val wikiDB = GUtil.load(wikiDBPath).asInstanceOf[WikipediaInterface];
+    val wikiDB = WikipediaInterface.load(wikiDBPath);
     // Make training examples, filtering out those with solutions that are unreachable because
     // they're not good for training
     val trainExs = extractExamples(trainCorefDocs, goldWikification, wikiDB, filterImpossible = true)
@@ -0,0 +1,333 @@
+package edu.berkeley.nlp.entity.wiki
+
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * Read-only binary file made up of named sections (string tables, int arrays, double
+ * arrays), each of which is memory-mapped rather than read in: opening a file only reads
+ * its directory, pages are faulted in as lookups touch them, and JVMs on the same host
+ * share them through the OS page cache. Layout: magic, version, number of sections, a
+ * directory of (name, offset, length), then the sections at 8-byte-aligned offsets. Each
+ * section has to fit in one mapping (2GB).
+ *
+ * Everything is read with absolute gets, so one instance can be shared across threads.
+ */
+class MappedWikipediaFile(val path: String) {
+  private val sections = new HashMap[String,ByteBuffer];
+
+  {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+    val directory = try {
+      if (in.readLong() != MappedWikipediaFile.Magic) {
+        throw new RuntimeException(path + " isn't a mapped Wikipedia database");
+      }
+      val version = in.readInt();
+      if (version != MappedWikipediaFile.Version) {
+        throw new RuntimeException("Unsupported mapped Wikipedia database version " + version + " in " + path);
+      }
+      val numSections = in.readInt();
+      Array.fill(numSections)((in.readUTF(), in.readLong(), in.readLong()));
+    } finally {
+      in.close();
+    }
+    val raf = new RandomAccessFile(path, "r");
+    try {
+      // Mappings stay valid after the channel is closed
+      for ((name, offset, length) <- directory) {
+        sections.put(name, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length));
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  def hasSection(name: String) = sections.contains(name);
+
+  def section(name: String): ByteBuffer = {
+    if (!sections.contains(name)) {
+      throw new RuntimeException("No section " + name + " in " + path);
+    }
+    sections(name);
+  }
+
+  def stringTable(name: String) = new MappedStringTable(section(name));
+
+  def intArray(name: String) = new MappedIntArray(section(name));
+
+  def doubleArray(name: String) = new MappedDoubleArray(section(name));
+}
+
+object MappedWikipediaFile {
+  // "WIKIDB01"
+  val Magic = 0x57494b4944423031L;
+  val Version = 1;
+
+  def isMappedFile(path: String) = {
+    val in = new DataInputStream(new FileInputStream(path));
+    try {
+      in.readLong() == Magic;
+    } catch {
+      case e: java.io.EOFException => false;
+    } finally {
+      in.close();
+    }
+  }
+}
+
+/**
+ * Strings stored as a count, n+1 byte offsets, and then the UTF-8 bytes. If the strings
+ * were added in MappedStringTable.sortForLookup order, indexOf binary searches them.
+ */
+class MappedStringTable(val buf: ByteBuffer) {
+  val size = buf.getInt(0);
+  private val dataStart = 4 + 4 * (size + 1);
+
+  private def start(i: Int) = dataStart + buf.getInt(4 + 4 * i);
+  private def end(i: Int) = dataStart + buf.getInt(4 + 4 * (i + 1));
+
+  def apply(i: Int): String = {
+    val bytes = new Array[Byte](end(i) - start(i));
+    var j = 0;
+    val offset = start(i);
+    while (j < bytes.size) {
+      bytes(j) = buf.get(offset + j);
+      j += 1;
+    }
+    new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  def indexOf(str: String): Int = {
+    val key = str.getBytes(StandardCharsets.UTF_8);
+    var lo = 0;
+    var hi = size - 1;
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1;
+      val cmp = compareTo(mid, key);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    -1;
+  }
+
+  def contains(str: String) = indexOf(str) != -1;
+
+  // Compares entry i to key as unsigned bytes, which is the order sortForLookup uses
+  private def compareTo(i: Int, key: Array[Byte]): Int = {
+    val offset = start(i);
+    val len = end(i) - offset;
+    var j = 0;
+    while (j < len && j < key.size) {
+      val cmp = (buf.get(offset + j) & 0xFF) - (key(j) & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+      j += 1;
+    }
+    len - key.size;
+  }
+}
+
+object MappedStringTable {
+
+  def compareUtf8(a: Array[Byte], b: Array[Byte]): Int = {
+    var j = 0;
+    while (j < a.size && j < b.size) {
+      val cmp = (a(j) & 0xFF) - (b(j) & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+      j += 1;
+    }
+    a.size - b.size;
+  }
+
+  /**
+   * Distinct strings in the order that MappedStringTable.indexOf expects.
+   */
+  def sortForLookup(strs: Iterable[String]): Array[String] = {
+    strs.toArray.distinct.map(str => str -> str.getBytes(StandardCharsets.UTF_8)).sortWith((a, b) => compareUtf8(a._2, b._2) < 0).map(_._1);
+  }
+}
+
+class MappedIntArray(val buf: ByteBuffer) {
+  val size = buf.capacity / 4;
+
+  def apply(i: Int) = buf.getInt(4 * i);
+
+  def slice(start: Int, end: Int): Array[Int] = {
+    val arr = new Array[Int](end - start);
+    var i = 0;
+    while (i < arr.size) {
+      arr(i) = apply(start + i);
+      i += 1;
+    }
+    arr;
+  }
+}
+
+class MappedDoubleArray(val buf: ByteBuffer) {
+  val size = buf.capacity / 8;
+
+  def apply(i: Int) = buf.getDouble(8 * i);
+}
+
+/**
+ * Map from strings to int lists: sorted keys in name.keys, and the values of key i in
+ * name.values from name.offsets(i) until name.offsets(i+1). Other sections can be aligned
+ * with the values (e.g. counts for each one).
+ */
+class MappedStringIntsMap(file: MappedWikipediaFile, name: String) {
+  val keys = file.stringTable(name + ".keys");
+  val offsets = file.intArray(name + ".offsets");
+  val values = file.intArray(name + ".values");
+
+  def size = keys.size;
+
+  def contains(key: String) = keys.contains(key);
+
+  def get(key: String): Array[Int] = {
+    val keyIdx = keys.indexOf(key);
+    if (keyIdx == -1) null else values.slice(offsets(keyIdx), offsets(keyIdx + 1));
+  }
+}
+
+/**
+ * Map from strings to strings: sorted keys in name.keys and the value of each in
+ * name.values.
+ */
+class MappedStringStringMap(file: MappedWikipediaFile, name: String) {
+  val keys = file.stringTable(name + ".keys");
+  val values = file.stringTable(name + ".values");
+
+  def size = keys.size;
+
+  def contains(key: String) = keys.contains(key);
+
+  def get(key: String): String = {
+    val keyIdx = keys.indexOf(key);
+    if (keyIdx == -1) null else values(keyIdx);
+  }
+}
+
+/**
+ * Builds a MappedWikipediaFile in memory section by section and then writes it out.
+ */
+class MappedWikipediaFileWriter {
+  private val sections = new ArrayBuffer[(String,ByteBuffer)];
+
+  private def addSection(name: String, size: Long): ByteBuffer = {
+    require(size <= Integer.MAX_VALUE, "Section " + name + " is too big to map: " + size + " bytes");
+    require(!sections.exists(_._1 == name), "Duplicate section " + name);
+    val buf = ByteBuffer.allocate(size.toInt);
+    sections += name -> buf;
+    buf;
+  }
+
+  def addStringTable(name: String, strs: Seq[String]) {
+    val bytes = strs.map(_.getBytes(StandardCharsets.UTF_8));
+    val buf = addSection(name, 4L + 4L * (strs.size + 1) + bytes.foldLeft(0L)(_ + _.size));
+    buf.putInt(strs.size);
+    var offset = 0;
+    buf.putInt(offset);
+    for (str <- bytes) {
+      offset += str.size;
+      buf.putInt(offset);
+    }
+    bytes.foreach(buf.put(_));
+  }
+
+  def addIntArray(name: String, arr: Array[Int]) {
+    val buf = addSection(name, 4L * arr.size);
+    arr.foreach(buf.putInt(_));
+  }
+
+  def addDoubleArray(name: String, arr: Array[Double]) {
+    val buf = addSection(name, 8L * arr.size);
+    arr.foreach(buf.putDouble(_));
+  }
+
+  /**
+   * Adds a MappedStringIntsMap; returns the sorted keys so that sections aligned with the
+   * values can be written in the same order.
+   */
+  def addStringIntsMap(name: String, map: scala.collection.Map[String,Array[Int]]): Array[String] = {
+    val keys = MappedStringTable.sortForLookup(map.keys);
+    addStringTable(name + ".keys", keys);
+    val offsets = new Array[Int](keys.size + 1);
+    for (i <- 0 until keys.size) {
+      offsets(i + 1) = offsets(i) + map(keys(i)).size;
+    }
+    addIntArray(name + ".offsets", offsets);
+    addIntArray(name + ".values", keys.flatMap(map(_)));
+    keys;
+  }
+
+  def addStringStringMap(name: String, map: scala.collection.Map[String,String]) {
+    val keys = MappedStringTable.sortForLookup(map.keys);
+    addStringTable(name + ".keys", keys);
+    addStringTable(name + ".values", keys.map(map(_)));
+  }
+
+  def write(path: String) {
+    // The directory has a fixed size once the names are known, so lay it out first
+    val headerSize = 8 + 4 + 4 + sections.foldLeft(0L)((size, section) => size + 2 + section._1.getBytes(StandardCharsets.UTF_8).size + 8 + 8);
+    val offsets = new Array[Long](sections.size);
+    var offset = MappedWikipediaFileWriter.align(headerSize);
+    for (i <- 0 until sections.size) {
+      offsets(i) = offset;
+      offset = MappedWikipediaFileWriter.align(offset + sections(i)._2.capacity);
+    }
+    val headerBytes = new ByteArrayOutputStream();
+    val header = new DataOutputStream(headerBytes);
+    header.writeLong(MappedWikipediaFile.Magic);
+    header.writeInt(MappedWikipediaFile.Version);
+    header.writeInt(sections.size);
+    for (i <- 0 until sections.size) {
+      header.writeUTF(sections(i)._1);
+      header.writeLong(offsets(i));
+      header.writeLong(sections(i)._2.capacity);
+    }
+    header.close();
+    require(headerBytes.size == headerSize);
+    val channel = new FileOutputStream(path).getChannel();
+    try {
+      writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray));
+      for (i <- 0 until sections.size) {
+        channel.position(offsets(i));
+        val buf = sections(i)._2;
+        buf.flip();
+        writeFully(channel, buf);
+      }
+    } finally {
+      channel.close();
+    }
+    Logger.logss("Wrote " + sections.size + " sections (" + offset + " bytes) to " + path);
+  }
+
+  private def writeFully(channel: FileChannel, buf: ByteBuffer) {
+    while (buf.hasRemaining) {
+      channel.write(buf);
+    }
+  }
+}
+
+object MappedWikipediaFileWriter {
+  def align(offset: Long) = (offset + 7) & ~7L;
+}
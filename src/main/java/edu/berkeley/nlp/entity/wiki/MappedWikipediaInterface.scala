@@ -0,0 +1,242 @@
+package edu.berkeley.nlp.entity.wiki
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import scala.collection.mutable.HashSet
+import edu.berkeley.nlp.entity.GUtil
+import edu.berkeley.nlp.futile.LightRunner
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+import edu.berkeley.nlp.futile.util.CounterMap
+import edu.berkeley.nlp.futile.util.Logger
+
+/**
+ * WikipediaInterface backed by a MappedWikipediaFile instead of deserialized hash maps, so
+ * loading is nearly instant and the database lives in the page cache rather than on the
+ * heap. Each sub-DB is a subclass of the usual one constructed over empty maps whose lookup
+ * methods go to the file instead; everything else (query expansion, redirect following,
+ * disambiguation purging, ...) is inherited unchanged, so the two formats give the same
+ * answers.
+ *
+ * To convert an existing database, run
+ * java -cp /path/to/jar edu.berkeley.nlp.entity.wiki.MappedWikipediaInterface \
+ *  -inputPath path/to/wiki-db.ser.gz -outputPath path/to/wiki-db.mapped
+ * and pass the output anywhere a Wikipedia database path is expected (e.g. -wikipediaPath);
+ * WikipediaInterface.load recognizes either format.
+ */
+object MappedWikipediaInterface {
+
+  val inputPath = "";
+  val outputPath = "";
+  // Check every lookup of the converted database against the original
+  val verify = true;
+
+  def load(path: String): WikipediaInterface = {
+    val file = new MappedWikipediaFile(path);
+    new WikipediaInterface(new MappedWikipediaTitleGivenSurfaceDB(file),
+                           new MappedWikipediaRedirectsDB(file),
+                           new MappedWikipediaCategoryDB(file),
+                           new MappedWikipediaLinkDB(file),
+                           new MappedWikipediaAuxDB(file));
+  }
+
+  def write(wi: WikipediaInterface, path: String) {
+    val writer = new MappedWikipediaFileWriter;
+    writeTitleGivenSurfaceDB(wi.titleGivenSurfaceDB, writer);
+    writeRedirectsDB(wi.redirectsDB, writer);
+    writeCategoryDB(wi.categoryDB, writer);
+    writeLinkDB(wi.linksDB, writer);
+    writeAuxDB(wi.auxDB, writer);
+    writer.write(path);
+  }
+
+  private def writeTitleGivenSurfaceDB(db: WikipediaTitleGivenSurfaceDB, writer: MappedWikipediaFileWriter) {
+    val surfaces = db.surfaces;
+    val titles = MappedStringTable.sortForLookup(db.allPossibleTitles);
+    val titleIds = titles.zipWithIndex.toMap;
+    // Titles are kept in the counter's iteration order; see TitleCandidateIndex
+    val titlesEachSurface = new HashMap[String,Array[Int]];
+    val countsEachSurface = new HashMap[String,Array[Double]];
+    for (surface <- surfaces) {
+      val candidates = db.getTitleCandidates(surface);
+      titlesEachSurface.put(surface, candidates.titles.map(titleIds(_)));
+      countsEachSurface.put(surface, candidates.counts);
+    }
+    writer.addStringTable("tgs.titles", titles);
+    val sortedSurfaces = writer.addStringIntsMap("tgs.surfaces", titlesEachSurface);
+    writer.addDoubleArray("tgs.surfaces.counts", sortedSurfaces.flatMap(countsEachSurface(_)));
+  }
+
+  private def writeRedirectsDB(db: WikipediaRedirectsDB, writer: MappedWikipediaFileWriter) {
+    writer.addStringStringMap("redirects", db.redirects);
+    writer.addStringStringMap("redirects.wikicase", db.redirectsWikicase);
+  }
+
+  private def writeCategoryDB(db: WikipediaCategoryDB, writer: MappedWikipediaFileWriter) {
+    val categories = MappedStringTable.sortForLookup(db.categoryMap.values.flatten);
+    val categoryIds = categories.zipWithIndex.toMap;
+    writer.addStringTable("categories.pool", categories);
+    writer.addDoubleArray("categories.pool.freqs", categories.map(db.getCategoryFrequency(_)));
+    writer.addStringIntsMap("categories", db.categoryMap.map(entry => entry._1 -> entry._2.map(categoryIds(_)).toArray));
+    writer.addStringStringMap("infoboxes", db.infoboxMap);
+    writer.addStringStringMap("appositives", db.appositiveMap);
+  }
+
+  private def writeLinkDB(db: WikipediaLinkDB, writer: MappedWikipediaFileWriter) {
+    // Link lists hold indices into the original page name Indexer, so keep them and map
+    // each (sorted) page name back to its index
+    val pageNames = MappedStringTable.sortForLookup(db.pageNameIndex.getObjects.asScala);
+    writer.addStringTable("links.pages", pageNames);
+    writer.addIntArray("links.pages.ids", pageNames.map(db.pageNameIndex.indexOf(_)));
+    writer.addStringIntsMap("links.out", db.outLinksMap);
+    // Marks the out-link lists as sorted; files written before they were need sorting on lookup
+    writer.addIntArray("links.out.sorted", Array(1));
+    writer.addStringIntsMap("links.in", db.inLinksMap);
+  }
+
+  private def writeAuxDB(db: WikipediaAuxDB, writer: MappedWikipediaFileWriter) {
+    writer.addStringTable("aux.disambiguations", MappedStringTable.sortForLookup(db.disambiguationSet));
+  }
+
+  /**
+   * Checks that every lookup the mapped database supports gives the same result as the
+   * deserialized one.
+   */
+  def verifyConversion(original: WikipediaInterface, converted: WikipediaInterface) {
+    var numChecked = 0;
+    def check(condition: Boolean, what: => String) {
+      if (!condition) {
+        throw new RuntimeException("Converted database disagrees with the original: " + what);
+      }
+      numChecked += 1;
+    }
+    val tgs = original.titleGivenSurfaceDB;
+    for (surface <- tgs.surfaces) {
+      val originalCounter = tgs.getTitleCounter(surface);
+      val convertedCounter = converted.titleGivenSurfaceDB.getTitleCounter(surface);
+      check(converted.titleGivenSurfaceDB.containsSurface(surface), "surface " + surface);
+      check(originalCounter.keySet.asScala.toSeq == convertedCounter.keySet.asScala.toSeq &&
+            originalCounter.keySet.asScala.forall(title => originalCounter.getCount(title) == convertedCounter.getCount(title)), "titles for " + surface);
+      check(originalCounter.isEmpty || originalCounter.argMax == convertedCounter.argMax, "best title for " + surface);
+    }
+    for (title <- original.redirectsDB.redirects.keySet) {
+      check(original.redirectsDB.followRedirect(title) == converted.redirectsDB.followRedirect(title), "redirect for " + title);
+    }
+    for (title <- original.categoryDB.categoryMap.keySet) {
+      check(original.getCategoriesSortedByFrequency(title) == converted.getCategoriesSortedByFrequency(title), "categories for " + title);
+    }
+    for (title <- original.categoryDB.infoboxMap.keySet ++ original.categoryDB.appositiveMap.keySet) {
+      check(original.getInfobox(title) == converted.getInfobox(title) && original.getAppositive(title) == converted.getAppositive(title), "infobox/appositive for " + title);
+    }
+    for (title <- original.linksDB.outLinksMap.keySet) {
+      check(original.linksDB.getOutLinks(title).toSeq == converted.linksDB.getOutLinks(title).toSeq, "out-links for " + title);
+    }
+    for (page <- original.linksDB.pageNameIndex.getObjects.asScala) {
+      check(original.linksDB.pageIndexOf(page) == converted.linksDB.pageIndexOf(page), "page index of " + page);
+    }
+    for (title <- original.auxDB.disambiguationSet) {
+      check(converted.auxDB.isDisambiguation(title), "disambiguation " + title);
+    }
+    Logger.logss("Verified " + numChecked + " lookups against the original database");
+  }
+
+  def main(args: Array[String]) {
+    LightRunner.initializeOutput(MappedWikipediaInterface.getClass);
+    LightRunner.populateScala(MappedWikipediaInterface.getClass, args);
+    if (inputPath == "" || outputPath == "") {
+      throw new RuntimeException("Need both -inputPath and -outputPath");
+    }
+    Logger.logss("Loading " + inputPath);
+    val wi = GUtil.load(inputPath).asInstanceOf[WikipediaInterface];
+    write(wi, outputPath);
+    if (verify) {
+      verifyConversion(wi, load(outputPath));
+    }
+    LightRunner.finalizeOutput();
+  }
+}
+
+/**
+ * Surfaces with the titles they link to and the counts, which the file already has in the
+ * layout of a TitleCandidateIndex.
+ */
+@SerialVersionUID(1L)
+class MappedWikipediaTitleGivenSurfaceDB(file: MappedWikipediaFile) extends WikipediaTitleGivenSurfaceDB(new CounterMap[String,String]) {
+  private val surfaceTitles = new MappedStringIntsMap(file, "tgs.surfaces");
+  private val counts = file.doubleArray("tgs.surfaces.counts");
+  private val titles = file.stringTable("tgs.titles");
+
+  override protected def buildCandidateIndex(): TitleCandidateIndex = new TitleCandidateIndex {
+    def surfaceIdx(surface: String) = surfaceTitles.keys.indexOf(surface);
+    def numSurfaces = surfaceTitles.size;
+    def surface(surfaceIdx: Int) = surfaceTitles.keys(surfaceIdx);
+    def candidatesStart(surfaceIdx: Int) = surfaceTitles.offsets(surfaceIdx);
+    def candidatesEnd(surfaceIdx: Int) = surfaceTitles.offsets(surfaceIdx + 1);
+    def numCandidates = counts.size;
+    def candidateTitleId(candidateIdx: Int) = surfaceTitles.values(candidateIdx);
+    def candidateCount(candidateIdx: Int) = counts(candidateIdx);
+    def numTitles = titles.size;
+    def title(titleId: Int) = titles(titleId);
+  }
+}
+
+@SerialVersionUID(1L)
+class MappedWikipediaRedirectsDB(file: MappedWikipediaFile) extends WikipediaRedirectsDB(new HashMap[String,String]) {
+  private val mappedRedirects = new MappedStringStringMap(file, "redirects");
+  private val mappedRedirectsWikicase = new MappedStringStringMap(file, "redirects.wikicase");
+
+  override def lookupRedirect(title: String) = mappedRedirects.get(title);
+
+  override def lookupRedirectWikicase(wikicaseTitle: String) = mappedRedirectsWikicase.get(wikicaseTitle);
+}
+
+@SerialVersionUID(1L)
+class MappedWikipediaCategoryDB(file: MappedWikipediaFile) extends WikipediaCategoryDB(new HashMap[String,ArrayBuffer[String]], new HashMap[String,String], new HashMap[String,String]) {
+  private val mappedCategories = new MappedStringIntsMap(file, "categories");
+  private val categoryPool = file.stringTable("categories.pool");
+  private val categoryPoolFreqs = file.doubleArray("categories.pool.freqs");
+  private val mappedInfoboxes = new MappedStringStringMap(file, "infoboxes");
+  private val mappedAppositives = new MappedStringStringMap(file, "appositives");
+
+  override def lookupCategories(pageName: String): Seq[String] = {
+    val categoryIds = mappedCategories.get(pageName);
+    if (categoryIds == null) null else categoryIds.map(categoryPool(_));
+  }
+
+  override def getCategoryFrequency(category: String): Double = {
+    val categoryIdx = categoryPool.indexOf(category);
+    if (categoryIdx == -1) 0.0 else categoryPoolFreqs(categoryIdx);
+  }
+
+  override def lookupInfobox(pageName: String) = mappedInfoboxes.get(pageName);
+
+  override def lookupAppositive(pageName: String) = mappedAppositives.get(pageName);
+}
+
+@SerialVersionUID(1L)
+class MappedWikipediaLinkDB(file: MappedWikipediaFile) extends WikipediaLinkDB(new Indexer[String], new HashMap[String,Array[Int]], new HashMap[String,Array[Int]]) {
+  private val pageNames = file.stringTable("links.pages");
+  private val pageIds = file.intArray("links.pages.ids");
+  private val mappedOutLinks = new MappedStringIntsMap(file, "links.out");
+  private val outLinksSorted = file.hasSection("links.out.sorted");
+
+  override def lookupOutLinks(title: String) = {
+    val outLinks = mappedOutLinks.get(title);
+    if (outLinks != null && !outLinksSorted) {
+      java.util.Arrays.sort(outLinks);
+    }
+    outLinks;
+  }
+
+  override def pageIndexOf(title: String) = {
+    val pageIdx = pageNames.indexOf(title);
+    if (pageIdx == -1) -1 else pageIds(pageIdx);
+  }
+}
+
+@SerialVersionUID(1L)
+class MappedWikipediaAuxDB(file: MappedWikipediaFile) extends WikipediaAuxDB(new HashSet[String]) {
+  private val disambiguations = file.stringTable("aux.disambiguations");
+
+  override def isDisambiguation(pageTitle: String) = disambiguations.contains(pageTitle);
+}
@@ -286,7 +286,7 @@ object QueryChooser {
 //    val wikiAnnotsPath = "data/ace05/ace-annots-multi.ser"
 //    val goldWikification = GUtil.load(wikiAnnotsPath).asInstanceOf[CorpusWikiAnnots];
     val goldWikification = WikiAnnotReaderWriter.readStandoffAnnotsAsCorpusAnnots(wikiPath)
-    val wikiDB = GUtil.load(wikiDBPath).asInstanceOf[WikipediaInterface];
+    val wikiDB = WikipediaInterface.load(wikiDBPath);
     
     val assembler = CorefDocAssembler(Language.ENGLISH, true);
     val trainDocs = ConllDocReader.loadRawConllDocsWithSuffix(trainDataPath, -1, "", Language.ENGLISH);
@@ -22,10 +22,28 @@ class WikipediaCategoryDB(val categoryMap: HashMap[String,ArrayBuffer[String]],
   val infoboxFreqs = new Counter[String];
   infoboxMap.foreach(entry => infoboxFreqs.incrementCount(entry._2, 1.0));
   
-  def getCategories(pageName: String): Seq[String] = {
+  // Raw category list for pageName, possibly with repeats, or null if there isn't one
+  def lookupCategories(pageName: String): Seq[String] = {
     if (categoryMap.contains(pageName)) {
       require(categoryMap(pageName) != null);
-      categoryMap(pageName).distinct;
+      categoryMap(pageName);
+    } else {
+      null;
+    }
+  }
+  
+  def getCategoryFrequency(category: String): Double = categoryFreqs.getCount(category);
+  
+  // Returns null if pageName has no infobox
+  def lookupInfobox(pageName: String): String = infoboxMap.getOrElse(pageName, null);
+  
+  // Returns null if pageName has no appositive
+  def lookupAppositive(pageName: String): String = appositiveMap.getOrElse(pageName, null);
+  
+  def getCategories(pageName: String): Seq[String] = {
+    val categories = lookupCategories(pageName);
+    if (categories != null) {
+      categories.distinct;
     } else {
       Seq[String]();
     }
@@ -33,7 +51,7 @@ class WikipediaCategoryDB(val categoryMap: HashMap[String,ArrayBuffer[String]],
   
   def getCategoriesSortedByFrequency(pageName: String): Seq[String] = {
     val categories = getCategories(pageName);
-    val categoriesAndCounts = categories.map(category => category -> categoryFreqs.getCount(category));
+    val categoriesAndCounts = categories.map(category => category -> getCategoryFrequency(category));
     categoriesAndCounts.sortBy(_._2).map(_._1).distinct;
   }
   
@@ -43,24 +61,27 @@ class WikipediaCategoryDB(val categoryMap: HashMap[String,ArrayBuffer[String]],
   }
   
   def getInfobox(pageName: String): String = {
-    if (infoboxMap.contains(pageName)) {
-      infoboxMap(pageName);
+    val infobox = lookupInfobox(pageName);
+    if (infobox != null) {
+      infobox;
     } else {
       ""
     }
   }
   
   def getInfoboxHead(pageName: String): String = {
-    if (infoboxMap.contains(pageName)) {
-      infoboxMap(pageName).split("\\s+").last;
+    val infobox = lookupInfobox(pageName);
+    if (infobox != null) {
+      infobox.split("\\s+").last;
     } else {
       ""
     }
   }
   
   def getAppositive(pageName: String): String = {
-    if (appositiveMap.contains(pageName)) {
-      appositiveMap(pageName);
+    val appositive = lookupAppositive(pageName);
+    if (appositive != null) {
+      appositive;
     } else {
       ""
     }
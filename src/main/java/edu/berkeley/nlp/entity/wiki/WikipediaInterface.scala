@@ -82,9 +82,8 @@ class WikipediaInterface(val titleGivenSurfaceDB: WikipediaTitleGivenSurfaceDB,
   
   def disambiguateBestNoDisambig(query: Query) = {
     val queryStr = query.getFinalQueryStr;
-    if (titleGivenSurfaceDB.surfaceToTitle.containsKey(queryStr )) {
-      val counter = titleGivenSurfaceDB.surfaceToTitle.getCounter(queryStr);
-      val redirectedCounts = redirectsDB.followRedirectsCounter(counter);
+    if (titleGivenSurfaceDB.containsSurface(queryStr)) {
+      val redirectedCounts = redirectsDB.followRedirects(titleGivenSurfaceDB.getTitleCandidates(queryStr));
       auxDB.purgeDisambiguationAll(redirectedCounts);
       if (!redirectedCounts.isEmpty) {
         redirectedCounts.argMax;
@@ -97,19 +96,19 @@ class WikipediaInterface(val titleGivenSurfaceDB: WikipediaTitleGivenSurfaceDB,
   }
   
   def disambiguateBestGetAllOptions(ment: Mention, specifiedHeadIdx: Int) = {
-    auxDB.purgeDisambiguationAll(redirectsDB.followRedirectsCounter(titleGivenSurfaceDB.disambiguateQueriesGetAllOptions(Query.extractQueriesBest(ment).map(_.getFinalQueryStr))));
+    auxDB.purgeDisambiguationAll(redirectsDB.followRedirects(titleGivenSurfaceDB.disambiguateQueriesGetAllOptions(Query.extractQueriesBest(ment).map(_.getFinalQueryStr))));
   }
   
   def disambiguateBestGetAllOptions(query: Query) = {
-    auxDB.purgeDisambiguationAll(redirectsDB.followRedirectsCounter(titleGivenSurfaceDB.disambiguateQueriesGetAllOptions(Seq(query.getFinalQueryStr))));
+    auxDB.purgeDisambiguationAll(redirectsDB.followRedirects(titleGivenSurfaceDB.disambiguateQueriesGetAllOptions(Seq(query.getFinalQueryStr))));
   }
   
   def disambiguateBestGetAllReasonableOptions(ment: Mention, specifiedHeadIdx: Int) = {
-    auxDB.purgeDisambiguationAll(redirectsDB.followRedirectsCounter(titleGivenSurfaceDB.disambiguateQueriesGetAllReasonableOptions(Query.extractQueriesBest(ment).map(_.getFinalQueryStr))));
+    auxDB.purgeDisambiguationAll(redirectsDB.followRedirects(titleGivenSurfaceDB.disambiguateQueriesGetAllReasonableOptions(Query.extractQueriesBest(ment).map(_.getFinalQueryStr))));
   }
   
   def disambiguateBestGetAllOneBestOptions(ment: Mention, specifiedHeadIdx: Int) = {
-    auxDB.purgeDisambiguationAll(redirectsDB.followRedirectsCounter(titleGivenSurfaceDB.disambiguateQueriesGetAllOneBestOptions(Query.extractQueriesBest(ment).map(_.getFinalQueryStr))));
+    auxDB.purgeDisambiguationAll(redirectsDB.followRedirects(titleGivenSurfaceDB.disambiguateQueriesGetAllOneBestOptions(Query.extractQueriesBest(ment).map(_.getFinalQueryStr))));
   }
   
   def getCategories(title: String) = categoryDB.getCategories(title);
@@ -120,11 +119,11 @@ class WikipediaInterface(val titleGivenSurfaceDB: WikipediaTitleGivenSurfaceDB,
   def getAppositive(title: String) = categoryDB.getAppositive(title);
   
   def printSome() {
-    Logger.logss("Title given surface: " + titleGivenSurfaceDB.surfaceToTitle.size() + " surfaces, " +
-                 titleGivenSurfaceDB.surfaceToTitle.keySet.asScala.flatMap(key => titleGivenSurfaceDB.surfaceToTitle.getCounter(key).keySet.asScala).size + " titles");
-    val surfaceKeys = titleGivenSurfaceDB.surfaceToTitle.keySet().asScala;
+    Logger.logss("Title given surface: " + titleGivenSurfaceDB.surfaces.size + " surfaces, " +
+                 titleGivenSurfaceDB.allPossibleTitles.size + " titles");
+    val surfaceKeys = titleGivenSurfaceDB.surfaces;
     for (key <- surfaceKeys.slice(0, Math.min(surfaceKeys.size, 10))) {
-      Logger.logss(key + " -> " + titleGivenSurfaceDB.surfaceToTitle.getCounter(key));
+      Logger.logss(key + " -> " + titleGivenSurfaceDB.getTitleCounter(key));
     }
     printSome(redirectsDB.redirects, "redirects");
     Logger.logss("Categories given titles: " + categoryDB.categoryMap.size + " titles, " + categoryDB.categoryMap.map(_._2.size).foldLeft(0)(_ + _) + " category entries");
@@ -223,6 +222,18 @@ object WikipediaInterface {
   
 //  def getWikipediaInterface
   
+  /**
+   * Loads either a serialized WikipediaInterface or one converted to the memory-mapped
+   * format by MappedWikipediaInterface.
+   */
+  def load(path: String): WikipediaInterface = {
+    if (MappedWikipediaFile.isMappedFile(path)) {
+      MappedWikipediaInterface.load(path);
+    } else {
+      GUtil.load(path).asInstanceOf[WikipediaInterface];
+    }
+  }
+  
   def main(args: Array[String]) {
     LightRunner.initializeOutput(WikipediaInterface.getClass);
     LightRunner.populateScala(WikipediaInterface.getClass, args);
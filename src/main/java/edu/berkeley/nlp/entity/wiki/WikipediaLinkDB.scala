@@ -1,5 +1,7 @@
 package edu.berkeley.nlp.entity.wiki
 
+import java.io.ObjectInputStream
+import java.util.Arrays
 import edu.berkeley.nlp.futile.fig.basic.Indexer
 import scala.collection.mutable.HashMap
 import scala.collection.mutable.ArrayBuffer
@@ -13,56 +15,136 @@ import edu.berkeley.nlp.entity.ConllDocReader
 import edu.berkeley.nlp.entity.lang.Language
 import edu.berkeley.nlp.entity.wiki._
 
+/**
+ * Out-link lists are kept sorted (and are duplicate-free), so the overlap queries that the
+ * joint featurizer makes for every pair of candidate titles are a merge over two arrays
+ * that allocates nothing and needs no cache or locking, however many documents are being
+ * decoded at once. Databases serialized before the lists were sorted get sorted on load.
+ */
 @SerialVersionUID(9084163557546777842L)
 class WikipediaLinkDB(val pageNameIndex: Indexer[String],
                       val inLinksMap: HashMap[String,Array[Int]],
                       val outLinksMap: HashMap[String,Array[Int]]) extends Serializable {
-  var outLinksSetCache: HashMap[String,Set[Int]] = null;
+  WikipediaLinkDB.sortLinks(outLinksMap);
   
-  def getOutLinks(title: String) = {
-    if (outLinksMap.contains(title)) {
-      outLinksMap(title);
-    } else {
-      Array[Int]();
-    }
+  private def readObject(in: ObjectInputStream) {
+    in.defaultReadObject();
+    WikipediaLinkDB.sortLinks(outLinksMap);
   }
   
-  def getOutLinksSetUseCache(title: String) = {
-    if (outLinksMap.contains(title)) {
-      if (outLinksSetCache == null) {
-        outLinksSetCache = new HashMap[String,Set[Int]];
-      }
-      if (!outLinksSetCache.contains(title)) {
-        if (outLinksSetCache.size > 1000) {
-          outLinksSetCache.dropRight(1);
-        }
-        outLinksSetCache.put(title, outLinksMap(title).toSet);
-      }
-      outLinksSetCache(title);
+  // Returns null if title has no out-links; otherwise sorted ascending
+  def lookupOutLinks(title: String): Array[Int] = outLinksMap.getOrElse(title, null);
+  
+  def pageIndexOf(title: String): Int = pageNameIndex.indexOf(title);
+  
+  def getOutLinks(title: String) = {
+    val outLinks = lookupOutLinks(title);
+    if (outLinks != null) {
+      outLinks;
     } else {
-      Set[Int]();
+      WikipediaLinkDB.NoLinks;
     }
   }
   
   def computeOutLinkSuffStats(title1: String, title2: String): (Int, Int, Int) = {
-    val outLinksTitle1 = getOutLinksSetUseCache(title1);
-    val outLinksTitle2 = getOutLinksSetUseCache(title2);
-    val intersection = (outLinksTitle1 & outLinksTitle2);
-    (intersection.size, outLinksTitle1.size, outLinksTitle2.size);
+    val outLinksTitle1 = getOutLinks(title1);
+    val outLinksTitle2 = getOutLinks(title2);
+    (WikipediaLinkDB.countShared(outLinksTitle1, outLinksTitle2), outLinksTitle1.size, outLinksTitle2.size);
   }
   
   def doPagesShareOutLink(title1: String, title2: String): Boolean = {
-    computeOutLinkSuffStats(title1, title2)._1 > 0;
+    WikipediaLinkDB.countShared(getOutLinks(title1), getOutLinks(title2)) > 0;
   }
   
   def doesOneLinkToOther(title1: String, title2: String): Boolean = {
     val outLinksTitle1 = getOutLinks(title1);
     val outLinksTitle2 = getOutLinks(title2);
-    outLinksTitle1.contains(pageNameIndex.indexOf(title2)) || outLinksTitle2.contains(pageNameIndex.indexOf(title1)) 
+    Arrays.binarySearch(outLinksTitle1, pageIndexOf(title2)) >= 0 || Arrays.binarySearch(outLinksTitle2, pageIndexOf(title1)) >= 0;
   }
 }
 
 object WikipediaLinkDB {
+  val NoLinks = new Array[Int](0);
+  // Past this size ratio, countShared gallops through the longer list instead of merging
+  val GallopRatio = 16;
+  
+  def sortLinks(linksMap: HashMap[String,Array[Int]]) {
+    for (links <- linksMap.values) {
+      if (!isSorted(links)) {
+        Arrays.sort(links);
+      }
+    }
+  }
+  
+  private def isSorted(arr: Array[Int]): Boolean = {
+    var i = 1;
+    while (i < arr.size) {
+      if (arr(i - 1) > arr(i)) {
+        return false;
+      }
+      i += 1;
+    }
+    true;
+  }
+  
+  /**
+   * Number of elements shared by two sorted, duplicate-free arrays.
+   */
+  def countShared(arr1: Array[Int], arr2: Array[Int]): Int = {
+    if (arr1.size > arr2.size) {
+      countShared(arr2, arr1);
+    } else if (arr1.size == 0 || arr1(arr1.size - 1) < arr2(0) || arr2(arr2.size - 1) < arr1(0)) {
+      0;
+    } else if (arr2.size / arr1.size >= GallopRatio) {
+      countSharedGalloping(arr1, arr2);
+    } else {
+      var count = 0;
+      var i = 0;
+      var j = 0;
+      while (i < arr1.size && j < arr2.size) {
+        if (arr1(i) < arr2(j)) {
+          i += 1;
+        } else if (arr1(i) > arr2(j)) {
+          j += 1;
+        } else {
+          count += 1;
+          i += 1;
+          j += 1;
+        }
+      }
+      count;
+    }
+  }
+  
+  /**
+   * countShared for when long is much longer than short: for each element of short, steps
+   * through long in doubling strides from where the last search ended and then binary
+   * searches the last stride.
+   */
+  private def countSharedGalloping(short: Array[Int], long: Array[Int]): Int = {
+    var count = 0;
+    var lo = 0;
+    var i = 0;
+    while (i < short.size && lo < long.size) {
+      val target = short(i);
+      var stride = 1;
+      var hi = lo;
+      while (hi < long.size && long(hi) < target) {
+        lo = hi + 1;
+        hi += stride;
+        stride *= 2;
+      }
+      val idx = Arrays.binarySearch(long, lo, Math.min(hi + 1, long.size), target);
+      if (idx >= 0) {
+        count += 1;
+        lo = idx + 1;
+      } else {
+        lo = -idx - 1;
+      }
+      i += 1;
+    }
+    count;
+  }
   
   def processWikipedia(wikipediaPath: String, pageTitleSetLc: Set[String]): WikipediaLinkDB = {
     val pageNamesIndex = new Indexer[String];
@@ -14,16 +14,24 @@ class WikipediaRedirectsDB(val redirects: HashMap[String,String]) extends Serial
   val possibleRedirectTargets = redirects.map(_._2).toSet;
   val possibleRedirectTargetsLc = redirects.map(_._2.toLowerCase).toSet;
   
+  // Returns null if title doesn't redirect
+  def lookupRedirect(title: String): String = redirects.getOrElse(title, null);
+  
+  // Same as lookupRedirect but keyed on wikiCase of the redirecting title
+  def lookupRedirectWikicase(wikicaseTitle: String): String = redirectsWikicase.getOrElse(wikicaseTitle, null);
+  
   def followRedirect(title: String) = {
 //    val print = title == "student_association";
     val print = false
     // Try to redirect
-    val result = if (redirects.contains(title)) {
-      if (print) Logger.logss("1 " + redirects(title));
-      redirects(title);
-    } else if (redirectsWikicase.contains(wikiCase(title))){
-      if (print) Logger.logss("3 " + redirectsWikicase(wikiCase(title)));
-      redirectsWikicase(wikiCase(title));
+    val redirect = lookupRedirect(title);
+    lazy val redirectWikicase = lookupRedirectWikicase(wikiCase(title));
+    val result = if (redirect != null) {
+      if (print) Logger.logss("1 " + redirect);
+      redirect;
+    } else if (redirectWikicase != null) {
+      if (print) Logger.logss("3 " + redirectWikicase);
+      redirectWikicase;
     } else if (WikipediaRedirectsDB.CapitalizeInitial) {
       if (print) Logger.logss("4 " + wikiCase(title));
       wikiCase(title)
@@ -34,6 +42,16 @@ class WikipediaRedirectsDB(val redirects: HashMap[String,String]) extends Serial
     WikipediaRedirectsDB.removeWeirdMarkup(result);
   }
   
+  def followRedirects(candidates: TitleCandidates) = {
+    val newTitleCounts = new Counter[String];
+    var i = 0;
+    while (i < candidates.size) {
+      newTitleCounts.incrementCount(followRedirect(candidates.titles(i)), candidates.counts(i));
+      i += 1;
+    }
+    newTitleCounts;
+  }
+  
   def followRedirectsCounter(titleCounts: Counter[String]) = {
     val newTitleCounts = new Counter[String];
     for (title <- titleCounts.keySet.asScala) {
@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.entity.wiki
 
+import java.io.ObjectOutputStream
 import scala.collection.mutable.HashSet
 import scala.collection.JavaConverters._
 import edu.berkeley.nlp.futile.util.CounterMap
@@ -8,71 +9,176 @@ import edu.berkeley.nlp.futile.fig.basic.IOUtils
 import edu.berkeley.nlp.futile.util.Logger
 import edu.berkeley.nlp.entity.coref.Mention
 import edu.berkeley.nlp.futile.util.Counter
+import edu.berkeley.nlp.futile.util.MapFactory
 import scala.collection.mutable.ArrayBuffer
 import scala.collection.mutable.HashMap
 
 // Need to know all titles (including redirects)
 @SerialVersionUID(1L)
-class WikipediaTitleGivenSurfaceDB(val surfaceToTitle: CounterMap[String,String]) extends Serializable {
-  val truecaseMap = new HashMap[String,ArrayBuffer[String]];
-  val allPossibleTitles = new HashSet[String];
-  val allPossibleTitlesWikicase = new HashSet[String];
-  val allPossibleTitlesLowercase = new HashSet[String];
-  for (surface <- surfaceToTitle.keySet().asScala) {
-    val surfaceLc = surface.toLowerCase 
-    if (surfaceLc != surface) {
-      if (!truecaseMap.contains(surfaceLc)) {
-        truecaseMap.put(surfaceLc, new ArrayBuffer[String]);
+class WikipediaTitleGivenSurfaceDB(initialSurfaceToTitle: CounterMap[String,String]) extends Serializable {
+  // Everything is answered from candidateIndex, so this is dropped once that's built; saved
+  // databases still hold it (see writeObject)
+  private var surfaceToTitle = initialSurfaceToTitle;
+  // Only needed while building a database, so built on demand and not serialized
+  @transient lazy val truecaseMap = {
+    val map = new HashMap[String,ArrayBuffer[String]];
+    for (surface <- surfaces) {
+      val surfaceLc = surface.toLowerCase 
+      if (surfaceLc != surface) {
+        if (!map.contains(surfaceLc)) {
+          map.put(surfaceLc, new ArrayBuffer[String]);
+        }
+        map(surfaceLc) += surface;
       }
-      truecaseMap(surfaceLc) += surface;
     }
-    allPossibleTitles ++= surfaceToTitle.getCounter(surface).keySet.asScala;
-    allPossibleTitlesWikicase ++= surfaceToTitle.getCounter(surface).keySet.asScala.filter(_.size > 0).map(title => Character.toUpperCase(title.charAt(0)) + title.substring(1));
-    allPossibleTitlesLowercase ++= surfaceToTitle.getCounter(surface).keySet.asScala.map(_.toLowerCase);
+    map;
+  }
+  @transient lazy val allPossibleTitles = new HashSet[String] ++ (0 until candidateIndex.numTitles).map(candidateIndex.title(_));
+  @transient lazy val allPossibleTitlesWikicase = new HashSet[String] ++ allPossibleTitles.filter(_.size > 0).map(title => Character.toUpperCase(title.charAt(0)) + title.substring(1));
+  @transient lazy val allPossibleTitlesLowercase = new HashSet[String] ++ allPossibleTitles.map(_.toLowerCase);
+  // What every lookup reads; rebuilt after deserialization
+  @transient private lazy val candidateIndex = {
+    val index = buildCandidateIndex();
+    surfaceToTitle = null;
+    index;
+  }
+  @transient private lazy val mergers = new ThreadLocal[CandidateMerger] {
+    override def initialValue() = new CandidateMerger;
+  }
+  
+  protected def buildCandidateIndex(): TitleCandidateIndex = new CounterMapTitleCandidateIndex(surfaceToTitle);
+  
+  def containsSurface(surface: String) = candidateIndex.surfaceIdx(surface) != -1;
+  
+  def surfaces: Seq[String] = (0 until candidateIndex.numSurfaces).view.map(candidateIndex.surface(_));
+  
+  /**
+   * Titles linked from surface with their counts, in a new Counter that iterates in the same
+   * order as the one in the saved database (see WikipediaTitleGivenSurfaceDB.sizedHashMapFactory);
+   * empty if the surface isn't known.
+   */
+  def getTitleCounter(surface: String): Counter[String] = {
+    val surfaceIdx = candidateIndex.surfaceIdx(surface);
+    if (surfaceIdx == -1) {
+      new Counter[String];
+    } else {
+      val start = candidateIndex.candidatesStart(surfaceIdx);
+      val end = candidateIndex.candidatesEnd(surfaceIdx);
+      val counter = new Counter[String](WikipediaTitleGivenSurfaceDB.sizedHashMapFactory(end - start));
+      var candidateIdx = start;
+      while (candidateIdx < end) {
+        counter.setCount(candidateIndex.title(candidateIndex.candidateTitleId(candidateIdx)), candidateIndex.candidateCount(candidateIdx));
+        candidateIdx += 1;
+      }
+      counter;
+    }
+  }
+  
+  /**
+   * The titles getTitleCounter would return, in the same order, without building a Counter.
+   */
+  def getTitleCandidates(surface: String): TitleCandidates = {
+    val surfaceIdx = candidateIndex.surfaceIdx(surface);
+    if (surfaceIdx == -1) {
+      TitleCandidates.Empty;
+    } else {
+      val start = candidateIndex.candidatesStart(surfaceIdx);
+      val end = candidateIndex.candidatesEnd(surfaceIdx);
+      new TitleCandidates(Array.tabulate(end - start)(i => candidateIndex.title(candidateIndex.candidateTitleId(start + i))),
+                          Array.tabulate(end - start)(i => candidateIndex.candidateCount(start + i)));
+    }
+  }
+  
+  /**
+   * What getTitleCounter(surface).argMax would be, or null if the surface isn't known.
+   */
+  def getBestTitle(surface: String): String = {
+    val surfaceIdx = candidateIndex.surfaceIdx(surface);
+    val bestCandidateIdx = if (surfaceIdx == -1) -1 else candidateIndex.bestCandidate(surfaceIdx);
+    if (bestCandidateIdx == -1) null else candidateIndex.title(candidateIndex.candidateTitleId(bestCandidateIdx));
   }
   
   def disambiguateQueries(queries: Seq[String]) = {
     var result = "";
     for (query <- queries) {
-      if (result == "" && surfaceToTitle.containsKey(query) && !surfaceToTitle.getCounter(query).isEmpty) {
-        result = surfaceToTitle.getCounter(query).argMax;
+      if (result == "") {
+        val surfaceIdx = candidateIndex.surfaceIdx(query);
+        if (surfaceIdx != -1) {
+          val bestCandidateIdx = candidateIndex.bestCandidate(surfaceIdx);
+          if (bestCandidateIdx != -1) {
+            result = candidateIndex.title(candidateIndex.candidateTitleId(bestCandidateIdx));
+          }
+        }
       }
     }
     result;
   }
   
-  def disambiguateQueriesGetAllReasonableOptions(queries: Seq[String]) = {
-    val counter = new Counter[String];
+  /**
+   * Adds the candidates for a surface to merger and prunes, as incrementAll with the
+   * surface's Counter followed by pruneKeysBelowThreshold would. Counts only grow, so if
+   * no candidate anywhere is below the threshold the pruning can't remove anything and is
+   * skipped.
+   */
+  private def addCandidates(merger: CandidateMerger, surfaceIdx: Int) {
+    var candidateIdx = candidateIndex.candidatesStart(surfaceIdx);
+    val end = candidateIndex.candidatesEnd(surfaceIdx);
+    while (candidateIdx < end) {
+      merger.add(candidateIndex.candidateTitleId(candidateIdx), candidateIndex.candidateCount(candidateIdx));
+      candidateIdx += 1;
+    }
+    if (candidateIndex.minCount < WikipediaTitleGivenSurfaceDB.PruningThreshold) {
+      merger.prune(WikipediaTitleGivenSurfaceDB.PruningThreshold);
+    }
+  }
+  
+  /**
+   * The disambiguateQueries*Options methods return what used to be a Counter built up query
+   * by query (adding candidates, then pruning ones below PruningThreshold) as TitleCandidates
+   * in that Counter's iteration order.
+   */
+  def disambiguateQueriesGetAllReasonableOptions(queries: Seq[String]): TitleCandidates = {
+    val merger = mergers.get;
+    merger.clear();
     for (query <- queries) {
-      if (counter.isEmpty && surfaceToTitle.containsKey(query)) {
-        counter.incrementAll(surfaceToTitle.getCounter(query));
-        counter.pruneKeysBelowThreshold(WikipediaTitleGivenSurfaceDB.PruningThreshold);
+      if (merger.isEmpty) {
+        val surfaceIdx = candidateIndex.surfaceIdx(query);
+        if (surfaceIdx != -1) {
+          addCandidates(merger, surfaceIdx);
+        }
       }
     }
-    counter;
+    merger.result(candidateIndex);
   }
   
-  def disambiguateQueriesGetAllOptions(queries: Seq[String]): Counter[String] = {
-    val counter = new Counter[String];
+  def disambiguateQueriesGetAllOptions(queries: Seq[String]): TitleCandidates = {
+    val merger = mergers.get;
+    merger.clear();
     for (query <- queries) {
-      if (surfaceToTitle.containsKey(query)) {
-        counter.incrementAll(surfaceToTitle.getCounter(query));
-        counter.pruneKeysBelowThreshold(WikipediaTitleGivenSurfaceDB.PruningThreshold);
+      val surfaceIdx = candidateIndex.surfaceIdx(query);
+      if (surfaceIdx != -1) {
+        addCandidates(merger, surfaceIdx);
       }
     }
-    counter;
+    merger.result(candidateIndex);
   }
   
-  def disambiguateQueriesGetAllOneBestOptions(queries: Seq[String]) = {
-    val counter = new Counter[String];
+  def disambiguateQueriesGetAllOneBestOptions(queries: Seq[String]): TitleCandidates = {
+    val merger = mergers.get;
+    merger.clear();
     for (query <- queries) {
-      if (surfaceToTitle.containsKey(query)) {
-        val resultsThisQuery = surfaceToTitle.getCounter(query);
-        counter.incrementCount(resultsThisQuery.argMax(), resultsThisQuery.max);
-        counter.pruneKeysBelowThreshold(WikipediaTitleGivenSurfaceDB.PruningThreshold);
+      val surfaceIdx = candidateIndex.surfaceIdx(query);
+      if (surfaceIdx != -1) {
+        // Surfaces always have candidates; a known surface with none would add nothing here
+        // since its best count would be pruned
+        val bestCandidateIdx = candidateIndex.bestCandidate(surfaceIdx);
+        if (bestCandidateIdx != -1) {
+          merger.add(candidateIndex.candidateTitleId(bestCandidateIdx), candidateIndex.candidateCount(bestCandidateIdx));
+        }
+        merger.prune(WikipediaTitleGivenSurfaceDB.PruningThreshold);
       }
     }
-    counter;
+    merger.result(candidateIndex);
   }
   
   // Horrifyingly hard-coded but I didn't want to introduce a new dependency....
@@ -81,26 +187,249 @@ class WikipediaTitleGivenSurfaceDB(val surfaceToTitle: CounterMap[String,String]
     writer.println("{")
     writer.println("  \"surfaceToTitle\": [")
     var first = true
-    for (key <- surfaceToTitle.keySet().asScala) {
-      for (value <- surfaceToTitle.getCounter(key).keySet().asScala) {
+    for (surfaceIdx <- 0 until candidateIndex.numSurfaces) {
+      val key = candidateIndex.surface(surfaceIdx)
+      for (candidateIdx <- candidateIndex.candidatesStart(surfaceIdx) until candidateIndex.candidatesEnd(surfaceIdx)) {
         if (!first) {
           writer.println(",")
         }
         first = false
         // N.B. print so we can leave room for the comma
-        writer.print("    { \"surface\": \"" + key + "\", \"title\": \"" + value + "\", \"weight\": " + surfaceToTitle.getCount(key, value) + " }")
+        writer.print("    { \"surface\": \"" + key + "\", \"title\": \"" + candidateIndex.title(candidateIndex.candidateTitleId(candidateIdx)) + "\", \"weight\": " + candidateIndex.candidateCount(candidateIdx) + " }")
       }
     }
     writer.println("\n  ]\n}")
     writer.close()
   }
+  
+  /**
+   * Saved databases hold the CounterMap, so once it's been dropped this puts it back
+   * together from the index. Each surface's titles go in in the order the index has them,
+   * which is the order the loaded Counter iterated in; HashMap.readObject gives the Counter
+   * the same capacity as when it was loaded, so it iterates in that order again.
+   */
+  private def writeObject(out: ObjectOutputStream) {
+    val fields = out.putFields();
+    fields.put("surfaceToTitle", if (surfaceToTitle != null) surfaceToTitle else buildCounterMap());
+    out.writeFields();
+  }
+  
+  private def buildCounterMap() = {
+    val counterMap = new CounterMap[String,String];
+    for (surfaceIdx <- 0 until candidateIndex.numSurfaces; candidateIdx <- candidateIndex.candidatesStart(surfaceIdx) until candidateIndex.candidatesEnd(surfaceIdx)) {
+      counterMap.setCount(candidateIndex.surface(surfaceIdx), candidateIndex.title(candidateIndex.candidateTitleId(candidateIdx)), candidateIndex.candidateCount(candidateIdx));
+    }
+    counterMap;
+  }
+}
+
+/**
+ * Titles with counts, as parallel arrays. Callers mustn't modify them.
+ */
+class TitleCandidates(val titles: Array[String], val counts: Array[Double]) {
+  def size = titles.size;
+  def isEmpty = titles.isEmpty;
 }
 
+object TitleCandidates {
+  val Empty = new TitleCandidates(new Array[String](0), new Array[Double](0));
+}
+
+/**
+ * Builds up titles with counts the way incrementCount and pruneKeysBelowThreshold build up
+ * a Counter, over title ids. Titles are kept in the order they were (last) added, so that
+ * result can put them in the order that Counter's HashMap would iterate over them. One
+ * per thread, reused across queries; a title id's position is only valid if its mark
+ * matches the current stamp, so nothing needs clearing between uses.
+ */
+private class CandidateMerger {
+  private var stamp = 0;
+  private var marks = new Array[Int](0);
+  private var positions = new Array[Int](0);
+  private var titleIds = new Array[Int](16);
+  private var counts = new Array[Double](16);
+  private var size = 0;
+  // Largest size so far, which decides the HashMap's capacity
+  private var maxSize = 0;
+
+  def isEmpty = size == 0;
+
+  def clear() {
+    stamp += 1;
+    size = 0;
+    maxSize = 0;
+  }
+
+  def add(titleId: Int, count: Double) {
+    if (titleId >= marks.size) {
+      val newSize = Math.max(titleId + 1, marks.size * 2);
+      marks = java.util.Arrays.copyOf(marks, newSize);
+      positions = java.util.Arrays.copyOf(positions, newSize);
+    }
+    if (marks(titleId) == stamp) {
+      counts(positions(titleId)) += count;
+    } else {
+      if (size == titleIds.size) {
+        titleIds = java.util.Arrays.copyOf(titleIds, size * 2);
+        counts = java.util.Arrays.copyOf(counts, size * 2);
+      }
+      marks(titleId) = stamp;
+      positions(titleId) = size;
+      titleIds(size) = titleId;
+      counts(size) = count;
+      size += 1;
+      maxSize = Math.max(maxSize, size);
+    }
+  }
+
+  // Removes titles whose counts are below threshold, like Counter.pruneKeysBelowThreshold
+  def prune(threshold: Double) {
+    var newSize = 0;
+    var i = 0;
+    while (i < size) {
+      val titleId = titleIds(i);
+      if (counts(i) < threshold) {
+        marks(titleId) = stamp - 1;
+      } else {
+        titleIds(newSize) = titleId;
+        counts(newSize) = counts(i);
+        positions(titleId) = newSize;
+        newSize += 1;
+      }
+      i += 1;
+    }
+    size = newSize;
+  }
+
+  /**
+   * The titles in the order a java.util.HashMap that had them inserted in this order (and
+   * grew to hold maxSize entries) iterates over them: by bucket, and by insertion order
+   * within a bucket.
+   */
+  def result(candidateIndex: TitleCandidateIndex): TitleCandidates = {
+    if (size == 0) {
+      TitleCandidates.Empty;
+    } else {
+      val titles = Array.tabulate(size)(i => candidateIndex.title(titleIds(i)));
+      var capacity = 16;
+      while (maxSize > (capacity * 0.75F).toInt) {
+        capacity *= 2;
+      }
+      val order = (0 until size).sortBy(i => {
+        val hash = titles(i).hashCode;
+        (hash ^ (hash >>> 16)) & (capacity - 1);
+      });
+      new TitleCandidates(order.map(titles(_)).toArray, order.map(counts(_)).toArray);
+    }
+  }
+}
+
+/**
+ * The title counts of every surface as flat arrays: surface i's candidates are
+ * candidatesStart(i) until candidatesEnd(i), each an interned title id with its count,
+ * in the iteration order of the surface's Counter (so that ties between equal counts go
+ * the same way as Counter.argMax). Title strings are only looked up for the candidates
+ * that end up in a result.
+ */
+abstract class TitleCandidateIndex {
+  // -1 if the surface isn't known
+  def surfaceIdx(surface: String): Int;
+  def numSurfaces: Int;
+  def surface(surfaceIdx: Int): String;
+  def candidatesStart(surfaceIdx: Int): Int;
+  def candidatesEnd(surfaceIdx: Int): Int;
+  def numCandidates: Int;
+  def candidateTitleId(candidateIdx: Int): Int;
+  def candidateCount(candidateIdx: Int): Double;
+  def numTitles: Int;
+  def title(titleId: Int): String;
+  
+  lazy val minCount = {
+    var min = Double.PositiveInfinity;
+    for (candidateIdx <- 0 until numCandidates) {
+      min = Math.min(min, candidateCount(candidateIdx));
+    }
+    min;
+  }
+  
+  /**
+   * The candidate Counter.argMax would pick (the first one with the highest count), or -1
+   * if the surface has none.
+   */
+  def bestCandidate(surfaceIdx: Int): Int = {
+    var bestCandidateIdx = -1;
+    var candidateIdx = candidatesStart(surfaceIdx);
+    val end = candidatesEnd(surfaceIdx);
+    while (candidateIdx < end) {
+      if (bestCandidateIdx == -1 || candidateCount(candidateIdx) > candidateCount(bestCandidateIdx)) {
+        bestCandidateIdx = candidateIdx;
+      }
+      candidateIdx += 1;
+    }
+    bestCandidateIdx;
+  }
+}
+
+/**
+ * TitleCandidateIndex built from a deserialized CounterMap, which it doesn't hold onto.
+ * Titles are interned once across surfaces, reusing the counters' own strings.
+ */
+class CounterMapTitleCandidateIndex(surfaceToTitle: CounterMap[String,String]) extends TitleCandidateIndex {
+  private val surfaces = surfaceToTitle.keySet.asScala.toArray;
+  private val surfaceIdxs = new java.util.HashMap[String,Integer];
+  private val offsets = new Array[Int](surfaces.size + 1);
+  private val titleIds = new Array[Int](surfaces.foldLeft(0)((total, surface) => total + surfaceToTitle.getCounter(surface).size));
+  private val counts = new Array[Double](titleIds.size);
+  private val titles = {
+    val titleIdxs = new HashMap[String,Int];
+    val titlesBuf = new ArrayBuffer[String];
+    var candidateIdx = 0;
+    for (surfaceIdx <- 0 until surfaces.size) {
+      surfaceIdxs.put(surfaces(surfaceIdx), surfaceIdx);
+      offsets(surfaceIdx) = candidateIdx;
+      for (entry <- surfaceToTitle.getCounter(surfaces(surfaceIdx)).getEntrySet.asScala) {
+        titleIds(candidateIdx) = titleIdxs.getOrElseUpdate(entry.getKey, {
+          titlesBuf += entry.getKey;
+          titlesBuf.size - 1;
+        });
+        counts(candidateIdx) = entry.getValue;
+        candidateIdx += 1;
+      }
+    }
+    offsets(offsets.size - 1) = candidateIdx;
+    titlesBuf.toArray;
+  }
+  private val bestCandidates = Array.tabulate(surfaces.size)(surfaceIdx => super.bestCandidate(surfaceIdx));
+  
+  def surfaceIdx(surface: String) = {
+    val idx = surfaceIdxs.get(surface);
+    if (idx == null) -1 else idx.intValue;
+  }
+  def numSurfaces = surfaces.size;
+  def surface(surfaceIdx: Int) = surfaces(surfaceIdx);
+  def candidatesStart(surfaceIdx: Int) = offsets(surfaceIdx);
+  def candidatesEnd(surfaceIdx: Int) = offsets(surfaceIdx + 1);
+  def numCandidates = titleIds.size;
+  def candidateTitleId(candidateIdx: Int) = titleIds(candidateIdx);
+  def candidateCount(candidateIdx: Int) = counts(candidateIdx);
+  def numTitles = titles.size;
+  def title(titleId: Int) = titles(titleId);
+  override def bestCandidate(surfaceIdx: Int) = bestCandidates(surfaceIdx);
+}
 
 object WikipediaTitleGivenSurfaceDB {
   
   val PruningThreshold = 1;
   
+  /**
+   * Maps with the capacity java.util.HashMap.readObject picks for this many entries, so a
+   * Counter that has a deserialized one's entries inserted in its iteration order iterates
+   * in that same order.
+   */
+  def sizedHashMapFactory(size: Int) = new MapFactory[String,java.lang.Double] {
+    def buildMap() = new java.util.HashMap[String,java.lang.Double](Math.max(16, (size / 0.75F + 1.0F).toInt));
+  }
+  
   val CapitalizationQueryExpand = false;
   val PluralQueryExpand = true;
   val RemovePuncFromQuery = true;
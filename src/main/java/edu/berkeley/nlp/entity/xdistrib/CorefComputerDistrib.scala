@@ -110,7 +110,7 @@ class CorefComputerDistrib(val lossFcn: (CorefDoc, Int, Int) => Float,
     val featsByTemplate = new HashMap[String,(String,Int)];
     for (i <- 0 until ex.docGraph.size) {
       for (j <- 0 to i) {
-        for (feat <- ex.docGraph.cachedFeats(i)(j)) {
+        for (feat <- ex.docGraph.cachedFeats(i, j)) {
           val featStr = sparseFeatureIndexer.getObject(feat);
           featsByTemplate.put(PairwiseIndexingFeaturizer.getTemplate(featStr), featStr -> feat);
         }
@@ -132,7 +132,7 @@ class CorefComputerDistrib(val lossFcn: (CorefDoc, Int, Int) => Float,
     for (i <- 0 until ex.docGraph.size) {
       for (j <- 0 to i) {
         if (predMarginals(i)(j) > 1e-20) { 
-          GUtil.addToGradient(featsChart(i)(j), -predMarginals(i)(j), gradient);
+          featsChart.addToGradient(i, j, -predMarginals(i)(j), gradient);
           if (i != j) {
             addComponentsToGradient(ex, i, j, -predMarginals(i)(j), weights, gradient);
           }
@@ -143,7 +143,7 @@ class CorefComputerDistrib(val lossFcn: (CorefDoc, Int, Int) => Float,
     for (i <- 0 until ex.docGraph.size) {
       for (j <- 0 to i) {
         if (goldMarginals(i)(j) > 1e-20) {
-          GUtil.addToGradient(featsChart(i)(j), goldMarginals(i)(j), gradient);
+          featsChart.addToGradient(i, j, goldMarginals(i)(j), gradient);
           if (i != j) {
             addComponentsToGradient(ex, i, j, goldMarginals(i)(j), weights, gradient);
           }
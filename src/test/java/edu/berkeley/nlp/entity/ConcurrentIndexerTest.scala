@@ -0,0 +1,53 @@
+package edu.berkeley.nlp.entity
+
+import org.junit.After
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.coref.CorefFeaturizerTrainer
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+class ConcurrentIndexerTest {
+  private val oldNumFeaturizationThreads = Driver.numFeaturizationThreads;
+
+  @After
+  def restoreDriver() {
+    Driver.numFeaturizationThreads = oldNumFeaturizationThreads;
+  }
+
+  @Test
+  def testGetObjectsByIndexMatchesIndexer() {
+    val plain = new Indexer[String];
+    val concurrent = new ConcurrentIndexer[String];
+    for (obj <- Seq("a", "b", "c", "d")) {
+      plain.getIndex(obj);
+      concurrent.getIndex(obj);
+    }
+    val idxs = Array(3, -1, 0, 2, 2);
+    assertArrayEquals(plain.getObjects(idxs).asInstanceOf[Array[AnyRef]], concurrent.getObjects(idxs).asInstanceOf[Array[AnyRef]]);
+  }
+
+  @Test
+  def testParallelFeaturizationMatchesSerial() {
+    val corefDocs = TestDocs.corefDocs(12, 3);
+
+    Driver.numFeaturizationThreads = 1;
+    val serialGraphs = TestDocs.docGraphs(corefDocs);
+    val serialIndexer = new Indexer[String];
+    new CorefFeaturizerTrainer().featurizeBasic(serialGraphs, TestDocs.featurizer(corefDocs, serialIndexer));
+
+    Driver.numFeaturizationThreads = 4;
+    val parallelGraphs = TestDocs.docGraphs(corefDocs);
+    val parallelIndexer = new ConcurrentIndexer[String];
+    new CorefFeaturizerTrainer().featurizeBasic(parallelGraphs, TestDocs.featurizer(corefDocs, parallelIndexer));
+
+    assertTrue(serialIndexer.size > 100);
+    assertEquals(serialIndexer.getObjects, parallelIndexer.getObjects);
+    for (i <- 0 until serialGraphs.size) {
+      val serialChart = serialGraphs(i).cachedFeats;
+      val parallelChart = parallelGraphs(i).cachedFeats;
+      assertEquals(serialChart.numMents, parallelChart.numMents);
+      assertArrayEquals(serialChart.edgeStarts, parallelChart.edgeStarts);
+      assertArrayEquals(serialChart.feats, parallelChart.feats);
+    }
+  }
+}
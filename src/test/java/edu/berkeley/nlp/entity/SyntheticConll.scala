@@ -0,0 +1,131 @@
+package edu.berkeley.nlp.entity
+
+import java.io.File
+import java.io.PrintWriter
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+/**
+ * Generates CoNLL 2012 documents for tests and for benchmarks that don't have a real
+ * fixture to read.
+ * Every sentence is "NP VBD NP IN NP ." with gold parses, NER chunks for the names, and
+ * coreference chains built from a small pool of entities per document, each of which is
+ * named first and then referred to by name, pronoun, or nominal. The text is nonsense
+ * but it exercises the same mention detection, featurization, and reading code as the
+ * real data. Output is a deterministic function of the arguments.
+ */
+object SyntheticConll {
+  val FirstNames = Array("John", "Mary", "Ahmed", "Wei", "Maria", "Peter", "Olga", "Kenji", "Laura", "David");
+  val LastNames = Array("Smith", "Chen", "Garcia", "Novak", "Haddad", "Tanaka", "Brown", "Ivanova", "Okafor", "Meyer");
+  val OrgNames = Array("Acme", "Globex", "Initech", "Umbrella", "Hooli", "Vandelay", "Soylent", "Tyrell");
+  val OrgSuffixes = Array("Corporation", "Industries", "Bank", "Group", "Ministry");
+  val PersonNominals = Array("official", "spokesman", "president", "lawyer", "reporter", "minister");
+  val OrgNominals = Array("company", "bank", "agency", "firm", "government");
+  val Verbs = Array("said", "met", "told", "visited", "called", "criticized", "praised", "sued", "hired", "thanked");
+  val Preps = Array("in", "at", "after", "during", "near");
+  val Fillers = Array("meeting", "city", "weekend", "hearing", "conference", "crisis", "office", "deal");
+
+  private class Tok(val word: String, val pos: String, var open: String = "", var close: String = "", var ner: String = "*", var coref: String = "-");
+
+  private case class Entity(val isPerson: Boolean, val name: Seq[String], val nominal: String, val clusterId: Int);
+
+  def generate(numDocs: Int, sentsPerDoc: Int, seed: Int): String = {
+    val rng = new Random(seed);
+    val sb = new StringBuilder;
+    for (docIdx <- 0 until numDocs) {
+      val docID = "synthetic/" + docIdx;
+      sb.append("#begin document (" + docID + "); part 000\n");
+      val entities = Array.tabulate(4 + rng.nextInt(5))(i => newEntity(rng, i));
+      val mentioned = new Array[Boolean](entities.size);
+      for (sentIdx <- 0 until sentsPerDoc) {
+        val toks = generateSentence(rng, entities, mentioned);
+        for (i <- 0 until toks.size) {
+          val tok = toks(i);
+          sb.append(docID + "\t0\t" + i + "\t" + tok.word + "\t" + tok.pos + "\t" + tok.open + "*" + tok.close + "\t-\t-\t-\tSpeaker#1\t" + tok.ner + "\t" + tok.coref + "\n");
+        }
+        sb.append("\n");
+      }
+      sb.append("#end document\n");
+    }
+    sb.toString;
+  }
+
+  /**
+   * Writes generated documents to a temporary file (deleted on exit) and returns its path.
+   */
+  def writeTempFile(numDocs: Int, sentsPerDoc: Int, seed: Int): String = {
+    val file = File.createTempFile("synthetic", ".conll");
+    file.deleteOnExit();
+    val writer = new PrintWriter(file, "UTF-8");
+    try {
+      writer.print(generate(numDocs, sentsPerDoc, seed));
+    } finally {
+      writer.close();
+    }
+    file.getAbsolutePath;
+  }
+
+  private def newEntity(rng: Random, clusterId: Int) = {
+    if (rng.nextBoolean) {
+      Entity(true, Seq(pick(rng, FirstNames), pick(rng, LastNames)), pick(rng, PersonNominals), clusterId);
+    } else {
+      Entity(false, Seq(pick(rng, OrgNames), pick(rng, OrgSuffixes)), pick(rng, OrgNominals), clusterId);
+    }
+  }
+
+  private def pick(rng: Random, arr: Array[String]) = arr(rng.nextInt(arr.size));
+
+  private def generateSentence(rng: Random, entities: Array[Entity], mentioned: Array[Boolean]): Seq[Tok] = {
+    val subj = entityMention(rng, entities, mentioned, true);
+    val verb = new Tok(pick(rng, Verbs), "VBD", open = "(VP");
+    val obj = entityMention(rng, entities, mentioned, false);
+    val prep = new Tok(pick(rng, Preps), "IN", open = "(PP");
+    val pobj = Seq(new Tok("the", "DT"), new Tok(pick(rng, Fillers), "NN"));
+    bracket(pobj, "NP");
+    val period = new Tok(".", ".");
+    val toks = subj ++ Seq(verb) ++ obj ++ Seq(prep) ++ pobj ++ Seq(period);
+    // Close PP and VP after the object of the preposition, S and TOP after the period
+    pobj.last.close += "))";
+    period.close += "))";
+    toks.head.open = "(TOP(S" + toks.head.open;
+    toks;
+  }
+
+  private def entityMention(rng: Random, entities: Array[Entity], mentioned: Array[Boolean], isSubject: Boolean): Seq[Tok] = {
+    val entityIdx = rng.nextInt(entities.size);
+    val entity = entities(entityIdx);
+    val form = if (!mentioned(entityIdx)) 0 else rng.nextInt(3);
+    mentioned(entityIdx) = true;
+    val toks = form match {
+      case 0 => {
+        val nameToks = entity.name.map(new Tok(_, "NNP"));
+        label(nameToks, if (entity.isPerson) "PERSON" else "ORG", (tok, bit) => tok.ner = bit, "*");
+        nameToks;
+      }
+      case 1 => {
+        val pronoun = if (!entity.isPerson) "it" else if (isSubject) "he" else "him";
+        Seq(new Tok(pronoun, "PRP"));
+      }
+      case _ => Seq(new Tok("the", "DT"), new Tok(entity.nominal, "NN"));
+    }
+    bracket(toks, "NP");
+    label(toks, entity.clusterId.toString, (tok, bit) => tok.coref = bit, "");
+    toks;
+  }
+
+  private def bracket(toks: Seq[Tok], label: String) {
+    toks.head.open = toks.head.open + "(" + label;
+    toks.last.close = toks.last.close + ")";
+  }
+
+  // CoNLL span bits: "(L" + inner + ")" on a single token, otherwise "(L" + inner on the
+  // first and inner + "L)" (coref) or "*)" (NER) on the last
+  private def label(toks: Seq[Tok], label: String, set: (Tok, String) => Unit, inner: String) {
+    if (toks.size == 1) {
+      set(toks.head, "(" + label + inner + ")");
+    } else {
+      set(toks.head, "(" + label + inner);
+      set(toks.last, if (inner == "*") "*)" else label + ")");
+    }
+  }
+}
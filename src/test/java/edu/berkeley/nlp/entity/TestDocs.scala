@@ -0,0 +1,76 @@
+package edu.berkeley.nlp.entity
+
+import scala.collection.mutable.ArrayBuffer
+import edu.berkeley.nlp.entity.coref.AuxiliaryFeaturizer
+import edu.berkeley.nlp.entity.coref.CorefDoc
+import edu.berkeley.nlp.entity.coref.CorefDocAssembler
+import edu.berkeley.nlp.entity.coref.CorefPruner
+import edu.berkeley.nlp.entity.coref.DocumentGraph
+import edu.berkeley.nlp.entity.coref.FeatureSetSpecification
+import edu.berkeley.nlp.entity.coref.LexicalCountsBundle
+import edu.berkeley.nlp.entity.coref.MentionPropertyComputer
+import edu.berkeley.nlp.entity.coref.PairwiseIndexingFeaturizerJoint
+import edu.berkeley.nlp.entity.joint.JointDoc
+import edu.berkeley.nlp.entity.joint.JointFeaturizerShared
+import edu.berkeley.nlp.entity.lang.Language
+import edu.berkeley.nlp.entity.ner.NerFeaturizer
+import edu.berkeley.nlp.entity.ner.NerSystemLabeled
+import edu.berkeley.nlp.entity.sem.BasicWordNetSemClasser
+import edu.berkeley.nlp.entity.sem.QueryCountsBundle
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+/**
+ * Small documents for tests, generated by SyntheticConll and assembled the way
+ * CorefSystem.runTrain assembles training documents (Driver's default features and
+ * pruning, no number/gender data or WordNet).
+ */
+object TestDocs {
+  val SentsPerDoc = 8;
+
+  def conllDocs(numDocs: Int, seed: Int, sentsPerDoc: Int = SentsPerDoc): Seq[ConllDoc] = {
+    new ConllDocReader(Language.ENGLISH).readConllDocsFromString(SyntheticConll.generate(numDocs, sentsPerDoc, seed), "synthetic");
+  }
+
+  def corefDocs(numDocs: Int, seed: Int, sentsPerDoc: Int = SentsPerDoc): Seq[CorefDoc] = {
+    val assembler = CorefDocAssembler(Language.ENGLISH, false);
+    val mentionPropertyComputer = new MentionPropertyComputer(None);
+    conllDocs(numDocs, seed, sentsPerDoc).map(assembler.createCorefDoc(_, mentionPropertyComputer));
+  }
+
+  def docGraphs(corefDocs: Seq[CorefDoc]): Seq[DocumentGraph] = {
+    val docGraphs = corefDocs.map(new DocumentGraph(_, true));
+    CorefPruner.buildPruner(Driver.pruningStrategy).pruneAll(docGraphs);
+    docGraphs;
+  }
+
+  def docGraphs(numDocs: Int, seed: Int): Seq[DocumentGraph] = docGraphs(corefDocs(numDocs, seed));
+
+  /**
+   * A featurizer over featureIndexer (which gets the unknown feature if it's empty) with
+   * lexical counts from corefDocs.
+   */
+  def featurizer(corefDocs: Seq[CorefDoc], featureIndexer: Indexer[String]): PairwiseIndexingFeaturizerJoint = {
+    if (featureIndexer.size == 0) {
+      featureIndexer.getIndex(PairwiseIndexingFeaturizerJoint.UnkFeatName);
+    }
+    val lexicalCounts = LexicalCountsBundle.countLexicalItems(corefDocs, Driver.lexicalFeatCutoff);
+    val featureSetSpec = FeatureSetSpecification(Driver.pairwiseFeats, Driver.conjScheme, Driver.conjFeats, Driver.conjMentionTypes, Driver.conjTemplates);
+    val queryCounts: Option[QueryCountsBundle] = None;
+    new PairwiseIndexingFeaturizerJoint(featureIndexer, featureSetSpec, lexicalCounts, queryCounts, Some(new BasicWordNetSemClasser), new ArrayBuffer[AuxiliaryFeaturizer]);
+  }
+
+  // Gold NER comes from the documents themselves
+  def jointDocs(docGraphs: Seq[DocumentGraph]): Seq[JointDoc] = {
+    docGraphs.map(docGraph => JointDoc.assembleJointDoc(docGraph, Some(docGraph.corefDoc.rawDoc)));
+  }
+
+  /**
+   * A joint featurizer over featureIndexer built the way EntitySystem.runTrainEvaluate
+   * builds it, but with bigram NER features only and without Wikipedia features, since
+   * there are no Brown clusters or Wikipedia database to draw on.
+   */
+  def jointFeaturizer(jointDocs: Seq[JointDoc], featureIndexer: Indexer[String], corefNerFeatures: String = Driver.corefNerFeatures): JointFeaturizerShared[NerFeaturizer] = {
+    val nerFeaturizer = NerFeaturizer(Set("bigrams"), featureIndexer, NerSystemLabeled.StdLabelIndexer, jointDocs.flatMap(_.rawDoc.words), None, None);
+    EntitySystem.buildFeaturizerShared(jointDocs.map(_.docGraph.corefDoc), featureIndexer, Driver.pairwiseFeats, nerFeaturizer, None, corefNerFeatures, "", "");
+  }
+}
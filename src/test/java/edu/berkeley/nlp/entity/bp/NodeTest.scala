@@ -0,0 +1,85 @@
+package edu.berkeley.nlp.entity.bp
+
+import scala.util.Random
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.GUtil
+
+class NodeTest {
+  import NodeTest._
+
+  @Test
+  def testMarginalsMatchLogSpace() {
+    val rng = new Random(0);
+    val node = buildNode(5, 6, rng);
+    assertMatchesLogSpace(node);
+  }
+
+  @Test
+  def testMarginalsMatchLogSpaceWithZeroes() {
+    val rng = new Random(1);
+    val node = buildNode(8, 5, rng);
+    // Rule out a different value in each of two messages; the rest stay possible
+    node.messages(node.receivedMessageOffset(2) + 1) = 0;
+    node.messages(node.receivedMessageOffset(6) + 3) = 0;
+    val marginals = assertMatchesLogSpace(node);
+    assertEquals(0.0, marginals(1), 0.0);
+    assertEquals(0.0, marginals(3), 0.0);
+  }
+
+  @Test
+  def testMarginalsMatchLogSpaceWhenProductUnderflows() {
+    // The product of 600 normalized messages over four values is well below the smallest
+    // double, so this only works if the product gets rescaled along the way
+    val rng = new Random(2);
+    val node = buildNode(600, 4, rng);
+    var product = 1.0;
+    for (i <- 0 until 600) {
+      product *= node.receivedMessageValue(i, 0);
+    }
+    assertEquals(0.0, product, 0.0);
+    assertMatchesLogSpace(node);
+  }
+}
+
+object NodeTest {
+  /**
+   * A node over domainSize values with numFactors neighbors, each of which has sent it a
+   * random normalized message.
+   */
+  def buildNode(numFactors: Int, domainSize: Int, rng: Random): Node[Int] = {
+    val node = new Node[Int](new Domain((0 until domainSize).toArray));
+    for (i <- 0 until numFactors) {
+      node.registerFactor(null);
+    }
+    node.attachMessages(new Array[Double](2 * numFactors * domainSize), 0);
+    for (i <- 0 until numFactors) {
+      val message = Array.fill(domainSize)(0.05 + rng.nextDouble);
+      val total = message.sum;
+      for (j <- 0 until domainSize) {
+        node.messages(node.receivedMessageOffset(i) + j) = message(j) / total;
+      }
+    }
+    node;
+  }
+
+  // How beliefs used to be computed: sum the logs of the messages and normalize
+  def logSpaceMarginals(node: Node[_]): Array[Double] = {
+    val logBeliefs = new Array[Double](node.domain.size);
+    for (i <- 0 until node.factors.size; j <- 0 until node.domain.size) {
+      logBeliefs(j) += Math.log(node.receivedMessageValue(i, j));
+    }
+    GUtil.logNormalizei(logBeliefs);
+    logBeliefs.map(Math.exp(_));
+  }
+
+  def assertMatchesLogSpace(node: Node[_]): Array[Double] = {
+    val expected = logSpaceMarginals(node);
+    val marginals = node.getMarginals().clone;
+    assertEquals(expected.size, marginals.size);
+    for (j <- 0 until expected.size) {
+      assertEquals(expected(j), marginals(j), 1e-9 * Math.max(expected(j), 1e-300));
+    }
+    marginals;
+  }
+}
@@ -0,0 +1,71 @@
+package edu.berkeley.nlp.entity.coref
+
+import scala.util.Random
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.TestDocs
+
+/**
+ * Checks getLossesFast against getLossesReference on synthetic documents with predicted
+ * mentions: every loss must be bitwise identical.
+ */
+class DownstreamLossComputerTest {
+  import DownstreamLossComputerTest._
+
+  @Test
+  def testSingletons() {
+    checkAll(docs, (doc, rng) => Array.tabulate(doc.predMentions.size)(i => i), false);
+  }
+
+  @Test
+  def testChain() {
+    checkAll(docs, (doc, rng) => Array.tabulate(doc.predMentions.size)(i => Math.max(0, i - 1)), false);
+  }
+
+  @Test
+  def testRandom() {
+    checkAll(docs, randomBackpointers, false);
+  }
+
+  @Test
+  def testPruned() {
+    checkAll(docs, randomBackpointers, true);
+    checkAll(docs, (doc, rng) => Array.tabulate(doc.predMentions.size)(i => Math.max(0, i - 1)), true);
+  }
+}
+
+object DownstreamLossComputerTest {
+  // Several small documents and one with more than ParallelMinMents mentions, whose rows are
+  // computed in parallel
+  lazy val docs = {
+    val largeDocs = TestDocs.corefDocs(1, 1, 40);
+    assertTrue(largeDocs(0).predMentions.size >= DownstreamLossComputer.ParallelMinMents);
+    TestDocs.corefDocs(6, 0) ++ largeDocs;
+  }
+
+  val WeightSettings = Seq(Array(0.0, 0, 1, 0, 0, 1), Array(1.0, 0.5, 0.25, 2, 3, 0.1));
+
+  def randomBackpointers(doc: CorefDoc, rng: Random) = {
+    Array.tabulate(doc.predMentions.size)(i => if (rng.nextDouble < 0.3) i else rng.nextInt(i + 1));
+  }
+
+  /**
+   * For each document and weight setting, builds backpointers and (if prune is set) prunes a
+   * random 30% of the edges other than the chosen ones, then compares every loss.
+   */
+  def checkAll(docs: Seq[CorefDoc], backpointersFcn: (CorefDoc, Random) => Array[Int], prune: Boolean) {
+    val rng = new Random(0);
+    for (doc <- docs; weights <- WeightSettings) {
+      val numMents = doc.predMentions.size;
+      val backpointers = backpointersFcn(doc, rng);
+      val prunedEdges = if (!prune) None else Some(Array.tabulate(numMents)(i => Array.tabulate(i + 1)(j => j != backpointers(i) && rng.nextDouble < 0.3)));
+      val fast = CorefEvaluator.getLossesFast(doc, backpointers, weights(0), weights(1), weights(2), weights(3), weights(4), weights(5), prunedEdges);
+      val reference = CorefEvaluator.getLossesReference(doc, backpointers, weights(0), weights(1), weights(2), weights(3), weights(4), weights(5), prunedEdges);
+      for (i <- 0 until numMents; j <- 0 to i) {
+        if (java.lang.Double.compare(fast(i)(j), reference(i)(j)) != 0) {
+          fail("Mismatch in " + doc.rawDoc.printableDocName + " at " + i + ", " + j + ": " + fast(i)(j) + " vs. " + reference(i)(j));
+        }
+      }
+    }
+  }
+}
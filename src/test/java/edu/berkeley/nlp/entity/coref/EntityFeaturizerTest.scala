@@ -0,0 +1,90 @@
+package edu.berkeley.nlp.entity.coref
+
+import scala.util.Random
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.TestDocs
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+/**
+ * Checks featurizeIndexed against the features featurize builds by name, under random
+ * partial clusterings of synthetic documents.
+ */
+class EntityFeaturizerTest {
+  import EntityFeaturizerTest._
+
+  @Test
+  def testAgree() {
+    checkAgainstFeaturize("+entityagree");
+  }
+
+  @Test
+  def testAgreeCustom() {
+    checkAgainstFeaturize("+entityagree+entityagreecustom");
+  }
+
+  @Test
+  def testFine() {
+    checkAgainstFeaturize("+entityfine");
+  }
+
+  @Test
+  def testConjunctions() {
+    checkAgainstFeaturize("+entityagree+entityfine+conjfine");
+    checkAgainstFeaturize("+entityagree+entityagreecustom+conjcoarse");
+  }
+}
+
+object EntityFeaturizerTest {
+  // Number and gender clusterers, as CorefSystem sets them up for the Rahman inferencer
+  lazy val docGraphs = {
+    val docGraphs = TestDocs.docGraphs(4, 2);
+    docGraphs.foreach(_.computeAndStorePhiPosteriors(true, true, false));
+    docGraphs;
+  }
+
+  /**
+   * Visits every pair of every document in order, assigning each mention a random antecedent
+   * after its pairs have been featurized, the way inference builds up clusters.
+   */
+  def forEachPair(featurizer: EntityFeaturizer, rng: Random, fcn: (DocumentGraph, MentClusterMapping, Int, Int) => Unit) {
+    for (docGraph <- docGraphs) {
+      val mapping = new MentClusterMapping(docGraph.size);
+      featurizer.prepareMapping(docGraph, mapping);
+      for (i <- 0 until docGraph.size) {
+        for (j <- 0 to i) {
+          fcn(docGraph, mapping, i, j);
+        }
+        mapping.updateWithAssignment(i, if (rng.nextDouble < 0.3) i else rng.nextInt(i + 1));
+      }
+    }
+  }
+
+  def checkAgainstFeaturize(featsToUse: String) {
+    val featurizer = new EntityFeaturizer(featsToUse);
+    // Index every feature featurize comes up with first, since EntityFeatureIndex caches
+    // misses, but hold one back to check that misses come out as -1
+    val featureIndexer = new Indexer[String];
+    var heldOut: String = null;
+    forEachPair(featurizer, new Random(0), (docGraph, mapping, i, j) => {
+      for (feat <- featurizer.featurize(docGraph, i, j, mapping.mentsToClusters, mapping.clustersToMents)) {
+        if (heldOut == null) {
+          heldOut = feat.name;
+        } else if (feat.name != heldOut) {
+          featureIndexer.getIndex(feat.name);
+        }
+      }
+    });
+    assertNotNull(heldOut);
+    val index = new EntityFeatureIndex(featurizer, featureIndexer);
+    var numFeats = 0;
+    var numMisses = 0;
+    forEachPair(featurizer, new Random(0), (docGraph, mapping, i, j) => {
+      val expected = featurizer.featurize(docGraph, i, j, mapping.mentsToClusters, mapping.clustersToMents).map(feat => featureIndexer.indexOf(feat.name));
+      assertEquals(featsToUse + " at " + i + ", " + j, expected, featurizer.featurizeIndexed(i, j, mapping, index).toSeq);
+      numFeats += expected.size;
+      numMisses += expected.count(_ == -1);
+    });
+    assertTrue(numFeats > numMisses && numMisses > 0);
+  }
+}
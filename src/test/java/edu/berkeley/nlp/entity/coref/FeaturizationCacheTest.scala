@@ -0,0 +1,139 @@
+package edu.berkeley.nlp.entity.coref
+
+import java.io.File
+import java.io.FileWriter
+import java.nio.file.Files
+import org.junit.After
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.TestDocs
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+class FeaturizationCacheTest {
+  import FeaturizationCacheTest._
+
+  private val oldPairwiseFeats = Driver.pairwiseFeats;
+  private val oldLexicalFeatCutoff = Driver.lexicalFeatCutoff;
+  private val oldWordNetPath = Driver.wordNetPath;
+  private val oldLexInfPath = Driver.lexInfPath;
+  private val tmpDir = Files.createTempDirectory("featcache").toFile;
+
+  @After
+  def restoreDriver() {
+    Driver.pairwiseFeats = oldPairwiseFeats;
+    Driver.lexicalFeatCutoff = oldLexicalFeatCutoff;
+    Driver.wordNetPath = oldWordNetPath;
+    Driver.lexInfPath = oldLexInfPath;
+    deleteRecursively(tmpDir);
+  }
+
+  @Test
+  def testHitMatchesFeaturizing() {
+    val cacheDir = new File(tmpDir, "cache").getPath;
+    val miss = featurize(TestDocs.corefDocs(4, 0), cacheDir);
+    assertEquals(1, miss.numFeaturizations);
+    assertEquals(1, new File(cacheDir).list.size);
+    // Fresh but identical documents and indexer get the same key and load the entry
+    val hit = featurize(TestDocs.corefDocs(4, 0), cacheDir);
+    assertEquals(0, hit.numFeaturizations);
+    assertEquals(1, new File(cacheDir).list.size);
+    assertEquals(miss.featureIndexer.getObjects, hit.featureIndexer.getObjects);
+    for (i <- 0 until miss.docGraphs.size) {
+      val missChart = miss.docGraphs(i).cachedFeats;
+      val hitChart = hit.docGraphs(i).cachedFeats;
+      assertEquals(missChart.numMents, hitChart.numMents);
+      assertArrayEquals(missChart.edgeStarts, hitChart.edgeStarts);
+      assertArrayEquals(missChart.feats, hitChart.feats);
+    }
+  }
+
+  @Test
+  def testKeyIsStable() {
+    assertEquals(key(TestDocs.corefDocs(3, 1)), key(TestDocs.corefDocs(3, 1)));
+  }
+
+  @Test
+  def testOptionsChangeKey() {
+    val corefDocs = TestDocs.corefDocs(3, 1);
+    val baseKey = key(corefDocs);
+    Driver.lexicalFeatCutoff += 1;
+    assertNotEquals(baseKey, key(corefDocs));
+    Driver.lexicalFeatCutoff -= 1;
+    Driver.pairwiseFeats += "+FINAL";
+    assertNotEquals(baseKey, key(corefDocs));
+    Driver.pairwiseFeats = oldPairwiseFeats;
+    assertEquals(baseKey, key(corefDocs));
+  }
+
+  @Test
+  def testAuxFilesChangeKey() {
+    val corefDocs = TestDocs.corefDocs(3, 1);
+    val lexInfFile = new File(tmpDir, "lexinf.txt");
+    append(lexInfFile, "a b\n");
+    val wordNetDir = new File(tmpDir, "wordnet");
+    wordNetDir.mkdirs();
+    append(new File(wordNetDir, "data.noun"), "noun\n");
+    Driver.lexInfPath = lexInfFile.getPath;
+    Driver.wordNetPath = wordNetDir.getPath;
+    val baseKey = key(corefDocs);
+    // Regenerated in place under the same paths
+    append(lexInfFile, "c d\n");
+    val lexInfKey = key(corefDocs);
+    assertNotEquals(baseKey, lexInfKey);
+    append(new File(wordNetDir, "data.verb"), "verb\n");
+    assertNotEquals(lexInfKey, key(corefDocs));
+  }
+
+  @Test
+  def testMentionsChangeKey() {
+    val cacheDir = new File(tmpDir, "cache").getPath;
+    val corefDocs = TestDocs.corefDocs(3, 1);
+    // As if mention detection had missed the last mention of the first document
+    val fewerMentions = corefDocs(0).copy(predMentions = corefDocs(0).predMentions.dropRight(1)) +: corefDocs.drop(1);
+    assertNotEquals(key(corefDocs), key(fewerMentions));
+    assertEquals(1, featurize(corefDocs, cacheDir).numFeaturizations);
+    assertEquals(1, featurize(fewerMentions, cacheDir).numFeaturizations);
+    assertEquals(2, new File(cacheDir).list.size);
+  }
+}
+
+object FeaturizationCacheTest {
+  class CountingFeaturizerTrainer extends CorefFeaturizerTrainer {
+    var numFeaturizations = 0;
+
+    override def featurizeBasic(docGraphs: Seq[DocumentGraph], pairwiseIndexingFeaturizer: PairwiseIndexingFeaturizer) {
+      numFeaturizations += 1;
+      super.featurizeBasic(docGraphs, pairwiseIndexingFeaturizer);
+    }
+  }
+
+  class Featurized(val docGraphs: Seq[DocumentGraph], val featureIndexer: Indexer[String], val numFeaturizations: Int);
+
+  def featurize(corefDocs: Seq[CorefDoc], cacheDir: String): Featurized = {
+    val docGraphs = TestDocs.docGraphs(corefDocs);
+    val featureIndexer = new Indexer[String];
+    val trainer = new CountingFeaturizerTrainer;
+    FeaturizationCache.featurizeBasic(docGraphs, TestDocs.featurizer(corefDocs, featureIndexer), trainer, cacheDir);
+    new Featurized(docGraphs, featureIndexer, trainer.numFeaturizations);
+  }
+
+  def key(corefDocs: Seq[CorefDoc]): String = {
+    val featureIndexer = new Indexer[String];
+    TestDocs.featurizer(corefDocs, featureIndexer);
+    FeaturizationCache.computeKey(TestDocs.docGraphs(corefDocs), featureIndexer);
+  }
+
+  def append(file: File, str: String) {
+    val writer = new FileWriter(file, true);
+    writer.write(str);
+    writer.close();
+  }
+
+  def deleteRecursively(file: File) {
+    if (file.isDirectory) {
+      file.listFiles.foreach(deleteRecursively);
+    }
+    file.delete();
+  }
+}
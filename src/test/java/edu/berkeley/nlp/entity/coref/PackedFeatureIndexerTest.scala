@@ -0,0 +1,88 @@
+package edu.berkeley.nlp.entity.coref
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.ConcurrentIndexer
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+class PackedFeatureIndexerTest {
+  import PackedFeatureIndexerTest._
+
+  @Test
+  def testMatchesStringIndexing() {
+    val packed = new PackedFeatureIndexer(new Indexer[String]);
+    val strings = new Indexer[String];
+    checkLookups(packed, strings, lookups(3000, new Random(0)));
+    assertTrue(packed.numCachedFeatures > 0);
+  }
+
+  @Test
+  def testMatchesStringIndexingAfterClearCachedIndices() {
+    val featureIndexer = new ConcurrentIndexer[String];
+    val packed = new PackedFeatureIndexer(featureIndexer);
+    val strings = new Indexer[String];
+    val rng = new Random(1);
+    checkLookups(packed, strings, lookups(2000, rng));
+    // Fill another thread's cache too, so clearing has to reach caches it can't see
+    val otherThreadLookups = lookups(500, rng);
+    runOnOtherThread(checkLookups(packed, strings, otherThreadLookups));
+
+    // Reverse the numbering and start string indexing over from the renumbered features
+    featureIndexer.renumberByFirstOccurrence(0, Seq((featureIndexer.size - 1 to 0 by -1).toArray));
+    packed.clearCachedIndices();
+    val renumberedStrings = new Indexer[String];
+    featureIndexer.getObjects.asScala.foreach(renumberedStrings.getIndex(_));
+    assertEquals(strings.getObjects.asScala.reverse, renumberedStrings.getObjects.asScala);
+
+    checkLookups(packed, renumberedStrings, lookups(2000, rng));
+    runOnOtherThread(checkLookups(packed, renumberedStrings, otherThreadLookups));
+  }
+}
+
+object PackedFeatureIndexerTest {
+  val BaseNames = (0 until 40).map("Feat" + _ + "=");
+  val ConjStrs = Seq(null, "NOMINAL", "PROPER", "PRON-he", "PRON-it", "NOMPERSON", "PROPGPE", "-");
+
+  case class Lookup(featName: String, currConj: String, prevConj: String, addToIndexer: Boolean);
+
+  def lookups(num: Int, rng: Random): Seq[Lookup] = {
+    Seq.fill(num)(new Lookup(BaseNames(rng.nextInt(BaseNames.size)) + rng.nextInt(5), ConjStrs(rng.nextInt(ConjStrs.size)), ConjStrs(rng.nextInt(ConjStrs.size)), rng.nextInt(4) != 0));
+  }
+
+  // What PairwiseIndexingFeaturizerJoint indexes when it isn't packing keys
+  def featString(lookup: Lookup) = {
+    lookup.featName + (if (lookup.currConj != null) "&C=" + lookup.currConj else "") + (if (lookup.prevConj != null) "&P=" + lookup.prevConj else "");
+  }
+
+  /**
+   * Runs the lookups through packed and as plain strings through strings (which must start
+   * out with the same features as packed's indexer) and checks each gets the same index.
+   */
+  def checkLookups(packed: PackedFeatureIndexer, strings: Indexer[String], lookups: Seq[Lookup]) {
+    for (lookup <- lookups) {
+      val expected = if (lookup.addToIndexer) strings.getIndex(featString(lookup)) else strings.indexOf(featString(lookup));
+      assertEquals(lookup.toString, expected, packed.getIndex(lookup.featName, lookup.currConj, lookup.prevConj, lookup.addToIndexer));
+    }
+    assertEquals(strings.getObjects, packed.featureIndexer.getObjects);
+  }
+
+  def runOnOtherThread(body: => Unit) {
+    var failure: Throwable = null;
+    val thread = new Thread(new Runnable {
+      def run() {
+        try {
+          body;
+        } catch {
+          case e: Throwable => failure = e;
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
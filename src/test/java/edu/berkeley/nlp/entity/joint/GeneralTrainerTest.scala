@@ -0,0 +1,100 @@
+package edu.berkeley.nlp.entity.joint
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+import org.junit.Assert._
+import org.junit.Test
+
+class GeneralTrainerTest {
+  import GeneralTrainerTest._
+
+  @Test
+  def testSparseMatchesDenseDisjointFeatures() {
+    // Each minibatch of two touches its own three features, so every weight misses two of
+    // every three steps and gets caught up on the next iteration or at the end of one
+    val exs = (0 until 6).map(i => new Example(Array(3 * (i / 2), 3 * (i / 2) + 1 + (i % 2)), i % 3 != 0));
+    assertSparseMatchesDense(exs, 9, 0.05F);
+  }
+
+  @Test
+  def testSparseMatchesDenseOverlappingFeatures() {
+    val rng = new Random(7);
+    val exs = (0 until 20).map(i => new Example(Array.fill(1 + rng.nextInt(4))(rng.nextInt(12)).distinct, rng.nextBoolean));
+    val weights = assertSparseMatchesDense(exs, 12, 0.05F);
+    // Strong enough regularization that the catch-up has to walk some weights down to zero
+    assertTrue(weights.exists(_ == 0.0F));
+    assertTrue(weights.exists(_ != 0.0F));
+  }
+
+  @Test
+  def testMissingActiveFeaturesFallsBackToDense() {
+    val rng = new Random(3);
+    val exs = (0 until 10).map(i => new Example(Array.fill(3)(rng.nextInt(8)).distinct, rng.nextBoolean));
+    // Claims no features for the last example, which would leave its weights stale if the
+    // trainer didn't notice and fall back to dense updates
+    val computer = new LogisticComputer {
+      override def getActiveFeatures(ex: Example) = if (ex eq exs.last) null else ex.feats;
+    };
+    val sparseWeights = new GeneralTrainer[Example](true).trainAdagrad(exs, computer, 8, Eta, 0.02F, BatchSize, NumItrs);
+    val denseWeights = new GeneralTrainer[Example](false).trainAdagrad(exs, new LogisticComputer, 8, Eta, 0.02F, BatchSize, NumItrs);
+    assertArrayEquals(denseWeights, sparseWeights, 0.0F);
+  }
+
+  @Test
+  def testLearningCallbackSeesDenseWeights() {
+    val rng = new Random(5);
+    val exs = (0 until 10).map(i => new Example(Array.fill(3)(rng.nextInt(8)).distinct, rng.nextBoolean));
+    def train(sparseUpdates: Boolean): (Array[Float], Seq[Seq[Float]]) = {
+      val seenWeights = new ArrayBuffer[Seq[Float]];
+      // Clips weights after every step, so it also checks that what the callback writes sticks
+      val callback = (weights: Array[Float]) => {
+        seenWeights += weights.toSeq;
+        for (i <- 0 until weights.size) {
+          weights(i) = Math.max(-0.3F, Math.min(0.3F, weights(i)));
+        }
+      };
+      val weights = new GeneralTrainer[Example](sparseUpdates).trainAdagrad(exs, new LogisticComputer, 8, Eta, 0.02F, BatchSize, NumItrs, callback);
+      (weights, seenWeights);
+    }
+    val (sparseWeights, sparseSeen) = train(true);
+    val (denseWeights, denseSeen) = train(false);
+    assertEquals(NumItrs * 5, sparseSeen.size);
+    assertEquals(denseSeen, sparseSeen);
+    assertArrayEquals(denseWeights, sparseWeights, 0.0F);
+  }
+}
+
+object GeneralTrainerTest {
+  val Eta = 1.0F;
+  val BatchSize = 2;
+  val NumItrs = 4;
+
+  class Example(val feats: Array[Int], val label: Boolean);
+
+  // Logistic regression on binary features
+  class LogisticComputer extends LikelihoodAndGradientComputer[Example] {
+    private def prob(ex: Example, weights: Array[Float]) = 1.0 / (1.0 + Math.exp(-ex.feats.map(weights(_)).sum));
+
+    def addUnregularizedStochasticGradient(ex: Example, weights: Array[Float], gradient: Array[Float]) {
+      val residual = ((if (ex.label) 1.0 else 0.0) - prob(ex, weights)).toFloat;
+      ex.feats.foreach(feat => gradient(feat) += residual);
+    }
+
+    def computeLogLikelihood(ex: Example, weights: Array[Float]): Float = {
+      Math.log(if (ex.label) prob(ex, weights) else 1.0 - prob(ex, weights)).toFloat;
+    }
+
+    override def getActiveFeatures(ex: Example): Array[Int] = ex.feats;
+  }
+
+  /**
+   * Trains on exs with and without sparse updates and checks the weights come out bit for
+   * bit the same; returns them.
+   */
+  def assertSparseMatchesDense(exs: Seq[Example], numFeats: Int, lambda: Float): Array[Float] = {
+    val sparseWeights = new GeneralTrainer[Example](true).trainAdagrad(exs, new LogisticComputer, numFeats, Eta, lambda, BatchSize, NumItrs);
+    val denseWeights = new GeneralTrainer[Example](false).trainAdagrad(exs, new LogisticComputer, numFeats, Eta, lambda, BatchSize, NumItrs);
+    assertArrayEquals(denseWeights, sparseWeights, 0.0F);
+    sparseWeights;
+  }
+}
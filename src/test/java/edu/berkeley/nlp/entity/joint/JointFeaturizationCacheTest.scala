@@ -0,0 +1,95 @@
+package edu.berkeley.nlp.entity.joint
+
+import java.io.File
+import java.nio.file.Files
+import org.junit.After
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.TestDocs
+import edu.berkeley.nlp.entity.coref.CorefDoc
+import edu.berkeley.nlp.entity.coref.FeaturizationCacheTest
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+class JointFeaturizationCacheTest {
+  import JointFeaturizationCacheTest._
+
+  private val oldNerFeatureSet = Driver.nerFeatureSet;
+  private val oldBrownPath = Driver.brownPath;
+  private val tmpDir = Files.createTempDirectory("jointfeatcache").toFile;
+
+  @After
+  def restoreDriver() {
+    Driver.nerFeatureSet = oldNerFeatureSet;
+    Driver.brownPath = oldBrownPath;
+    FeaturizationCacheTest.deleteRecursively(tmpDir);
+  }
+
+  @Test
+  def testHitMatchesFeaturizing() {
+    val cacheDir = new File(tmpDir, "cache");
+    val miss = buildGraphs(TestDocs.corefDocs(3, 0), cacheDir.getPath);
+    assertEquals(1, cacheDir.list.size);
+    // Recording moves a new file into place, so this stays put only if the entry is replayed
+    val entry = cacheDir.listFiles.head;
+    assertTrue(entry.setLastModified(0));
+    val hit = buildGraphs(TestDocs.corefDocs(3, 0), cacheDir.getPath);
+    assertEquals(0, entry.lastModified);
+    assertEquals(1, cacheDir.list.size);
+    assertEquals(miss.getObjects, hit.getObjects);
+  }
+
+  @Test
+  def testKeyIsStable() {
+    assertEquals(key(TestDocs.corefDocs(2, 1)), key(TestDocs.corefDocs(2, 1)));
+  }
+
+  @Test
+  def testOptionsChangeKey() {
+    val corefDocs = TestDocs.corefDocs(2, 1);
+    val baseKey = key(corefDocs);
+    Driver.nerFeatureSet = "bigrams";
+    assertNotEquals(baseKey, key(corefDocs));
+    Driver.nerFeatureSet = oldNerFeatureSet;
+    assertNotEquals(baseKey, key(corefDocs, "indicators"));
+    assertEquals(baseKey, key(corefDocs));
+  }
+
+  @Test
+  def testAuxFilesChangeKey() {
+    val corefDocs = TestDocs.corefDocs(2, 1);
+    val brownFile = new File(tmpDir, "brown.txt");
+    FeaturizationCacheTest.append(brownFile, "0110\tthe\t10\n");
+    Driver.brownPath = brownFile.getPath;
+    val baseKey = key(corefDocs);
+    FeaturizationCacheTest.append(brownFile, "0111\ta\t8\n");
+    assertNotEquals(baseKey, key(corefDocs));
+  }
+
+  @Test
+  def testMentionsChangeKey() {
+    val corefDocs = TestDocs.corefDocs(2, 1);
+    val fewerMentions = corefDocs(0).copy(predMentions = corefDocs(0).predMentions.dropRight(1)) +: corefDocs.drop(1);
+    assertNotEquals(key(corefDocs), key(fewerMentions));
+  }
+}
+
+object JointFeaturizationCacheTest {
+  def factory(corefDocs: Seq[CorefDoc], featureIndexer: Indexer[String], corefNerFeatures: String = Driver.corefNerFeatures) = {
+    val jointDocs = TestDocs.jointDocs(TestDocs.docGraphs(corefDocs));
+    (jointDocs, new FactorGraphFactoryOnto(TestDocs.jointFeaturizer(jointDocs, featureIndexer, corefNerFeatures), None));
+  }
+
+  // Returns the indexer the graphs were built with
+  def buildGraphs(corefDocs: Seq[CorefDoc], cacheDir: String): Indexer[String] = {
+    val featureIndexer = new Indexer[String];
+    val (jointDocs, fgfOnto) = factory(corefDocs, featureIndexer);
+    JointFeaturizationCache.buildTrainingGraphs(jointDocs, fgfOnto, cacheDir);
+    featureIndexer;
+  }
+
+  def key(corefDocs: Seq[CorefDoc], corefNerFeatures: String = Driver.corefNerFeatures): String = {
+    val (jointDocs, fgfOnto) = factory(corefDocs, new Indexer[String], corefNerFeatures);
+    JointFeaturizationCache.computeKey(jointDocs, fgfOnto);
+  }
+}
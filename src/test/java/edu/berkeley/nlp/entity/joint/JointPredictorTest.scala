@@ -0,0 +1,89 @@
+package edu.berkeley.nlp.entity.joint
+
+import java.io.PrintWriter
+import java.io.StringWriter
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+import org.junit.After
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.Driver
+import edu.berkeley.nlp.entity.TestDocs
+import edu.berkeley.nlp.entity.coref.CorefDoc
+import edu.berkeley.nlp.entity.coref.CorefPruner
+import edu.berkeley.nlp.entity.coref.DocumentGraph
+import edu.berkeley.nlp.futile.fig.basic.Indexer
+
+class JointPredictorTest {
+  import JointPredictorTest._
+
+  private val oldNumDecodeThreads = Driver.numDecodeThreads;
+
+  @After
+  def restoreDriver() {
+    Driver.numDecodeThreads = oldNumDecodeThreads;
+  }
+
+  @Test
+  def testParallelDecodingMatchesSerial() {
+    val model = buildModel();
+    val testDocs = decodeDocs(TestDocs.corefDocs(16, 5), model.corefPruner);
+    for (skipMentionlessDocs <- Seq(true, false)) {
+      Driver.numDecodeThreads = 1;
+      val serial = decodeWrite(model, testDocs, skipMentionlessDocs);
+      // Names and predictions for every document
+      assertEquals(2 * testDocs.size, serial._3.size);
+      Driver.numDecodeThreads = 4;
+      val parallel = decodeWrite(model, testDocs, skipMentionlessDocs);
+      assertEquals(serial, parallel);
+    }
+  }
+}
+
+object JointPredictorTest {
+  /**
+   * A model over features from a few training documents (see TestDocs.jointFeaturizer),
+   * with random weights so decoding has something nontrivial to do; no NER pruning.
+   */
+  def buildModel(): JointPredictor = {
+    val trainDocs = TestDocs.jointDocs(TestDocs.docGraphs(8, 4));
+    val featureIndexer = new Indexer[String];
+    val jointFeaturizer = TestDocs.jointFeaturizer(trainDocs, featureIndexer);
+    JointFeaturizationCache.buildTrainingGraphs(trainDocs, new FactorGraphFactoryOnto(jointFeaturizer, None), "");
+    assertTrue(featureIndexer.size > 100);
+    val rng = new Random(0);
+    val weights = Array.fill(featureIndexer.size)((rng.nextGaussian * 0.5).toFloat);
+    new JointPredictor(jointFeaturizer, weights, CorefPruner.buildPruner(Driver.pruningStrategy), null);
+  }
+
+  // Assembled the way EntitySystem.preprocessDocForDecode does it, minus NER pruning
+  def decodeDocs(corefDocs: Seq[CorefDoc], corefPruner: CorefPruner): Seq[JointDoc] = {
+    corefDocs.map(corefDoc => {
+      val docGraph = new DocumentGraph(corefDoc, false);
+      corefPruner.prune(docGraph);
+      JointDoc.assembleJointDoc(docGraph, None);
+    });
+  }
+
+  /**
+   * Decodes and writes docs on Driver.numDecodeThreads threads; returns the two outputs and
+   * what evaluation would see for each document, in the order the consumer got them.
+   */
+  def decodeWrite(model: JointPredictor, docs: Seq[JointDoc], skipMentionlessDocs: Boolean): (String, String, Seq[Any]) = {
+    val out = new StringWriter;
+    val outWiki = new StringWriter;
+    val outWriter = new PrintWriter(out);
+    val outWikiWriter = new PrintWriter(outWiki);
+    val results = new ArrayBuffer[Any];
+    model.decodeWriteInOrder(docs, model.makeDocDecoder(None, skipMentionlessDocs), outWriter, outWikiWriter, true, (jointDoc: JointDoc, prediction: JointPredictor.DocPrediction) => {
+      results += jointDoc.rawDoc.printableDocName;
+      if (prediction != null) {
+        val (backptrs, clustering, nerChunks, wikiChunks) = prediction;
+        results += ((backptrs.toSeq, clustering.clusters, nerChunks, wikiChunks));
+      }
+    });
+    outWriter.close();
+    outWikiWriter.close();
+    (out.toString, outWiki.toString, results);
+  }
+}
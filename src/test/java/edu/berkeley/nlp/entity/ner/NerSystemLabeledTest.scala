@@ -0,0 +1,39 @@
+package edu.berkeley.nlp.entity.ner
+
+import scala.collection.mutable.ArrayBuffer
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.entity.OrderedParallelExecutor
+import edu.berkeley.nlp.entity.TestDocs
+
+class NerSystemLabeledTest {
+
+  @Test
+  def testParallelTaggingMatchesSerial() {
+    val nerSystem = NerSystemLabeled.trainNerSystem(TestDocs.conllDocs(6, 0), None, Set("bigrams"), 1e-8, 5, 10);
+    val sents = TestDocs.conllDocs(10, 1).flatMap(doc => (0 until doc.numSents).map(sentIdx => (doc.words(sentIdx).toArray, doc.pos(sentIdx).toArray)));
+    val serialTags = sents.map(sent => nerSystem.tagBIO(sent._1, sent._2).toSeq);
+    assertTrue(serialTags.exists(_.exists(_ != "O")));
+
+    val instance = nerSystem.newInstance;
+    assertSame(nerSystem.weights, instance.weights);
+    assertNotSame(nerSystem.cachedVariationalProbs, instance.cachedVariationalProbs);
+
+    // Tagged the way ParallelSentenceAnnotator does it: a sentence at a time, each thread
+    // with its own instance
+    val nerSystems = new ThreadLocal[NerSystemLabeled] {
+      override def initialValue() = nerSystem.newInstance;
+    };
+    val parallelTags = new ArrayBuffer[Seq[String]];
+    val executor = new OrderedParallelExecutor[Seq[String]](4);
+    try {
+      for (sent <- sents) {
+        executor.submit(nerSystems.get.tagBIO(sent._1, sent._2).toSeq, (tags: Seq[String]) => parallelTags += tags);
+      }
+      executor.finish();
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(serialTags, parallelTags);
+  }
+}
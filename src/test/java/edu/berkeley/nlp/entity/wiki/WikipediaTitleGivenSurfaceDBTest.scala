@@ -0,0 +1,116 @@
+package edu.berkeley.nlp.entity.wiki
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import java.io.ObjectStreamClass
+import scala.collection.JavaConverters._
+import scala.util.Random
+import org.junit.Assert._
+import org.junit.Test
+import edu.berkeley.nlp.futile.util.Counter
+import edu.berkeley.nlp.futile.util.CounterMap
+
+/**
+ * Checks the candidate index against the Counter-based lookups it replaced, run on the
+ * CounterMap a saved database would load with.
+ */
+class WikipediaTitleGivenSurfaceDBTest {
+  import WikipediaTitleGivenSurfaceDBTest._
+
+  @Test
+  def testSavedFormatHoldsCounterMap() {
+    val field = ObjectStreamClass.lookup(classOf[WikipediaTitleGivenSurfaceDB]).getField("surfaceToTitle");
+    assertNotNull(field);
+    assertEquals(classOf[CounterMap[_,_]], field.getType);
+  }
+
+  @Test
+  def testLookupsMatchCounters() {
+    val rng = new Random(0);
+    val surfaceToTitle = randomSurfaceToTitle(rng);
+    val loaded = roundTrip(surfaceToTitle);
+    checkAgainst(loaded, roundTrip(new WikipediaTitleGivenSurfaceDB(surfaceToTitle)), rng);
+  }
+
+  @Test
+  def testLookupsMatchCountersAfterResaving() {
+    val rng = new Random(1);
+    val surfaceToTitle = randomSurfaceToTitle(rng);
+    val loaded = roundTrip(surfaceToTitle);
+    val db = roundTrip(new WikipediaTitleGivenSurfaceDB(surfaceToTitle));
+    // Builds the index and drops the CounterMap, so saving has to rebuild it
+    db.disambiguateQueries(Seq("surface0"));
+    checkAgainst(loaded, roundTrip(db), rng);
+  }
+}
+
+object WikipediaTitleGivenSurfaceDBTest {
+  val NumSurfaces = 40;
+
+  // Up to 60 titles per surface, so merged Counters grow past their initial capacity, with
+  // some counts below PruningThreshold
+  def randomSurfaceToTitle(rng: Random) = {
+    val surfaceToTitle = new CounterMap[String,String];
+    for (surfaceIdx <- 0 until NumSurfaces; i <- 0 until 1 + rng.nextInt(60)) {
+      surfaceToTitle.incrementCount("surface" + surfaceIdx, "Title_" + rng.nextInt(300), if (rng.nextInt(5) == 0) 0.5 else 1 + rng.nextInt(4));
+    }
+    surfaceToTitle;
+  }
+
+  def roundTrip[T](obj: T): T = {
+    val bytes = new ByteArrayOutputStream;
+    val out = new ObjectOutputStream(bytes);
+    out.writeObject(obj);
+    out.close();
+    new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray)).readObject().asInstanceOf[T];
+  }
+
+  def entries(counter: Counter[String]): Seq[(String,Double)] = counter.keySet.asScala.toSeq.map(title => title -> counter.getCount(title));
+
+  def entries(candidates: TitleCandidates): Seq[(String,Double)] = candidates.titles.toSeq.zip(candidates.counts);
+
+  // The lookups as they were written against the loaded CounterMap
+  def referenceAllOptions(surfaceToTitle: CounterMap[String,String], queries: Seq[String], onlyFirst: Boolean) = {
+    val counter = new Counter[String];
+    for (query <- queries) {
+      if ((!onlyFirst || counter.isEmpty) && surfaceToTitle.containsKey(query)) {
+        counter.incrementAll(surfaceToTitle.getCounter(query));
+        counter.pruneKeysBelowThreshold(WikipediaTitleGivenSurfaceDB.PruningThreshold);
+      }
+    }
+    counter;
+  }
+
+  def referenceOneBestOptions(surfaceToTitle: CounterMap[String,String], queries: Seq[String]) = {
+    val counter = new Counter[String];
+    for (query <- queries) {
+      if (surfaceToTitle.containsKey(query)) {
+        val resultsThisQuery = surfaceToTitle.getCounter(query);
+        counter.incrementCount(resultsThisQuery.argMax(), resultsThisQuery.max);
+        counter.pruneKeysBelowThreshold(WikipediaTitleGivenSurfaceDB.PruningThreshold);
+      }
+    }
+    counter;
+  }
+
+  def checkAgainst(loaded: CounterMap[String,String], db: WikipediaTitleGivenSurfaceDB, rng: Random) {
+    assertEquals(loaded.keySet.asScala.toSet, db.surfaces.toSet);
+    for (surface <- loaded.keySet.asScala) {
+      val counter = loaded.getCounter(surface);
+      assertTrue(db.containsSurface(surface));
+      assertEquals(entries(counter), entries(db.getTitleCounter(surface)));
+      assertEquals(entries(counter), entries(db.getTitleCandidates(surface)));
+      assertEquals(counter.argMax, db.getBestTitle(surface));
+    }
+    assertFalse(db.containsSurface("unknown"));
+    assertNull(db.getBestTitle("unknown"));
+    for (i <- 0 until 500) {
+      val queries = Seq.fill(1 + rng.nextInt(4))(if (rng.nextInt(5) == 0) "unknown" else "surface" + rng.nextInt(NumSurfaces));
+      assertEquals(entries(referenceAllOptions(loaded, queries, false)), entries(db.disambiguateQueriesGetAllOptions(queries)));
+      assertEquals(entries(referenceAllOptions(loaded, queries, true)), entries(db.disambiguateQueriesGetAllReasonableOptions(queries)));
+      assertEquals(entries(referenceOneBestOptions(loaded, queries)), entries(db.disambiguateQueriesGetAllOneBestOptions(queries)));
+    }
+  }
+}